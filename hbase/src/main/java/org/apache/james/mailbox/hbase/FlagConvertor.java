@@ -32,9 +32,6 @@ public class FlagConvertor {
     public static final byte[] PREFIX_SFLAGS_B = Bytes.toBytes(PREFIX_SFLAGS);
     public static final String PREFIX_UFLAGS = "uf:";
     public static final byte[] PREFIX_UFLAGS_B = Bytes.toBytes(PREFIX_UFLAGS);
-    /*TODO: find a way to store all flags as a single byte (HBase bitewise operations). 
-     * this will be efficient also because we will not store the column names.
-     */
     public static final byte[] FLAGS_ANSWERED = Bytes.toBytes("sf:A");
     public static final byte[] FLAGS_DELETED = Bytes.toBytes("sf:DE");
     public static final byte[] FLAGS_DRAFT = Bytes.toBytes("sf:DR");
@@ -42,6 +39,14 @@ public class FlagConvertor {
     public static final byte[] FLAGS_RECENT = Bytes.toBytes("sf:R");
     public static final byte[] FLAGS_SEEN = Bytes.toBytes("sf:S");
     public static final byte[] FLAGS_USER = Bytes.toBytes("sf:U");
+    /* bits of the system flags when they are packed in a single byte */
+    public static final byte BIT_ANSWERED = 0x01;
+    public static final byte BIT_DELETED = 0x02;
+    public static final byte BIT_DRAFT = 0x04;
+    public static final byte BIT_FLAGGED = 0x08;
+    public static final byte BIT_RECENT = 0x10;
+    public static final byte BIT_SEEN = 0x20;
+    public static final byte BIT_USER = 0x40;
 
     /**
      * Converts a {@link javax.mail.Flags.Flag} to a byte array representation
@@ -130,4 +135,71 @@ public class FlagConvertor {
         }
         throw new RuntimeException("This is not a user flag representation: " + Bytes.toString(bytes));
     }
+
+    /**
+     * Packs the system flags as bits in a single byte. The byte can be tested
+     * by HBase filters with a {@link org.apache.hadoop.hbase.filter.BitComparator}.
+     * @param flags the flags to pack, user flags are ignored
+     * @return a one byte array holding the system flags
+     */
+    public static byte[] systemFlagsToBytes(Flags flags) {
+        int bits = 0;
+        if (flags.contains(Flag.ANSWERED)) {
+            bits |= BIT_ANSWERED;
+        }
+        if (flags.contains(Flag.DELETED)) {
+            bits |= BIT_DELETED;
+        }
+        if (flags.contains(Flag.DRAFT)) {
+            bits |= BIT_DRAFT;
+        }
+        if (flags.contains(Flag.FLAGGED)) {
+            bits |= BIT_FLAGGED;
+        }
+        if (flags.contains(Flag.RECENT)) {
+            bits |= BIT_RECENT;
+        }
+        if (flags.contains(Flag.SEEN)) {
+            bits |= BIT_SEEN;
+        }
+        if (flags.contains(Flag.USER)) {
+            bits |= BIT_USER;
+        }
+        return new byte[]{(byte) bits};
+    }
+
+    /**
+     * Unpacks the system flags stored with {@link #systemFlagsToBytes(Flags)}.
+     * @param bytes the packed flags
+     * @return the system flags
+     */
+    public static Flags systemFlagsFromBytes(byte[] bytes) {
+        Flags flags = new Flags();
+        if (bytes == null || bytes.length == 0) {
+            return flags;
+        }
+        byte bits = bytes[0];
+        if ((bits & BIT_ANSWERED) != 0) {
+            flags.add(Flag.ANSWERED);
+        }
+        if ((bits & BIT_DELETED) != 0) {
+            flags.add(Flag.DELETED);
+        }
+        if ((bits & BIT_DRAFT) != 0) {
+            flags.add(Flag.DRAFT);
+        }
+        if ((bits & BIT_FLAGGED) != 0) {
+            flags.add(Flag.FLAGGED);
+        }
+        if ((bits & BIT_RECENT) != 0) {
+            flags.add(Flag.RECENT);
+        }
+        if ((bits & BIT_SEEN) != 0) {
+            flags.add(Flag.SEEN);
+        }
+        if ((bits & BIT_USER) != 0) {
+            flags.add(Flag.USER);
+        }
+        return flags;
+    }
 }
@@ -18,6 +18,7 @@
  ****************************************************************/
 package org.apache.james.mailbox.hbase;
 
+import java.io.IOException;
 import java.util.UUID;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
@@ -25,11 +26,13 @@ import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.MasterNotRunningException;
 import org.apache.hadoop.hbase.ZooKeeperConnectionException;
 import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTablePool;
 import org.apache.james.mailbox.MailboxSession;
 import static org.apache.james.mailbox.hbase.HBaseNames.*;
 
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.exception.SubscriptionException;
+import org.apache.james.mailbox.hbase.mail.HBaseFlagCountersMigration;
 import org.apache.james.mailbox.hbase.mail.HBaseMailboxMapper;
 import org.apache.james.mailbox.hbase.mail.HBaseMessageMapper;
 import org.apache.james.mailbox.hbase.user.HBaseSubscriptionMapper;
@@ -42,13 +45,41 @@ import org.apache.james.mailbox.store.user.SubscriptionMapper;
 
 /**
  * HBase implementation of {@link MailboxSessionMapperFactory}
+ * <br/>
+ * All mappers share one {@link HTablePool}, so that the tables, and the region locations
+ * they cache, are reused between the requests instead of being set up for every operation.
+ * The pool is released by {@link #close()}.
+ * <br/>
+ * The row keys of a new messages table are salted when the configuration sets
+ * {@link #SALT_BUCKETS_PROPERTY}, see {@link MessageRowKeys}. The schema is then stored
+ * with the table, and the keys of an existing table can be salted with
+ * {@link org.apache.james.mailbox.hbase.mail.HBaseMessageRowKeyMigration}.
+ * <br/>
+ * When the messages table predates the flags family, the family is added and the flags
+ * of the existing messages are migrated by {@link HBaseFlagCountersMigration}.
  *
  */
 public class HBaseMailboxSessionMapperFactory extends MailboxSessionMapperFactory<UUID> {
 
+    /**
+     * The default maximum number of idle instances of each table kept in the pool
+     */
+    public static final int DEFAULT_TABLE_POOL_SIZE = 20;
+    /**
+     * The number of salt buckets of the row keys of a new messages table, 0 to not salt them
+     */
+    public static final String SALT_BUCKETS_PROPERTY = "james.mailbox.hbase.messages.salt.buckets";
+    /**
+     * The number of consecutive uids of a mailbox stored in the same salt bucket
+     */
+    public static final String SALT_UID_BLOCK_PROPERTY = "james.mailbox.hbase.messages.salt.uid.block";
+
     private final Configuration conf;
+    private final HTablePool tablePool;
     private final UidProvider<UUID> uidProvider;
     private final ModSeqProvider<UUID> modSeqProvider;
+    private int chunkSize = MAX_COLUMN_SIZE;
+    private final MessageRowKeys rowKeys;
 
     /**
      * Creates  the necessary tables in HBase if they do not exist.
@@ -61,7 +92,33 @@ public class HBaseMailboxSessionMapperFactory extends MailboxSessionMapperFactor
      * @throws IOException
      */
     public HBaseMailboxSessionMapperFactory(Configuration conf, UidProvider<UUID> uidProvider, ModSeqProvider<UUID> modSeqProvider) {
+        this(conf, new HTablePool(conf, DEFAULT_TABLE_POOL_SIZE), uidProvider, modSeqProvider);
+    }
+
+    /**
+     * Creates  the necessary tables in HBase if they do not exist.
+     *
+     * @param conf Configuration for the cluster
+     * @param tablePoolSize The maximum number of idle instances of each table kept in the pool
+     * @param uidProvider UID provider for mailbox uid.
+     * @param modSeqProvider
+     */
+    public HBaseMailboxSessionMapperFactory(Configuration conf, int tablePoolSize, UidProvider<UUID> uidProvider, ModSeqProvider<UUID> modSeqProvider) {
+        this(conf, new HTablePool(conf, tablePoolSize), uidProvider, modSeqProvider);
+    }
+
+    /**
+     * Creates  the necessary tables in HBase if they do not exist.
+     *
+     * @param conf Configuration for the cluster
+     * @param tablePool The pool of tables, which should also be used by the providers.
+     * It is closed with this factory.
+     * @param uidProvider UID provider for mailbox uid.
+     * @param modSeqProvider
+     */
+    public HBaseMailboxSessionMapperFactory(Configuration conf, HTablePool tablePool, UidProvider<UUID> uidProvider, ModSeqProvider<UUID> modSeqProvider) {
         this.conf = conf;
+        this.tablePool = tablePool;
         this.uidProvider = uidProvider;
         this.modSeqProvider = modSeqProvider;
 
@@ -70,6 +127,7 @@ public class HBaseMailboxSessionMapperFactory extends MailboxSessionMapperFactor
             HBaseAdmin hbaseAdmin = new HBaseAdmin(conf);
             HTableDescriptor desc = null;
             HColumnDescriptor hColumnDescriptor = null;
+            boolean flagsFamilyAdded = false;
 
             /* create the tables if it does not exist */
 
@@ -87,6 +145,11 @@ public class HBaseMailboxSessionMapperFactory extends MailboxSessionMapperFactor
                  * Down to three column families, striking for just two.
                  */
                 desc = new HTableDescriptor(MESSAGES_TABLE);
+                MessageRowKeys newRowKeys = new MessageRowKeys(conf.getInt(SALT_BUCKETS_PROPERTY, 0),
+                        conf.getInt(SALT_UID_BLOCK_PROPERTY, MessageRowKeys.DEFAULT_UID_BLOCK_SIZE));
+                if (newRowKeys.isSalted()) {
+                    newRowKeys.toTableDescriptor(desc);
+                }
                 hColumnDescriptor = new HColumnDescriptor(MESSAGES_META_CF);
                 hColumnDescriptor.setMaxVersions(1);
                 desc.addFamily(hColumnDescriptor);
@@ -96,7 +159,25 @@ public class HBaseMailboxSessionMapperFactory extends MailboxSessionMapperFactor
                 hColumnDescriptor = new HColumnDescriptor(MESSAGE_DATA_BODY_CF);
                 hColumnDescriptor.setMaxVersions(1);
                 desc.addFamily(hColumnDescriptor);
-                hbaseAdmin.createTable(desc);
+                hColumnDescriptor = new HColumnDescriptor(MESSAGES_FLAGS_CF);
+                hColumnDescriptor.setMaxVersions(1);
+                desc.addFamily(hColumnDescriptor);
+                // a salted table starts with one region per bucket
+                hbaseAdmin.createTable(desc, newRowKeys.isSalted() ? newRowKeys.getSplitKeys() : null);
+            } else if (!hbaseAdmin.getTableDescriptor(MESSAGES_TABLE).hasFamily(MESSAGES_FLAGS_CF)) {
+                // the messages table was created before the flags had their own family
+                hColumnDescriptor = new HColumnDescriptor(MESSAGES_FLAGS_CF);
+                hColumnDescriptor.setMaxVersions(1);
+                hbaseAdmin.disableTable(MESSAGES_TABLE);
+                hbaseAdmin.addColumn(MESSAGES_TABLE, hColumnDescriptor);
+                hbaseAdmin.enableTable(MESSAGES_TABLE);
+                flagsFamilyAdded = true;
+            }
+            // the table tells how its keys are built, whatever the configuration says
+            rowKeys = MessageRowKeys.fromTableDescriptor(hbaseAdmin.getTableDescriptor(MESSAGES_TABLE));
+            if (flagsFamilyAdded) {
+                // pack the flags of the existing messages and count them in their mailboxes
+                new HBaseFlagCountersMigration(tablePool, rowKeys).migrate();
             }
 
 
@@ -108,6 +189,16 @@ public class HBaseMailboxSessionMapperFactory extends MailboxSessionMapperFactor
                 hbaseAdmin.createTable(desc);
             }
 
+            if (!hbaseAdmin.tableExists(MAILBOX_PATHS_TABLE)) {
+                desc = new HTableDescriptor(MAILBOX_PATHS_TABLE);
+                hColumnDescriptor = new HColumnDescriptor(MAILBOX_PATH_CF);
+                hColumnDescriptor.setMaxVersions(1);
+                desc.addFamily(hColumnDescriptor);
+                hbaseAdmin.createTable(desc);
+                // index the mailboxes which were created before the index
+                new HBaseMailboxMapper(tablePool).repairPathIndex();
+            }
+
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -115,17 +206,17 @@ public class HBaseMailboxSessionMapperFactory extends MailboxSessionMapperFactor
 
     @Override
     protected MessageMapper<UUID> createMessageMapper(MailboxSession session) throws MailboxException {
-        return new HBaseMessageMapper(session, uidProvider, modSeqProvider, this.conf);
+        return new HBaseMessageMapper(session, uidProvider, modSeqProvider, tablePool, chunkSize, rowKeys);
     }
 
     @Override
     protected MailboxMapper<UUID> createMailboxMapper(MailboxSession session) throws MailboxException {
-        return new HBaseMailboxMapper(this.conf);
+        return new HBaseMailboxMapper(tablePool);
     }
 
     @Override
     protected SubscriptionMapper createSubscriptionMapper(MailboxSession session) throws SubscriptionException {
-        return new HBaseSubscriptionMapper(this.conf);
+        return new HBaseSubscriptionMapper(tablePool);
     }
 
     /**
@@ -136,6 +227,52 @@ public class HBaseMailboxSessionMapperFactory extends MailboxSessionMapperFactor
         return conf;
     }
 
+    /**
+     * Sets the size of the columns in which the content of the messages is stored.
+     * Each column holds chunkSize - 1 bytes of content. The content of a message is written
+     * with a single request, whatever the chunk size, so it only has to stay well below
+     * the maximum size of a HBase cell. The default is {@link HBaseNames#MAX_COLUMN_SIZE}.
+     * @param chunkSize The size of the columns, in bytes
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 2) {
+            throw new IllegalArgumentException("The chunk size must be at least 2 bytes, got " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Returns the size of the columns in which the content of the messages is stored.
+     * @return The size of the columns, in bytes
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Returns the schema of the row keys of the messages table.
+     * @return The schema of the row keys
+     */
+    public MessageRowKeys getMessageRowKeys() {
+        return rowKeys;
+    }
+
+    /**
+     * Returns the pool of tables shared by the mappers.
+     * @return The pool of tables
+     */
+    public HTablePool getTablePool() {
+        return tablePool;
+    }
+
+    /**
+     * Closes the pooled tables. The mappers must not be used afterwards.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        tablePool.close();
+    }
+
     /**
      * Returns the ModSeqProvider used.
      * @return The used modSeqProvider
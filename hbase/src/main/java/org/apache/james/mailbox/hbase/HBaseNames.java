@@ -51,6 +51,20 @@ public interface HBaseNames {
     public static final byte[] MAILBOX_UIDVALIDITY = Bytes.toBytes("uidValidity");
     public static final byte[] MAILBOX_HIGHEST_MODSEQ = Bytes.toBytes("hModSeq");
     public static final byte[] MAILBOX_MESSAGE_COUNT = Bytes.toBytes("count");
+    /** Counters of the messages without the SEEN flag, with the RECENT flag and with the DELETED flag */
+    public static final byte[] MAILBOX_UNSEEN_COUNT = Bytes.toBytes("unseen");
+    public static final byte[] MAILBOX_RECENT_COUNT = Bytes.toBytes("recent");
+    public static final byte[] MAILBOX_DELETED_COUNT = Bytes.toBytes("deleted");
+    /** Set once the counters of the flags have been computed for all the messages of the mailbox */
+    public static final byte[] MAILBOX_FLAG_COUNTERS = Bytes.toBytes("flagCounters");
+    /** The HBase table name for the index of the mailboxes by their path */
+    public static final String MAILBOX_PATHS = "JAMES_MAILBOX_PATHS";
+    /** The HBase table name for the index of the mailboxes by their path */
+    public static final byte[] MAILBOX_PATHS_TABLE = Bytes.toBytes(MAILBOX_PATHS);
+    /** Default mailbox path column family */
+    public static final byte[] MAILBOX_PATH_CF = Bytes.toBytes("D");
+    /** The column holding the row key of the mailbox */
+    public static final byte[] MAILBOX_PATH_ID = Bytes.toBytes("id");
     /** The HBase table name for storing subscriptions */
     public static final String SUBSCRIPTIONS = "JAMES_SUBSCRIPTIONS";
     /** The HBase table name for storing subscriptions */
@@ -61,8 +75,15 @@ public interface HBaseNames {
     public static final String MESSAGES = "JAMES_MESSAGES";
     /** The HBase table name for storing messages */
     public static final byte[] MESSAGES_TABLE = Bytes.toBytes(MESSAGES);
+    /** The attributes of the messages table which store the schema of its row keys, see {@link MessageRowKeys} */
+    public static final String MESSAGES_SALT_BUCKETS = "JAMES_SALT_BUCKETS";
+    public static final String MESSAGES_SALT_UID_BLOCK = "JAMES_SALT_UID_BLOCK";
     /** Column family for storing message meta information*/
     public static final byte[] MESSAGES_META_CF = Bytes.toBytes("M");
+    /** Column family for storing the system flags of a message, so they can be scanned cheaply */
+    public static final byte[] MESSAGES_FLAGS_CF = Bytes.toBytes("F");
+    /** The column holding the system flags of a message packed as bits in a single byte */
+    public static final byte[] MESSAGE_SYSTEM_FLAGS = Bytes.toBytes("sf");
     /** Column family for storing message headers*/
     public static final byte[] MESSAGE_DATA_HEADERS_CF = Bytes.toBytes("H");
     /** Column family for storing message body*/
@@ -26,10 +26,11 @@ import java.util.UUID;
 import javax.mail.Flags;
 import javax.mail.Flags.Flag;
 
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.james.mailbox.hbase.io.ChunkInputStream;
@@ -53,6 +54,12 @@ import static org.apache.james.mailbox.hbase.HBaseNames.*;
 public class HBaseUtils {
     // TODO: swith to a bit wise implementation of flags.
 
+    /** The client setting for the scanner caching, and its default value */
+    private static final String SCANNER_CACHING = "hbase.client.scanner.caching";
+    private static final int DEFAULT_SCANNER_CACHING = 1;
+    /** Separates the parts of the row keys of the path index */
+    private static final byte[] PATH_SEPARATOR = new byte[]{0};
+
     /**
      * Creates a Mailbox object from a HBase Result object.
      * @param result a result of a HBase Get operation 
@@ -88,6 +95,39 @@ public class HBaseUtils {
         return rowKey;
     }
 
+    /**
+     * Returns the row key of a mailbox in the path index: the namespace, the user and the name,
+     * separated by a zero byte so that the mailboxes of a user are found by a prefix scan.
+     * A missing user is stored as an empty one.
+     * @param namespace
+     * @param user
+     * @param name
+     * @return rowkey byte array that can be used with HBase API
+     */
+    public static byte[] mailboxPathRowKey(String namespace, String user, String name) {
+        return Bytes.add(mailboxPathPrefix(namespace, user), Bytes.toBytes(name));
+    }
+
+    /**
+     * Returns the row key of a mailbox in the path index.
+     * @param mailbox
+     * @return rowkey byte array that can be used with HBase API
+     */
+    public static byte[] mailboxPathRowKey(Mailbox<UUID> mailbox) {
+        return mailboxPathRowKey(mailbox.getNamespace(), mailbox.getUser(), mailbox.getName());
+    }
+
+    /**
+     * Returns the common prefix of the row keys of all the mailboxes of a user in the path index.
+     * @param namespace
+     * @param user
+     * @return the prefix of the row keys
+     */
+    public static byte[] mailboxPathPrefix(String namespace, String user) {
+        return Bytes.add(Bytes.toBytes(namespace == null ? "" : namespace), PATH_SEPARATOR,
+                Bytes.add(Bytes.toBytes(user == null ? "" : user), PATH_SEPARATOR));
+    }
+
     /**
      * Returns a UUID from the a byte array.
      * @param rowkey
@@ -128,7 +168,17 @@ public class HBaseUtils {
      * @return a put that contains all metadata information.
      */
     public static Put metadataToPut(Message<UUID> message) {
-        Put put = new Put(messageRowKey(message));
+        return metadataToPut(messageRowKey(message), message);
+    }
+
+    /**
+     * Transforms only the metadata into a Put object for the given row.
+     * @param row the row key of the message, see {@link MessageRowKeys}
+     * @param message
+     * @return a put that contains all metadata information.
+     */
+    public static Put metadataToPut(byte[] row, Message<UUID> message) {
+        Put put = new Put(row);
         // we store the message uid and mailbox uid in the row key
         // store the meta data
         put.add(MESSAGES_META_CF, MESSAGE_MODSEQ, Bytes.toBytes(message.getModSeq()));
@@ -164,6 +214,8 @@ public class HBaseUtils {
         if (flags.contains(Flag.USER)) {
             put.add(MESSAGES_META_CF, FLAGS_USER, MARKER_PRESENT);
         }
+        // the system flags again, packed in their own family for the flag scans
+        put.add(MESSAGES_FLAGS_CF, MESSAGE_SYSTEM_FLAGS, systemFlagsToBytes(flags));
 
         // user flags
         for (String flag : flags.getUserFlags()) {
@@ -196,6 +248,7 @@ public class HBaseUtils {
      * @param mailboxUid mailbox UUID
      * @param uid message uid
      * @return rowkey byte array that can be used with HBase API
+     * @see MessageRowKeys for the keys of salted tables
      */
     public static byte[] messageRowKey(UUID mailboxUid, long uid) {
         /**  message uid's are stored in reverse order so we will always have the most recent messages first*/
@@ -224,11 +277,11 @@ public class HBaseUtils {
      * except for body and header related bytes. The message content will be loaded on demand
      * through a specialised InputStream called {@link ChunkInputStream}. 
      * IMPORTANT: the method expects a single version of each cell. Use setMaxVersions(1).
-     * @param conf configuration object for HBase cluster
+     * @param tablePool pool of the tables of the HBase cluster
      * @param result the result object containing message data
      * @return a HBaseMessage instance with message metadata.
      */
-    public static Message<UUID> messageMetaFromResult(Configuration conf, Result result) {
+    public static Message<UUID> messageMetaFromResult(HTablePool tablePool, MessageRowKeys rowKeys, Result result) {
         HBaseMessage message = null;
         Flags flags = new Flags();
         List<Property> propList = new ArrayList<Property>();
@@ -288,18 +341,36 @@ public class HBaseUtils {
             }
             i++;
         }
-        UUID uuid = UUIDFromRowKey(result.getRow());
-        uid = Long.MAX_VALUE - Bytes.toLong(result.getRow(), 16);
+        UUID uuid = MessageRowKeys.mailboxIdFromRowKey(result.getRow());
+        uid = MessageRowKeys.uidFromRowKey(result.getRow());
         PropertyBuilder props = new PropertyBuilder(propList);
         props.setMediaType(mediaType);
         props.setSubType(subType);
-        message = new HBaseMessage(conf, uuid, internalDate, flags, contentOctets, (int) (contentOctets - bodyOctets), props);
+        message = new HBaseMessage(tablePool, rowKeys, uuid, internalDate, flags, contentOctets, (int) (contentOctets - bodyOctets), props);
         message.setUid(uid);
         message.setModSeq(modSeq);
         message.setTextualLineCount(textualLineCount);
         return message;
     }
 
+    /**
+     * Reads the system flags of a message from the sf:* columns of its meta data family.
+     * They are the only copy of the flags of the messages stored before the flags were
+     * also packed in their own family.
+     * @param result a row holding the sf:* columns
+     * @return the system flags of the message
+     */
+    public static Flags systemFlagsFromMeta(Result result) {
+        Flags flags = new Flags();
+        for (KeyValue kv : result.raw()) {
+            if (Bytes.equals(kv.getFamily(), MESSAGES_META_CF) && Bytes.startsWith(kv.getQualifier(), PREFIX_SFLAGS_B)
+                    && Bytes.equals(MARKER_PRESENT, kv.getValue())) {
+                flags.add(systemFlagFromBytes(kv.getQualifier()));
+            }
+        }
+        return flags;
+    }
+
     /**
      * Creates a Put object from this subscription object
      * @return Put object suitable for HBase persistence
@@ -317,7 +388,17 @@ public class HBaseUtils {
      * @return a put object with 
      */
     public static Put flagsToPut(Message<UUID> message, Flags flags) {
-        Put put = new Put(messageRowKey(message));
+        return flagsToPut(messageRowKey(message), flags);
+    }
+
+    /**
+     * Utility method to transform message flags into a put opperation.
+     * @param row the row key of the message
+     * @param flags
+     * @return a put object with 
+     */
+    public static Put flagsToPut(byte[] row, Flags flags) {
+        Put put = new Put(row);
         //system flags
         if (flags.contains(Flag.ANSWERED)) {
             put.add(MESSAGES_META_CF, FLAGS_ANSWERED, MARKER_PRESENT);
@@ -354,6 +435,7 @@ public class HBaseUtils {
         } else {
             put.add(MESSAGES_META_CF, FLAGS_USER, MARKER_MISSING);
         }
+        put.add(MESSAGES_FLAGS_CF, MESSAGE_SYSTEM_FLAGS, systemFlagsToBytes(flags));
         /**TODO: user flags are not deleted this way: store them all in a single column  
          * and replace that column full.
          */
@@ -431,4 +513,14 @@ public class HBaseUtils {
         }
         return b.toString();
     }
+
+    /**
+     * Returns the number of rows a scanner of the table fetches at once, as configured
+     * for the cluster. Pooled tables don't expose {@link org.apache.hadoop.hbase.client.HTable#getScannerCaching()}.
+     * @param table the table
+     * @return the configured scanner caching
+     */
+    public static int getScannerCaching(HTableInterface table) {
+        return table.getConfiguration().getInt(SCANNER_CACHING, DEFAULT_SCANNER_CACHING);
+    }
 }
@@ -0,0 +1,340 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.james.mailbox.store.mail.model.Message;
+
+import static org.apache.james.mailbox.hbase.HBaseNames.*;
+
+/**
+ * The schema of the row keys of the messages table.
+ * <br/>
+ * Unsalted keys are the mailbox UUID followed by the reversed message uid, see
+ * {@link HBaseUtils#messageRowKey(UUID, long)}. All the messages of a mailbox are
+ * then stored in a single region, which receives all the deliveries to that mailbox.
+ * <br/>
+ * Salted keys are prefixed by a bucket byte computed from the mailbox and the block
+ * of uids the message belongs to. Consecutive blocks of a mailbox go to different buckets,
+ * and the table is split at the bucket boundaries, so the deliveries to a busy mailbox are
+ * spread over the region servers. A range of uids is then read with one scan per bucket,
+ * see {@link #getScanner(HTableInterface, Scan, UUID, long, long)}.
+ * <br/>
+ * The two layouts have different lengths, so the mailbox and the uid can be read
+ * from any key, and a table can hold both while it is migrated.
+ */
+public class MessageRowKeys {
+
+    /** The schema of the tables created before the keys could be salted */
+    public static final MessageRowKeys UNSALTED = new MessageRowKeys(0, 1);
+    /** The default number of consecutive uids stored in the same bucket */
+    public static final int DEFAULT_UID_BLOCK_SIZE = 64;
+    /** The maximum number of buckets, as the bucket is stored in one byte */
+    public static final int MAX_BUCKETS = 256;
+    private static final int UNSALTED_LENGTH = 24;
+    private static final int SALTED_LENGTH = UNSALTED_LENGTH + 1;
+    private final int buckets;
+    private final int uidBlockSize;
+
+    /**
+     * @param buckets the number of buckets, 0 for unsalted keys
+     * @param uidBlockSize the number of consecutive uids stored in the same bucket
+     */
+    public MessageRowKeys(int buckets, int uidBlockSize) {
+        if (buckets < 0 || buckets > MAX_BUCKETS) {
+            throw new IllegalArgumentException("The number of buckets must be between 0 and " + MAX_BUCKETS + ", got " + buckets);
+        }
+        if (uidBlockSize < 1) {
+            throw new IllegalArgumentException("The uid block size must be positive, got " + uidBlockSize);
+        }
+        this.buckets = buckets;
+        this.uidBlockSize = uidBlockSize;
+    }
+
+    /**
+     * Reads the schema stored in the descriptor of the messages table.
+     * Tables without it use unsalted keys.
+     * @param desc the descriptor of the messages table
+     * @return the schema of the keys
+     */
+    public static MessageRowKeys fromTableDescriptor(HTableDescriptor desc) {
+        String buckets = desc.getValue(MESSAGES_SALT_BUCKETS);
+        if (buckets == null) {
+            return UNSALTED;
+        }
+        String uidBlockSize = desc.getValue(MESSAGES_SALT_UID_BLOCK);
+        return new MessageRowKeys(Integer.parseInt(buckets),
+                uidBlockSize == null ? DEFAULT_UID_BLOCK_SIZE : Integer.parseInt(uidBlockSize));
+    }
+
+    /**
+     * Stores the schema in the descriptor of the messages table.
+     * @param desc the descriptor of the messages table
+     */
+    public void toTableDescriptor(HTableDescriptor desc) {
+        desc.setValue(MESSAGES_SALT_BUCKETS, String.valueOf(buckets));
+        desc.setValue(MESSAGES_SALT_UID_BLOCK, String.valueOf(uidBlockSize));
+    }
+
+    public boolean isSalted() {
+        return buckets > 0;
+    }
+
+    public int getBuckets() {
+        return buckets;
+    }
+
+    public int getUidBlockSize() {
+        return uidBlockSize;
+    }
+
+    /**
+     * Returns the keys at which a salted table is pre-split, one region per bucket.
+     * @return the split keys, empty if the keys are not salted
+     */
+    public byte[][] getSplitKeys() {
+        byte[][] splitKeys = new byte[Math.max(buckets - 1, 0)][];
+        for (int i = 0; i < splitKeys.length; i++) {
+            splitKeys[i] = new byte[]{(byte) (i + 1)};
+        }
+        return splitKeys;
+    }
+
+    /**
+     * Returns the bucket of a message.
+     * @param mailboxId the mailbox of the message
+     * @param uid the uid of the message
+     * @return the bucket, between 0 and the number of buckets
+     */
+    public int bucket(UUID mailboxId, long uid) {
+        long block = uid / uidBlockSize;
+        int hash = mailboxId.hashCode() + (int) (block ^ (block >>> 32));
+        return (hash & Integer.MAX_VALUE) % buckets;
+    }
+
+    public byte[] rowKey(Message<UUID> message) {
+        return rowKey(message.getMailboxId(), message.getUid());
+    }
+
+    /**
+     * Returns the row key of a message.
+     * @param mailboxId the mailbox of the message
+     * @param uid the uid of the message
+     * @return rowkey byte array that can be used with HBase API
+     */
+    public byte[] rowKey(UUID mailboxId, long uid) {
+        byte[] rowKey = HBaseUtils.messageRowKey(mailboxId, uid);
+        if (!isSalted()) {
+            return rowKey;
+        }
+        return Bytes.add(new byte[]{(byte) bucket(mailboxId, uid)}, rowKey);
+    }
+
+    /**
+     * Returns the mailbox of a message from its row key, salted or not.
+     */
+    public static UUID mailboxIdFromRowKey(byte[] rowKey) {
+        int offset = rowKey.length == SALTED_LENGTH ? 1 : 0;
+        return new UUID(Bytes.toLong(rowKey, offset), Bytes.toLong(rowKey, offset + 8));
+    }
+
+    /**
+     * Returns the uid of a message from its row key, salted or not.
+     */
+    public static long uidFromRowKey(byte[] rowKey) {
+        int offset = rowKey.length == SALTED_LENGTH ? 1 : 0;
+        return Long.MAX_VALUE - Bytes.toLong(rowKey, offset + 16);
+    }
+
+    /**
+     * Tells if a row key is an unsalted one.
+     */
+    public static boolean isUnsaltedRowKey(byte[] rowKey) {
+        return rowKey.length == UNSALTED_LENGTH;
+    }
+
+    /**
+     * Opens a scanner over the messages of a mailbox whose uids are between from
+     * and to, both inclusive. The rows are returned in descending uid order, like
+     * the rows of an unsalted table. Salted keys are read with one scan per bucket
+     * holding the range, which are merged.
+     * @param table the messages table
+     * @param template the scan to run, with its columns and filters
+     * @param mailboxId the mailbox
+     * @param from the lowest uid, at least 1
+     * @param to the highest uid
+     * @return the scanner
+     * @throws IOException
+     */
+    public ResultScanner getScanner(HTableInterface table, Scan template, UUID mailboxId, long from, long to) throws IOException {
+        from = Math.max(from, 1);
+        // the uids are reversed and the stop row is exclusive
+        byte[] start = HBaseUtils.messageRowKey(mailboxId, to);
+        byte[] stop = HBaseUtils.messageRowKey(mailboxId, from - 1);
+        if (!isSalted()) {
+            Scan scan = new Scan(template);
+            scan.setStartRow(start);
+            scan.setStopRow(stop);
+            return table.getScanner(scan);
+        }
+        List<ResultScanner> scanners = new ArrayList<ResultScanner>();
+        try {
+            for (int bucket : buckets(mailboxId, from, to)) {
+                byte[] salt = new byte[]{(byte) bucket};
+                Scan scan = new Scan(template);
+                scan.setStartRow(Bytes.add(salt, start));
+                scan.setStopRow(Bytes.add(salt, stop));
+                scanners.add(table.getScanner(scan));
+            }
+        } catch (IOException e) {
+            for (ResultScanner scanner : scanners) {
+                scanner.close();
+            }
+            throw e;
+        }
+        return new MergingScanner(scanners);
+    }
+
+    /**
+     * Returns the buckets holding the uids of a range. A short range only
+     * covers the buckets of its few blocks.
+     */
+    private List<Integer> buckets(UUID mailboxId, long from, long to) {
+        List<Integer> result = new ArrayList<Integer>();
+        long firstBlock = from / uidBlockSize;
+        long lastBlock = to / uidBlockSize;
+        if (lastBlock - firstBlock + 1 >= buckets) {
+            for (int i = 0; i < buckets; i++) {
+                result.add(i);
+            }
+        } else {
+            boolean[] used = new boolean[buckets];
+            for (long block = firstBlock; block <= lastBlock; block++) {
+                used[bucket(mailboxId, block * uidBlockSize)] = true;
+            }
+            for (int i = 0; i < buckets; i++) {
+                if (used[i]) {
+                    result.add(i);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merges the rows of the scans of several buckets, in the order of their
+     * unsalted keys.
+     */
+    private static class MergingScanner implements ResultScanner {
+
+        private final List<ResultScanner> scanners;
+        private final Result[] heads;
+
+        private MergingScanner(List<ResultScanner> scanners) throws IOException {
+            this.scanners = scanners;
+            this.heads = new Result[scanners.size()];
+            for (int i = 0; i < heads.length; i++) {
+                heads[i] = scanners.get(i).next();
+            }
+        }
+
+        @Override
+        public Result next() throws IOException {
+            int first = -1;
+            for (int i = 0; i < heads.length; i++) {
+                if (heads[i] != null && (first < 0 || compareUnsalted(heads[i].getRow(), heads[first].getRow()) < 0)) {
+                    first = i;
+                }
+            }
+            if (first < 0) {
+                return null;
+            }
+            Result result = heads[first];
+            heads[first] = scanners.get(first).next();
+            return result;
+        }
+
+        private static int compareUnsalted(byte[] left, byte[] right) {
+            return Bytes.compareTo(left, 1, left.length - 1, right, 1, right.length - 1);
+        }
+
+        @Override
+        public Result[] next(int nbRows) throws IOException {
+            List<Result> results = new ArrayList<Result>(nbRows);
+            Result result;
+            while (results.size() < nbRows && (result = next()) != null) {
+                results.add(result);
+            }
+            return results.toArray(new Result[results.size()]);
+        }
+
+        @Override
+        public void close() {
+            for (ResultScanner scanner : scanners) {
+                scanner.close();
+            }
+        }
+
+        @Override
+        public Iterator<Result> iterator() {
+            return new Iterator<Result>() {
+
+                private Result next;
+
+                @Override
+                public boolean hasNext() {
+                    if (next == null) {
+                        try {
+                            next = MergingScanner.this.next();
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public Result next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Result result = next;
+                    next = null;
+                    return result;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
@@ -20,9 +20,13 @@ package org.apache.james.mailbox.hbase.io;
 
 import java.io.IOException;
 import java.io.InputStream;
-import org.apache.hadoop.hbase.client.HTable;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.filter.ColumnRangeFilter;
 import org.apache.hadoop.hbase.util.Bytes;
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Result;
 
@@ -30,6 +34,12 @@ import org.apache.hadoop.hbase.client.Result;
  * Return an InputStream which retrieve columns from a row which stores chunk of
  * data. See also {@link ChunkOutputStream}
  *
+ * The chunks are fetched by ranges of columns, each with a single Get. The first
+ * range is small, so that reading the start of the content stays cheap, and every
+ * following range is twice as large, up to {@link #MAX_FETCH_SIZE} bytes, so that
+ * reading the whole content only needs a few requests. {@link #skip(long)} doesn't
+ * fetch the chunks it skips.
+ *
  * This implementation is not thread-safe!
  * 
  * Bsed on Hector implementation for Cassandra.
@@ -37,23 +47,36 @@ import org.apache.hadoop.hbase.client.Result;
  */
 public class ChunkInputStream extends InputStream {
 
-    private final Configuration conf;
+    /** The number of chunks fetched by the first Get */
+    public static final int INITIAL_FETCH_CHUNKS = 8;
+    /** The maximum number of bytes fetched by a single Get */
+    public static final int MAX_FETCH_SIZE = 4 * 1024 * 1024;
+
+    private final HTablePool tablePool;
     private final byte[] tableName;
     private final byte[] cf;
     private final byte[] key;
+    /** the chunks of the last fetched range */
+    private List<byte[]> chunks = new ArrayList<byte[]>();
+    private int index = -1;
+    private byte[] chunk;
     private int pos;
+    /** the column of the first chunk which has not been fetched yet */
     private long chunkPos = 1;
-    private byte[] chunk;
+    private int fetchChunks = INITIAL_FETCH_CHUNKS;
+    /** the length of the data of a chunk, all chunks but the last one are full */
+    private int chunkLength = -1;
+    private boolean eof = false;
 
-    public ChunkInputStream(Configuration conf, byte[] tableName, byte[] cf, byte[] key) {
+    public ChunkInputStream(HTablePool tablePool, byte[] tableName, byte[] cf, byte[] key) {
         this.key = key;
-        this.conf = conf;
+        this.tablePool = tablePool;
         this.tableName = tableName;
         this.cf = cf;
     }
 
-    public ChunkInputStream(Configuration conf, String tableName, String cf, byte[] key) {
-        this(conf, Bytes.toBytes(tableName), Bytes.toBytes(cf), key);
+    public ChunkInputStream(HTablePool tablePool, String tableName, String cf, byte[] key) {
+        this(tablePool, Bytes.toBytes(tableName), Bytes.toBytes(cf), key);
     }
 
     /*
@@ -63,37 +86,136 @@ public class ChunkInputStream extends InputStream {
      */
     @Override
     public int read() throws IOException {
-        if (chunk == null || pos + 1 == chunk.length) {
-            if (!fetchChunk()) {
+        while (remaining() == 0) {
+            if (!nextChunk()) {
                 return -1;
             }
         }
-        return chunk[pos++];
+        return chunk[pos++] & 0xff;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int read = 0;
+        while (read < len) {
+            if (remaining() == 0 && !nextChunk()) {
+                break;
+            }
+            int length = Math.min(len - read, remaining());
+            System.arraycopy(chunk, pos, b, off + read, length);
+            pos += length;
+            read += length;
+        }
+        return read == 0 ? -1 : read;
     }
 
     /**
-     * Fetch the next chunk.
+     * Skips the given number of bytes. Whole chunks are skipped without fetching them.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        boolean seek = true;
+        while (skipped < n) {
+            if (remaining() == 0) {
+                long skipChunks = chunkLength > 0 ? (n - skipped) / chunkLength : 0;
+                if (seek && skipChunks > 0 && index + 1 == chunks.size() && !eof) {
+                    // the chunk following the skipped ones only exists if they are all full
+                    if (fetch(chunkPos + skipChunks)) {
+                        skipped += skipChunks * chunkLength;
+                        continue;
+                    }
+                    seek = false;
+                }
+                if (!nextChunk()) {
+                    break;
+                }
+            }
+            int length = (int) Math.min(n - skipped, remaining());
+            pos += length;
+            skipped += length;
+        }
+        return skipped;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.InputStream#available()
+     */
+    @Override
+    public int available() throws IOException {
+        return remaining();
+    }
+
+    /**
+     * Returns the number of bytes which are left in the current chunk. The last byte
+     * of a chunk is a padding byte.
+     */
+    private int remaining() {
+        return chunk == null ? 0 : chunk.length - 1 - pos;
+    }
+
+    /**
+     * Moves to the next chunk, fetching the next range of chunks if necessary.
+     *
+     * @return exists if there was a chunk to fetch.
+     * @throws IOException
+     */
+    private boolean nextChunk() throws IOException {
+        if (index + 1 == chunks.size()) {
+            if (eof || !fetch(chunkPos)) {
+                return false;
+            }
+        }
+        chunk = chunks.get(++index);
+        pos = 0;
+        return true;
+    }
+
+    /**
+     * Fetch the range of chunks starting at the given column.
      *
      * @return exists if there was a chunk to fetch.
      * @throws IOException
      */
-    private boolean fetchChunk() throws IOException {
-        HTable messages = null;
+    private boolean fetch(long from) throws IOException {
+        HTableInterface messages = null;
         try {
-            byte[] cp = Bytes.toBytes(chunkPos);
-            messages = new HTable(conf, tableName);
+            messages = tablePool.getTable(tableName);
             Get get = new Get(key);
-            get.addColumn(cf, cp);
+            get.addFamily(cf);
+            get.setFilter(new ColumnRangeFilter(Bytes.toBytes(from), true, Bytes.toBytes(from + fetchChunks), false));
             get.setMaxVersions(1);
             Result result = messages.get(get);
-            if (!result.isEmpty()) {
-                chunk = result.getValue(cf, cp);
-                chunkPos++;
-                pos = 0;
-                return true;
-            } else {
+            if (result.isEmpty()) {
                 return false;
             }
+            List<byte[]> fetched = new ArrayList<byte[]>(fetchChunks);
+            // the columns are sorted by their chunk number
+            for (KeyValue kv : result.raw()) {
+                fetched.add(kv.getValue());
+            }
+            if (chunkLength == -1) {
+                chunkLength = fetched.get(0).length - 1;
+            }
+            chunks = fetched;
+            index = -1;
+            chunk = null;
+            eof = fetched.size() < fetchChunks;
+            chunkPos = from + fetchChunks;
+            if (chunkLength > 0) {
+                fetchChunks = (int) Math.min(fetchChunks * 2L, Math.max(1, MAX_FETCH_SIZE / chunkLength));
+            }
+            return true;
         } catch (IOException e) {
             throw new IOException("Unable to read data", e);
         } finally {
@@ -20,16 +20,21 @@ package org.apache.james.mailbox.hbase.io;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
 
 /**
  * Provide an {@link OutputStream} which will write to a row. The written data
  * will be split up by chunks of the given chunkSize. Each chunk we get written
- * to own column which will have the chunk number (starting at 0) as column key
- * (Long).
+ * to own column which will have the chunk number (starting at 1) as column key
+ * (Long). A column holds up to chunkSize - 1 bytes of data, followed by a padding
+ * byte which is skipped by the {@link ChunkInputStream}.
+ *
+ * The chunks are collected in a single {@link Put}, so that the content is written
+ * with one request, either when the stream is closed or together with the other
+ * columns of the row when a Put is given.
  *
  * This implementation is not thread-safe!
  * Based on Hector implementation for Cassandra.
@@ -37,27 +42,47 @@ import org.apache.hadoop.hbase.util.Bytes;
  */
 public class ChunkOutputStream extends OutputStream {
 
-    private final Configuration conf;
+    private final HTablePool tablePool;
     private final byte[] tableName;
+    private final Put put;
     private final byte[] cf;
-    private final byte[] key;
-    private byte[] chunk;
+    private final byte[] chunk;
     private long chunkPos = 1;
-    private long pos = 0;
+    private int pos = 0;
+    private boolean closed = false;
 
     /**
      * Creates a special type of {@link OutputStream} that writes data directly to HBase.
-     * @param conf HBase cluster configuration
+     * The data is written when the stream is closed.
+     * @param tablePool pool of the tables of the HBase cluster
      * @param tableName name of the table that writes will be made
      * @param cf name of the column family where data is going to be written
      * @param key the row key 
      * @param chunkSize the size of each column, in bytes. For HBase, max is 10MB
      */
-    public ChunkOutputStream(Configuration conf, byte[] tableName, byte[] cf, byte[] key, int chunkSize) {
-        this.conf = conf;
+    public ChunkOutputStream(HTablePool tablePool, byte[] tableName, byte[] cf, byte[] key, int chunkSize) {
+        this(tablePool, tableName, new Put(key), cf, chunkSize);
+    }
+
+    /**
+     * Creates an {@link OutputStream} which adds the chunks to the given {@link Put}.
+     * Nothing is written to HBase, the caller has to write the Put once the stream is closed.
+     * @param put the Put of the row
+     * @param cf name of the column family where data is going to be written
+     * @param chunkSize the size of each column, in bytes. For HBase, max is 10MB
+     */
+    public ChunkOutputStream(Put put, byte[] cf, int chunkSize) {
+        this(null, null, put, cf, chunkSize);
+    }
+
+    private ChunkOutputStream(HTablePool tablePool, byte[] tableName, Put put, byte[] cf, int chunkSize) {
+        if (chunkSize < 2) {
+            throw new IllegalArgumentException("The chunk size must be at least 2 bytes, got " + chunkSize);
+        }
+        this.tablePool = tablePool;
         this.tableName = tableName;
+        this.put = put;
         this.cf = cf;
-        this.key = key;
         this.chunk = new byte[chunkSize];
     }
 
@@ -68,44 +93,48 @@ public class ChunkOutputStream extends OutputStream {
      */
     @Override
     public void write(int b) throws IOException {
-        if (chunk.length - 1 == pos) {
-            flush();
+        chunk[pos++] = (byte) b;
+        if (pos == chunk.length - 1) {
+            addChunk();
         }
-        chunk[(int) pos++] = (byte) b;
     }
 
-    @Override
-    public void close() throws IOException {
-        writeData(true);
-    }
-
-    /**
-     * Trigger a flush. This will only write the content to the column if the
-     * chunk size is reached
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.OutputStream#write(byte[], int, int)
      */
     @Override
-    public void flush() throws IOException {
-        writeData(false);
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int length = Math.min(len, chunk.length - 1 - pos);
+            System.arraycopy(b, off, chunk, pos, length);
+            pos += length;
+            off += length;
+            len -= length;
+            if (pos == chunk.length - 1) {
+                addChunk();
+            }
+        }
     }
 
     /**
-     * Write the data to column if the configured chunk size is reached or if the
-     * stream should be closed
-     *
-     * @param close
-     * @throws IOException
+     * Adds the last chunk and, if the stream was not given a {@link Put}, writes the data.
      */
-    private void writeData(boolean close) throws IOException {
-        if (pos != 0 && (close || pos == chunk.length - 1)) {
-            HTable messages = null;
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (pos != 0) {
+            addChunk();
+        }
+        if (tablePool != null && !put.isEmpty()) {
+            HTableInterface messages = null;
             try {
-                messages = new HTable(conf, tableName);
-                Put put = new Put(key);
-                put.add(cf, Bytes.toBytes(chunkPos), Bytes.head(chunk, (int) pos + 1));
+                messages = tablePool.getTable(tableName);
                 messages.put(put);
-                chunkPos++;
-                pos = 0;
-
             } catch (IOException e) {
                 throw new IOException("Unable to write data", e);
             } finally {
@@ -115,4 +144,15 @@ public class ChunkOutputStream extends OutputStream {
             }
         }
     }
+
+    /**
+     * Adds the data of the current chunk as a new column, followed by the padding byte.
+     */
+    private void addChunk() {
+        byte[] column = new byte[pos + 1];
+        System.arraycopy(chunk, 0, column, 0, pos);
+        put.add(cf, Bytes.toBytes(chunkPos), column);
+        chunkPos++;
+        pos = 0;
+    }
 }
@@ -0,0 +1,184 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.hbase.mail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import javax.mail.Flags;
+import javax.mail.Flags.Flag;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.BinaryComparator;
+import org.apache.hadoop.hbase.filter.BinaryPrefixComparator;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.QualifierFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.james.mailbox.hbase.MessageRowKeys;
+
+import static org.apache.james.mailbox.hbase.HBaseUtils.*;
+import static org.apache.james.mailbox.hbase.HBaseNames.*;
+import static org.apache.james.mailbox.hbase.FlagConvertor.*;
+
+/**
+ * Computes the counters of the unseen, recent and deleted messages of the mailboxes
+ * created before the mailboxes kept them, and packs the system flags of their messages
+ * in the flags family.
+ * <br/>
+ * The counters of a mailbox are only used once it has been marked with
+ * {@link org.apache.james.mailbox.hbase.HBaseNames#MAILBOX_FLAG_COUNTERS}; until then
+ * {@link HBaseMessageMapper} scans the flags of its messages. The migration is run by
+ * {@link org.apache.james.mailbox.hbase.HBaseMailboxSessionMapperFactory} when it adds
+ * the flags family to the messages table, and can be run again, the mailboxes which are
+ * already marked are skipped. The mailboxes should not be used while it runs.
+ * The cluster is configured by the hbase-site.xml found on the class path.
+ */
+public class HBaseFlagCountersMigration {
+
+    private final HTablePool tablePool;
+    private final MessageRowKeys rowKeys;
+
+    public HBaseFlagCountersMigration(HTablePool tablePool, MessageRowKeys rowKeys) {
+        this.tablePool = tablePool;
+        this.rowKeys = rowKeys;
+    }
+
+    /**
+     * Computes the flag counters of all the mailboxes which don't have them yet.
+     * @return the number of mailboxes which were migrated
+     * @throws IOException
+     */
+    public int migrate() throws IOException {
+        List<UUID> toMigrate = new ArrayList<UUID>();
+        HTableInterface mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+        ResultScanner scanner = null;
+        try {
+            Scan scan = new Scan();
+            scan.addFamily(MAILBOX_CF);
+            scan.setMaxVersions(1);
+            scan.setCaching(getScannerCaching(mailboxes) * 10);
+            scanner = mailboxes.getScanner(scan);
+            Result result;
+            while ((result = scanner.next()) != null) {
+                if (result.getValue(MAILBOX_CF, MAILBOX_FLAG_COUNTERS) == null) {
+                    toMigrate.add(UUIDFromRowKey(result.getRow()));
+                }
+            }
+        } finally {
+            if (scanner != null) {
+                scanner.close();
+            }
+            mailboxes.close();
+        }
+        for (UUID mailboxId : toMigrate) {
+            migrate(mailboxId);
+        }
+        return toMigrate.size();
+    }
+
+    /**
+     * Computes the flag counters of a mailbox from the flags stored in the meta data
+     * of its messages, and packs these flags where they are missing.
+     * @param mailboxId the id of the mailbox
+     * @throws IOException
+     */
+    public void migrate(UUID mailboxId) throws IOException {
+        HTableInterface messages = tablePool.getTable(MESSAGES_TABLE);
+        ResultScanner scanner = null;
+        long unseen = 0;
+        long recent = 0;
+        long deleted = 0;
+        try {
+            Scan scan = new Scan();
+            scan.addFamily(MESSAGES_META_CF);
+            scan.addColumn(MESSAGES_FLAGS_CF, MESSAGE_SYSTEM_FLAGS);
+            // the mod-seq is always there, so the messages without any flag are read too
+            scan.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ONE,
+                    new QualifierFilter(CompareOp.EQUAL, new BinaryComparator(MESSAGE_SYSTEM_FLAGS)),
+                    new QualifierFilter(CompareOp.EQUAL, new BinaryComparator(MESSAGE_MODSEQ)),
+                    new QualifierFilter(CompareOp.EQUAL, new BinaryPrefixComparator(PREFIX_SFLAGS_B))));
+            scan.setMaxVersions(1);
+            scan.setCaching(getScannerCaching(messages) * 10);
+            scanner = rowKeys.getScanner(messages, scan, mailboxId, 1, Long.MAX_VALUE);
+            List<Put> puts = new ArrayList<Put>();
+            Result result;
+            while ((result = scanner.next()) != null) {
+                Flags flags = systemFlagsFromMeta(result);
+                byte[] packed = systemFlagsToBytes(flags);
+                if (!Bytes.equals(packed, result.getValue(MESSAGES_FLAGS_CF, MESSAGE_SYSTEM_FLAGS))) {
+                    Put put = new Put(result.getRow());
+                    put.add(MESSAGES_FLAGS_CF, MESSAGE_SYSTEM_FLAGS, packed);
+                    puts.add(put);
+                }
+                if (!flags.contains(Flag.SEEN)) {
+                    unseen++;
+                }
+                if (flags.contains(Flag.RECENT)) {
+                    recent++;
+                }
+                if (flags.contains(Flag.DELETED)) {
+                    deleted++;
+                }
+            }
+            messages.put(puts);
+        } finally {
+            if (scanner != null) {
+                scanner.close();
+            }
+            messages.close();
+        }
+
+        HTableInterface mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+        try {
+            Put put = new Put(mailboxRowKey(mailboxId));
+            put.add(MAILBOX_CF, MAILBOX_UNSEEN_COUNT, Bytes.toBytes(unseen));
+            put.add(MAILBOX_CF, MAILBOX_RECENT_COUNT, Bytes.toBytes(recent));
+            put.add(MAILBOX_CF, MAILBOX_DELETED_COUNT, Bytes.toBytes(deleted));
+            // the counters are written before the marker, so they are only used once complete
+            mailboxes.put(put);
+            put = new Put(mailboxRowKey(mailboxId));
+            put.add(MAILBOX_CF, MAILBOX_FLAG_COUNTERS, MARKER_PRESENT);
+            mailboxes.put(put);
+        } finally {
+            mailboxes.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Configuration conf = HBaseConfiguration.create();
+        HTablePool tablePool = new HTablePool(conf, 1);
+        try {
+            HBaseAdmin admin = new HBaseAdmin(conf);
+            MessageRowKeys rowKeys = MessageRowKeys.fromTableDescriptor(admin.getTableDescriptor(MESSAGES_TABLE));
+            int migrated = new HBaseFlagCountersMigration(tablePool, rowKeys).migrate();
+            System.out.println(migrated + " mailboxes have been migrated to the flag counters.");
+        } finally {
+            tablePool.close();
+        }
+    }
+}
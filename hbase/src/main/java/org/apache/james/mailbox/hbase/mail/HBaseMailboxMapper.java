@@ -20,34 +20,40 @@ package org.apache.james.mailbox.hbase.mail;
 
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOXES_TABLE;
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_FLAG_COUNTERS;
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_MESSAGE_COUNT;
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_NAME;
-import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_NAMESPACE;
-import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_USER;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_PATHS_TABLE;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_PATH_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_PATH_ID;
+import static org.apache.james.mailbox.hbase.HBaseNames.MARKER_PRESENT;
 import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGES_META_CF;
 import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGES_TABLE;
 import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGE_INTERNALDATE;
 import static org.apache.james.mailbox.hbase.HBaseUtils.mailboxFromResult;
+import static org.apache.james.mailbox.hbase.HBaseUtils.getScannerCaching;
+import static org.apache.james.mailbox.hbase.HBaseUtils.mailboxPathPrefix;
+import static org.apache.james.mailbox.hbase.HBaseUtils.mailboxPathRowKey;
 import static org.apache.james.mailbox.hbase.HBaseUtils.mailboxRowKey;
 import static org.apache.james.mailbox.hbase.HBaseUtils.toPut;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.regex.Pattern;
 
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.client.Delete;
-import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
-import org.apache.hadoop.hbase.filter.BinaryPrefixComparator;
-import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
-import org.apache.hadoop.hbase.filter.FilterList;
-import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
-import org.apache.hadoop.hbase.filter.SubstringComparator;
+import org.apache.hadoop.hbase.filter.PrefixFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.james.mailbox.exception.MailboxException;
@@ -60,142 +66,87 @@ import org.apache.james.mailbox.store.mail.model.Mailbox;
 
 /**
  * Data access management for mailbox.
+ * <br/>
+ * The mailboxes are indexed by their path in a separate table, whose row keys start with
+ * the namespace and the user, so that a mailbox is found with a single Get and the mailboxes
+ * of a user with a scan of their rows only.
  *
  */
 public class HBaseMailboxMapper extends HBaseNonTransactionalMapper implements MailboxMapper<UUID> {
 
+    private static final char SQL_WILDCARD_CHAR = '%';
+
     /**
-     * Link to the HBase Configuration object and specific mailbox names
+     * Pool of the tables of the HBase cluster, shared by all mappers
      */
-    private final Configuration conf;
+    private final HTablePool tablePool;
     
-    public HBaseMailboxMapper(Configuration conf) {
-        this.conf = conf;
+    public HBaseMailboxMapper(HTablePool tablePool) {
+        this.tablePool = tablePool;
     }
     
     @Override
     public Mailbox<UUID> findMailboxByPath(MailboxPath mailboxPath) throws MailboxException, MailboxNotFoundException {
-        HTable mailboxes = null;
-        ResultScanner scanner = null;
+        HTableInterface paths = null;
+        HTableInterface mailboxes = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
-            
-            Scan scan = new Scan();
-            scan.addFamily(MAILBOX_CF);
-            scan.setCaching(mailboxes.getScannerCaching() * 2);
-            scan.setMaxVersions(1);
-
-            /*
-             * Filters is ORDERED. Passing the parameters in the right order
-             * might improve performance: passing the user first means that the
-             * other filters will not be tested if the mailbox does not belong
-             * to the passed user.
-             */
-            FilterList filters = new FilterList(FilterList.Operator.MUST_PASS_ALL);
-            
-            if (mailboxPath.getUser() != null) {
-                SingleColumnValueFilter userFilter = new SingleColumnValueFilter(MAILBOX_CF, MAILBOX_USER, CompareOp.EQUAL, Bytes.toBytes(mailboxPath.getUser()));
-                filters.addFilter(userFilter);
+            paths = tablePool.getTable(MAILBOX_PATHS_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+            Mailbox<UUID> mailbox = findIndexedMailbox(paths, mailboxes,
+                    mailboxPathRowKey(mailboxPath.getNamespace(), mailboxPath.getUser(), mailboxPath.getName()));
+            if (mailbox == null && mailboxPath.getUser() != null) {
+                // mailboxes without user are found for every user
+                mailbox = findIndexedMailbox(paths, mailboxes,
+                        mailboxPathRowKey(mailboxPath.getNamespace(), null, mailboxPath.getName()));
             }
-            SingleColumnValueFilter nameFilter = new SingleColumnValueFilter(MAILBOX_CF, MAILBOX_NAME, CompareOp.EQUAL, Bytes.toBytes(mailboxPath.getName()));
-            filters.addFilter(nameFilter);
-            SingleColumnValueFilter namespaceFilter = new SingleColumnValueFilter(MAILBOX_CF, MAILBOX_NAMESPACE, CompareOp.EQUAL, Bytes.toBytes(mailboxPath.getNamespace()));
-            filters.addFilter(namespaceFilter);
-            
-            scan.setFilter(filters);
-            scanner = mailboxes.getScanner(scan);
-            Result result = scanner.next();
-            
-            if (result == null) {
+            if (mailbox == null) {
                 throw new MailboxNotFoundException(mailboxPath);
             }
-            return mailboxFromResult(result);
+            return mailbox;
         } catch (IOException e) {
             throw new MailboxException("Search of mailbox " + mailboxPath + " failed", e);
         } finally {
-            scanner.close();
-            if (mailboxes != null) {
-                try {
-                    mailboxes.close();
-                } catch (IOException ex) {
-                    throw new MailboxException("Error closing table " + mailboxes, ex);
-                }
-            }
+            close(paths);
+            close(mailboxes);
         }
     }
     
     @Override
     public List<Mailbox<UUID>> findMailboxWithPathLike(MailboxPath mailboxPath) throws MailboxException {
-        HTable mailboxes = null;
-        ResultScanner scanner = null;
+        HTableInterface paths = null;
+        HTableInterface mailboxes = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
-            
-            Scan scan = new Scan();
-            scan.addFamily(MAILBOX_CF);
-            scan.setCaching(mailboxes.getScannerCaching() * 2);
-            scan.setMaxVersions(1);
-            
-            FilterList filters = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+            paths = tablePool.getTable(MAILBOX_PATHS_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+            // as with the other mappers, the name may be found anywhere in the name of the mailbox,
+            // so only the mailboxes of the user are scanned
+            Pattern pattern = toPattern(SQL_WILDCARD_CHAR + mailboxPath.getName() + SQL_WILDCARD_CHAR);
             
+            List<byte[]> found = new ArrayList<byte[]>();
+            findIndexedPaths(paths, mailboxPath.getNamespace(), mailboxPath.getUser(), pattern, found);
             if (mailboxPath.getUser() != null) {
-                SingleColumnValueFilter userFilter = new SingleColumnValueFilter(MAILBOX_CF, MAILBOX_USER, CompareOp.EQUAL, Bytes.toBytes(mailboxPath.getUser()));
-                filters.addFilter(userFilter);
-            }
-            SubstringComparator pathComparator;
-            String mboxName = mailboxPath.getName();
-            /*
-             * TODO: use a RegExFiler
-             */
-            if (mboxName.length() >= 1) {
-                if (mboxName.charAt(mboxName.length() - 1) == '%') {
-                    mboxName = mboxName.substring(0, mboxName.length() - 1);
-                }
+                // mailboxes without user are found for every user
+                findIndexedPaths(paths, mailboxPath.getNamespace(), null, pattern, found);
             }
-            if (mboxName.length() >= 1) {
-                if (mboxName.charAt(0) == '%') {
-                    mboxName = mboxName.substring(1);
-                }
-            }
-            pathComparator = new SubstringComparator(mboxName);
-            SingleColumnValueFilter nameFilter = new SingleColumnValueFilter(MAILBOX_CF, MAILBOX_NAME, CompareOp.EQUAL, pathComparator);
-            filters.addFilter(nameFilter);
-            SingleColumnValueFilter namespaceFilter = new SingleColumnValueFilter(MAILBOX_CF, MAILBOX_NAMESPACE, CompareOp.EQUAL, Bytes.toBytes(mailboxPath.getNamespace()));
-            filters.addFilter(namespaceFilter);
-            
-            scan.setFilter(filters);
-            scanner = mailboxes.getScanner(scan);
-            
-            List<Mailbox<UUID>> mailboxList = new ArrayList<Mailbox<UUID>>();
-            
-            for (Result result : scanner) {
-                mailboxList.add(mailboxFromResult(result));
-            }
-            return mailboxList;
+            return findMailboxes(mailboxes, found);
         } catch (IOException e) {
             throw new MailboxException("Search of mailbox " + mailboxPath + " failed", e);
         } finally {
-            scanner.close();
-            if (mailboxes != null) {
-                try {
-                    mailboxes.close();
-                } catch (IOException ex) {
-                    throw new MailboxException("Error closing table " + mailboxes, ex);
-                }
-            }
+            close(paths);
+            close(mailboxes);
         }
     }
     
     @Override
     public List<Mailbox<UUID>> list() throws MailboxException {
-        HTable mailboxes = null;
+        HTableInterface mailboxes = null;
         ResultScanner scanner = null;
         //TODO: possible performance isssues, we are creating an object from all the rows in HBase mailbox table
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
             Scan scan = new Scan();
             scan.addFamily(MAILBOX_CF);
-            scan.setCaching(mailboxes.getScannerCaching() * 2);
+            scan.setCaching(getScannerCaching(mailboxes) * 2);
             scan.setMaxVersions(1);
             scanner = mailboxes.getScanner(scan);
             List<Mailbox<UUID>> mailboxList = new ArrayList<Mailbox<UUID>>();
@@ -224,109 +175,279 @@ public class HBaseMailboxMapper extends HBaseNonTransactionalMapper implements M
     public void endRequest() {
     }
     
+    /**
+     * Saves the mailbox and indexes its path. The new path is indexed before the mailbox
+     * is written and the former one is removed afterwards, so that the mailbox can always
+     * be found. Index entries which are left over are ignored by the lookups and removed
+     * by {@link #repairPathIndex()}.
+     */
     @Override
     public void save(Mailbox<UUID> mlbx) throws MailboxException {
         //TODO: maybe switch to checkAndPut for transactions
-        HTable mailboxes = null;
+        HTableInterface mailboxes = null;
+        HTableInterface paths = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+            paths = tablePool.getTable(MAILBOX_PATHS_TABLE);
+            byte[] rowKey = mailboxRowKey(mlbx.getMailboxId());
+            byte[] pathRowKey = mailboxPathRowKey(mlbx);
+            // the former path of a renamed mailbox
+            Get get = new Get(rowKey);
+            get.addFamily(MAILBOX_CF);
+            get.setMaxVersions(1);
+            Result former = mailboxes.get(get);
+            
+            paths.put(pathToPut(pathRowKey, rowKey));
             /*
              * cast to HBaseMailbox to access lastuid and ModSeq
              */
             Put put = toPut((HBaseMailbox) mlbx);
+            if (former.isEmpty()) {
+                // a new mailbox has no messages, so its flag counters are up to date
+                put.add(MAILBOX_CF, MAILBOX_FLAG_COUNTERS, MARKER_PRESENT);
+            }
             mailboxes.put(put);
+            if (!former.isEmpty()) {
+                byte[] formerPathRowKey = mailboxPathRowKey(mailboxFromResult(former));
+                if (!Bytes.equals(formerPathRowKey, pathRowKey)) {
+                    removePath(paths, formerPathRowKey, rowKey);
+                }
+            }
         } catch (IOException ex) {
             throw new MailboxException("IOExeption", ex);
         } finally {
-            if (mailboxes != null) {
-                try {
-                    mailboxes.close();
-                } catch (IOException ex) {
-                    throw new MailboxException("Error closing table " + mailboxes, ex);
-                }
-            }
+            close(paths);
+            close(mailboxes);
         }
     }
     
     @Override
     public void delete(Mailbox<UUID> mlbx) throws MailboxException {
         //TODO: maybe switch to checkAndDelete
-        HTable mailboxes = null;
+        HTableInterface mailboxes = null;
+        HTableInterface paths = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+            paths = tablePool.getTable(MAILBOX_PATHS_TABLE);
             //TODO: delete all maessages from this mailbox
             Delete delete = new Delete(mailboxRowKey(mlbx.getMailboxId()));
             mailboxes.delete(delete);
+            removePath(paths, mailboxPathRowKey(mlbx), mailboxRowKey(mlbx.getMailboxId()));
         } catch (IOException ex) {
             throw new MailboxException("IOException in HBase cluster during delete()", ex);
         } finally {
-            if (mailboxes != null) {
-                try {
-                    mailboxes.close();
-                } catch (IOException ex) {
-                    throw new MailboxException("Error closing table " + mailboxes, ex);
-                }
-            }
+            close(paths);
+            close(mailboxes);
         }
     }
     
     @Override
     public boolean hasChildren(final Mailbox<UUID> mailbox, final char c) throws MailboxException, MailboxNotFoundException {
-        HTable mailboxes = null;
+        HTableInterface paths = null;
+        try {
+            paths = tablePool.getTable(MAILBOX_PATHS_TABLE);
+            String prefix = mailbox.getName() + c;
+            if (hasIndexedPath(paths, mailboxPathRowKey(mailbox.getNamespace(), mailbox.getUser(), prefix))) {
+                return true;
+            }
+            // mailboxes without user are found for every user
+            return mailbox.getUser() != null
+                    && hasIndexedPath(paths, mailboxPathRowKey(mailbox.getNamespace(), null, prefix));
+        } catch (IOException e) {
+            throw new MailboxException("Search of mailbox " + mailbox + " failed", e);
+        } finally {
+            close(paths);
+        }
+    }
+    
+    /**
+     * Makes the path index consistent with the mailboxes: indexes the mailboxes whose
+     * path is missing and removes the entries which don't point to a mailbox with this path,
+     * which may be left over if a rename or a delete was interrupted.
+     * @return the number of entries which have been added or removed
+     * @throws MailboxException
+     */
+    public int repairPathIndex() throws MailboxException {
+        HTableInterface mailboxes = null;
+        HTableInterface paths = null;
         ResultScanner scanner = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+            paths = tablePool.getTable(MAILBOX_PATHS_TABLE);
+            int repaired = 0;
+            Set<String> indexed = new HashSet<String>();
             
             Scan scan = new Scan();
             scan.addFamily(MAILBOX_CF);
-            scan.setCaching(mailboxes.getScannerCaching() * 2);
+            scan.setCaching(getScannerCaching(mailboxes) * 2);
             scan.setMaxVersions(1);
-            
-            FilterList filters = new FilterList(FilterList.Operator.MUST_PASS_ALL);
-            
-            if (mailbox.getUser() != null) {
-                SingleColumnValueFilter userFilter = new SingleColumnValueFilter(MAILBOX_CF, MAILBOX_USER, CompareOp.EQUAL, Bytes.toBytes(mailbox.getUser()));
-                filters.addFilter(userFilter);
+            scanner = mailboxes.getScanner(scan);
+            Result result;
+            while ((result = scanner.next()) != null) {
+                byte[] pathRowKey = mailboxPathRowKey(mailboxFromResult(result));
+                Get get = new Get(pathRowKey);
+                get.addColumn(MAILBOX_PATH_CF, MAILBOX_PATH_ID);
+                if (!Bytes.equals(result.getRow(), paths.get(get).getValue(MAILBOX_PATH_CF, MAILBOX_PATH_ID))) {
+                    paths.put(pathToPut(pathRowKey, result.getRow()));
+                    repaired++;
+                }
+                indexed.add(Bytes.toStringBinary(pathRowKey));
             }
-            SingleColumnValueFilter nameFilter = new SingleColumnValueFilter(MAILBOX_CF,
-                    MAILBOX_NAME,
-                    CompareOp.EQUAL,
-                    new BinaryPrefixComparator(Bytes.toBytes(mailbox.getName() + c)));
-            filters.addFilter(nameFilter);
-            SingleColumnValueFilter namespaceFilter = new SingleColumnValueFilter(MAILBOX_CF, MAILBOX_NAMESPACE, CompareOp.EQUAL, Bytes.toBytes(mailbox.getNamespace()));
-            filters.addFilter(namespaceFilter);
+            scanner.close();
             
-            scan.setFilter(filters);
-            scanner = mailboxes.getScanner(scan);
-            try {
-                if (scanner.next() != null) {
-                    return true;
+            scan = new Scan();
+            scan.addColumn(MAILBOX_PATH_CF, MAILBOX_PATH_ID);
+            scan.setCaching(getScannerCaching(paths) * 2);
+            scan.setMaxVersions(1);
+            scanner = paths.getScanner(scan);
+            while ((result = scanner.next()) != null) {
+                if (!indexed.contains(Bytes.toStringBinary(result.getRow()))) {
+                    removePath(paths, result.getRow(), result.getValue(MAILBOX_PATH_CF, MAILBOX_PATH_ID));
+                    repaired++;
                 }
-            } catch (IOException e) {
-                throw new MailboxNotFoundException("hasChildren() " + mailbox.getName());
             }
-            return false;
+            return repaired;
         } catch (IOException e) {
-            throw new MailboxException("Search of mailbox " + mailbox + " failed", e);
+            throw new MailboxException("Repair of the mailbox path index failed", e);
+        } finally {
+            IOUtils.closeStream(scanner);
+            close(paths);
+            close(mailboxes);
+        }
+    }
+    
+    /**
+     * Returns the mailbox indexed with the given path, or null if there is none.
+     */
+    private Mailbox<UUID> findIndexedMailbox(HTableInterface paths, HTableInterface mailboxes, byte[] pathRowKey) throws IOException {
+        Get get = new Get(pathRowKey);
+        get.addColumn(MAILBOX_PATH_CF, MAILBOX_PATH_ID);
+        byte[] rowKey = paths.get(get).getValue(MAILBOX_PATH_CF, MAILBOX_PATH_ID);
+        if (rowKey == null) {
+            return null;
+        }
+        List<byte[]> found = new ArrayList<byte[]>();
+        found.add(pathRowKey);
+        found.add(rowKey);
+        List<Mailbox<UUID>> mailboxList = findMailboxes(mailboxes, found);
+        return mailboxList.isEmpty() ? null : mailboxList.get(0);
+    }
+    
+    /**
+     * Collects the path row keys and the mailbox row keys of the mailboxes of the user
+     * whose name matches the pattern.
+     */
+    private void findIndexedPaths(HTableInterface paths, String namespace, String user,
+            Pattern pattern, List<byte[]> found) throws IOException {
+        byte[] startRow = mailboxPathPrefix(namespace, user);
+        int nameOffset = startRow.length;
+        Scan scan = new Scan(startRow, new PrefixFilter(startRow));
+        scan.addColumn(MAILBOX_PATH_CF, MAILBOX_PATH_ID);
+        scan.setCaching(getScannerCaching(paths) * 2);
+        scan.setMaxVersions(1);
+        ResultScanner scanner = paths.getScanner(scan);
+        try {
+            Result result;
+            while ((result = scanner.next()) != null) {
+                byte[] row = result.getRow();
+                String name = Bytes.toString(row, nameOffset, row.length - nameOffset);
+                if (pattern.matcher(name).matches()) {
+                    found.add(row);
+                    found.add(result.getValue(MAILBOX_PATH_CF, MAILBOX_PATH_ID));
+                }
+            }
         } finally {
             scanner.close();
-            if (mailboxes != null) {
-                try {
-                    mailboxes.close();
-                } catch (IOException ex) {
-                    throw new MailboxException("Error closing table " + mailboxes, ex);
+        }
+    }
+    
+    /**
+     * Reads the mailboxes with a single request. The keys are pairs of a path row key and
+     * the row key of the mailbox indexed with this path. Mailboxes which don't exist anymore
+     * or which have been renamed since they were indexed are ignored.
+     */
+    private List<Mailbox<UUID>> findMailboxes(HTableInterface mailboxes, List<byte[]> keys) throws IOException {
+        List<Get> gets = new ArrayList<Get>();
+        for (int i = 1; i < keys.size(); i += 2) {
+            Get get = new Get(keys.get(i));
+            get.addFamily(MAILBOX_CF);
+            get.setMaxVersions(1);
+            gets.add(get);
+        }
+        List<Mailbox<UUID>> mailboxList = new ArrayList<Mailbox<UUID>>();
+        if (gets.isEmpty()) {
+            return mailboxList;
+        }
+        Result[] results = mailboxes.get(gets);
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null && !results[i].isEmpty()) {
+                Mailbox<UUID> mailbox = mailboxFromResult(results[i]);
+                if (Bytes.equals(keys.get(2 * i), mailboxPathRowKey(mailbox))) {
+                    mailboxList.add(mailbox);
                 }
             }
         }
+        return mailboxList;
+    }
+    
+    private boolean hasIndexedPath(HTableInterface paths, byte[] prefix) throws IOException {
+        Scan scan = new Scan(prefix, new PrefixFilter(prefix));
+        scan.addColumn(MAILBOX_PATH_CF, MAILBOX_PATH_ID);
+        scan.setCaching(1);
+        scan.setMaxVersions(1);
+        ResultScanner scanner = paths.getScanner(scan);
+        try {
+            return scanner.next() != null;
+        } finally {
+            scanner.close();
+        }
+    }
+    
+    private Put pathToPut(byte[] pathRowKey, byte[] rowKey) {
+        Put put = new Put(pathRowKey);
+        put.add(MAILBOX_PATH_CF, MAILBOX_PATH_ID, rowKey);
+        return put;
+    }
+    
+    /**
+     * Removes the path from the index, unless it has been given to another mailbox meanwhile.
+     */
+    private void removePath(HTableInterface paths, byte[] pathRowKey, byte[] rowKey) throws IOException {
+        paths.checkAndDelete(pathRowKey, MAILBOX_PATH_CF, MAILBOX_PATH_ID, rowKey, new Delete(pathRowKey));
+    }
+    
+    /**
+     * Turns a name with SQL wildcards into a regular expression.
+     */
+    private Pattern toPattern(String name) {
+        StringBuilder regex = new StringBuilder();
+        int from = 0;
+        int wildcard;
+        while ((wildcard = name.indexOf(SQL_WILDCARD_CHAR, from)) != -1) {
+            regex.append(Pattern.quote(name.substring(from, wildcard))).append(".*");
+            from = wildcard + 1;
+        }
+        regex.append(Pattern.quote(name.substring(from)));
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+    
+    private void close(HTableInterface table) throws MailboxException {
+        if (table != null) {
+            try {
+                table.close();
+            } catch (IOException ex) {
+                throw new MailboxException("Error closing table " + table, ex);
+            }
+        }
     }
     
     public void deleteAllMemberships() {
-        HTable messages = null;
-        HTable mailboxes = null;
+        HTableInterface messages = null;
+        HTableInterface mailboxes = null;
         ResultScanner scanner = null;
         try {
-            messages = new HTable(conf, MESSAGES_TABLE);
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            messages = tablePool.getTable(MESSAGES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
             Scan scan = new Scan();
             scan.setMaxVersions(1);
             scan.addColumn(MESSAGES_META_CF, MESSAGE_INTERNALDATE);
@@ -365,14 +486,23 @@ public class HBaseMailboxMapper extends HBaseNonTransactionalMapper implements M
                     throw new RuntimeException("Error closing table " + messages, ex);
                 }
             }
+            if (mailboxes != null) {
+                try {
+                    mailboxes.close();
+                } catch (IOException ex) {
+                    throw new RuntimeException("Error closing table " + mailboxes, ex);
+                }
+            }
         }
     }
     
     public void deleteAllMailboxes() {
-        HTable mailboxes = null;
+        HTableInterface mailboxes = null;
+        HTableInterface paths = null;
         ResultScanner scanner = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+            paths = tablePool.getTable(MAILBOX_PATHS_TABLE);
             Scan scan = new Scan();
             scan.setMaxVersions(1);
             scan.addColumn(MAILBOX_CF, MAILBOX_NAME);
@@ -384,12 +514,35 @@ public class HBaseMailboxMapper extends HBaseNonTransactionalMapper implements M
             }
             long totalDeletes = deletes.size();
             mailboxes.delete(deletes);
+            scanner.close();
+            
+            scan = new Scan();
+            scan.setMaxVersions(1);
+            scan.addColumn(MAILBOX_PATH_CF, MAILBOX_PATH_ID);
+            scanner = paths.getScanner(scan);
+            deletes = new ArrayList<Delete>();
+            while ((result = scanner.next()) != null) {
+                deletes.add(new Delete(result.getRow()));
+            }
+            paths.delete(deletes);
         } catch (IOException ex) {
             throw new RuntimeException("IOException deleting mailboxes", ex);
         } finally {
             IOUtils.closeStream(scanner);
-            // TODO Temporary commented, was not compiling.
-//            IOUtils.closeStream(mailboxes);
+            if (paths != null) {
+                try {
+                    paths.close();
+                } catch (IOException ex) {
+                    throw new RuntimeException("Error closing table " + paths, ex);
+                }
+            }
+            if (mailboxes != null) {
+                try {
+                    mailboxes.close();
+                } catch (IOException ex) {
+                    throw new RuntimeException("Error closing table " + mailboxes, ex);
+                }
+            }
         }
     }
 }
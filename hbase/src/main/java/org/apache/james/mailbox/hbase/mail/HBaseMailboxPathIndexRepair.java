@@ -0,0 +1,43 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.hbase.mail;
+
+import java.io.IOException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.james.mailbox.exception.MailboxException;
+
+/**
+ * Repairs the index of the mailboxes by their path, see {@link HBaseMailboxMapper#repairPathIndex()}.
+ * The cluster is configured by the hbase-site.xml found on the class path.
+ */
+public class HBaseMailboxPathIndexRepair {
+
+    public static void main(String[] args) throws IOException, MailboxException {
+        Configuration conf = HBaseConfiguration.create();
+        HTablePool tablePool = new HTablePool(conf, 1);
+        try {
+            int repaired = new HBaseMailboxMapper(tablePool).repairPathIndex();
+            System.out.println(repaired + " entries of the mailbox path index have been repaired.");
+        } finally {
+            tablePool.close();
+        }
+    }
+}
@@ -27,9 +27,10 @@ import java.util.List;
 import java.util.UUID;
 
 import javax.mail.Flags;
-import org.apache.hadoop.conf.Configuration;
 
+import org.apache.hadoop.hbase.client.HTablePool;
 import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.hbase.MessageRowKeys;
 import org.apache.james.mailbox.hbase.io.ChunkInputStream;
 import org.apache.james.mailbox.store.mail.model.AbstractMessage;
 import org.apache.james.mailbox.store.mail.model.Message;
@@ -47,8 +48,10 @@ import static org.apache.james.mailbox.hbase.HBaseNames.*;
 public class HBaseMessage extends AbstractMessage<UUID> {
 
     private static final String TOSTRING_SEPARATOR = " ";
-    /** Configuration for the HBase cluster */
-    private final Configuration conf;
+    /** Pool of the tables of the HBase cluster */
+    private final HTablePool tablePool;
+    /** The schema of the row keys of the messages table */
+    private final MessageRowKeys rowKeys;
     /** The value for the mailboxId field */
     private UUID mailboxId;
     /** The value for the uid field */
@@ -92,9 +95,10 @@ public class HBaseMessage extends AbstractMessage<UUID> {
      * @param original
      * @throws MailboxException
      */
-    public HBaseMessage(Configuration conf, UUID mailboxId, long uid, long modSeq, Message<?> original) throws MailboxException {
+    public HBaseMessage(HTablePool tablePool, MessageRowKeys rowKeys, UUID mailboxId, long uid, long modSeq, Message<?> original) throws MailboxException {
         super();
-        this.conf = conf;
+        this.tablePool = tablePool;
+        this.rowKeys = rowKeys;
         this.mailboxId = mailboxId;
         this.uid = uid;
         this.modSeq = modSeq;
@@ -124,9 +128,10 @@ public class HBaseMessage extends AbstractMessage<UUID> {
      * @param bodyStartOctet
      * @param propertyBuilder
      */
-    public HBaseMessage(Configuration conf, UUID mailboxId, Date internalDate, Flags flags, long contentOctets, int bodyStartOctet, PropertyBuilder propertyBuilder) {
+    public HBaseMessage(HTablePool tablePool, MessageRowKeys rowKeys, UUID mailboxId, Date internalDate, Flags flags, long contentOctets, int bodyStartOctet, PropertyBuilder propertyBuilder) {
         super();
-        this.conf = conf;
+        this.tablePool = tablePool;
+        this.rowKeys = rowKeys;
         this.mailboxId = mailboxId;
         this.internalDate = internalDate;
         userFlags = new ArrayList<String>();
@@ -146,7 +151,7 @@ public class HBaseMessage extends AbstractMessage<UUID> {
      */
     @Override
     public InputStream getBodyContent() throws IOException {
-        return new ChunkInputStream(conf, MESSAGES_TABLE, MESSAGE_DATA_BODY_CF, messageRowKey(this));
+        return new ChunkInputStream(tablePool, MESSAGES_TABLE, MESSAGE_DATA_BODY_CF, rowKeys.rowKey(this));
     }
 
     /*
@@ -155,7 +160,7 @@ public class HBaseMessage extends AbstractMessage<UUID> {
      */
     @Override
     public InputStream getHeaderContent() throws IOException {
-        return new ChunkInputStream(conf, MESSAGES_TABLE, MESSAGE_DATA_HEADERS_CF, messageRowKey(this));
+        return new ChunkInputStream(tablePool, MESSAGES_TABLE, MESSAGE_DATA_HEADERS_CF, rowKeys.rowKey(this));
     }
 
     @Override
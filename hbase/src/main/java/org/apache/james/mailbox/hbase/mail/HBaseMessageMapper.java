@@ -18,31 +18,43 @@
  ****************************************************************/
 package org.apache.james.mailbox.hbase.mail;
 
-import org.apache.hadoop.conf.Configuration;
-import java.io.BufferedInputStream;
-import org.apache.hadoop.hbase.client.Put;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import javax.mail.Flags;
+import javax.mail.Flags.Flag;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
-import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Increment;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Row;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.BinaryComparator;
+import org.apache.hadoop.hbase.filter.BinaryPrefixComparator;
+import org.apache.hadoop.hbase.filter.BitComparator;
+import org.apache.hadoop.hbase.filter.BitComparator.BitwiseOp;
 import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
-import org.apache.hadoop.hbase.filter.PrefixFilter;
-import org.apache.hadoop.hbase.filter.SingleColumnValueExcludeFilter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.QualifierFilter;
 import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.hbase.MessageRowKeys;
 import org.apache.james.mailbox.hbase.io.ChunkOutputStream;
 import org.apache.james.mailbox.model.MessageMetaData;
 import org.apache.james.mailbox.model.MessageRange;
@@ -67,18 +79,41 @@ import static org.apache.james.mailbox.hbase.FlagConvertor.*;
  */
 public class HBaseMessageMapper extends NonTransactionalMapper implements MessageMapper<UUID> {
 
-    private final Configuration conf;
+    /** The size of the buffer used to copy the message content */
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private final HTablePool tablePool;
     private final MailboxSession mailboxSession;
     private final UidProvider<UUID> uidProvider;
     private final ModSeqProvider<UUID> modSeqProvider;
+    /** The size of the columns holding the message content */
+    private final int chunkSize;
+    /** The schema of the row keys of the messages table */
+    private final MessageRowKeys rowKeys;
+    /** The mailboxes known to keep the counters of their flags, see {@link HBaseFlagCountersMigration} */
+    private final Set<UUID> flagCountersMailboxes = new HashSet<UUID>();
+
+    public HBaseMessageMapper(final MailboxSession session,
+            final UidProvider<UUID> uidProvider,
+            ModSeqProvider<UUID> modSeqProvider, HTablePool tablePool) {
+        this(session, uidProvider, modSeqProvider, tablePool, MAX_COLUMN_SIZE);
+    }
+
+    public HBaseMessageMapper(final MailboxSession session,
+            final UidProvider<UUID> uidProvider,
+            ModSeqProvider<UUID> modSeqProvider, HTablePool tablePool, int chunkSize) {
+        this(session, uidProvider, modSeqProvider, tablePool, chunkSize, MessageRowKeys.UNSALTED);
+    }
 
     public HBaseMessageMapper(final MailboxSession session,
             final UidProvider<UUID> uidProvider,
-            ModSeqProvider<UUID> modSeqProvider, Configuration conf) {
+            ModSeqProvider<UUID> modSeqProvider, HTablePool tablePool, int chunkSize, MessageRowKeys rowKeys) {
         this.mailboxSession = session;
         this.modSeqProvider = modSeqProvider;
         this.uidProvider = uidProvider;
-        this.conf = conf;
+        this.tablePool = tablePool;
+        this.chunkSize = chunkSize;
+        this.rowKeys = rowKeys;
     }
 
     @Override
@@ -117,10 +152,8 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
 
     private List<Message<UUID>> findMessagesInMailbox(Mailbox<UUID> mailbox, int batchSize, boolean flaggedForDelete) throws IOException {
         List<Message<UUID>> messageList = new ArrayList<Message<UUID>>();
-        HTable messages = new HTable(conf, MESSAGES_TABLE);
-        Scan scan = new Scan(customMessageRowKey(mailbox.getMailboxId(), 0L),
-                new PrefixFilter(Bytes.add(Bytes.toBytes(mailbox.getMailboxId().getMostSignificantBits()),
-                Bytes.toBytes(mailbox.getMailboxId().getLeastSignificantBits()))));
+        HTableInterface messages = tablePool.getTable(MESSAGES_TABLE);
+        Scan scan = new Scan();
         if (flaggedForDelete) {
             SingleColumnValueFilter filter = new SingleColumnValueFilter(MESSAGES_META_CF, FLAGS_DELETED, CompareOp.EQUAL, MARKER_PRESENT);
             filter.setFilterIfMissing(true);
@@ -131,11 +164,11 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
          * the content will be pulled from HBase on demand by using a a ChunkedInputStream implementation.
          */
         scan.addFamily(MESSAGES_META_CF);
-        ResultScanner scanner = messages.getScanner(scan);
+        ResultScanner scanner = rowKeys.getScanner(messages, scan, mailbox.getMailboxId(), 1, Long.MAX_VALUE);
         Result result;
         long count = batchSize > 0 ? batchSize : Long.MAX_VALUE;
         while (((result = scanner.next()) != null) && (count > 0)) {
-            messageList.add(messageMetaFromResult(conf, result));
+            messageList.add(messageMetaFromResult(tablePool, rowKeys, result));
             count--;
         }
         scanner.close();
@@ -147,8 +180,8 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
 
     private List<Message<UUID>> findMessagesInMailboxWithUID(Mailbox<UUID> mailbox, final long messageUid, final boolean flaggedForDelete) throws IOException {
         List<Message<UUID>> messageList = new ArrayList<Message<UUID>>();
-        HTable messages = new HTable(conf, MESSAGES_TABLE);
-        Get get = new Get(messageRowKey(mailbox.getMailboxId(), messageUid));
+        HTableInterface messages = tablePool.getTable(MESSAGES_TABLE);
+        Get get = new Get(rowKeys.rowKey(mailbox.getMailboxId(), messageUid));
         get.setMaxVersions(1);
         /* we exclude the message content column family because it could be too large.
          * the content will be pulled from HBase on demand by using a a ChunkedInputStream implementation.
@@ -162,7 +195,7 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
         Result result = messages.get(get);
         Message<UUID> message = null;
         if (!result.isEmpty()) {
-            message = messageMetaFromResult(conf, result);
+            message = messageMetaFromResult(tablePool, rowKeys, result);
             messageList.add(message);
         }
         messages.close();
@@ -171,10 +204,8 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
 
     private List<Message<UUID>> findMessagesInMailboxAfterUID(Mailbox<UUID> mailbox, final long from, final int batchSize, final boolean flaggedForDelete) throws IOException {
         List<Message<UUID>> messageList = new ArrayList<Message<UUID>>();
-        HTable messages = new HTable(conf, MESSAGES_TABLE);
-        // uids are stored in reverse so we need to search
-        Scan scan = new Scan(messageRowKey(mailbox.getMailboxId(), Long.MAX_VALUE),
-                messageRowKey(mailbox.getMailboxId(), from - 1));
+        HTableInterface messages = tablePool.getTable(MESSAGES_TABLE);
+        Scan scan = new Scan();
         if (flaggedForDelete) {
             SingleColumnValueFilter filter = new SingleColumnValueFilter(MESSAGES_META_CF, FLAGS_DELETED, CompareOp.EQUAL, MARKER_PRESENT);
             filter.setFilterIfMissing(true);
@@ -185,11 +216,11 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
          * the content will be pulled from HBase on demand by using a a ChunkedInputStream implementation.
          */
         scan.addFamily(MESSAGES_META_CF);
-        ResultScanner scanner = messages.getScanner(scan);
+        ResultScanner scanner = rowKeys.getScanner(messages, scan, mailbox.getMailboxId(), from, Long.MAX_VALUE);
         Result result;
         long count = batchSize > 0 ? batchSize : Long.MAX_VALUE;
         while (((result = scanner.next()) != null) && (count > 0)) {
-            messageList.add(messageMetaFromResult(conf, result));
+            messageList.add(messageMetaFromResult(tablePool, rowKeys, result));
             count--;
         }
         scanner.close();
@@ -204,11 +235,8 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
         if (from > to) {
             return messageList;
         }
-        HTable messages = new HTable(conf, MESSAGES_TABLE);
-        /*TODO: check if Between should be inclusive or exclusive regarding limits.
-         * HBase scan operaion are exclusive to the upper bound when providing stop row key.
-         */
-        Scan scan = new Scan(messageRowKey(mailbox.getMailboxId(), to), messageRowKey(mailbox.getMailboxId(), from - 1));
+        HTableInterface messages = tablePool.getTable(MESSAGES_TABLE);
+        Scan scan = new Scan();
         if (flaggedForDelete) {
             SingleColumnValueFilter filter = new SingleColumnValueFilter(MESSAGES_META_CF, FLAGS_DELETED, CompareOp.EQUAL, MARKER_PRESENT);
             filter.setFilterIfMissing(true);
@@ -219,7 +247,8 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
          * the content will be pulled from HBase on demand by using a a ChunkedInputStream implementation.
          */
         scan.addFamily(MESSAGES_META_CF);
-        ResultScanner scanner = messages.getScanner(scan);
+        // both limits are included
+        ResultScanner scanner = rowKeys.getScanner(messages, scan, mailbox.getMailboxId(), from, to);
         Result result;
 
         long count = batchSize > 0 ? batchSize : Long.MAX_VALUE;
@@ -227,7 +256,7 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
             if (count == 0) {
                 break;
             }
-            Message<UUID> message = messageMetaFromResult(conf, result);
+            Message<UUID> message = messageMetaFromResult(tablePool, rowKeys, result);
             messageList.add(message);
             count--;
         }
@@ -241,7 +270,6 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
     @Override
     public Map<Long, MessageMetaData> expungeMarkedForDeletionInMailbox(Mailbox<UUID> mailbox, MessageRange set) throws MailboxException {
         try {
-            final Map<Long, MessageMetaData> data;
             final List<Message<UUID>> results;
             final long from = set.getUidFrom();
             final long to = set.getUidTo();
@@ -249,28 +277,20 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
             switch (set.getType()) {
                 case ONE:
                     results = findMessagesInMailboxWithUID(mailbox, from, true);
-                    data = createMetaData(results);
-                    deleteDeletedMessagesInMailboxWithUID(mailbox, from);
                     break;
                 case RANGE:
                     results = findMessagesInMailboxBetweenUIDs(mailbox, from, to, -1, true);
-                    data = createMetaData(results);
-                    deleteDeletedMessagesInMailboxBetweenUIDs(mailbox, from, to);
                     break;
                 case FROM:
                     results = findMessagesInMailboxAfterUID(mailbox, from, -1, true);
-                    data = createMetaData(results);
-                    deleteDeletedMessagesInMailboxAfterUID(mailbox, from);
                     break;
                 default:
                 case ALL:
                     results = findMessagesInMailbox(mailbox, -1, true);
-                    data = createMetaData(results);
-                    deleteDeletedMessagesInMailbox(mailbox);
                     break;
             }
-
-            return data;
+            deleteMessages(mailbox, results);
+            return createMetaData(results);
         } catch (IOException e) {
             throw new MailboxException("Search of MessageRange " + set + " failed in mailbox " + mailbox, e);
         }
@@ -278,79 +298,55 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
 
     @Override
     public long countMessagesInMailbox(Mailbox<UUID> mailbox) throws MailboxException {
-        HTable mailboxes = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
-            Get get = new Get(mailboxRowKey(mailbox.getMailboxId()));
-            get.addColumn(MAILBOX_CF, MAILBOX_MESSAGE_COUNT);
-            get.setMaxVersions(1);
-            Result result = mailboxes.get(get);
-            long count = Bytes.toLong(result.getValue(MAILBOX_CF, MAILBOX_MESSAGE_COUNT));
-            return count;
+            return getCounter(mailbox, MAILBOX_MESSAGE_COUNT);
         } catch (IOException e) {
             throw new MailboxException("Count of messages failed in mailbox " + mailbox, e);
-        } finally {
-            if (mailboxes != null) {
-                try {
-                    mailboxes.close();
-                } catch (IOException ex) {
-                    throw new MailboxException("Error closing table " + mailboxes, ex);
-                }
-            }
         }
     }
 
     @Override
     public long countUnseenMessagesInMailbox(Mailbox<UUID> mailbox) throws MailboxException {
-        /* TODO: see if it is possible to store the number of unseen messages in the mailbox table
-         * and just return that value with a Get and kepp it up to date.
-         */
-        HTable messages = null;
-        ResultScanner scanner = null;
         try {
-            messages = new HTable(conf, MESSAGES_TABLE);
-            /* Limit the number of entries scanned to just the mails in this mailbox */
-            Scan scan = new Scan(messageRowKey(mailbox.getMailboxId(), Long.MAX_VALUE),
-                    messageRowKey(mailbox.getMailboxId(), 0));
-            scan.addFamily(MESSAGES_META_CF);
-            scan.setFilter(new SingleColumnValueExcludeFilter(MESSAGES_META_CF, FLAGS_SEEN, CompareOp.EQUAL, MARKER_MISSING));
-            scan.setCaching(messages.getScannerCaching() * 2);
-            scan.setMaxVersions(1);
-            scanner = messages.getScanner(scan);
-            long count = 0;
-            Result result;
-            while ((result = scanner.next()) != null) {
-                count++;
+            long unseen = getFlagCounter(mailbox, MAILBOX_UNSEEN_COUNT);
+            if (unseen >= 0) {
+                return unseen;
             }
-            return count;
-        } catch (IOException e) {
-            throw new MailboxException("Search of first unseen message failed in mailbox " + mailbox, e);
-        } finally {
-            scanner.close();
-            if (messages != null) {
-                try {
-                    messages.close();
-                } catch (IOException ex) {
-                    throw new MailboxException("Error closing table " + messages, ex);
+            // the mailbox was not migrated, or its counter went wrong, so its messages are counted
+            HTableInterface messages = tablePool.getTable(MESSAGES_TABLE);
+            ResultScanner scanner = null;
+            try {
+                scanner = rowKeys.getScanner(messages, seenScan(mailbox, getScannerCaching(messages)),
+                        mailbox.getMailboxId(), 1, Long.MAX_VALUE);
+                unseen = 0;
+                while (scanner.next() != null) {
+                    unseen++;
+                }
+                return unseen;
+            } finally {
+                if (scanner != null) {
+                    scanner.close();
                 }
+                messages.close();
             }
+        } catch (IOException e) {
+            throw new MailboxException("Count of unseen messages failed in mailbox " + mailbox, e);
         }
     }
 
     @Override
     public void delete(Mailbox<UUID> mailbox, Message<UUID> message) throws MailboxException {
         //TODO: maybe switch to checkAndDelete
-        HTable messages = null;
-        HTable mailboxes = null;
+        HTableInterface messages = null;
+        HTableInterface mailboxes = null;
         try {
-            messages = new HTable(conf, MESSAGES_TABLE);
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
-            /** TODO: also implement/update the message count for this mailbox
-             *  and implement countMessages with get.
-             */
-            Delete delete = new Delete(messageRowKey(message));
-            mailboxes.incrementColumnValue(mailboxRowKey(mailbox.getMailboxId()), MAILBOX_CF, MAILBOX_MESSAGE_COUNT, -1);
+            messages = tablePool.getTable(MESSAGES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+            Delete delete = new Delete(rowKeys.rowKey(message));
+            MailboxCounters counters = new MailboxCounters();
+            counters.remove(message.createFlags());
             messages.delete(delete);
+            counters.apply(mailboxes, mailbox, hasFlagCounters(mailbox));
 
         } catch (IOException ex) {
             throw new MailboxException("Delete of message " + message + " failed in mailbox " + mailbox, ex);
@@ -377,33 +373,30 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
 
     @Override
     public Long findFirstUnseenMessageUid(Mailbox<UUID> mailbox) throws MailboxException {
-        HTable messages = null;
+        HTableInterface messages = null;
         ResultScanner scanner = null;
         try {
-            messages = new HTable(conf, MESSAGES_TABLE);
-            /* Limit the number of entries scanned to just the mails in this mailbox */
-            Scan scan = new Scan(messageRowKey(mailbox.getMailboxId(), Long.MAX_VALUE), messageRowKey(mailbox.getMailboxId(), 0));
-            scan.addFamily(MESSAGES_META_CF);
-            // filter out all rows with FLAGS_SEEN qualifier
-            SingleColumnValueFilter filter = new SingleColumnValueFilter(MESSAGES_META_CF, FLAGS_SEEN, CompareOp.EQUAL, MARKER_MISSING);
-            scan.setFilter(filter);
-            scan.setCaching(messages.getScannerCaching() * 2);
-            scan.setMaxVersions(1);
-            scanner = messages.getScanner(scan);
+            // the flag counters are not trusted here, as they are not updated atomically with the flags
+            messages = tablePool.getTable(MESSAGES_TABLE);
+            scanner = rowKeys.getScanner(messages, seenScan(mailbox, getScannerCaching(messages)),
+                    mailbox.getMailboxId(), 1, Long.MAX_VALUE);
             Result result;
             Long lastUnseen = null;
             byte[] row = null;
+            // uids are stored in reverse order, so the first unseen message is the last row
             while ((result = scanner.next()) != null) {
                 row = result.getRow();
             }
             if (row != null) {
-                lastUnseen = Long.MAX_VALUE - Bytes.toLong(row, 16, 8);
+                lastUnseen = MessageRowKeys.uidFromRowKey(row);
             }
             return lastUnseen;
         } catch (IOException e) {
             throw new MailboxException("Search of first unseen message failed in mailbox " + mailbox, e);
         } finally {
-            scanner.close();
+            if (scanner != null) {
+                scanner.close();
+            }
             if (messages != null) {
                 try {
                     messages.close();
@@ -416,35 +409,26 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
 
     @Override
     public List<Long> findRecentMessageUidsInMailbox(Mailbox<UUID> mailbox) throws MailboxException {
-        /** TODO: improve performance by implementing a last seen and last recent value per mailbox.
-         * maybe one more call to HBase is less expensive than iterating throgh all rows.
-         */
-        HTable messages = null;
+        HTableInterface messages = null;
         ResultScanner scanner = null;
         try {
-            messages = new HTable(conf, MESSAGES_TABLE);
-            /* Limit the number of entries scanned to just the mails in this mailbox */
-            Scan scan = new Scan(messageRowKey(mailbox.getMailboxId(), Long.MAX_VALUE),
-                    messageRowKey(mailbox.getMailboxId(), 0));
-            // we add the column, if it exists, the message is recent, else it is not
-            scan.addColumn(MESSAGES_META_CF, FLAGS_RECENT);
-            SingleColumnValueFilter filter = new SingleColumnValueFilter(MESSAGES_META_CF, FLAGS_RECENT, CompareOp.EQUAL, MARKER_PRESENT);
-            scan.setFilter(filter);
-            scan.setCaching(messages.getScannerCaching() * 2);
-            scan.setMaxVersions(1);
-
-            scanner = messages.getScanner(scan);
-            Result result;
             List<Long> uids = new ArrayList<Long>();
+            messages = tablePool.getTable(MESSAGES_TABLE);
+            int caching = getScannerCaching(messages);
+            scanner = rowKeys.getScanner(messages, hasFlagCounters(mailbox) ? flagScan(BIT_RECENT, true, caching) : metaFlagScan(FLAGS_RECENT, true, caching),
+                    mailbox.getMailboxId(), 1, Long.MAX_VALUE);
+            Result result;
             while ((result = scanner.next()) != null) {
-                uids.add(Long.MAX_VALUE - Bytes.toLong(result.getRow(), 16, 8));
+                uids.add(MessageRowKeys.uidFromRowKey(result.getRow()));
             }
             Collections.reverse(uids);
             return uids;
         } catch (IOException e) {
             throw new MailboxException("Search of recent messages failed in mailbox " + mailbox, e);
         } finally {
-            scanner.close();
+            if (scanner != null) {
+                scanner.close();
+            }
             if (messages != null) {
                 try {
                     messages.close();
@@ -455,6 +439,60 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
         }
     }
 
+    /**
+     * Creates a scan of the messages which reads only the packed system flags
+     * and lets the region servers keep the rows which have, or don't have, the
+     * given flag.
+     * @param flagBit the bit of the flag, one of the {@link org.apache.james.mailbox.hbase.FlagConvertor} BIT_* constants
+     * @param set true to keep the messages with the flag, false to keep the ones without it
+     * @param caching the scanner caching of the table
+     * @return the scan
+     */
+    private Scan flagScan(byte flagBit, boolean set, int caching) {
+        Scan scan = new Scan();
+        scan.addColumn(MESSAGES_FLAGS_CF, MESSAGE_SYSTEM_FLAGS);
+        SingleColumnValueFilter filter = new SingleColumnValueFilter(MESSAGES_FLAGS_CF, MESSAGE_SYSTEM_FLAGS,
+                set ? CompareOp.EQUAL : CompareOp.NOT_EQUAL, new BitComparator(new byte[]{flagBit}, BitwiseOp.AND));
+        filter.setFilterIfMissing(true);
+        scan.setFilter(filter);
+        // the rows are a single byte, so fetch many of them at once
+        scan.setCaching(caching * 10);
+        scan.setMaxVersions(1);
+        return scan;
+    }
+
+    /**
+     * Creates a scan of the unseen messages of the mailbox, over the packed flags if the
+     * mailbox was migrated to the flag counters.
+     */
+    private Scan seenScan(Mailbox<UUID> mailbox, int caching) throws IOException {
+        return hasFlagCounters(mailbox) ? flagScan(BIT_SEEN, false, caching) : metaFlagScan(FLAGS_SEEN, false, caching);
+    }
+
+    /**
+     * Creates a scan of the messages which keeps the rows which have, or don't have, the
+     * given flag in the columns of their meta data. It replaces {@link #flagScan(byte, boolean, int)}
+     * in the mailboxes which were not migrated to the flag counters, where the flags of the
+     * oldest messages are not packed.
+     * @param flag the column of the flag, one of the {@link org.apache.james.mailbox.hbase.FlagConvertor} FLAGS_* constants
+     * @param set true to keep the messages with the flag, false to keep the ones without it
+     * @param caching the scanner caching of the table
+     * @return the scan
+     */
+    private Scan metaFlagScan(byte[] flag, boolean set, int caching) {
+        Scan scan = new Scan();
+        // the mod-seq is always there, so the rows without the column of the flag are read too
+        scan.addColumn(MESSAGES_META_CF, MESSAGE_MODSEQ);
+        scan.addColumn(MESSAGES_META_CF, flag);
+        SingleColumnValueFilter filter = new SingleColumnValueFilter(MESSAGES_META_CF, flag,
+                set ? CompareOp.EQUAL : CompareOp.NOT_EQUAL, MARKER_PRESENT);
+        filter.setFilterIfMissing(set);
+        scan.setFilter(filter);
+        scan.setCaching(caching * 10);
+        scan.setMaxVersions(1);
+        return scan;
+    }
+
     /*
      * (non-Javadoc)
      * @see org.apache.james.mailbox.store.mail.MessageMapper#add(org.apache.james.mailbox.store.mail.model.Mailbox, org.apache.james.mailbox.store.mail.model.Message)
@@ -477,53 +515,94 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
      */
     @Override
     public Iterator<UpdatedFlags> updateFlags(final Mailbox<UUID> mailbox, final Flags flags, final boolean value, final boolean replace, MessageRange set) throws MailboxException {
-
         final List<UpdatedFlags> updatedFlags = new ArrayList<UpdatedFlags>();
-        Iterator<Message<UUID>> messagesFound = findInMailbox(mailbox, set, FetchType.Metadata, -1);
-
-        HTable messages = null;
-        long modSeq = -1;
-        if (messagesFound.hasNext() == false) {
-            // if a mailbox does not support mod-sequences the provider may be null
-            if (modSeqProvider != null) {
-                modSeq = modSeqProvider.nextModSeq(mailboxSession, mailbox);
-            }
-        }
-
+        HTableInterface messages = null;
+        HTableInterface mailboxes = null;
+        ResultScanner scanner = null;
         try {
-            messages = new HTable(conf, MESSAGES_TABLE);
-            while (messagesFound.hasNext()) {
-                Put put = null;
-                final Message<UUID> member = messagesFound.next();
-                Flags originalFlags = member.createFlags();
-
-                if (replace) {
-                    member.setFlags(flags);
-                } else {
-                    Flags current = member.createFlags();
-                    if (value) {
-                        current.add(flags);
+            messages = tablePool.getTable(MESSAGES_TABLE);
+            /* a single scan reads the flags of the whole range, the changes are then
+             * written with a single batch and one mod-seq for all of them.
+             */
+            List<byte[]> rows = new ArrayList<byte[]>();
+            List<Long> modSeqs = new ArrayList<Long>();
+            List<Flags> originalFlags = new ArrayList<Flags>();
+            List<Flags> newFlags = new ArrayList<Flags>();
+            boolean flagsChanged = false;
+            scanner = flagsScanner(messages, mailbox, set);
+            if (scanner != null) {
+                Result result;
+                while ((result = scanner.next()) != null) {
+                    Flags original = flagsFromResult(result);
+                    Flags current;
+                    if (replace) {
+                        current = new Flags(flags);
                     } else {
-                        current.remove(flags);
+                        current = new Flags(original);
+                        if (value) {
+                            current.add(flags);
+                        } else {
+                            current.remove(flags);
+                        }
                     }
-                    member.setFlags(current);
+                    // the messages don't keep the USER flag, see Message.createFlags()
+                    current.remove(Flag.USER);
+                    byte[] modSeq = result.getValue(MESSAGES_META_CF, MESSAGE_MODSEQ);
+                    rows.add(result.getRow());
+                    modSeqs.add(modSeq == null ? -1 : Bytes.toLong(modSeq));
+                    originalFlags.add(original);
+                    newFlags.add(current);
+                    flagsChanged |= UpdatedFlags.flagsChanged(original, current);
+                }
+            }
+
+            if (flagsChanged) {
+                long modSeq = -1;
+                // if a mailbox does not support mod-sequences the provider may be null
+                if (modSeqProvider != null) {
+                    modSeq = modSeqProvider.nextModSeq(mailboxSession, mailbox);
                 }
-                Flags newFlags = member.createFlags();
-                put = flagsToPut(member, newFlags);
-                if (UpdatedFlags.flagsChanged(originalFlags, newFlags)) {
-                    // increase the mod-seq as we changed the flags
-                    put.add(MESSAGES_META_CF, MESSAGE_MODSEQ, Bytes.toBytes(modSeq));
-                    // update put not to include the allready existing flags
-                    messages.put(put);
-                    messages.flushCommits();
+                List<Row> mutations = new ArrayList<Row>();
+                MailboxCounters counters = new MailboxCounters();
+                for (int i = 0; i < rows.size(); i++) {
+                    if (UpdatedFlags.flagsChanged(originalFlags.get(i), newFlags.get(i))) {
+                        Put put = flagsToPut(rows.get(i), newFlags.get(i));
+                        // increase the mod-seq as we changed the flags
+                        put.add(MESSAGES_META_CF, MESSAGE_MODSEQ, Bytes.toBytes(modSeq));
+                        mutations.add(put);
+                        Delete delete = userFlagsToDelete(rows.get(i), originalFlags.get(i), newFlags.get(i));
+                        if (delete != null) {
+                            mutations.add(delete);
+                        }
+                        counters.change(originalFlags.get(i), newFlags.get(i));
+                        modSeqs.set(i, modSeq);
+                    }
                 }
+                messages.batch(mutations);
+                mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+                counters.apply(mailboxes, mailbox, hasFlagCounters(mailbox));
+            }
 
-                UpdatedFlags uFlags = new UpdatedFlags(member.getUid(), member.getModSeq(), originalFlags, newFlags);
-                updatedFlags.add(uFlags);
+            // uids are stored in reverse order, we send them ascending
+            for (int i = rows.size() - 1; i >= 0; i--) {
+                long uid = MessageRowKeys.uidFromRowKey(rows.get(i));
+                updatedFlags.add(new UpdatedFlags(uid, modSeqs.get(i), originalFlags.get(i), newFlags.get(i)));
             }
         } catch (IOException e) {
             throw new MailboxException("Error setting flags for messages in " + mailbox, e);
+        } catch (InterruptedException e) {
+            throw new MailboxException("Interrupted while setting flags for messages in " + mailbox, e);
         } finally {
+            if (scanner != null) {
+                scanner.close();
+            }
+            if (mailboxes != null) {
+                try {
+                    mailboxes.close();
+                } catch (IOException e) {
+                    throw new MailboxException("Error setting flags for messages in " + mailbox, e);
+                }
+            }
             if (messages != null) {
                 try {
                     messages.close();
@@ -532,7 +611,6 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
                 }
             }
         }
-
         return updatedFlags.iterator();
     }
 
@@ -548,7 +626,7 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
             modSeq = modSeqProvider.nextModSeq(mailboxSession, mailbox);
         }
         //TODO: check if creating a HBase message is the right thing to do
-        HBaseMessage message = new HBaseMessage(conf,
+        HBaseMessage message = new HBaseMessage(tablePool, rowKeys,
                 mailbox.getMailboxId(), uid, modSeq, original);
         return save(mailbox, message);
     }
@@ -580,39 +658,31 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
      * @throws MailboxException
      */
     protected MessageMetaData save(Mailbox<UUID> mailbox, Message<UUID> message) throws MailboxException {
-        HTable messages = null;
-        HTable mailboxes = null;
-        BufferedInputStream in = null;
+        HTableInterface messages = null;
+        HTableInterface mailboxes = null;
+        InputStream in = null;
         ChunkOutputStream out = null;
         try {
             //TODO: update the mailbox information about messages
-            messages = new HTable(conf, MESSAGES_TABLE);
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
-            //save the message metadata
-            Put put = metadataToPut(message);
-            messages.put(put);
-            //save the message content
-            //TODO: current implementation is crude.
-
-            int b;
-            out = new ChunkOutputStream(conf,
-                    MESSAGES_TABLE, MESSAGE_DATA_BODY_CF, messageRowKey(message), MAX_COLUMN_SIZE);
-            in = new BufferedInputStream(message.getBodyContent());
-            while ((b = in.read()) != -1) {
-                out.write(b);
-            }
+            messages = tablePool.getTable(MESSAGES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+            // the metadata and the content are in the same row, so they are written with a single Put
+            Put put = metadataToPut(rowKeys.rowKey(message), message);
+            out = new ChunkOutputStream(put, MESSAGE_DATA_BODY_CF, chunkSize);
+            in = message.getBodyContent();
+            IOUtils.copyBytes(in, out, COPY_BUFFER_SIZE, false);
             in.close();
             out.close();
-            out = new ChunkOutputStream(conf,
-                    MESSAGES_TABLE, MESSAGE_DATA_HEADERS_CF, messageRowKey(message), MAX_COLUMN_SIZE);
-            in = new BufferedInputStream(message.getHeaderContent());
-            while ((b = in.read()) != -1) {
-                out.write(b);
-            }
+            out = new ChunkOutputStream(put, MESSAGE_DATA_HEADERS_CF, chunkSize);
+            in = message.getHeaderContent();
+            IOUtils.copyBytes(in, out, COPY_BUFFER_SIZE, false);
             in.close();
             out.close();
-            // increase the message count for the current mailbox
-            mailboxes.incrementColumnValue(mailboxRowKey(mailbox.getMailboxId()), MAILBOX_CF, MAILBOX_MESSAGE_COUNT, 1);
+            messages.put(put);
+            // increase the message counters of the current mailbox
+            MailboxCounters counters = new MailboxCounters();
+            counters.add(message.createFlags());
+            counters.apply(mailboxes, mailbox, hasFlagCounters(mailbox));
             return new SimpleMessageMetaData(message);
         } catch (IOException ex) {
             throw new MailboxException("Error setting flags for messages in " + mailbox, ex);
@@ -648,96 +718,159 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
         }
     }
 
-    private void deleteDeletedMessagesInMailboxWithUID(Mailbox<UUID> mailbox, long uid) throws IOException {
-        //TODO: do I have to check if the message is flagged for delete here?
-        HTable messages = new HTable(conf, MESSAGES_TABLE);
-        HTable mailboxes = new HTable(conf, MAILBOXES_TABLE);
-        Delete delete = new Delete(messageRowKey(mailbox.getMailboxId(), uid));
-        messages.delete(delete);
-        mailboxes.incrementColumnValue(mailboxRowKey(mailbox.getMailboxId()), MAILBOX_CF, MAILBOX_MESSAGE_COUNT, -1);
-        mailboxes.incrementColumnValue(mailboxRowKey(mailbox.getMailboxId()), MAILBOX_CF, MAILBOX_HIGHEST_MODSEQ, 1);
-        mailboxes.close();
-        messages.close();
+    /**
+     * Deletes the messages found marked for deletion and updates the counters
+     * of the mailbox with a single increment.
+     */
+    private void deleteMessages(Mailbox<UUID> mailbox, List<Message<UUID>> toDelete) throws IOException {
+        if (toDelete.isEmpty()) {
+            return;
+        }
+        HTableInterface messages = tablePool.getTable(MESSAGES_TABLE);
+        HTableInterface mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+        try {
+            List<Delete> deletes = new ArrayList<Delete>();
+            MailboxCounters counters = new MailboxCounters();
+            for (Message<UUID> message : toDelete) {
+                deletes.add(new Delete(rowKeys.rowKey(message)));
+                counters.remove(message.createFlags());
+            }
+            messages.delete(deletes);
+            counters.highestModSeq = 1;
+            counters.apply(mailboxes, mailbox, hasFlagCounters(mailbox));
+        } finally {
+            mailboxes.close();
+            messages.close();
+        }
     }
 
-    private void deleteDeletedMessagesInMailboxBetweenUIDs(Mailbox<UUID> mailbox, long fromUid, long toUid) throws IOException {
-        HTable messages = new HTable(conf, MESSAGES_TABLE);
-        HTable mailboxes = new HTable(conf, MAILBOXES_TABLE);
-        List<Delete> deletes = new ArrayList<Delete>();
-        /*TODO: check if Between should be inclusive or exclusive regarding limits.
-         * HBase scan operaion are exclusive to the upper bound when providing stop row key.
-         */
-        Scan scan = new Scan(messageRowKey(mailbox.getMailboxId(), fromUid), messageRowKey(mailbox.getMailboxId(), toUid));
-        scan.addColumn(MESSAGES_META_CF, FLAGS_DELETED);
-        SingleColumnValueFilter filter = new SingleColumnValueFilter(MESSAGES_META_CF, FLAGS_DELETED, CompareOp.EQUAL, MARKER_PRESENT);
-        scan.setFilter(filter);
+    /**
+     * Opens a scanner over the messages of the range which reads only their flags
+     * and mod-seq.
+     * @return the scanner, null if the range is empty
+     */
+    private ResultScanner flagsScanner(HTableInterface messages, Mailbox<UUID> mailbox, MessageRange set) throws IOException {
+        long from = set.getUidFrom();
+        long to = set.getUidTo();
+        switch (set.getType()) {
+            case ALL:
+                from = 1;
+                to = Long.MAX_VALUE;
+                break;
+            case FROM:
+                to = Long.MAX_VALUE;
+                break;
+            default:
+                break;
+        }
+        if (from > to) {
+            return null;
+        }
+        Scan scan = new Scan();
+        scan.addFamily(MESSAGES_FLAGS_CF);
+        scan.addFamily(MESSAGES_META_CF);
+        scan.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ONE,
+                new QualifierFilter(CompareOp.EQUAL, new BinaryComparator(MESSAGE_SYSTEM_FLAGS)),
+                new QualifierFilter(CompareOp.EQUAL, new BinaryComparator(MESSAGE_MODSEQ)),
+                new QualifierFilter(CompareOp.EQUAL, new BinaryPrefixComparator(PREFIX_SFLAGS_B)),
+                new QualifierFilter(CompareOp.EQUAL, new BinaryPrefixComparator(PREFIX_UFLAGS_B))));
         scan.setMaxVersions(1);
-        ResultScanner scanner = messages.getScanner(scan);
-        Result result;
-        while ((result = scanner.next()) != null) {
-            deletes.add(new Delete(result.getRow()));
+        scan.setCaching(getScannerCaching(messages) * 10);
+        return rowKeys.getScanner(messages, scan, mailbox.getMailboxId(), from, to);
+    }
+
+    /**
+     * Reads the flags of a message from a row of a {@link #flagsScanner(HTableInterface, Mailbox, MessageRange)}.
+     * The system flags of the messages stored before they were packed are read from their meta data.
+     */
+    private static Flags flagsFromResult(Result result) {
+        byte[] systemFlags = result.getValue(MESSAGES_FLAGS_CF, MESSAGE_SYSTEM_FLAGS);
+        Flags flags = systemFlags == null ? systemFlagsFromMeta(result) : systemFlagsFromBytes(systemFlags);
+        for (KeyValue kv : result.raw()) {
+            if (Bytes.startsWith(kv.getQualifier(), PREFIX_UFLAGS_B)) {
+                flags.add(userFlagFromBytes(kv.getQualifier()));
+            }
         }
-        long totalDeletes = deletes.size();
-        scanner.close();
-        messages.delete(deletes);
-        mailboxes.incrementColumnValue(mailboxRowKey(mailbox.getMailboxId()), MAILBOX_CF, MAILBOX_MESSAGE_COUNT, -(totalDeletes - deletes.size()));
-        mailboxes.incrementColumnValue(mailboxRowKey(mailbox.getMailboxId()), MAILBOX_CF, MAILBOX_HIGHEST_MODSEQ, 1);
-        mailboxes.close();
-        messages.close();
+        return flags;
     }
 
-    private void deleteDeletedMessagesInMailboxAfterUID(Mailbox<UUID> mailbox, long fromUid) throws IOException {
-        HTable messages = new HTable(conf, MESSAGES_TABLE);
-        HTable mailboxes = new HTable(conf, MAILBOXES_TABLE);
-        List<Delete> deletes = new ArrayList<Delete>();
-        /*TODO: check if Between should be inclusive or exclusive regarding limits.
-         * HBase scan operaion are exclusive to the upper bound when providing stop row key.
-         */
-        Scan scan = new Scan(messageRowKey(mailbox.getMailboxId(), fromUid));
-        scan.addColumn(MESSAGES_META_CF, FLAGS_DELETED);
-        SingleColumnValueFilter filter = new SingleColumnValueFilter(MESSAGES_META_CF, FLAGS_DELETED, CompareOp.EQUAL, MARKER_PRESENT);
-        scan.setFilter(filter);
-        scan.setMaxVersions(1);
-        ResultScanner scanner = messages.getScanner(scan);
-        Result result;
-        while ((result = scanner.next()) != null) {
-            deletes.add(new Delete(result.getRow()));
+    /**
+     * Returns a delete of the user flags removed from a message, null if none was removed.
+     * Put operations can't remove them.
+     */
+    private static Delete userFlagsToDelete(byte[] row, Flags originalFlags, Flags newFlags) {
+        Delete delete = null;
+        for (String flag : originalFlags.getUserFlags()) {
+            if (!newFlags.contains(flag)) {
+                if (delete == null) {
+                    delete = new Delete(row);
+                }
+                delete.deleteColumns(MESSAGES_META_CF, userFlagToBytes(flag));
+            }
         }
-        long totalDeletes = deletes.size();
-        scanner.close();
-        messages.delete(deletes);
-        mailboxes.incrementColumnValue(mailboxRowKey(mailbox.getMailboxId()), MAILBOX_CF, MAILBOX_MESSAGE_COUNT, -(totalDeletes - deletes.size()));
-        mailboxes.incrementColumnValue(mailboxRowKey(mailbox.getMailboxId()), MAILBOX_CF, MAILBOX_HIGHEST_MODSEQ, 1);
-        mailboxes.close();
-        messages.close();
+        return delete;
     }
 
-    private void deleteDeletedMessagesInMailbox(Mailbox<UUID> mailbox) throws IOException {
-        HTable messages = new HTable(conf, MESSAGES_TABLE);
-        HTable mailboxes = new HTable(conf, MAILBOXES_TABLE);
-        List<Delete> deletes = new ArrayList<Delete>();
-        /*TODO: check if Between should be inclusive or exclusive regarding limits.
-         * HBase scan operaion are exclusive to the upper bound when providing stop row key.
-         */
-        Scan scan = new Scan(customMessageRowKey(mailbox.getMailboxId(), 0L),
-                new PrefixFilter(Bytes.add(Bytes.toBytes(mailbox.getMailboxId().getMostSignificantBits()),
-                Bytes.toBytes(mailbox.getMailboxId().getLeastSignificantBits()))));
-        scan.addColumn(MESSAGES_META_CF, FLAGS_DELETED);
-        SingleColumnValueFilter filter = new SingleColumnValueFilter(MESSAGES_META_CF, FLAGS_DELETED, CompareOp.EQUAL, MARKER_PRESENT);
-        scan.setFilter(filter);
-        scan.setMaxVersions(1);
-        ResultScanner scanner = messages.getScanner(scan);
-        Result result;
-        while ((result = scanner.next()) != null) {
-            deletes.add(new Delete(result.getRow()));
+    /**
+     * Returns the value of a counter of the mailbox, 0 if it was never incremented.
+     */
+    private long getCounter(Mailbox<UUID> mailbox, byte[] counter) throws IOException {
+        HTableInterface mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+        try {
+            Get get = new Get(mailboxRowKey(mailbox.getMailboxId()));
+            get.addColumn(MAILBOX_CF, counter);
+            get.setMaxVersions(1);
+            byte[] value = mailboxes.get(get).getValue(MAILBOX_CF, counter);
+            return value == null ? 0 : Bytes.toLong(value);
+        } finally {
+            mailboxes.close();
+        }
+    }
+
+    /**
+     * Returns the value of a counter of the flags of the mailbox, -1 if the mailbox was
+     * created before these counters and was not migrated yet, see {@link HBaseFlagCountersMigration}.
+     */
+    private long getFlagCounter(Mailbox<UUID> mailbox, byte[] counter) throws IOException {
+        HTableInterface mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+        try {
+            Get get = new Get(mailboxRowKey(mailbox.getMailboxId()));
+            get.addColumn(MAILBOX_CF, counter);
+            get.addColumn(MAILBOX_CF, MAILBOX_FLAG_COUNTERS);
+            get.setMaxVersions(1);
+            Result result = mailboxes.get(get);
+            if (result.getValue(MAILBOX_CF, MAILBOX_FLAG_COUNTERS) == null) {
+                return -1;
+            }
+            flagCountersMailboxes.add(mailbox.getMailboxId());
+            byte[] value = result.getValue(MAILBOX_CF, counter);
+            return value == null ? 0 : Bytes.toLong(value);
+        } finally {
+            mailboxes.close();
+        }
+    }
+
+    /**
+     * Tells if the mailbox keeps the counters of its flags. Only the mailboxes which
+     * do are remembered, as the others may be migrated at any time.
+     */
+    private boolean hasFlagCounters(Mailbox<UUID> mailbox) throws IOException {
+        if (flagCountersMailboxes.contains(mailbox.getMailboxId())) {
+            return true;
+        }
+        HTableInterface mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+        try {
+            Get get = new Get(mailboxRowKey(mailbox.getMailboxId()));
+            get.addColumn(MAILBOX_CF, MAILBOX_FLAG_COUNTERS);
+            get.setMaxVersions(1);
+            if (mailboxes.get(get).isEmpty()) {
+                return false;
+            }
+            flagCountersMailboxes.add(mailbox.getMailboxId());
+            return true;
+        } finally {
+            mailboxes.close();
         }
-        long totalDeletes = deletes.size();
-        scanner.close();
-        messages.delete(deletes);
-        mailboxes.incrementColumnValue(mailboxRowKey(mailbox.getMailboxId()), MAILBOX_CF, MAILBOX_MESSAGE_COUNT, -(totalDeletes - deletes.size()));
-        mailboxes.incrementColumnValue(mailboxRowKey(mailbox.getMailboxId()), MAILBOX_CF, MAILBOX_HIGHEST_MODSEQ, 1);
-        mailboxes.close();
-        messages.close();
     }
 
     private Map<Long, MessageMetaData> createMetaData(List<Message<UUID>> uids) {
@@ -748,4 +881,72 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
         }
         return data;
     }
+
+    /**
+     * Collects the changes of the counters of a mailbox, so they are applied
+     * with a single atomic increment of the mailbox row.
+     */
+    private static class MailboxCounters {
+
+        private long messages;
+        private long unseen;
+        private long recent;
+        private long deleted;
+        private long highestModSeq;
+
+        /** Counts a message added with the given flags */
+        void add(Flags flags) {
+            count(flags, 1);
+            messages++;
+        }
+
+        /** Counts a message removed with the given flags */
+        void remove(Flags flags) {
+            count(flags, -1);
+            messages--;
+        }
+
+        /** Counts a message whose flags changed */
+        void change(Flags before, Flags after) {
+            count(before, -1);
+            count(after, 1);
+        }
+
+        private void count(Flags flags, int delta) {
+            if (!flags.contains(Flag.SEEN)) {
+                unseen += delta;
+            }
+            if (flags.contains(Flag.RECENT)) {
+                recent += delta;
+            }
+            if (flags.contains(Flag.DELETED)) {
+                deleted += delta;
+            }
+        }
+
+        /**
+         * Applies the changes to the counters of the mailbox.
+         * @param flagCounters false if the mailbox was not migrated to the flag counters,
+         * they are then computed by the migration
+         */
+        void apply(HTableInterface mailboxes, Mailbox<UUID> mailbox, boolean flagCounters) throws IOException {
+            Increment increment = new Increment(mailboxRowKey(mailbox.getMailboxId()));
+            addColumn(increment, MAILBOX_MESSAGE_COUNT, messages);
+            if (flagCounters) {
+                addColumn(increment, MAILBOX_UNSEEN_COUNT, unseen);
+                addColumn(increment, MAILBOX_RECENT_COUNT, recent);
+                addColumn(increment, MAILBOX_DELETED_COUNT, deleted);
+            }
+            addColumn(increment, MAILBOX_HIGHEST_MODSEQ, highestModSeq);
+            if (increment.hasFamilies()) {
+                mailboxes.increment(increment);
+            }
+        }
+
+        private static void addColumn(Increment increment, byte[] counter, long amount) {
+            if (amount != 0) {
+                increment.addColumn(MAILBOX_CF, counter, amount);
+            }
+        }
+    }
 }
@@ -0,0 +1,135 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.hbase.mail;
+
+import java.io.IOException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.james.mailbox.hbase.MessageRowKeys;
+
+import static org.apache.james.mailbox.hbase.HBaseNames.*;
+
+/**
+ * Salts the row keys of an existing messages table, see {@link MessageRowKeys}.
+ * <br/>
+ * The schema is first stored with the table, then every message stored under an
+ * unsalted key is moved to its salted key, one row at a time. The table can hold both
+ * kinds of keys, so an interrupted migration is resumed by running it again with the
+ * same number of buckets. The mailboxes must not be used while it runs.
+ * <br/>
+ * The table is not split: a region cannot be split again before its daughters are
+ * compacted, so the regions are left to split on their size, or can be split at the
+ * bucket boundaries from the shell once the table has been major compacted.
+ * The cluster is configured by the hbase-site.xml found on the class path.
+ */
+public class HBaseMessageRowKeyMigration {
+
+    private final Configuration conf;
+    private final HTablePool tablePool;
+
+    public HBaseMessageRowKeyMigration(Configuration conf, HTablePool tablePool) {
+        this.conf = conf;
+        this.tablePool = tablePool;
+    }
+
+    /**
+     * Salts the row keys of the messages table.
+     * @param rowKeys the salted schema
+     * @return the number of messages which were moved
+     * @throws IOException
+     * @throws IllegalStateException if the table is already salted differently
+     */
+    public long migrate(MessageRowKeys rowKeys) throws IOException {
+        if (!rowKeys.isSalted()) {
+            throw new IllegalArgumentException("The row keys can only be migrated to a salted schema");
+        }
+        HBaseAdmin admin = new HBaseAdmin(conf);
+        HTableDescriptor desc = admin.getTableDescriptor(MESSAGES_TABLE);
+        MessageRowKeys current = MessageRowKeys.fromTableDescriptor(desc);
+        if (current.isSalted() && (current.getBuckets() != rowKeys.getBuckets()
+                || current.getUidBlockSize() != rowKeys.getUidBlockSize())) {
+            throw new IllegalStateException("The messages table is already salted with " + current.getBuckets()
+                    + " buckets of " + current.getUidBlockSize() + " uids");
+        }
+        if (!current.isSalted()) {
+            rowKeys.toTableDescriptor(desc);
+            admin.disableTable(MESSAGES_TABLE);
+            admin.modifyTable(MESSAGES_TABLE, desc);
+            admin.enableTable(MESSAGES_TABLE);
+        }
+
+        HTableInterface messages = tablePool.getTable(MESSAGES_TABLE);
+        ResultScanner scanner = null;
+        long moved = 0;
+        try {
+            Scan scan = new Scan();
+            scan.setMaxVersions(1);
+            // the rows hold the message content, so they are fetched a few at a time
+            scan.setCaching(10);
+            scanner = messages.getScanner(scan);
+            Result result;
+            while ((result = scanner.next()) != null) {
+                byte[] row = result.getRow();
+                if (!MessageRowKeys.isUnsaltedRowKey(row)) {
+                    continue;
+                }
+                Put put = new Put(rowKeys.rowKey(MessageRowKeys.mailboxIdFromRowKey(row), MessageRowKeys.uidFromRowKey(row)));
+                for (KeyValue kv : result.raw()) {
+                    put.add(kv.getFamily(), kv.getQualifier(), kv.getTimestamp(), kv.getValue());
+                }
+                messages.put(put);
+                messages.delete(new Delete(row));
+                moved++;
+            }
+        } finally {
+            if (scanner != null) {
+                scanner.close();
+            }
+            messages.close();
+        }
+        return moved;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: HBaseMessageRowKeyMigration <buckets> [<uids per block>]");
+            System.exit(1);
+        }
+        int buckets = Integer.parseInt(args[0]);
+        int uidBlockSize = args.length > 1 ? Integer.parseInt(args[1]) : MessageRowKeys.DEFAULT_UID_BLOCK_SIZE;
+        Configuration conf = HBaseConfiguration.create();
+        HTablePool tablePool = new HTablePool(conf, 1);
+        try {
+            long moved = new HBaseMessageRowKeyMigration(conf, tablePool).migrate(new MessageRowKeys(buckets, uidBlockSize));
+            System.out.println(moved + " messages have been moved to salted row keys.");
+        } finally {
+            tablePool.close();
+        }
+    }
+}
@@ -20,13 +20,15 @@ package org.apache.james.mailbox.hbase.mail;
 
 import java.io.IOException;
 import java.util.UUID;
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.client.Get;
-import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.hbase.HBaseMailboxSessionMapperFactory;
 import org.apache.james.mailbox.store.mail.ModSeqProvider;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
 
@@ -38,18 +40,27 @@ import static org.apache.james.mailbox.hbase.HBaseNames.*;
  */
 public class HBaseModSeqProvider implements ModSeqProvider<UUID> {
 
-    /** Link to the HBase Configuration object and specific mailbox names */
-    private final Configuration conf;
+    /** Pool of the tables of the HBase cluster, shared by all mappers */
+    private final HTablePool tablePool;
+
+    public HBaseModSeqProvider(HTablePool tablePool) {
+        this.tablePool = tablePool;
+    }
 
+    /**
+     * Creates a provider with its own pool. Prefer sharing the pool of the
+     * {@link HBaseMailboxSessionMapperFactory}.
+     * @param conf Configuration for the cluster
+     */
     public HBaseModSeqProvider(Configuration conf) {
-        this.conf = conf;
+        this(new HTablePool(conf, HBaseMailboxSessionMapperFactory.DEFAULT_TABLE_POOL_SIZE));
     }
 
     @Override
     public long highestModSeq(MailboxSession session, Mailbox<UUID> mailbox) throws MailboxException {
-        HTable mailboxes = null;
+        HTableInterface mailboxes = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
             Get get = new Get(mailboxRowKey(mailbox.getMailboxId()));
             get.addColumn(MAILBOX_CF, MAILBOX_HIGHEST_MODSEQ);
             get.setMaxVersions(1);
@@ -75,9 +86,9 @@ public class HBaseModSeqProvider implements ModSeqProvider<UUID> {
 
     @Override
     public long nextModSeq(MailboxSession session, Mailbox<UUID> mailbox) throws MailboxException {
-        HTable mailboxes = null;
+        HTableInterface mailboxes = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
             long newValue = mailboxes.incrementColumnValue(mailboxRowKey(mailbox.getMailboxId()), MAILBOX_CF, MAILBOX_HIGHEST_MODSEQ, 1);
             return newValue;
         } catch (IOException e) {
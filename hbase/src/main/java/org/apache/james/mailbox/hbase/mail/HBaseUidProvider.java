@@ -21,13 +21,15 @@ package org.apache.james.mailbox.hbase.mail;
 import java.io.IOException;
 import java.util.UUID;
 
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.client.Get;
-import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.hbase.HBaseMailboxSessionMapperFactory;
 import org.apache.james.mailbox.store.mail.UidProvider;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
 
@@ -39,11 +41,20 @@ import static org.apache.james.mailbox.hbase.HBaseNames.*;
  */
 public class HBaseUidProvider implements UidProvider<UUID> {
 
-    /** Link to the HBase Configuration object and specific mailbox names */
-    private final Configuration conf;
+    /** Pool of the tables of the HBase cluster, shared by all mappers */
+    private final HTablePool tablePool;
+
+    public HBaseUidProvider(HTablePool tablePool) {
+        this.tablePool = tablePool;
+    }
 
+    /**
+     * Creates a provider with its own pool. Prefer sharing the pool of the
+     * {@link HBaseMailboxSessionMapperFactory}.
+     * @param conf Configuration for the cluster
+     */
     public HBaseUidProvider(Configuration conf) {
-        this.conf = conf;
+        this(new HTablePool(conf, HBaseMailboxSessionMapperFactory.DEFAULT_TABLE_POOL_SIZE));
     }
 
     /**
@@ -55,9 +66,9 @@ public class HBaseUidProvider implements UidProvider<UUID> {
      */
     @Override
     public long lastUid(MailboxSession session, Mailbox<UUID> mailbox) throws MailboxException {
-        HTable mailboxes = null;
+        HTableInterface mailboxes = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
             Get get = new Get(mailboxRowKey(mailbox.getMailboxId()));
             get.addColumn(MAILBOX_CF, MAILBOX_LASTUID);
             get.setMaxVersions(1);
@@ -91,11 +102,10 @@ public class HBaseUidProvider implements UidProvider<UUID> {
      */
     @Override
     public long nextUid(MailboxSession session, Mailbox<UUID> mailbox) throws MailboxException {
-        HTable mailboxes = null;
+        HTableInterface mailboxes = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
             long newValue = mailboxes.incrementColumnValue(mailboxRowKey(mailbox.getMailboxId()), MAILBOX_CF, MAILBOX_LASTUID, 1);
-            mailboxes.close();
             return newValue;
         } catch (IOException e) {
             throw new MailboxException("lastUid", e);
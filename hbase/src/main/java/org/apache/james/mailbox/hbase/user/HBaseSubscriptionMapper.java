@@ -21,11 +21,11 @@ package org.apache.james.mailbox.hbase.user;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
-import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -44,11 +44,11 @@ import static org.apache.james.mailbox.hbase.HBaseNames.*;
  */
 public class HBaseSubscriptionMapper extends HBaseNonTransactionalMapper implements SubscriptionMapper {
 
-    /** Link to the HBase Configuration object and specific mailbox names */
-    private final Configuration conf;
+    /** Pool of the tables of the HBase cluster, shared by all mappers */
+    private final HTablePool tablePool;
 
-    public HBaseSubscriptionMapper(Configuration conf) {
-        this.conf = conf;
+    public HBaseSubscriptionMapper(HTablePool tablePool) {
+        this.tablePool = tablePool;
     }
 
     /*
@@ -57,9 +57,9 @@ public class HBaseSubscriptionMapper extends HBaseNonTransactionalMapper impleme
      */
     @Override
     public Subscription findMailboxSubscriptionForUser(String user, String mailbox) throws SubscriptionException {
-        HTable subscriptions = null;
+        HTableInterface subscriptions = null;
         try {
-            subscriptions = new HTable(conf, SUBSCRIPTIONS_TABLE);
+            subscriptions = tablePool.getTable(SUBSCRIPTIONS_TABLE);
             Subscription subscription = null;
             Get get = new Get(Bytes.toBytes(user));
             get.addFamily(SUBSCRIPTION_CF);
@@ -92,9 +92,9 @@ public class HBaseSubscriptionMapper extends HBaseNonTransactionalMapper impleme
     @Override
     public void save(Subscription subscription) throws SubscriptionException {
         //TODO: maybe switch to checkAndPut
-        HTable subscriptions = null;
+        HTableInterface subscriptions = null;
         try {
-            subscriptions = new HTable(conf, SUBSCRIPTIONS_TABLE);
+            subscriptions = tablePool.getTable(SUBSCRIPTIONS_TABLE);
             Put put = toPut(subscription);
             subscriptions.put(put);
         } catch (IOException e) {
@@ -116,9 +116,9 @@ public class HBaseSubscriptionMapper extends HBaseNonTransactionalMapper impleme
      */
     @Override
     public List<Subscription> findSubscriptionsForUser(String user) throws SubscriptionException {
-        HTable subscriptions = null;
+        HTableInterface subscriptions = null;
         try {
-            subscriptions = new HTable(conf, SUBSCRIPTIONS_TABLE);
+            subscriptions = tablePool.getTable(SUBSCRIPTIONS_TABLE);
             List<Subscription> subscriptionList = new ArrayList<Subscription>();
             Get get = new Get(Bytes.toBytes(user));
             get.addFamily(SUBSCRIPTION_CF);
@@ -150,13 +150,12 @@ public class HBaseSubscriptionMapper extends HBaseNonTransactionalMapper impleme
     @Override
     public void delete(Subscription subscription) throws SubscriptionException {
         //TODO: maybe switch to checkAndDelete
-        HTable subscriptions = null;
+        HTableInterface subscriptions = null;
         try {
-            subscriptions = new HTable(conf, SUBSCRIPTIONS_TABLE);
+            subscriptions = tablePool.getTable(SUBSCRIPTIONS_TABLE);
             Delete delete = new Delete(Bytes.toBytes(subscription.getUser()));
             delete.deleteColumns(SUBSCRIPTION_CF, Bytes.toBytes(subscription.getMailbox()));
             subscriptions.delete(delete);
-            subscriptions.close();
         } catch (IOException e) {
             throw new SubscriptionException(e);
         } finally {
@@ -28,6 +28,7 @@ import org.apache.hadoop.hbase.MiniHBaseCluster;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.HBaseAdmin;
 import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTablePool;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
@@ -46,6 +47,7 @@ public final class HBaseClusterSingleton {
     private static HBaseClusterSingleton cluster = null;
     private MiniHBaseCluster hbaseCluster;
     private Configuration conf;
+    private HTablePool tablePool;
 
     /**
      * Builds a MiniCluster instance.
@@ -126,6 +128,17 @@ public final class HBaseClusterSingleton {
         return conf;
     }
 
+    /**
+     * Return a pool of tables of the running MiniCluster, shared by the tests.
+     * @return
+     */
+    public synchronized HTablePool getTablePool() {
+        if (tablePool == null) {
+            tablePool = new HTablePool(conf, HBaseMailboxSessionMapperFactory.DEFAULT_TABLE_POOL_SIZE);
+        }
+        return tablePool;
+    }
+
     /**
      * Creates a table with the specified column families.
      * @param tableName the table name
@@ -57,14 +57,16 @@ public class HBaseMailboxManagerTest extends AbstractMailboxManagerTest {
     private void ensureTables() throws IOException {
         CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF});
         CLUSTER.ensureTable(MESSAGES_TABLE,
-                new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF});
+                new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF, MESSAGES_FLAGS_CF});
         CLUSTER.ensureTable(SUBSCRIPTIONS_TABLE, new byte[][]{SUBSCRIPTION_CF});
+        CLUSTER.ensureTable(MAILBOX_PATHS_TABLE, new byte[][]{MAILBOX_PATH_CF});
     }
 
     private void clearTables() {
         CLUSTER.clearTable(MAILBOXES);
         CLUSTER.clearTable(MESSAGES);
         CLUSTER.clearTable(SUBSCRIPTIONS);
+        CLUSTER.clearTable(MAILBOX_PATHS);
     }
 
     /**
@@ -85,10 +87,10 @@ public class HBaseMailboxManagerTest extends AbstractMailboxManagerTest {
      */
     @Override
     protected void createMailboxManager() throws MailboxException {
-        final HBaseUidProvider uidProvider = new HBaseUidProvider(CLUSTER.getConf());
-        final HBaseModSeqProvider modSeqProvider = new HBaseModSeqProvider(CLUSTER.getConf());
+        final HBaseUidProvider uidProvider = new HBaseUidProvider(CLUSTER.getTablePool());
+        final HBaseModSeqProvider modSeqProvider = new HBaseModSeqProvider(CLUSTER.getTablePool());
         final HBaseMailboxSessionMapperFactory mapperFactory = new HBaseMailboxSessionMapperFactory(CLUSTER.getConf(),
-                uidProvider, modSeqProvider);
+                CLUSTER.getTablePool(), uidProvider, modSeqProvider);
 
         final MailboxACLResolver aclResolver = new UnionMailboxACLResolver();
         final GroupMembershipResolver groupMembershipResolver = new SimpleGroupMembershipResolver();
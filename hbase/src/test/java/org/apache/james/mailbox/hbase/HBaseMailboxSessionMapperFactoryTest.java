@@ -21,6 +21,7 @@ package org.apache.james.mailbox.hbase;
 import java.io.IOException;
 import java.util.UUID;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTablePool;
 import org.apache.james.mailbox.MailboxSession;
 import static org.apache.james.mailbox.hbase.HBaseNames.*;
 import org.apache.james.mailbox.hbase.mail.HBaseModSeqProvider;
@@ -56,14 +57,16 @@ public class HBaseMailboxSessionMapperFactoryTest {
     private void ensureTables() throws IOException {
         CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF});
         CLUSTER.ensureTable(MESSAGES_TABLE,
-                new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF});
+                new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF, MESSAGES_FLAGS_CF});
         CLUSTER.ensureTable(SUBSCRIPTIONS_TABLE, new byte[][]{SUBSCRIPTION_CF});
+        CLUSTER.ensureTable(MAILBOX_PATHS_TABLE, new byte[][]{MAILBOX_PATH_CF});
     }
 
     private void clearTables() {
         CLUSTER.clearTable(MAILBOXES);
         CLUSTER.clearTable(MESSAGES);
         CLUSTER.clearTable(SUBSCRIPTIONS);
+        CLUSTER.clearTable(MAILBOX_PATHS);
     }
 
     /**
@@ -132,4 +135,17 @@ public class HBaseMailboxSessionMapperFactoryTest {
         UidProvider<UUID> result = instance.getUidProvider();
         assertEquals(expResult, result);
     }
+
+    /**
+     * Test of getTablePool method, of class HBaseMailboxSessionMapperFactory.
+     */
+    @Test
+    public void testGetTablePool() throws Exception {
+        LOG.info("getTablePool");
+        HTablePool expResult = new HTablePool(conf, 1);
+        HBaseMailboxSessionMapperFactory instance = new HBaseMailboxSessionMapperFactory(conf, expResult, null, null);
+        HTablePool result = instance.getTablePool();
+        assertSame(expResult, result);
+        instance.close();
+    }
 }
@@ -133,5 +133,25 @@ public class HBaseUtilsTest {
         assertTrue(put.has(MESSAGES_META_CF, FLAGS_DELETED, MARKER_MISSING));
         assertTrue(put.has(MESSAGES_META_CF, userFlagToBytes("userFlag1"), MARKER_PRESENT));
         assertTrue(put.has(MESSAGES_META_CF, userFlagToBytes("userFlag2"), MARKER_PRESENT));
+        //test for the packed system flags
+        byte[] packed = new byte[]{BIT_SEEN | BIT_DRAFT | BIT_RECENT | BIT_FLAGGED};
+        assertTrue(put.has(MESSAGES_FLAGS_CF, MESSAGE_SYSTEM_FLAGS, packed));
+    }
+
+    @Test
+    public void testSystemFlagsToBytes() {
+        System.out.println("systemFlagsToBytes");
+        final Flags flags = new Flags();
+        flags.add(Flags.Flag.ANSWERED);
+        flags.add(Flags.Flag.DELETED);
+        flags.add(Flags.Flag.USER);
+        flags.add("userFlag1");
+        byte[] packed = systemFlagsToBytes(flags);
+        assertEquals(1, packed.length);
+        assertEquals(BIT_ANSWERED | BIT_DELETED | BIT_USER, packed[0]);
+        Flags unpacked = systemFlagsFromBytes(packed);
+        assertArrayEquals(new Flags.Flag[]{Flags.Flag.ANSWERED, Flags.Flag.DELETED, Flags.Flag.USER}, unpacked.getSystemFlags());
+        assertEquals(0, unpacked.getUserFlags().length);
+        assertEquals(0, systemFlagsFromBytes(systemFlagsToBytes(new Flags())).getSystemFlags().length);
     }
 }
@@ -0,0 +1,86 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.hbase;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import static org.apache.james.mailbox.hbase.HBaseNames.*;
+import static org.apache.james.mailbox.hbase.HBaseUtils.messageRowKey;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests for the schema of the row keys of the messages.
+ */
+public class MessageRowKeysTest {
+
+    private static final UUID MAILBOX = new UUID(1, 2);
+
+    @Test
+    public void testUnsaltedKeysAreTheLegacyKeys() {
+        byte[] rowKey = MessageRowKeys.UNSALTED.rowKey(MAILBOX, 42);
+        assertArrayEquals(messageRowKey(MAILBOX, 42), rowKey);
+        assertTrue(MessageRowKeys.isUnsaltedRowKey(rowKey));
+        assertEquals(MAILBOX, MessageRowKeys.mailboxIdFromRowKey(rowKey));
+        assertEquals(42, MessageRowKeys.uidFromRowKey(rowKey));
+    }
+
+    @Test
+    public void testSaltedKeys() {
+        MessageRowKeys rowKeys = new MessageRowKeys(8, 4);
+        byte[] rowKey = rowKeys.rowKey(MAILBOX, 42);
+        assertFalse(MessageRowKeys.isUnsaltedRowKey(rowKey));
+        assertEquals(rowKeys.bucket(MAILBOX, 42), rowKey[0]);
+        assertEquals(MAILBOX, MessageRowKeys.mailboxIdFromRowKey(rowKey));
+        assertEquals(42, MessageRowKeys.uidFromRowKey(rowKey));
+        // the uids of a block share a bucket, consecutive blocks are spread
+        assertEquals(rowKeys.bucket(MAILBOX, 40), rowKeys.bucket(MAILBOX, 43));
+        Set<Integer> buckets = new HashSet<Integer>();
+        for (long uid = 0; uid < 8 * 4; uid += 4) {
+            buckets.add(rowKeys.bucket(MAILBOX, uid));
+        }
+        assertEquals(8, buckets.size());
+    }
+
+    @Test
+    public void testSplitKeys() {
+        assertEquals(0, MessageRowKeys.UNSALTED.getSplitKeys().length);
+        byte[][] splitKeys = new MessageRowKeys(4, 4).getSplitKeys();
+        assertEquals(3, splitKeys.length);
+        assertArrayEquals(new byte[]{1}, splitKeys[0]);
+        assertArrayEquals(new byte[]{3}, splitKeys[2]);
+    }
+
+    @Test
+    public void testTableDescriptor() {
+        HTableDescriptor desc = new HTableDescriptor(MESSAGES_TABLE);
+        assertSame(MessageRowKeys.UNSALTED, MessageRowKeys.fromTableDescriptor(desc));
+        new MessageRowKeys(16, 128).toTableDescriptor(desc);
+        MessageRowKeys rowKeys = MessageRowKeys.fromTableDescriptor(desc);
+        assertEquals(16, rowKeys.getBuckets());
+        assertEquals(128, rowKeys.getUidBlockSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyBuckets() {
+        new MessageRowKeys(MessageRowKeys.MAX_BUCKETS + 1, 4);
+    }
+}
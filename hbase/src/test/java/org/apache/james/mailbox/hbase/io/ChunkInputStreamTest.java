@@ -0,0 +1,108 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.hbase.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.james.mailbox.hbase.HBaseClusterSingleton;
+import static org.apache.james.mailbox.hbase.HBaseNames.*;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs tests for the {@link ChunkInputStream} reading what the {@link ChunkOutputStream} wrote.
+ */
+public class ChunkInputStreamTest {
+
+    private static final HBaseClusterSingleton CLUSTER = HBaseClusterSingleton.build();
+    private static final byte[] KEY = Bytes.toBytes("chunks");
+    /** content spread over many ranges of chunks */
+    private static final int CHUNK_SIZE = 10;
+    private static final int LENGTH = 20000;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        CLUSTER.ensureTable(MESSAGES_TABLE,
+                new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF, MESSAGES_FLAGS_CF});
+        CLUSTER.clearTable(MESSAGES);
+        // all byte values, including those which are negative as a signed byte
+        data = new byte[LENGTH];
+        new Random(42).nextBytes(data);
+        ChunkOutputStream out = new ChunkOutputStream(CLUSTER.getTablePool(),
+                MESSAGES_TABLE, MESSAGE_DATA_BODY_CF, KEY, CHUNK_SIZE);
+        out.write(data);
+        out.close();
+    }
+
+    @Test
+    public void testContentIsReadByteByByte() throws IOException {
+        ChunkInputStream in = createStream();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(LENGTH);
+        int b;
+        while ((b = in.read()) != -1) {
+            bout.write(b);
+        }
+        assertArrayEquals(data, bout.toByteArray());
+    }
+
+    @Test
+    public void testContentIsReadInBulk() throws IOException {
+        ChunkInputStream in = createStream();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(LENGTH);
+        byte[] buffer = new byte[777];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bout.write(buffer, 0, read);
+        }
+        assertArrayEquals(data, bout.toByteArray());
+    }
+
+    @Test
+    public void testSkipSeeksToTheOffset() throws IOException {
+        ChunkInputStream in = createStream();
+        assertEquals(5, in.skip(5));
+        assertEquals(data[5] & 0xff, in.read());
+        // far beyond the fetched chunks
+        assertEquals(12345, in.skip(12345));
+        byte[] buffer = new byte[100];
+        assertEquals(100, in.read(buffer));
+        assertArrayEquals(Arrays.copyOfRange(data, 12351, 12451), buffer);
+
+        assertEquals(LENGTH - 12451, in.skip(LENGTH));
+        assertEquals(-1, in.read());
+        assertEquals(0, in.skip(10));
+    }
+
+    @Test
+    public void testMissingContentIsEmpty() throws IOException {
+        ChunkInputStream in = new ChunkInputStream(CLUSTER.getTablePool(),
+                MESSAGES_TABLE, MESSAGE_DATA_BODY_CF, Bytes.toBytes("missing"));
+        assertEquals(0, in.skip(10));
+        assertEquals(-1, in.read());
+    }
+
+    private ChunkInputStream createStream() {
+        return new ChunkInputStream(CLUSTER.getTablePool(), MESSAGES_TABLE, MESSAGE_DATA_BODY_CF, KEY);
+    }
+}
@@ -23,8 +23,11 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.james.mailbox.exception.MailboxException;
@@ -32,6 +35,7 @@ import org.apache.james.mailbox.exception.MailboxNotFoundException;
 import org.apache.james.mailbox.hbase.HBaseClusterSingleton;
 import static org.apache.james.mailbox.hbase.HBaseNames.*;
 import static org.apache.james.mailbox.hbase.HBaseUtils.mailboxFromResult;
+import static org.apache.james.mailbox.hbase.HBaseUtils.mailboxPathRowKey;
 import static org.apache.james.mailbox.hbase.HBaseUtils.mailboxRowKey;
 import org.apache.james.mailbox.hbase.io.ChunkInputStream;
 import org.apache.james.mailbox.hbase.io.ChunkOutputStream;
@@ -68,7 +72,7 @@ public class HBaseMailboxMapperTest {
         clearTables();
         conf = CLUSTER.getConf();
         fillMailboxList();
-        mapper = new HBaseMailboxMapper(conf);
+        mapper = new HBaseMailboxMapper(CLUSTER.getTablePool());
         for (HBaseMailbox mailbox : mailboxList) {
             mapper.save(mailbox);
         }
@@ -77,14 +81,16 @@ public class HBaseMailboxMapperTest {
     private void ensureTables() throws IOException {
         CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF});
         CLUSTER.ensureTable(MESSAGES_TABLE,
-                new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF});
+                new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF, MESSAGES_FLAGS_CF});
         CLUSTER.ensureTable(SUBSCRIPTIONS_TABLE, new byte[][]{SUBSCRIPTION_CF});
+        CLUSTER.ensureTable(MAILBOX_PATHS_TABLE, new byte[][]{MAILBOX_PATH_CF});
     }
 
     private void clearTables() {
         CLUSTER.clearTable(MAILBOXES);
         CLUSTER.clearTable(MESSAGES);
         CLUSTER.clearTable(SUBSCRIPTIONS);
+        CLUSTER.clearTable(MAILBOX_PATHS);
     }
 
     /**
@@ -100,6 +106,7 @@ public class HBaseMailboxMapperTest {
         testSave();
         testDelete();
         testHasChildren();
+        testRepairPathIndex();
 //        testDeleteAllMemberships(); // Ignore this test
         testDeleteAllMailboxes();
         testChunkStream();
@@ -233,6 +240,41 @@ public class HBaseMailboxMapperTest {
         }
     }
 
+    /**
+     * Test of repairPathIndex method, of class HBaseMailboxMapper.
+     */
+    private void testRepairPathIndex() throws Exception {
+        LOG.info("repairPathIndex");
+        final HBaseMailbox mailbox = mailboxList.get(0);
+        final MailboxPath path = new MailboxPath(mailbox.getNamespace(), mailbox.getUser(), mailbox.getName());
+        final HTableInterface paths = CLUSTER.getTablePool().getTable(MAILBOX_PATHS_TABLE);
+        try {
+            // a missing entry and an entry left over by an interrupted rename
+            paths.delete(new Delete(mailboxPathRowKey(mailbox)));
+            final Put put = new Put(mailboxPathRowKey(mailbox.getNamespace(), mailbox.getUser(), "renamed"));
+            put.add(MAILBOX_PATH_CF, MAILBOX_PATH_ID, mailboxRowKey(mailbox.getMailboxId()));
+            paths.put(put);
+        } finally {
+            paths.close();
+        }
+        try {
+            mapper.findMailboxByPath(path);
+            fail("The mailbox should not be found without index entry");
+        } catch (MailboxNotFoundException e) {
+            // expected
+        }
+        try {
+            mapper.findMailboxByPath(new MailboxPath(mailbox.getNamespace(), mailbox.getUser(), "renamed"));
+            fail("The mailbox should not be found with its former name");
+        } catch (MailboxNotFoundException e) {
+            // expected
+        }
+
+        assertEquals(2, mapper.repairPathIndex());
+        assertEquals(mailbox, mapper.findMailboxByPath(path));
+        assertEquals(0, mapper.repairPathIndex());
+    }
+
     /**
      * Test of deleteAllMemberships method, of class HBaseMailboxMapper.
      */
@@ -265,9 +307,9 @@ public class HBaseMailboxMapperTest {
                 + " qui officia deserunt mollit anim id est laborum";
         byte[] data = Bytes.toBytes(original);
         // we make the column size = 10 bytes
-        ChunkOutputStream out = new ChunkOutputStream(conf,
+        ChunkOutputStream out = new ChunkOutputStream(CLUSTER.getTablePool(),
                 MESSAGES_TABLE, MESSAGE_DATA_BODY_CF, Bytes.toBytes("10"), 10);
-        ChunkInputStream in = new ChunkInputStream(conf,
+        ChunkInputStream in = new ChunkInputStream(CLUSTER.getTablePool(),
                 MESSAGES_TABLE, MESSAGE_DATA_BODY_CF, Bytes.toBytes("10"));
         //create the stream
         ByteArrayInputStream bin = new ByteArrayInputStream(data);
@@ -282,6 +324,26 @@ public class HBaseMailboxMapperTest {
         }
         String s = bout.toString();
         assertTrue(original.equals(s));
+
+        // write the whole content at once into a Put, one column per chunk
+        Put put = new Put(Bytes.toBytes("11"));
+        out = new ChunkOutputStream(put, MESSAGE_DATA_BODY_CF, 10);
+        out.write(data);
+        out.close();
+        assertEquals((data.length + 8) / 9, put.size());
+        HTableInterface messages = CLUSTER.getTablePool().getTable(MESSAGES_TABLE);
+        try {
+            messages.put(put);
+        } finally {
+            messages.close();
+        }
+        in = new ChunkInputStream(CLUSTER.getTablePool(),
+                MESSAGES_TABLE, MESSAGE_DATA_BODY_CF, Bytes.toBytes("11"));
+        bout = new ByteArrayOutputStream(data.length);
+        while ((b = in.read()) != -1) {
+            bout.write(b);
+        }
+        assertEquals(original, bout.toString());
     }
 
     private static void fillMailboxList() {
@@ -310,7 +372,7 @@ public class HBaseMailboxMapperTest {
     private void addMailbox(HBaseMailbox mailbox) throws MailboxException {
         mailboxList.add(mailbox);
         pathsList.add(new MailboxPath(mailbox.getNamespace(), mailbox.getUser(), mailbox.getName()));
-        mapper = new HBaseMailboxMapper(conf);
+        mapper = new HBaseMailboxMapper(CLUSTER.getTablePool());
         mapper.save(mailbox);
         LOG.info("Added new mailbox: {} paths: {}", mailboxList.size(), pathsList.size());
     }
@@ -24,18 +24,29 @@ import javax.mail.Flags;
 import javax.mail.internet.SharedInputStream;
 import javax.mail.util.SharedByteArrayInputStream;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.hbase.HBaseClusterSingleton;
+import org.apache.james.mailbox.hbase.MessageRowKeys;
 import static org.apache.james.mailbox.hbase.HBaseNames.*;
+import static org.apache.james.mailbox.hbase.HBaseUtils.*;
 import org.apache.james.mailbox.hbase.mail.model.HBaseMailbox;
 import org.apache.james.mailbox.mock.MockMailboxSession;
 import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MessageMetaData;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.UpdatedFlags;
+import org.apache.james.mailbox.store.mail.MessageMapper.FetchType;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
 import org.apache.james.mailbox.store.mail.model.Message;
 import org.apache.james.mailbox.store.mail.model.impl.PropertyBuilder;
 import org.apache.james.mailbox.store.mail.model.impl.SimpleMessage;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -78,11 +89,13 @@ public class HBaseMessageMapperTest {
         ensureTables();
         clearTables();
         conf = CLUSTER.getConf();
-        uidProvider = new HBaseUidProvider(conf);
-        modSeqProvider = new HBaseModSeqProvider(conf);
+        uidProvider = new HBaseUidProvider(CLUSTER.getTablePool());
+        modSeqProvider = new HBaseModSeqProvider(CLUSTER.getTablePool());
         generateTestData();
         final MailboxSession session = new MockMailboxSession("ieugen");
-        messageMapper = new HBaseMessageMapper(session, uidProvider, modSeqProvider, conf);
+        messageMapper = new HBaseMessageMapper(session, uidProvider, modSeqProvider, CLUSTER.getTablePool(),
+                MAX_COLUMN_SIZE, getRowKeys());
+        new HBaseMailboxMapper(CLUSTER.getTablePool()).save(MBOXES.get(1));
         for (int i = 0; i < MESSAGE_NO.size(); i++) {
             messageMapper.add(MBOXES.get(1), MESSAGE_NO.get(i));
         }
@@ -91,17 +104,29 @@ public class HBaseMessageMapperTest {
     private void ensureTables() throws IOException {
         CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF});
         CLUSTER.ensureTable(MESSAGES_TABLE,
-                new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF});
+                new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF, MESSAGES_FLAGS_CF});
         CLUSTER.ensureTable(SUBSCRIPTIONS_TABLE, new byte[][]{SUBSCRIPTION_CF});
+        CLUSTER.ensureTable(MAILBOX_PATHS_TABLE, new byte[][]{MAILBOX_PATH_CF});
     }
 
     private void clearTables() {
         CLUSTER.clearTable(MAILBOXES);
         CLUSTER.clearTable(MESSAGES);
         CLUSTER.clearTable(SUBSCRIPTIONS);
+        CLUSTER.clearTable(MAILBOX_PATHS);
+    }
+
+    /**
+     * Returns the schema of the row keys of the messages written by the test.
+     */
+    protected MessageRowKeys getRowKeys() {
+        return MessageRowKeys.UNSALTED;
     }
 
     public static void generateTestData() {
+        MBOX_PATHS.clear();
+        MBOXES.clear();
+        MESSAGE_NO.clear();
         final Random random = new Random();
         MailboxPath mboxPath;
         final PropertyBuilder propBuilder = new PropertyBuilder();
@@ -151,6 +176,8 @@ public class HBaseMessageMapperTest {
         testAdd();
         testGetLastUid();
         testGetHighestModSeq();
+        testUpdateFlags();
+        testFlagCounters();
     }
 
     /**
@@ -218,4 +245,171 @@ public class HBaseMessageMapperTest {
         long highestModSeq = messageMapper.getHighestModSeq(MBOXES.get(1));
         assertEquals(MESSAGE_NO.size(), highestModSeq);
     }
+
+    /**
+     * Test of updateFlags method, of class HBaseMessageMapper.
+     */
+    private void testUpdateFlags() throws Exception {
+        LOG.info("updateFlags");
+        final Mailbox<UUID> mailbox = MBOXES.get(1);
+        final long modSeq = messageMapper.getHighestModSeq(mailbox);
+        // all the messages changed by one command share the same mod-seq
+        Iterator<UpdatedFlags> updated = messageMapper.updateFlags(mailbox, new Flags("userFlag"), true, false, MessageRange.range(3, 4));
+        UpdatedFlags first = updated.next();
+        assertEquals(3, first.getUid());
+        assertEquals(modSeq + 1, first.getModSeq());
+        assertTrue(first.getNewFlags().contains("userFlag"));
+        assertTrue(first.getNewFlags().contains(Flags.Flag.RECENT));
+        assertEquals(4, updated.next().getUid());
+        assertFalse(updated.hasNext());
+        Message<UUID> message = messageMapper.findInMailbox(mailbox, MessageRange.one(4), FetchType.Metadata, 1).next();
+        assertTrue(message.createFlags().contains("userFlag"));
+        assertEquals(modSeq + 1, message.getModSeq());
+        // removing a user flag deletes its column
+        messageMapper.updateFlags(mailbox, new Flags("userFlag"), false, false, MessageRange.one(4));
+        message = messageMapper.findInMailbox(mailbox, MessageRange.one(4), FetchType.Metadata, 1).next();
+        assertFalse(message.createFlags().contains("userFlag"));
+        assertEquals(modSeq + 2, message.getModSeq());
+        // an update without changes keeps the mod-seq
+        updated = messageMapper.updateFlags(mailbox, new Flags(Flags.Flag.RECENT), true, false, MessageRange.one(4));
+        assertEquals(modSeq + 2, updated.next().getModSeq());
+        assertEquals(modSeq + 2, messageMapper.getHighestModSeq(mailbox));
+    }
+
+    /**
+     * Test that the counters of the mailbox follow the changes of the flags
+     * and the expunge of the messages.
+     */
+    private void testFlagCounters() throws Exception {
+        LOG.info("flagCounters");
+        final Mailbox<UUID> mailbox = MBOXES.get(1);
+        messageMapper.updateFlags(mailbox, new Flags(Flags.Flag.SEEN), true, false, MessageRange.all());
+        assertEquals(0, messageMapper.countUnseenMessagesInMailbox(mailbox));
+        assertNull(messageMapper.findFirstUnseenMessageUid(mailbox));
+        // the recent message 2 is expunged
+        messageMapper.updateFlags(mailbox, new Flags(Flags.Flag.DELETED), true, false, MessageRange.one(2));
+        Map<Long, MessageMetaData> expunged = messageMapper.expungeMarkedForDeletionInMailbox(mailbox, MessageRange.all());
+        assertEquals(1, expunged.size());
+        assertTrue(expunged.containsKey(2L));
+        assertEquals(MESSAGE_NO.size() - 1, messageMapper.countMessagesInMailbox(mailbox));
+        assertEquals(MESSAGE_NO.size() - 2, messageMapper.findRecentMessageUidsInMailbox(mailbox).size());
+        assertTrue(messageMapper.expungeMarkedForDeletionInMailbox(mailbox, MessageRange.all()).isEmpty());
+    }
+
+    /**
+     * Test a mailbox stored before the mailboxes counted the flags of their messages,
+     * before and after its migration.
+     */
+    @Test
+    public void testMailboxWithoutFlagCounters() throws Exception {
+        final Mailbox<UUID> mailbox = MBOXES.get(2);
+        HTableInterface mailboxes = CLUSTER.getTablePool().getTable(MAILBOXES_TABLE);
+        HTableInterface messages = CLUSTER.getTablePool().getTable(MESSAGES_TABLE);
+        try {
+            mailboxes.put(toPut((HBaseMailbox) mailbox));
+            putLegacyMessage(messages, mailbox, 1, new Flags(Flags.Flag.RECENT));
+            Flags flags = new Flags(Flags.Flag.SEEN);
+            flags.add(Flags.Flag.DELETED);
+            putLegacyMessage(messages, mailbox, 2, flags);
+            putLegacyMessage(messages, mailbox, 3, new Flags());
+            putLegacyMessage(messages, mailbox, 4, new Flags(Flags.Flag.SEEN));
+        } finally {
+            messages.close();
+            mailboxes.close();
+        }
+        // the flags are read from the meta data of the messages
+        assertEquals(2, messageMapper.countUnseenMessagesInMailbox(mailbox));
+        assertEquals(Long.valueOf(1), messageMapper.findFirstUnseenMessageUid(mailbox));
+        assertEquals(Arrays.asList(1L), messageMapper.findRecentMessageUidsInMailbox(mailbox));
+        Map<Long, MessageMetaData> expunged = messageMapper.expungeMarkedForDeletionInMailbox(mailbox, MessageRange.all());
+        assertEquals(1, expunged.size());
+        assertTrue(expunged.containsKey(2L));
+
+        // only the mailbox without the counters is migrated
+        assertEquals(1, new HBaseFlagCountersMigration(CLUSTER.getTablePool(), getRowKeys()).migrate());
+        assertEquals(0, new HBaseFlagCountersMigration(CLUSTER.getTablePool(), getRowKeys()).migrate());
+        assertEquals(2, messageMapper.countUnseenMessagesInMailbox(mailbox));
+        assertEquals(Long.valueOf(1), messageMapper.findFirstUnseenMessageUid(mailbox));
+        assertEquals(Arrays.asList(1L), messageMapper.findRecentMessageUidsInMailbox(mailbox));
+        messageMapper.updateFlags(mailbox, new Flags(Flags.Flag.DELETED), true, false, MessageRange.one(3));
+        expunged = messageMapper.expungeMarkedForDeletionInMailbox(mailbox, MessageRange.all());
+        assertEquals(1, expunged.size());
+        assertTrue(expunged.containsKey(3L));
+        assertEquals(1, messageMapper.countUnseenMessagesInMailbox(mailbox));
+        messageMapper.updateFlags(mailbox, new Flags(Flags.Flag.SEEN), true, false, MessageRange.all());
+        assertEquals(0, messageMapper.countUnseenMessagesInMailbox(mailbox));
+        assertNull(messageMapper.findFirstUnseenMessageUid(mailbox));
+    }
+
+    /**
+     * Test that updating the flags of a message stored before its system flags were
+     * packed keeps its former flags.
+     */
+    @Test
+    public void testUpdateFlagsOfLegacyMessage() throws Exception {
+        final Mailbox<UUID> mailbox = MBOXES.get(1);
+        Flags flags = new Flags(Flags.Flag.SEEN);
+        flags.add(Flags.Flag.ANSWERED);
+        HTableInterface messages = CLUSTER.getTablePool().getTable(MESSAGES_TABLE);
+        try {
+            putLegacyMessage(messages, mailbox, MESSAGE_NO.size() + 1, flags);
+        } finally {
+            messages.close();
+        }
+        Iterator<UpdatedFlags> updated = messageMapper.updateFlags(mailbox, new Flags(Flags.Flag.FLAGGED), true, false,
+                MessageRange.one(MESSAGE_NO.size() + 1));
+        UpdatedFlags update = updated.next();
+        assertTrue(update.getOldFlags().contains(Flags.Flag.SEEN));
+        assertTrue(update.getOldFlags().contains(Flags.Flag.ANSWERED));
+        assertFalse(update.getOldFlags().contains(Flags.Flag.FLAGGED));
+        Message<UUID> message = messageMapper.findInMailbox(mailbox, MessageRange.one(MESSAGE_NO.size() + 1), FetchType.Metadata, 1).next();
+        Flags stored = message.createFlags();
+        assertTrue(stored.contains(Flags.Flag.SEEN));
+        assertTrue(stored.contains(Flags.Flag.ANSWERED));
+        assertTrue(stored.contains(Flags.Flag.FLAGGED));
+        // the seen message is not counted as unseen
+        assertEquals(MESSAGE_NO.size() - 1, messageMapper.countUnseenMessagesInMailbox(mailbox));
+    }
+
+    /**
+     * Test that the searches of the flags don't trust the flag counters, which are not
+     * updated atomically with the flags and so may be wrong.
+     */
+    @Test
+    public void testSearchesIgnoreWrongFlagCounters() throws Exception {
+        final Mailbox<UUID> mailbox = MBOXES.get(1);
+        messageMapper.updateFlags(mailbox, new Flags(Flags.Flag.DELETED), true, false, MessageRange.one(1));
+        HTableInterface mailboxes = CLUSTER.getTablePool().getTable(MAILBOXES_TABLE);
+        try {
+            Put put = new Put(mailboxRowKey(mailbox.getMailboxId()));
+            put.add(MAILBOX_CF, MAILBOX_UNSEEN_COUNT, Bytes.toBytes(0L));
+            put.add(MAILBOX_CF, MAILBOX_RECENT_COUNT, Bytes.toBytes(0L));
+            put.add(MAILBOX_CF, MAILBOX_DELETED_COUNT, Bytes.toBytes(0L));
+            mailboxes.put(put);
+        } finally {
+            mailboxes.close();
+        }
+        assertEquals(Long.valueOf(1), messageMapper.findFirstUnseenMessageUid(mailbox));
+        assertEquals(MESSAGE_NO.size() - 1, messageMapper.findRecentMessageUidsInMailbox(mailbox).size());
+        Map<Long, MessageMetaData> expunged = messageMapper.expungeMarkedForDeletionInMailbox(mailbox, MessageRange.all());
+        assertEquals(1, expunged.size());
+        assertTrue(expunged.containsKey(1L));
+    }
+
+    /**
+     * Stores a message the way it was stored before its system flags were packed
+     * in their own family.
+     */
+    private void putLegacyMessage(HTableInterface messages, Mailbox<UUID> mailbox, long uid, Flags flags) throws IOException {
+        PropertyBuilder propBuilder = new PropertyBuilder();
+        propBuilder.setMediaType("text");
+        propBuilder.setSubType("plain");
+        SimpleMessage<UUID> message = new SimpleMessage<UUID>(new Date(), messageTemplate.length,
+                messageTemplate.length - 20, content, flags, propBuilder, mailbox.getMailboxId());
+        message.setUid(uid);
+        message.setModSeq(uid);
+        Put put = metadataToPut(getRowKeys().rowKey(mailbox.getMailboxId(), uid), message);
+        put.getFamilyMap().remove(MESSAGES_FLAGS_CF);
+        messages.put(put);
+    }
 }
@@ -0,0 +1,125 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.hbase.mail;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.UUID;
+import javax.mail.Flags;
+import javax.mail.util.SharedByteArrayInputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.hbase.HBaseClusterSingleton;
+import org.apache.james.mailbox.hbase.MessageRowKeys;
+import org.apache.james.mailbox.hbase.mail.model.HBaseMailbox;
+import org.apache.james.mailbox.mock.MockMailboxSession;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.store.mail.MessageMapper.FetchType;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mailbox.store.mail.model.impl.PropertyBuilder;
+import org.apache.james.mailbox.store.mail.model.impl.SimpleMessage;
+import static org.apache.james.mailbox.hbase.HBaseNames.*;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the migration of the messages table to salted row keys.
+ */
+public class HBaseMessageRowKeyMigrationTest {
+
+    private static final HBaseClusterSingleton CLUSTER = HBaseClusterSingleton.build();
+    private static final int COUNT = 7;
+    private static final String HEADER = "Subject: Test\n\n";
+    private static final String BODY = "Body of the message\n";
+    private static final byte[] CONTENT = Bytes.toBytes(HEADER + BODY);
+    private HBaseMailbox mailbox;
+    private HBaseUidProvider uidProvider;
+    private HBaseModSeqProvider modSeqProvider;
+    private MailboxSession session;
+
+    @Before
+    public void setUp() throws Exception {
+        CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF});
+        CLUSTER.ensureTable(MESSAGES_TABLE,
+                new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF, MESSAGES_FLAGS_CF});
+        CLUSTER.ensureTable(MAILBOX_PATHS_TABLE, new byte[][]{MAILBOX_PATH_CF});
+        CLUSTER.clearTable(MAILBOXES);
+        CLUSTER.clearTable(MESSAGES);
+        CLUSTER.clearTable(MAILBOX_PATHS);
+        uidProvider = new HBaseUidProvider(CLUSTER.getTablePool());
+        modSeqProvider = new HBaseModSeqProvider(CLUSTER.getTablePool());
+        session = new MockMailboxSession("ieugen");
+        mailbox = new HBaseMailbox(new MailboxPath("gsoc", "ieugen", "INBOX"), 1234);
+        new HBaseMailboxMapper(CLUSTER.getTablePool()).save(mailbox);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // the other tests use a table with unsalted keys
+        HBaseAdmin admin = new HBaseAdmin(CLUSTER.getConf());
+        HTableDescriptor desc = admin.getTableDescriptor(MESSAGES_TABLE);
+        desc.remove(Bytes.toBytes(MESSAGES_SALT_BUCKETS));
+        desc.remove(Bytes.toBytes(MESSAGES_SALT_UID_BLOCK));
+        admin.disableTable(MESSAGES_TABLE);
+        admin.modifyTable(MESSAGES_TABLE, desc);
+        admin.enableTable(MESSAGES_TABLE);
+        CLUSTER.clearTable(MESSAGES);
+    }
+
+    @Test
+    public void testMigration() throws Exception {
+        HBaseMessageMapper unsalted = new HBaseMessageMapper(session, uidProvider, modSeqProvider, CLUSTER.getTablePool());
+        PropertyBuilder propBuilder = new PropertyBuilder();
+        propBuilder.setMediaType("text");
+        propBuilder.setSubType("plain");
+        for (int i = 0; i < COUNT; i++) {
+            SimpleMessage<UUID> message = new SimpleMessage<UUID>(new Date(), CONTENT.length, HEADER.length(),
+                    new SharedByteArrayInputStream(CONTENT), new Flags(), propBuilder, mailbox.getMailboxId());
+            unsalted.add(mailbox, message);
+        }
+
+        MessageRowKeys rowKeys = new MessageRowKeys(4, 2);
+        HBaseMessageRowKeyMigration migration = new HBaseMessageRowKeyMigration(CLUSTER.getConf(), CLUSTER.getTablePool());
+        assertEquals(COUNT, migration.migrate(rowKeys));
+        // a second run has nothing left to move
+        assertEquals(0, migration.migrate(rowKeys));
+        HBaseAdmin admin = new HBaseAdmin(CLUSTER.getConf());
+        MessageRowKeys stored = MessageRowKeys.fromTableDescriptor(admin.getTableDescriptor(MESSAGES_TABLE));
+        assertEquals(4, stored.getBuckets());
+        assertEquals(2, stored.getUidBlockSize());
+
+        HBaseMessageMapper salted = new HBaseMessageMapper(session, uidProvider, modSeqProvider, CLUSTER.getTablePool(),
+                MAX_COLUMN_SIZE, rowKeys);
+        Iterator<Message<UUID>> messages = salted.findInMailbox(mailbox, MessageRange.all(), FetchType.Full, -1);
+        for (long uid = 1; uid <= COUNT; uid++) {
+            Message<UUID> message = messages.next();
+            assertEquals(uid, message.getUid());
+            assertEquals(BODY, IOUtils.toString(message.getBodyContent()));
+        }
+        assertFalse(messages.hasNext());
+        assertEquals(COUNT, salted.countUnseenMessagesInMailbox(mailbox));
+        assertEquals(Long.valueOf(1), salted.findFirstUnseenMessageUid(mailbox));
+    }
+}
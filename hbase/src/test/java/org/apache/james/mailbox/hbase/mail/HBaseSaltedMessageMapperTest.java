@@ -0,0 +1,33 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.hbase.mail;
+
+import org.apache.james.mailbox.hbase.MessageRowKeys;
+
+/**
+ * Runs the tests of HBaseMessageMapper with salted row keys. The messages of the
+ * test mailbox span more blocks than there are buckets.
+ */
+public class HBaseSaltedMessageMapperTest extends HBaseMessageMapperTest {
+
+    @Override
+    protected MessageRowKeys getRowKeys() {
+        return new MessageRowKeys(4, 2);
+    }
+}
@@ -58,7 +58,7 @@ public class HBaseUidAndModSeqProviderTest {
         conf = CLUSTER.getConf();
         uidProvider = new HBaseUidProvider(conf);
         modSeqProvider = new HBaseModSeqProvider(conf);
-        mapper = new HBaseMailboxMapper(conf);
+        mapper = new HBaseMailboxMapper(CLUSTER.getTablePool());
         fillMailboxList();
         for (HBaseMailbox mailbox : mailboxList) {
             mapper.save(mailbox);
@@ -68,14 +68,16 @@ public class HBaseUidAndModSeqProviderTest {
     private void ensureTables() throws IOException {
         CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF});
         CLUSTER.ensureTable(MESSAGES_TABLE,
-                new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF});
+                new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF, MESSAGES_FLAGS_CF});
         CLUSTER.ensureTable(SUBSCRIPTIONS_TABLE, new byte[][]{SUBSCRIPTION_CF});
+        CLUSTER.ensureTable(MAILBOX_PATHS_TABLE, new byte[][]{MAILBOX_PATH_CF});
     }
 
     private void clearTables() {
         CLUSTER.clearTable(MAILBOXES);
         CLUSTER.clearTable(MESSAGES);
         CLUSTER.clearTable(SUBSCRIPTIONS);
+        CLUSTER.clearTable(MAILBOX_PATHS);
     }
 
     private static void fillMailboxList() {
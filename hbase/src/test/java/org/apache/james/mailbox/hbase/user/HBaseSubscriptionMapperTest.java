@@ -61,21 +61,23 @@ public class HBaseSubscriptionMapperTest {
         clearTables();
         conf = CLUSTER.getConf();
         mapperFactory = new HBaseMailboxSessionMapperFactory(conf, null, null);
-        mapper = new HBaseSubscriptionMapper(conf);
+        mapper = new HBaseSubscriptionMapper(CLUSTER.getTablePool());
         fillSubscriptionList();
     }
 
     private void ensureTables() throws IOException {
         CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF});
         CLUSTER.ensureTable(MESSAGES_TABLE,
-                new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF});
+                new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF, MESSAGES_FLAGS_CF});
         CLUSTER.ensureTable(SUBSCRIPTIONS_TABLE, new byte[][]{SUBSCRIPTION_CF});
+        CLUSTER.ensureTable(MAILBOX_PATHS_TABLE, new byte[][]{MAILBOX_PATH_CF});
     }
 
     private void clearTables() {
         CLUSTER.clearTable(MAILBOXES);
         CLUSTER.clearTable(MESSAGES);
         CLUSTER.clearTable(SUBSCRIPTIONS);
+        CLUSTER.clearTable(MAILBOX_PATHS);
     }
 
     private static void fillSubscriptionList() throws SubscriptionException {
@@ -0,0 +1,137 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.lucene.search;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+import org.apache.james.mime4j.MimeException;
+import org.apache.james.mime4j.stream.BodyDescriptor;
+import org.apache.james.mime4j.stream.EntityState;
+import org.apache.james.mime4j.stream.MimeConfig;
+import org.apache.james.mime4j.stream.MimeTokenStream;
+
+/**
+ * {@link Reader} which returns the decoded text of all the text and message parts of a message, one after the other.
+ * 
+ * The message is parsed while the {@link Reader} is consumed, so the content of a part never needs to be buffered. 
+ */
+final class BodyReader extends Reader {
+
+    private final static String MEDIA_TYPE_TEXT = "text"; 
+    private final static String MEDIA_TYPE_MESSAGE = "message"; 
+    private final static String DEFAULT_ENCODING = "US-ASCII";
+
+    private final InputStream content;
+    private final MimeTokenStream stream;
+    private final int maxLength;
+    private Reader part;
+    private int length;
+    private boolean end;
+
+    /**
+     * Create a new {@link BodyReader}
+     * 
+     * @param content the full content of the message
+     * @param maxLength the max count of chars to return, or -1 to return all of them
+     */
+    public BodyReader(InputStream content, int maxLength) {
+        this.content = content;
+        this.maxLength = maxLength;
+        MimeConfig config = new MimeConfig();
+        config.setMaxLineLen(-1);
+        config.setMaxContentLen(-1);
+        stream = new MimeTokenStream(config);
+        stream.parse(content);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (maxLength >= 0) {
+            if (length >= maxLength) {
+                return -1;
+            }
+            len = Math.min(len, maxLength - length);
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (part == null && !nextPart()) {
+            return -1;
+        }
+        int read = part.read(cbuf, off, len);
+        if (read == -1) {
+            part = null;
+            // separate the parts so the last word of one part is not joined with the first word of the next one
+            cbuf[off] = '\n';
+            read = 1;
+        }
+        length += read;
+        return read;
+    }
+
+    /**
+     * Move to the next text or message part
+     * 
+     * @return true if there is a part
+     * @throws IOException
+     */
+    private boolean nextPart() throws IOException {
+        if (end) {
+            return false;
+        }
+        try {
+            for (EntityState state = stream.next(); state != EntityState.T_END_OF_STREAM; state = stream.next()) {
+                if (state == EntityState.T_BODY) {
+                    BodyDescriptor desc = stream.getBodyDescriptor();
+                    String mediaType = desc.getMediaType();
+                    if (MEDIA_TYPE_TEXT.equalsIgnoreCase(mediaType) || MEDIA_TYPE_MESSAGE.equalsIgnoreCase(mediaType)) {
+                        part = new InputStreamReader(stream.getDecodedInputStream(), getCharset(desc));
+                        return true;
+                    }
+                }
+            }
+            end = true;
+            return false;
+        } catch (MimeException e) {
+            throw new IOException("Unable to parse the body of the message", e);
+        }
+    }
+
+    private Charset getCharset(BodyDescriptor desc) {
+        String cset = desc.getCharset();
+        if (cset != null) {
+            try {
+                return Charset.forName(cset);
+            } catch (Exception e) {
+                // Invalid charset found so fallback to the DEFAULT_ENCODING
+            }
+        }
+        return Charset.forName(DEFAULT_ENCODING);
+    }
+
+    @Override
+    public void close() throws IOException {
+        stream.stop();
+        content.close();
+    }
+}
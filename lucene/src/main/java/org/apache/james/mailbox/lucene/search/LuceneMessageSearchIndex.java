@@ -18,12 +18,9 @@
  ****************************************************************/
 package org.apache.james.mailbox.lucene.search;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.StringReader;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
@@ -59,7 +56,9 @@ import org.apache.james.mailbox.model.SearchQuery.UidCriterion;
 import org.apache.james.mailbox.store.mail.MessageMapperFactory;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
 import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mailbox.store.search.IndexStateStore;
 import org.apache.james.mailbox.store.search.ListeningMessageSearchIndex;
+import org.apache.james.mailbox.store.search.MailboxIndexState;
 import org.apache.james.mailbox.store.search.SearchUtil;
 import org.apache.james.mime4j.MimeException;
 import org.apache.james.mime4j.dom.Header;
@@ -74,11 +73,9 @@ import org.apache.james.mime4j.field.address.LenientAddressBuilder;
 import org.apache.james.mime4j.field.datetime.parser.DateTimeParser;
 import org.apache.james.mime4j.message.SimpleContentHandler;
 import org.apache.james.mime4j.parser.MimeStreamParser;
-import org.apache.james.mime4j.stream.BodyDescriptor;
 import org.apache.james.mime4j.stream.MimeConfig;
 import org.apache.james.mime4j.util.MimeUtil;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.document.DateTools;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Index;
@@ -92,41 +89,38 @@ import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.PhraseQuery;
 import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TermRangeQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.WildcardQuery;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.LockObtainFailedException;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.ReaderUtil;
 import org.apache.lucene.util.Version;
 
 /**
  * Lucene based {@link ListeningMessageSearchIndex} which offers message searching via a Lucene index
  * 
- * 
+ * The {@link MailboxIndexState} of each {@link Mailbox} is stored in an own {@link Document} of the index, so it is
+ * committed together with the indexed messages.
 
  * @param <Id>
  */
-public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id>{
-    private final static Date MAX_DATE;
-    private final static Date MIN_DATE;
-    
-    static {
-        Calendar cal = Calendar.getInstance();
-        cal.set(9999, 11, 31);
-        MAX_DATE = cal.getTime();
-        
-        cal.set(0000, 0, 1);
-        MIN_DATE = cal.getTime();
-    }
-    
+public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id> implements IndexStateStore<Id>{
     /**
      * Default max query results
      */
@@ -207,41 +201,15 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
     public final static String BASE_SUBJECT_FIELD = "baseSubject";
     
     /**
-     * {@link Field} which contain the internalDate of the message with YEAR-Resolution
-     */
-    public final static String INTERNAL_DATE_FIELD_YEAR_RESOLUTION ="internaldateYearResolution";
-    
-    
-    /**
-     * {@link Field} which contain the internalDate of the message with MONTH-Resolution
-     */
-    public final static String INTERNAL_DATE_FIELD_MONTH_RESOLUTION ="internaldateMonthResolution";
-    
-    /**
-     * {@link Field} which contain the internalDate of the message with DAY-Resolution
-     */
-    public final static String INTERNAL_DATE_FIELD_DAY_RESOLUTION ="internaldateDayResolution";
-    
-    /**
-     * {@link Field} which contain the internalDate of the message with HOUR-Resolution
-     */
-    public final static String INTERNAL_DATE_FIELD_HOUR_RESOLUTION ="internaldateHourResolution";
-    
-    /**
-     * {@link Field} which contain the internalDate of the message with MINUTE-Resolution
+     * {@link NumericField} which contain the internalDate of the message in milliseconds. It is queried with all {@link DateResolution}'s
      */
-    public final static String INTERNAL_DATE_FIELD_MINUTE_RESOLUTION ="internaldateMinuteResolution";
-    
-    /**
-     * {@link Field} which contain the internalDate of the message with SECOND-Resolution
-     */
-    public final static String INTERNAL_DATE_FIELD_SECOND_RESOLUTION ="internaldateSecondResolution";
-    
-    
+    public final static String INTERNAL_DATE_FIELD ="internaldate";
+
     /**
-     * {@link Field} which contain the internalDate of the message with MILLISECOND-Resolution
+     * Precision step of the date {@link NumericField}'s. It is coarser than the default one, as the dates are mostly queried with
+     * a resolution of a day, and it keeps the count of terms per date low
      */
-    public final static String INTERNAL_DATE_FIELD_MILLISECOND_RESOLUTION ="internaldateMillisecondResolution";
+    private final static int DATE_PRECISION_STEP = 8;
 
     /**
      * {@link Field} which will contain the id of the {@link Mailbox}
@@ -249,56 +217,50 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
     public final static String MAILBOX_ID_FIELD ="mailboxid";
 
     /**
-     * {@link Field} which contain the Date header of the message with YEAR-Resolution
-     */
-    public final static String SENT_DATE_FIELD_YEAR_RESOLUTION ="sentdateYearResolution";
-    
-    
-    /**
-     * {@link Field} which contain the Date header of the message with MONTH-Resolution
+     * {@link NumericField} which contain the Date header of the message in milliseconds. It is queried with all {@link DateResolution}'s
      */
-    public final static String SENT_DATE_FIELD_MONTH_RESOLUTION ="sentdateMonthResolution";
-    
+    public final static String SENT_DATE_FIELD ="sentdate";
+
     /**
-     * {@link Field} which contain the Date header of the message with DAY-Resolution
+     * {@link NumericField} which contain the Date header of the message in milliseconds, or the internalDate if it has no Date header
      */
-    public final static String SENT_DATE_FIELD_DAY_RESOLUTION ="sentdateDayResolution";
-    
+    public final static String SENT_DATE_SORT_FIELD ="sentdateSort";
+
+    public final static String NON_EXIST_FIELD ="nonExistField";
+
     /**
-     * {@link Field} which contain the Date header of the message with HOUR-Resolution
+     * {@link Field} which contain the uid validity of the {@link Mailbox} in its {@link MailboxIndexState} {@link Document}
      */
-    public final static String SENT_DATE_FIELD_HOUR_RESOLUTION ="sentdateHourResolution";
-    
+    public final static String UID_VALIDITY_FIELD ="uidValidity";
+
     /**
-     * {@link Field} which contain the Date header of the message with MINUTE-Resolution
+     * {@link Field} which contain the last indexed uid of the {@link Mailbox} in its {@link MailboxIndexState} {@link Document}
      */
-    public final static String SENT_DATE_FIELD_MINUTE_RESOLUTION ="sentdateMinuteResolution";
-    
+    public final static String LAST_UID_FIELD ="lastUid";
+
     /**
-     * {@link Field} which contain the Date header of the message with SECOND-Resolution
+     * {@link Field} which contain the mod-sequence up to which the flags of the {@link Mailbox} are indexed in its {@link MailboxIndexState} {@link Document}
      */
-    public final static String SENT_DATE_FIELD_SECOND_RESOLUTION ="sentdateSecondResolution";
-    
-    
+    public final static String HIGHEST_MODSEQ_FIELD ="highestModSeq";
+
     /**
-     * {@link Field} which contain the Date header of the message with MILLISECOND-Resolution
+     * Suffix of the {@link Field}'s which contain the n-grams of the {@link Field} they are named after. See {@link #setNGramLength(int)}
      */
-    public final static String SENT_DATE_FIELD_MILLISECOND_RESOLUTION ="sentdateMillisecondResolution";
+    public final static String NGRAM_FIELD_SUFFIX ="_ngram";
 
-    public final static String SENT_DATE_SORT_FIELD_MILLISECOND_RESOLUTION ="sentdateSort";
-
-    public final static String NON_EXIST_FIELD ="nonExistField";
-
-    
-    private final static String MEDIA_TYPE_TEXT = "text"; 
-    private final static String MEDIA_TYPE_MESSAGE = "message"; 
-    private final static String DEFAULT_ENCODING = "US-ASCII";
-    
     private final IndexWriter writer;
     
+    private final SearcherManager searcherManager;
+    
     private int maxQueryResults = DEFAULT_MAX_QUERY_RESULTS;
 
+    private int maxBodyLength = -1;
+
+    private volatile boolean closed;
+
     private boolean suffixMatch = false;
+
+    private int nGramLength = 0;
     
     private final static SortField UID_SORT = new SortField(UID_FIELD, SortField.LONG);
     private final static SortField UID_SORT_REVERSE = new SortField(UID_FIELD, SortField.LONG, true);
@@ -316,14 +278,14 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
     private final static SortField FIRST_FROM_MAILBOX_SORT_REVERSE = new SortField(FIRST_FROM_MAILBOX_NAME_FIELD, SortField.STRING, true);
 
     
-    private final static SortField ARRIVAL_MAILBOX_SORT = new SortField(INTERNAL_DATE_FIELD_MILLISECOND_RESOLUTION, SortField.LONG);
-    private final static SortField ARRIVAL_MAILBOX_SORT_REVERSE = new SortField(INTERNAL_DATE_FIELD_MILLISECOND_RESOLUTION, SortField.LONG, true);
+    private final static SortField ARRIVAL_MAILBOX_SORT = new SortField(INTERNAL_DATE_FIELD, SortField.LONG);
+    private final static SortField ARRIVAL_MAILBOX_SORT_REVERSE = new SortField(INTERNAL_DATE_FIELD, SortField.LONG, true);
 
     private final static SortField BASE_SUBJECT_SORT = new SortField(BASE_SUBJECT_FIELD, SortField.STRING);
     private final static SortField BASE_SUBJECT_SORT_REVERSE = new SortField(BASE_SUBJECT_FIELD, SortField.STRING, true);
     
-    private final static SortField SENT_DATE_SORT = new SortField(SENT_DATE_SORT_FIELD_MILLISECOND_RESOLUTION, SortField.LONG);
-    private final static SortField SENT_DATE_SORT_REVERSE = new SortField(SENT_DATE_SORT_FIELD_MILLISECOND_RESOLUTION, SortField.LONG, true);
+    private final static SortField SENT_DATE_SORT = new SortField(SENT_DATE_SORT_FIELD, SortField.LONG);
+    private final static SortField SENT_DATE_SORT_REVERSE = new SortField(SENT_DATE_SORT_FIELD, SortField.LONG, true);
     
     private final static SortField FIRST_TO_MAILBOX_DISPLAY_SORT = new SortField(FIRST_TO_MAILBOX_DISPLAY_FIELD, SortField.STRING);
     private final static SortField FIRST_TO_MAILBOX_DISPLAY_SORT_REVERSE = new SortField(FIRST_TO_MAILBOX_DISPLAY_FIELD, SortField.STRING, true);
@@ -340,12 +302,14 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
     public LuceneMessageSearchIndex(MessageMapperFactory<Id> factory, Directory directory, boolean dropIndexOnStart, boolean lenient) throws CorruptIndexException, LockObtainFailedException, IOException {
         super(factory);
         this.writer = new IndexWriter(directory,  createConfig(createAnalyzer(lenient), dropIndexOnStart));
+        this.searcherManager = new SearcherManager(writer);
     }
     
     
     public LuceneMessageSearchIndex(MessageMapperFactory<Id> factory, IndexWriter writer) {
         super(factory);
         this.writer = writer;
+        this.searcherManager = new SearcherManager(writer);
     }
     
     /**
@@ -357,6 +321,36 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
         this.maxQueryResults = maxQueryResults;
     }
     
+    /**
+     * Set the max count of characters of the body of a {@link Message} which get indexed. The text after it can not be searched.
+     * The default is -1, which indexes the whole body.
+     * 
+     * @param maxBodyLength
+     */
+    public void setMaxBodyLength(int maxBodyLength) {
+        this.maxBodyLength = maxBodyLength;
+    }
+    
+    /**
+     * Set the minimal time in milliseconds between two reopens of the shared {@link IndexSearcher}. Changes to the index
+     * may be invisible to the searches during that time. The default is 0, which reopens the searcher on the first search
+     * after a change.
+     * 
+     * @param refreshInterval
+     */
+    public void setSearcherRefreshInterval(long refreshInterval) {
+        searcherManager.setRefreshInterval(refreshInterval);
+    }
+    
+    /**
+     * Set the {@link SearcherWarmer} which is called with each new {@link IndexSearcher} before it is used by the searches
+     * 
+     * @param warmer
+     */
+    public void setSearcherWarmer(SearcherWarmer warmer) {
+        searcherManager.setWarmer(warmer);
+    }
+    
     protected IndexWriterConfig createConfig(Analyzer analyzer, boolean dropIndexOnStart) {
         IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_31, analyzer);
         if (dropIndexOnStart) {
@@ -398,6 +392,23 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
     
     
     
+    /**
+     * Set the length of the n-grams which get indexed for the body, the subject, the address headers and the full headers.
+     * If set, the searches for a string in them are substring matches as RFC3501 expects, but they only need to lookup
+     * the n-grams of the string instead of running a {@link WildcardQuery} over all the terms. The n-grams are indexed with
+     * their positions, so the string is verified by matching them as a phrase.
+     * 
+     * The n-grams are only indexed for the {@link Message}'s which are added while it is set, so the index needs to be
+     * rebuilt after it is enabled.
+     * 
+     * The default is 0, which disables it. A length of 3 is a good tradeoff between the size of the index and the speed of the searches.
+     * 
+     * @param nGramLength
+     */
+    public void setNGramLength(int nGramLength) {
+        this.nGramLength = nGramLength;
+    }
+    
     /**
      * @see org.apache.james.mailbox.store.search.MessageSearchIndex#search(org.apache.james.mailbox.MailboxSession, org.apache.james.mailbox.store.mail.model.Mailbox, org.apache.james.mailbox.model.SearchQuery)
      */
@@ -406,29 +417,40 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
         IndexSearcher searcher = null;
 
         try {
-            searcher = new IndexSearcher(IndexReader.open(writer, true));
+            searcher = searcherManager.acquire();
             BooleanQuery query = new BooleanQuery();
             query.add(new TermQuery(new Term(MAILBOX_ID_FIELD, mailbox.getMailboxId().toString())), BooleanClause.Occur.MUST);
             // Not return flags documents
             query.add(new PrefixQuery(new Term(FLAGS_FIELD, "")), BooleanClause.Occur.MUST_NOT);
             List<Criterion> crits = searchQuery.getCriterias();
             for (int i = 0; i < crits.size(); i++) {
-                query.add(createQuery(crits.get(i), mailbox, searchQuery.getRecentMessageUids()), BooleanClause.Occur.MUST);
+                query.add(createQuery(crits.get(i), mailbox, searchQuery.getRecentMessageUids(), searcher), BooleanClause.Occur.MUST);
             }
 
             // query for all the documents sorted as specified in the SearchQuery
             TopDocs docs = searcher.search(query, null, maxQueryResults, createSort(searchQuery.getSorts()));
             ScoreDoc[] sDocs = docs.scoreDocs;
+
+            // read the uids from the field cache of the segments, so no stored document needs to get loaded
+            IndexReader[] readers = searcher.getSubReaders();
+            int[] docStarts = new int[readers.length];
+            for (int i = 1; i < readers.length; i++) {
+                docStarts[i] = docStarts[i - 1] + readers[i - 1].maxDoc();
+            }
+            long[][] readerUids = new long[readers.length][];
             for (int i = 0; i < sDocs.length; i++) {
-                long uid = Long.valueOf(searcher.doc(sDocs[i].doc).get(UID_FIELD));
-                uids.add(uid);
+                int reader = ReaderUtil.subIndex(sDocs[i].doc, docStarts);
+                if (readerUids[reader] == null) {
+                    readerUids[reader] = FieldCache.DEFAULT.getLongs(readers[reader], UID_FIELD);
+                }
+                uids.add(readerUids[reader][sDocs[i].doc - docStarts[reader]]);
             }
         } catch (IOException e) {
             throw new MailboxException("Unable to search the mailbox", e);
         } finally {
             if (searcher != null) {
                 try {
-                    searcher.close();
+                    searcherManager.release(searcher);
                 } catch (IOException e) {
                     // ignore on close
                 }
@@ -455,13 +477,7 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
         // create an unqiue key for the document which can be used later on updates to find the document
         doc.add(new Field(ID_FIELD, membership.getMailboxId().toString().toUpperCase(Locale.ENGLISH) +"-" + Long.toString(membership.getUid()), Store.YES, Index.NOT_ANALYZED));
 
-        doc.add(new Field(INTERNAL_DATE_FIELD_YEAR_RESOLUTION, DateTools.dateToString(membership.getInternalDate(), DateTools.Resolution.YEAR), Store.NO, Index.NOT_ANALYZED));
-        doc.add(new Field(INTERNAL_DATE_FIELD_MONTH_RESOLUTION, DateTools.dateToString(membership.getInternalDate(), DateTools.Resolution.MONTH), Store.NO, Index.NOT_ANALYZED));
-        doc.add(new Field(INTERNAL_DATE_FIELD_DAY_RESOLUTION, DateTools.dateToString(membership.getInternalDate(), DateTools.Resolution.DAY), Store.NO, Index.NOT_ANALYZED));
-        doc.add(new Field(INTERNAL_DATE_FIELD_HOUR_RESOLUTION, DateTools.dateToString(membership.getInternalDate(), DateTools.Resolution.HOUR), Store.NO, Index.NOT_ANALYZED));
-        doc.add(new Field(INTERNAL_DATE_FIELD_MINUTE_RESOLUTION, DateTools.dateToString(membership.getInternalDate(), DateTools.Resolution.MINUTE), Store.NO, Index.NOT_ANALYZED));
-        doc.add(new Field(INTERNAL_DATE_FIELD_SECOND_RESOLUTION, DateTools.dateToString(membership.getInternalDate(), DateTools.Resolution.SECOND), Store.NO, Index.NOT_ANALYZED));
-        doc.add(new Field(INTERNAL_DATE_FIELD_MILLISECOND_RESOLUTION, DateTools.dateToString(membership.getInternalDate(), DateTools.Resolution.MILLISECOND), Store.NO, Index.NOT_ANALYZED));
+        doc.add(new NumericField(INTERNAL_DATE_FIELD, DATE_PRECISION_STEP, Store.NO, true).setLongValue(membership.getInternalDate().getTime()));
 
         doc.add(new NumericField(SIZE_FIELD,Store.YES, true).setLongValue(membership.getFullContentOctets()));
 
@@ -477,6 +493,8 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
                 String firstCcMailbox = "";
                 String firstFromDisplay = "";
                 String firstToDisplay = "";
+                String baseSubject = "";
+                boolean hasSubject = false;
                 
                 Iterator<org.apache.james.mime4j.stream.Field> fields = header.iterator();
                 while(fields.hasNext()) {
@@ -486,6 +504,9 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
                     String fullValue =  f.toString().toUpperCase(Locale.ENGLISH);
                     doc.add(new Field(HEADERS_FIELD, fullValue, Store.NO, Index.ANALYZED));
                     doc.add(new Field(PREFIX_HEADER_FIELD + headerName, headerValue, Store.NO, Index.ANALYZED));
+                    // the n-grams are normalized by the tokenizer in the same way as the searched values
+                    addNGramField(doc, HEADERS_FIELD, f.toString());
+                    addNGramField(doc, PREFIX_HEADER_FIELD + headerName, f.getBody());
                     
                     if (f instanceof DateTimeField) {
                         // We need to make sure we convert it to GMT
@@ -494,6 +515,7 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
                             DateTime dateTime = new DateTimeParser(reader).parseAll();
                             Calendar cal = getGMT();
                             cal.set(dateTime.getYear(), dateTime.getMonth() - 1, dateTime.getDay(), dateTime.getHour(), dateTime.getMinute(), dateTime.getSecond());
+                            cal.set(Calendar.MILLISECOND, 0);
                             sentDate =  cal.getTime();
                             
                         } catch (org.apache.james.mime4j.field.datetime.parser.ParseException e) {
@@ -524,20 +546,21 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
                                     Address address = aList.get(i);
                                     if (address instanceof org.apache.james.mime4j.dom.address.Mailbox) {
                                         org.apache.james.mime4j.dom.address.Mailbox mailbox = (org.apache.james.mime4j.dom.address.Mailbox) address;
-                                        String value = AddressFormatter.DEFAULT.encode(mailbox).toUpperCase(Locale.ENGLISH);
-                                        doc.add(new Field(field, value, Store.NO, Index.ANALYZED));
+                                        String encoded = AddressFormatter.DEFAULT.encode(mailbox);
+                                        doc.add(new Field(field, encoded.toUpperCase(Locale.ENGLISH), Store.NO, Index.ANALYZED));
+                                        addNGramField(doc, field, encoded);
                                         if (i == 0) {
                                             String mailboxAddress = SearchUtil.getMailboxAddress(mailbox);
                                             String mailboxDisplay = SearchUtil.getDisplayAddress(mailbox);
 
-                                            if ("To".equalsIgnoreCase(headerName)) {
+                                            if ("To".equalsIgnoreCase(headerName) && firstToMailbox.length() == 0) {
                                                 firstToMailbox = mailboxAddress;
                                                 firstToDisplay = mailboxDisplay;
-                                            } else if ("From".equalsIgnoreCase(headerName)) {
+                                            } else if ("From".equalsIgnoreCase(headerName) && firstFromMailbox.length() == 0) {
                                                 firstFromMailbox = mailboxAddress;
                                                 firstFromDisplay = mailboxDisplay;
                                                 
-                                            } else if ("Cc".equalsIgnoreCase(headerName)) {
+                                            } else if ("Cc".equalsIgnoreCase(headerName) && firstCcMailbox.length() == 0) {
                                                 firstCcMailbox = mailboxAddress;
                                             }
                                             
@@ -546,21 +569,22 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
                                         MailboxList mList = ((Group) address).getMailboxes();
                                         for (int a = 0; a < mList.size(); a++) {
                                             org.apache.james.mime4j.dom.address.Mailbox mailbox = mList.get(a);
-                                            String value = AddressFormatter.DEFAULT.encode(mailbox).toUpperCase(Locale.ENGLISH);
-                                            doc.add(new Field(field, value, Store.NO, Index.ANALYZED));
+                                            String encoded = AddressFormatter.DEFAULT.encode(mailbox);
+                                            doc.add(new Field(field, encoded.toUpperCase(Locale.ENGLISH), Store.NO, Index.ANALYZED));
+                                            addNGramField(doc, field, encoded);
 
                                             if (i == 0 && a == 0) {
                                                 String mailboxAddress = SearchUtil.getMailboxAddress(mailbox);
                                                 String mailboxDisplay = SearchUtil.getDisplayAddress(mailbox);
 
-                                                if ("To".equalsIgnoreCase(headerName)) {
+                                                if ("To".equalsIgnoreCase(headerName) && firstToMailbox.length() == 0) {
                                                     firstToMailbox = mailboxAddress;
                                                     firstToDisplay = mailboxDisplay;
-                                                } else if ("From".equalsIgnoreCase(headerName)) {
+                                                } else if ("From".equalsIgnoreCase(headerName) && firstFromMailbox.length() == 0) {
                                                     firstFromMailbox = mailboxAddress;
                                                     firstFromDisplay = mailboxDisplay;
 
-                                                } else if ("Cc".equalsIgnoreCase(headerName)) {
+                                                } else if ("Cc".equalsIgnoreCase(headerName) && firstCcMailbox.length() == 0) {
                                                     firstCcMailbox = mailboxAddress;
                                                 }
                                             }
@@ -570,72 +594,49 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
 
                             
                             doc.add(new Field(field, headerValue, Store.NO, Index.ANALYZED));
+                            addNGramField(doc, field, f.getBody());
 
-                    } else if (headerName.equalsIgnoreCase("Subject")) {
-                        doc.add(new Field(BASE_SUBJECT_FIELD, SearchUtil.getBaseSubject(headerValue), Store.YES, Index.NOT_ANALYZED));
+                    } else if (headerName.equalsIgnoreCase("Subject") && !hasSubject) {
+                        // the raw value is used, as upper casing would break base64 encoded-words
+                        baseSubject = SearchUtil.getBaseSubject(f.getBody());
+                        hasSubject = true;
                     } 
                 }
                 if (sentDate == null) {
                     sentDate = membership.getInternalDate();
                 } else {
-                    
-                    doc.add(new Field(SENT_DATE_FIELD_YEAR_RESOLUTION, DateTools.dateToString(sentDate, DateTools.Resolution.YEAR), Store.NO, Index.NOT_ANALYZED));
-                    doc.add(new Field(SENT_DATE_FIELD_MONTH_RESOLUTION, DateTools.dateToString(sentDate, DateTools.Resolution.MONTH), Store.NO, Index.NOT_ANALYZED));
-                    doc.add(new Field(SENT_DATE_FIELD_DAY_RESOLUTION, DateTools.dateToString(sentDate, DateTools.Resolution.DAY), Store.NO, Index.NOT_ANALYZED));
-                    doc.add(new Field(SENT_DATE_FIELD_HOUR_RESOLUTION, DateTools.dateToString(sentDate, DateTools.Resolution.HOUR), Store.NO, Index.NOT_ANALYZED));
-                    doc.add(new Field(SENT_DATE_FIELD_MINUTE_RESOLUTION, DateTools.dateToString(sentDate, DateTools.Resolution.MINUTE), Store.NO, Index.NOT_ANALYZED));
-                    doc.add(new Field(SENT_DATE_FIELD_SECOND_RESOLUTION, DateTools.dateToString(sentDate, DateTools.Resolution.SECOND), Store.NO, Index.NOT_ANALYZED));
-                    doc.add(new Field(SENT_DATE_FIELD_MILLISECOND_RESOLUTION, DateTools.dateToString(sentDate, DateTools.Resolution.MILLISECOND), Store.NO, Index.NOT_ANALYZED));
-                    
+                    doc.add(new NumericField(SENT_DATE_FIELD, DATE_PRECISION_STEP, Store.NO, true).setLongValue(sentDate.getTime()));
                 }
-                doc.add(new Field(SENT_DATE_SORT_FIELD_MILLISECOND_RESOLUTION,DateTools.dateToString(sentDate, DateTools.Resolution.MILLISECOND), Store.NO, Index.NOT_ANALYZED));
-
-                doc.add(new Field(FIRST_FROM_MAILBOX_NAME_FIELD, firstFromMailbox, Store.YES, Index.NOT_ANALYZED));
-                doc.add(new Field(FIRST_TO_MAILBOX_NAME_FIELD, firstToMailbox, Store.YES, Index.NOT_ANALYZED));
-                doc.add(new Field(FIRST_CC_MAILBOX_NAME_FIELD, firstCcMailbox, Store.YES, Index.NOT_ANALYZED));
-                doc.add(new Field(FIRST_FROM_MAILBOX_DISPLAY_FIELD, firstFromDisplay, Store.YES, Index.NOT_ANALYZED));
-                doc.add(new Field(FIRST_TO_MAILBOX_DISPLAY_FIELD, firstToDisplay, Store.YES, Index.NOT_ANALYZED));
+                doc.add(new NumericField(SENT_DATE_SORT_FIELD, DATE_PRECISION_STEP, Store.NO, true).setLongValue(sentDate.getTime()));
+
+                // the sort keys have exactly one value per message and are upper cased, as they are compared case-insensitive
+                doc.add(createSortKeyField(BASE_SUBJECT_FIELD, baseSubject));
+                doc.add(createSortKeyField(FIRST_FROM_MAILBOX_NAME_FIELD, firstFromMailbox));
+                doc.add(createSortKeyField(FIRST_TO_MAILBOX_NAME_FIELD, firstToMailbox));
+                doc.add(createSortKeyField(FIRST_CC_MAILBOX_NAME_FIELD, firstCcMailbox));
+                doc.add(createSortKeyField(FIRST_FROM_MAILBOX_DISPLAY_FIELD, firstFromDisplay));
+                doc.add(createSortKeyField(FIRST_TO_MAILBOX_DISPLAY_FIELD, firstToDisplay));
            
             }
-
-            @Override
-            public void body(BodyDescriptor desc, InputStream in) throws MimeException, IOException {
-                String mediaType = desc.getMediaType();
-                if (MEDIA_TYPE_TEXT.equalsIgnoreCase(mediaType) || MEDIA_TYPE_MESSAGE.equalsIgnoreCase(mediaType)) {
-                    String cset = desc.getCharset();
-                    if (cset == null) {
-                        cset = DEFAULT_ENCODING;
-                    }
-                    Charset charset;
-                    try {
-                        charset = Charset.forName(cset);
-                    } catch (Exception e) {
-                        // Invalid charset found so fallback toe the DEFAULT_ENCODING
-                        charset = Charset.forName(DEFAULT_ENCODING);
-                    }
-                    
-                    // Read the content one line after the other and add it to the document
-                    BufferedReader bodyReader = new BufferedReader(new InputStreamReader(in, charset));
-                    String line = null;
-                    while((line = bodyReader.readLine()) != null) {
-                        doc.add(new Field(BODY_FIELD,  line.toUpperCase(Locale.ENGLISH),Store.NO, Index.ANALYZED));
-                    }
-                    
-                }
-            }
- 
         };
         MimeConfig config = new MimeConfig();
         config.setMaxLineLen(-1);
         //config.setStrictParsing(false);
         config.setMaxContentLen(-1);
         MimeStreamParser parser = new MimeStreamParser(config);
-        parser.setContentDecoding(true);
+        // the bodies are only skipped by this parser, so there is no need to decode them
+        parser.setContentDecoding(false);
         parser.setContentHandler(handler);
        
         try {
-            // parse the message to index headers and body
+            // parse the message to index the headers
             parser.parse(membership.getFullContent());
+
+            // the body gets parsed again while it is analyzed, so its text is never held in memory at once
+            doc.add(new Field(BODY_FIELD, new BodyReader(membership.getFullContent(), maxBodyLength)));
+            if (isNGramField(BODY_FIELD)) {
+                doc.add(createNGramField(BODY_FIELD, new BodyReader(membership.getFullContent(), maxBodyLength)));
+            }
         } catch (MimeException e) {
             // This should never happen as it was parsed before too without problems.            
             throw new MailboxException("Unable to index content of message", e);
@@ -649,68 +650,57 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
         return doc;
     }
 
-    private String toSentDateField(DateResolution res) {
-        String field;
-        switch (res) {
-        case Year:
-            field = SENT_DATE_FIELD_YEAR_RESOLUTION;
-            break;
-        case Month:
-            field = SENT_DATE_FIELD_MONTH_RESOLUTION;
-            break;
-        case Day:
-            field = SENT_DATE_FIELD_DAY_RESOLUTION;
-            break;
-        case Hour:
-            field = SENT_DATE_FIELD_HOUR_RESOLUTION;
-            break;
-        case Minute:
-            field = SENT_DATE_FIELD_MINUTE_RESOLUTION;
-            break;
-        case Second:
-            field = SENT_DATE_FIELD_SECOND_RESOLUTION;
-            break;
-        default:
-            field = SENT_DATE_FIELD_MILLISECOND_RESOLUTION;
-            break;
+    /**
+     * Return true if n-grams are indexed for the {@link Field} with the given name
+     * 
+     * @param name
+     * @return ngram
+     */
+    private boolean isNGramField(String name) {
+        if (nGramLength < 1) {
+            return false;
+        }
+        return BODY_FIELD.equals(name) || HEADERS_FIELD.equals(name) || FROM_FIELD.equals(name) || TO_FIELD.equals(name)
+                || CC_FIELD.equals(name) || BCC_FIELD.equals(name) || (PREFIX_HEADER_FIELD + "SUBJECT").equals(name);
+    }
+
+    /**
+     * Add the n-grams of the value to the {@link Document} if they are indexed for the {@link Field} with the given name
+     * 
+     * @param doc
+     * @param name
+     * @param value
+     */
+    private void addNGramField(Document doc, String name, String value) {
+        if (isNGramField(name)) {
+            doc.add(createNGramField(name, new StringReader(value)));
         }
+    }
+
+    private Field createNGramField(String name, Reader reader) {
+        Field field = new Field(name + NGRAM_FIELD_SUFFIX, new SubstringNGramTokenizer(reader, nGramLength));
+        field.setOmitNorms(true);
         return field;
     }
 
+    /**
+     * Create the untokenized {@link Field} which is used to sort by the given key
+     * 
+     * @param name
+     * @param key
+     * @return field
+     */
+    private static Field createSortKeyField(String name, String key) {
+        Field field = new Field(name, key.toUpperCase(Locale.ENGLISH), Store.NO, Index.NOT_ANALYZED_NO_NORMS);
+        field.setOmitTermFreqAndPositions(true);
+        return field;
+    }
 
     private static Calendar getGMT() {
         return Calendar.getInstance(TimeZone.getTimeZone("GMT"), Locale.ENGLISH);
     }
 
     
-    private String toInteralDateField(DateResolution res) {
-        String field;
-        switch (res) {
-        case Year:
-            field = INTERNAL_DATE_FIELD_YEAR_RESOLUTION;
-            break;
-        case Month:
-            field = INTERNAL_DATE_FIELD_MONTH_RESOLUTION;
-            break;
-        case Day:
-            field = INTERNAL_DATE_FIELD_DAY_RESOLUTION;
-            break;
-        case Hour:
-            field = INTERNAL_DATE_FIELD_HOUR_RESOLUTION;
-            break;
-        case Minute:
-            field = INTERNAL_DATE_FIELD_MINUTE_RESOLUTION;
-            break;
-        case Second:
-            field = INTERNAL_DATE_FIELD_SECOND_RESOLUTION;
-            break;
-        default:
-            field = INTERNAL_DATE_FIELD_MILLISECOND_RESOLUTION;
-            break;
-        }
-        return field;
-    }
-    
     /**
      * Return a {@link Query} which is build based on the given {@link SearchQuery.InternalDateCriterion}
      * 
@@ -719,10 +709,7 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
      * @throws UnsupportedSearchException
      */
     private Query createInternalDateQuery(SearchQuery.InternalDateCriterion crit) throws UnsupportedSearchException {
-        DateOperator dop = crit.getOperator();
-        DateResolution res = dop.getDateResultion();
-        String field = toInteralDateField(res);
-        return createQuery(field, dop);
+        return createQuery(INTERNAL_DATE_FIELD, crit.getOperator());
     }
     
     /**
@@ -747,19 +734,46 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
     }
     
     /**
-     * This method will return the right {@link Query} depending if {@link #suffixMatch} is enabled
+     * This method will return the right {@link Query} depending if {@link #suffixMatch} is enabled. The value is
+     * upper cased here, with the same normalization as the indexed n-grams if the {@link Field} has n-grams
      * 
      * @param fieldName
      * @param value
      * @return query
      */
     private Query createTermQuery(String fieldName, String value) {
+        if (isNGramField(fieldName)) {
+            return createNGramQuery(fieldName + NGRAM_FIELD_SUFFIX, SubstringNGramTokenizer.normalize(value));
+        }
+        value = value.toUpperCase(Locale.ENGLISH);
         if (suffixMatch) {
             return new WildcardQuery(new Term(fieldName, "*" + value + "*"));
         } else {
             return new PrefixQuery(new Term(fieldName, value));
         }
     }
+    /**
+     * Return a {@link Query} which matches the n-gram {@link Field}'s which contain the value. The value is matched as a
+     * phrase of the n-grams which cover it, so it is only matched if the n-grams are found at the right positions.
+     * 
+     * @param fieldName
+     * @param value
+     * @return query
+     */
+    private Query createNGramQuery(String fieldName, String value) {
+        if (value.length() < nGramLength) {
+            // only the n-grams need to be scanned for the value, which are much less than the terms
+            return new WildcardQuery(new Term(fieldName, "*" + value + "*"));
+        }
+        PhraseQuery query = new PhraseQuery();
+        for (int i = 0; i < value.length() - nGramLength; i += nGramLength) {
+            query.add(new Term(fieldName, value.substring(i, i + nGramLength)), i);
+        }
+        int last = value.length() - nGramLength;
+        query.add(new Term(fieldName, value.substring(last)), last);
+        return query;
+    }
+
     /**
      * Return a {@link Query} which is build based on the given {@link SearchQuery.HeaderCriterion}
      * 
@@ -773,16 +787,14 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
         String fieldName = PREFIX_HEADER_FIELD + name;
         if (op instanceof SearchQuery.ContainsOperator) {
             ContainsOperator cop = (ContainsOperator) op;
-            return createTermQuery(fieldName, cop.getValue().toUpperCase(Locale.ENGLISH));
+            return createTermQuery(fieldName, cop.getValue());
         } else if (op instanceof SearchQuery.ExistsOperator){
             return new PrefixQuery(new Term(fieldName, ""));
         } else if (op instanceof SearchQuery.DateOperator) {
-                DateOperator dop = (DateOperator) op;
-                String field = toSentDateField(dop.getDateResultion());
-                return createQuery(field, dop);
+                return createQuery(SENT_DATE_FIELD, (DateOperator) op);
         } else if (op instanceof SearchQuery.AddressOperator) {
             String field = name.toLowerCase(Locale.ENGLISH);
-            return createTermQuery(field, ((SearchQuery.AddressOperator) op).getAddress().toUpperCase(Locale.ENGLISH));
+            return createTermQuery(field, ((SearchQuery.AddressOperator) op).getAddress());
         } else {
             // Operator not supported
             throw new UnsupportedSearchException();
@@ -790,40 +802,79 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
     }
     
     
+    /**
+     * Return a {@link NumericRangeQuery} on the milliseconds of the {@link NumericField} which matches the dates 
+     * of the {@link DateOperator}. The dates are compared in GMT with the {@link DateResolution} of the operator.
+     * 
+     * @param field
+     * @param dop
+     * @return query
+     * @throws UnsupportedSearchException
+     */
     private Query createQuery(String field, DateOperator dop) throws UnsupportedSearchException {
-        Date date = dop.getDate();
-        DateResolution res = dop.getDateResultion();
-        DateTools.Resolution dRes = toResolution(res);
-        String value = DateTools.dateToString(date, dRes);
+        Calendar cal = getGMT();
+        cal.setTime(dop.getDate());
+        int calendarField = truncate(cal, dop.getDateResultion());
+        long start = cal.getTimeInMillis();
+        cal.add(calendarField, 1);
+        long end = cal.getTimeInMillis();
         switch(dop.getType()) {
         case ON:
-            return new TermQuery(new Term(field ,value));
+            return NumericRangeQuery.newLongRange(field, DATE_PRECISION_STEP, start, end, true, false);
         case BEFORE: 
-            return new TermRangeQuery(field, DateTools.dateToString(MIN_DATE, dRes), value, true, false);
+            return NumericRangeQuery.newLongRange(field, DATE_PRECISION_STEP, null, start, true, false);
         case AFTER: 
-            return new TermRangeQuery(field, value, DateTools.dateToString(MAX_DATE, dRes), false, true);
+            return NumericRangeQuery.newLongRange(field, DATE_PRECISION_STEP, end, null, true, true);
         default:
             throw new UnsupportedSearchException();
         }
     }
     
-    private DateTools.Resolution toResolution(DateResolution res) {
+    /**
+     * Clear all the fields of the {@link Calendar} which are smaller than the {@link DateResolution}
+     * 
+     * @param cal
+     * @param res
+     * @return field of the {@link Calendar} which matches the {@link DateResolution}
+     */
+    private int truncate(Calendar cal, DateResolution res) {
+        int field;
         switch (res) {
         case Year:
-            return DateTools.Resolution.YEAR;
+            field = Calendar.YEAR;
+            break;
         case Month:
-            return DateTools.Resolution.MONTH;
+            field = Calendar.MONTH;
+            break;
         case Day:
-            return DateTools.Resolution.DAY;
+            field = Calendar.DAY_OF_MONTH;
+            break;
         case Hour:
-            return DateTools.Resolution.HOUR;
+            field = Calendar.HOUR_OF_DAY;
+            break;
         case Minute:
-            return DateTools.Resolution.MINUTE;
-        case Second:
-            return DateTools.Resolution.SECOND;
+            field = Calendar.MINUTE;
+            break;
         default:
-            return DateTools.Resolution.MILLISECOND;
+            field = Calendar.SECOND;
+            break;
         }
+        // the cases fall through to clear all the smaller fields
+        switch (field) {
+        case Calendar.YEAR:
+            cal.set(Calendar.MONTH, Calendar.JANUARY);
+        case Calendar.MONTH:
+            cal.set(Calendar.DAY_OF_MONTH, 1);
+        case Calendar.DAY_OF_MONTH:
+            cal.set(Calendar.HOUR_OF_DAY, 0);
+        case Calendar.HOUR_OF_DAY:
+            cal.set(Calendar.MINUTE, 0);
+        case Calendar.MINUTE:
+            cal.set(Calendar.SECOND, 0);
+        default:
+            cal.set(Calendar.MILLISECOND, 0);
+        }
+        return field;
     }
     
     /**
@@ -871,14 +922,19 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
     }
     
     /**
-     * Return a {@link Query} which is build based on the given {@link SearchQuery.FlagCriterion}. This is kind of a hack
-     * as it will do a search for the flags in this method and 
+     * Return a {@link Query} which is build based on the given {@link SearchQuery.FlagCriterion}. The flags are stored in
+     * their own {@link Document}s, which are cheap to update, so this collects the uids of the matching flags {@link Document}s
+     * and returns a {@link Filter} on the uids of the message {@link Document}s. 
      * 
-     * @param crit
+     * @param flag
+     * @param isSet
+     * @param mailbox
+     * @param recentUids
+     * @param searcher
      * @return query
-     * @throws UnsupportedSearchException
+     * @throws MailboxException
      */
-    private Query createFlagQuery(String flag, boolean isSet, Mailbox<?> mailbox, Collection<Long> recentUids) throws MailboxException, UnsupportedSearchException {
+    private Query createFlagQuery(String flag, boolean isSet, Mailbox<?> mailbox, Collection<Long> recentUids, IndexSearcher searcher) throws MailboxException {
         BooleanQuery query = new BooleanQuery();
         
         if (isSet) {   
@@ -893,20 +949,8 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
         }
         query.add(new TermQuery(new Term(MAILBOX_ID_FIELD, mailbox.getMailboxId().toString())), BooleanClause.Occur.MUST);
         
-        
-        IndexSearcher searcher = null;
-
         try {
-            Set<Long> uids = new HashSet<Long>();
-            searcher = new IndexSearcher(IndexReader.open(writer, true));
-            
-            // query for all the documents sorted by uid
-            TopDocs docs = searcher.search(query, null, maxQueryResults, new Sort(UID_SORT));
-            ScoreDoc[] sDocs = docs.scoreDocs;
-            for (int i = 0; i < sDocs.length; i++) {
-                long uid = Long.valueOf(searcher.doc(sDocs[i].doc).get(UID_FIELD));
-                uids.add(uid);
-            }
+            Set<Long> uids = collectUids(searcher, query);
             
             // add or remove recent uids
             if (flag.equalsIgnoreCase("\\RECENT")){
@@ -916,27 +960,49 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
                     uids.removeAll(recentUids);
                 }
             }
-            
-            List<MessageRange> ranges = MessageRange.toRanges(new ArrayList<Long>(uids));
-            NumericRange[] nRanges = new NumericRange[ranges.size()];
-            for (int i = 0; i < ranges.size(); i++) {
-                MessageRange range = ranges.get(i);
-                nRanges[i] = new NumericRange(range.getUidFrom(), range.getUidTo());
-            }
-            return createUidQuery((UidCriterion) SearchQuery.uid(nRanges));
+            return new ConstantScoreQuery(new UidFilter(uids));
         } catch (IOException e) {
             throw new MailboxException("Unable to search mailbox " + mailbox, e);
-        } finally {
-            if (searcher != null) {
-                try {
-                    searcher.close();
-                } catch (IOException e) {
-                    // ignore on close
-                }
-            }
         }
     }
     
+    /**
+     * Return the uids of all the {@link Document}s which match the given {@link Query}. The uids are read from the
+     * {@link FieldCache}, so no stored fields need to get loaded.
+     * 
+     * @param searcher
+     * @param query
+     * @return uids
+     * @throws IOException
+     */
+    private Set<Long> collectUids(IndexSearcher searcher, Query query) throws IOException {
+        final Set<Long> uids = new HashSet<Long>();
+        searcher.search(query, new Collector() {
+            private long[] docUids;
+
+            @Override
+            public void setScorer(Scorer scorer) {
+                // not needed
+            }
+
+            @Override
+            public void collect(int doc) {
+                uids.add(docUids[doc]);
+            }
+
+            @Override
+            public void setNextReader(IndexReader reader, int docBase) throws IOException {
+                docUids = FieldCache.DEFAULT.getLongs(reader, UID_FIELD);
+            }
+
+            @Override
+            public boolean acceptsDocsOutOfOrder() {
+                return true;
+            }
+        });
+        return uids;
+    }
+    
     private Sort createSort(List<SearchQuery.Sort> sorts) {
         Sort sort = new Sort();
         List<SortField> fields = new ArrayList<SortField>();
@@ -1071,7 +1137,7 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
      * @throws UnsupportedSearchException
      */
     private Query createTextQuery(SearchQuery.TextCriterion crit) throws UnsupportedSearchException {
-        String value = crit.getOperator().getValue().toUpperCase(Locale.ENGLISH);
+        String value = crit.getOperator().getValue();
         switch(crit.getType()) {
         case BODY:
             return createTermQuery(BODY_FIELD, value);
@@ -1108,24 +1174,24 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
      * @return query
      * @throws UnsupportedSearchException
      */
-    private Query createConjunctionQuery(SearchQuery.ConjunctionCriterion crit, Mailbox<?> mailbox, Collection<Long> recentUids) throws UnsupportedSearchException, MailboxException {
+    private Query createConjunctionQuery(SearchQuery.ConjunctionCriterion crit, Mailbox<?> mailbox, Collection<Long> recentUids, IndexSearcher searcher) throws UnsupportedSearchException, MailboxException {
         List<Criterion> crits = crit.getCriteria();
         BooleanQuery conQuery = new BooleanQuery();
         switch (crit.getType()) {
         case AND:
             for (int i = 0; i < crits.size(); i++) {
-                conQuery.add(createQuery(crits.get(i), mailbox, recentUids), BooleanClause.Occur.MUST);
+                conQuery.add(createQuery(crits.get(i), mailbox, recentUids, searcher), BooleanClause.Occur.MUST);
             }
             return conQuery;
         case OR:
             for (int i = 0; i < crits.size(); i++) {
-                conQuery.add(createQuery(crits.get(i), mailbox, recentUids), BooleanClause.Occur.SHOULD);
+                conQuery.add(createQuery(crits.get(i), mailbox, recentUids, searcher), BooleanClause.Occur.SHOULD);
             }
             return conQuery;
         case NOR:
             BooleanQuery nor = new BooleanQuery();
             for (int i = 0; i < crits.size(); i++) {
-                conQuery.add(createQuery(crits.get(i), mailbox, recentUids), BooleanClause.Occur.SHOULD);
+                conQuery.add(createQuery(crits.get(i), mailbox, recentUids, searcher), BooleanClause.Occur.SHOULD);
             }
             nor.add(new TermQuery(new Term(MAILBOX_ID_FIELD, mailbox.getMailboxId().toString())), BooleanClause.Occur.MUST);
 
@@ -1144,7 +1210,7 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
      * @return query
      * @throws UnsupportedSearchException
      */
-    private Query createQuery(Criterion criterion, Mailbox<?> mailbox, Collection<Long> recentUids) throws UnsupportedSearchException, MailboxException {
+    private Query createQuery(Criterion criterion, Mailbox<?> mailbox, Collection<Long> recentUids, IndexSearcher searcher) throws UnsupportedSearchException, MailboxException {
         if (criterion instanceof SearchQuery.InternalDateCriterion) {
             SearchQuery.InternalDateCriterion crit = (SearchQuery.InternalDateCriterion) criterion;
             return createInternalDateQuery(crit);
@@ -1159,10 +1225,10 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
             return createUidQuery(crit);
         } else if (criterion instanceof SearchQuery.FlagCriterion) {
             FlagCriterion crit = (FlagCriterion) criterion;
-            return createFlagQuery(toString(crit.getFlag()), crit.getOperator().isSet(), mailbox, recentUids);
+            return createFlagQuery(toString(crit.getFlag()), crit.getOperator().isSet(), mailbox, recentUids, searcher);
         } else if (criterion instanceof SearchQuery.CustomFlagCriterion) {
             CustomFlagCriterion crit = (CustomFlagCriterion) criterion;
-            return createFlagQuery(crit.getFlag(), crit.getOperator().isSet(), mailbox, recentUids);
+            return createFlagQuery(crit.getFlag(), crit.getOperator().isSet(), mailbox, recentUids, searcher);
         } else if (criterion instanceof SearchQuery.TextCriterion) {
             SearchQuery.TextCriterion crit = (SearchQuery.TextCriterion) criterion;
             return createTextQuery(crit);
@@ -1170,7 +1236,7 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
             return createAllQuery((AllCriterion) criterion);
         } else if (criterion instanceof SearchQuery.ConjunctionCriterion) {
             SearchQuery.ConjunctionCriterion crit = (SearchQuery.ConjunctionCriterion) criterion;
-            return createConjunctionQuery(crit, mailbox, recentUids);
+            return createConjunctionQuery(crit, mailbox, recentUids, searcher);
         } else if (criterion instanceof SearchQuery.ModSeqCriterion) {
             return createModSeqQuery((SearchQuery.ModSeqCriterion) criterion);
         }
@@ -1188,8 +1254,10 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
         Document flagsDoc = createFlagsDocument(membership);
 
         try {
-            writer.addDocument(doc);
-            writer.addDocument(flagsDoc);
+            // replace the documents if the message was already indexed, so indexing a message again does no harm
+            writer.updateDocument(new Term(ID_FIELD, doc.get(ID_FIELD)), doc);
+            writer.updateDocument(new Term(ID_FIELD, flagsDoc.get(ID_FIELD)), flagsDoc);
+            searcherManager.markChanged();
         } catch (CorruptIndexException e) {
             throw new MailboxException("Unable to add message to index", e);
         } catch (IOException e) {
@@ -1201,33 +1269,120 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
      * @see org.apache.james.mailbox.store.search.ListeningMessageSearchIndex#update(org.apache.james.mailbox.MailboxSession, org.apache.james.mailbox.store.mail.model.Mailbox, org.apache.james.mailbox.model.MessageRange, javax.mail.Flags)
      */
     public void update(MailboxSession session, Mailbox<Id> mailbox, MessageRange range, Flags f) throws MailboxException {
+        IndexSearcher searcher = null;
         try {
-            IndexSearcher searcher = new IndexSearcher(IndexReader.open(writer, true));
+            searcher = searcherManager.acquire();
             BooleanQuery query = new BooleanQuery();
             query.add(new TermQuery(new Term(MAILBOX_ID_FIELD, mailbox.getMailboxId().toString())), BooleanClause.Occur.MUST);
             query.add(createQuery(range), BooleanClause.Occur.MUST);
             query.add( new PrefixQuery(new Term(FLAGS_FIELD, "")), BooleanClause.Occur.MUST);
 
-            TopDocs docs = searcher.search(query, 100000);
-            ScoreDoc[] sDocs = docs.scoreDocs;
-            for (int i = 0; i < sDocs.length; i++) {
-                Document doc = searcher.doc(sDocs[i].doc);
-                
-                if (doc.getField(FLAGS_FIELD) == null) {
-                    doc.removeFields(FLAGS_FIELD);
-                    indexFlags(doc, f);
-
-                    writer.updateDocument(new Term(ID_FIELD, doc.get(ID_FIELD)), doc);
-            
-                }
+            // only the small flags documents get replaced, the message documents stay untouched
+            for (Long uid : collectUids(searcher, query)) {
+                Document doc = createFlagsDocument(mailbox.getMailboxId(), uid, f);
+                writer.updateDocument(new Term(ID_FIELD, doc.get(ID_FIELD)), doc);
             }
+            searcherManager.markChanged();
         } catch (IOException e) {
             throw new MailboxException("Unable to add messages in index", e);
 
+        } finally {
+            if (searcher != null) {
+                try {
+                    searcherManager.release(searcher);
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
         }
         
     }
 
+    /**
+     * Commit the pending changes of the {@link IndexWriter}
+     * 
+     * @see org.apache.james.mailbox.store.search.ListeningMessageSearchIndex#commit()
+     */
+    public void commit() throws MailboxException {
+        try {
+            writer.commit();
+        } catch (CorruptIndexException e) {
+            throw new MailboxException("Unable to commit index", e);
+        } catch (IOException e) {
+            throw new MailboxException("Unable to commit index", e);
+        }
+    }
+
+    /**
+     * Close the shared {@link IndexSearcher} and the {@link IndexWriter}, which commits the pending changes
+     * 
+     * @throws MailboxException
+     */
+    public void close() throws MailboxException {
+        closed = true;
+        try {
+            searcherManager.close();
+            writer.close();
+        } catch (CorruptIndexException e) {
+            throw new MailboxException("Unable to close index", e);
+        } catch (IOException e) {
+            throw new MailboxException("Unable to close index", e);
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @see org.apache.james.mailbox.store.search.IndexStateStore#getIndexState(org.apache.james.mailbox.MailboxSession, org.apache.james.mailbox.store.mail.model.Mailbox)
+     */
+    public MailboxIndexState getIndexState(MailboxSession session, Mailbox<Id> mailbox) throws MailboxException {
+        IndexSearcher searcher = null;
+        try {
+            searcher = searcherManager.acquire();
+            TopDocs docs = searcher.search(new TermQuery(new Term(ID_FIELD, createStateId(mailbox))), 1);
+            if (docs.scoreDocs.length == 0) {
+                return null;
+            }
+            Document doc = searcher.doc(docs.scoreDocs[0].doc);
+            return new MailboxIndexState(Long.parseLong(doc.get(UID_VALIDITY_FIELD)), Long.parseLong(doc.get(LAST_UID_FIELD)), Long.parseLong(doc.get(HIGHEST_MODSEQ_FIELD)));
+        } catch (IOException e) {
+            throw new MailboxException("Unable to read index state of mailbox " + mailbox.getName(), e);
+        } finally {
+            if (searcher != null) {
+                try {
+                    searcherManager.release(searcher);
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+        }
+    }
+
+    /**
+     * @see org.apache.james.mailbox.store.search.IndexStateStore#setIndexState(org.apache.james.mailbox.MailboxSession, org.apache.james.mailbox.store.mail.model.Mailbox, org.apache.james.mailbox.store.search.MailboxIndexState)
+     */
+    public void setIndexState(MailboxSession session, Mailbox<Id> mailbox, MailboxIndexState state) throws MailboxException {
+        // the state document has no mailbox id field, so it never matches a message search
+        Document doc = new Document();
+        doc.add(new Field(ID_FIELD, createStateId(mailbox), Store.YES, Index.NOT_ANALYZED));
+        doc.add(new Field(UID_VALIDITY_FIELD, Long.toString(state.getUidValidity()), Store.YES, Index.NO));
+        doc.add(new Field(LAST_UID_FIELD, Long.toString(state.getLastUid()), Store.YES, Index.NO));
+        doc.add(new Field(HIGHEST_MODSEQ_FIELD, Long.toString(state.getHighestModSeq()), Store.YES, Index.NO));
+        try {
+            writer.updateDocument(new Term(ID_FIELD, doc.get(ID_FIELD)), doc);
+            searcherManager.markChanged();
+        } catch (IOException e) {
+            throw new MailboxException("Unable to store index state of mailbox " + mailbox.getName(), e);
+        }
+    }
+
+    private String createStateId(Mailbox<Id> mailbox) {
+        return "state-" + mailbox.getMailboxId().toString();
+    }
+
     /**
      * Index the {@link Flags} and add it to the {@link Document}
      * 
@@ -1235,12 +1390,24 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
      * @param doc
      */
     private Document createFlagsDocument(Message<?> message) {
+        return createFlagsDocument(message.getMailboxId(), message.getUid(), message.createFlags());
+    }
+    
+    /**
+     * Create the {@link Document} which holds the {@link Flags} of a message
+     * 
+     * @param mailboxId
+     * @param uid
+     * @param f
+     * @return document
+     */
+    private Document createFlagsDocument(Object mailboxId, long uid, Flags f) {
         Document doc = new Document();
-        doc.add(new Field(ID_FIELD, "flags-" + message.getMailboxId().toString() +"-" + Long.toString(message.getUid()), Store.YES, Index.NOT_ANALYZED));
-        doc.add(new Field(MAILBOX_ID_FIELD, message.getMailboxId().toString(), Store.YES, Index.NOT_ANALYZED));
-        doc.add(new NumericField(UID_FIELD,Store.YES, true).setLongValue(message.getUid()));
+        doc.add(new Field(ID_FIELD, "flags-" + mailboxId.toString() +"-" + Long.toString(uid), Store.YES, Index.NOT_ANALYZED));
+        doc.add(new Field(MAILBOX_ID_FIELD, mailboxId.toString(), Store.YES, Index.NOT_ANALYZED));
+        doc.add(new NumericField(UID_FIELD,Store.YES, true).setLongValue(uid));
         
-        indexFlags(doc, message.createFlags());
+        indexFlags(doc, f);
         return doc;
     }
     
@@ -1273,6 +1440,7 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
     private Query createQuery(MessageRange range) {
         switch (range.getType()) {
         case ONE:
+        case RANGE:
             return NumericRangeQuery.newLongRange(UID_FIELD, range.getUidFrom(), range.getUidTo(), true, true);
         case FROM:
             return NumericRangeQuery.newLongRange(UID_FIELD, range.getUidFrom(), Long.MAX_VALUE, true, true);
@@ -1290,6 +1458,10 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
         
         try {
             writer.deleteDocuments(query);
+            if (range.getType() == MessageRange.Type.ALL) {
+                writer.deleteDocuments(new Term(ID_FIELD, createStateId(mailbox)));
+            }
+            searcherManager.markChanged();
         } catch (CorruptIndexException e) {
             throw new MailboxException("Unable to delete message from index", e);
 
@@ -1300,4 +1472,34 @@ public class LuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id
     
 
 
+    /**
+     * {@link Filter} which matches the {@link Document}s whose uid is in a given set. The uids are read from the {@link FieldCache}
+     * of each segment.
+     */
+    private final static class UidFilter extends Filter {
+
+        private static final long serialVersionUID = 1L;
+        private final Set<Long> uids;
+
+        public UidFilter(Set<Long> uids) {
+            this.uids = uids;
+        }
+
+        @Override
+        public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+            OpenBitSet bits = new OpenBitSet(reader.maxDoc());
+            if (uids.isEmpty()) {
+                return bits;
+            }
+            long[] docUids = FieldCache.DEFAULT.getLongs(reader, UID_FIELD);
+            boolean deletions = reader.hasDeletions();
+            for (int doc = 0; doc < docUids.length; doc++) {
+                if (uids.contains(docUids[doc]) && (!deletions || !reader.isDeleted(doc))) {
+                    bits.fastSet(doc);
+                }
+            }
+            return bits;
+        }
+    }
+
 }
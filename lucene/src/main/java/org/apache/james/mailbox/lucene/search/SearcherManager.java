@@ -0,0 +1,175 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.lucene.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.AlreadyClosedException;
+
+/**
+ * Shares a near-real-time {@link IndexSearcher} over an {@link IndexWriter} between all the searches.
+ *
+ * The {@link IndexReader} of the searcher is reference counted: each search must {@link #acquire()} the searcher
+ * and {@link #release(IndexSearcher)} it once done. The searcher is only reopened when the index was changed
+ * (see {@link #markChanged()}), and at most once per refresh interval, so the searches don't pay the reopen of the
+ * reader. A replaced reader gets closed once the last search using it has released it.
+ */
+public class SearcherManager {
+
+    private final IndexWriter writer;
+    private final Object refreshLock = new Object();
+    private volatile IndexSearcher current;
+    private volatile boolean changed = true;
+    private volatile long lastRefresh;
+    private volatile long refreshInterval;
+    private volatile SearcherWarmer warmer;
+    private boolean closed;
+
+    public SearcherManager(IndexWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Set the minimal time in milliseconds between two reopens of the searcher. Changes to the index
+     * may be invisible to the searches during that time. The default is 0, which reopens the
+     * searcher on the first search after a change.
+     *
+     * @param refreshInterval
+     */
+    public void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Set the {@link SearcherWarmer} which is called with each new searcher before it is used
+     *
+     * @param warmer
+     */
+    public void setWarmer(SearcherWarmer warmer) {
+        this.warmer = warmer;
+    }
+
+    /**
+     * Tell the manager that the index was changed, so the searcher needs to get reopened
+     */
+    public void markChanged() {
+        changed = true;
+    }
+
+    /**
+     * Return the current {@link IndexSearcher}, reopening it first if the index was changed and the refresh interval
+     * is elapsed. The searcher must be given back with {@link #release(IndexSearcher)}.
+     *
+     * @return searcher
+     * @throws IOException
+     */
+    public IndexSearcher acquire() throws IOException {
+        if (current == null || (changed && System.currentTimeMillis() - lastRefresh >= refreshInterval)) {
+            refresh();
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new AlreadyClosedException("this SearcherManager is closed");
+            }
+            current.getIndexReader().incRef();
+            return current;
+        }
+    }
+
+    /**
+     * Give back a searcher returned by {@link #acquire()}
+     *
+     * @param searcher
+     * @throws IOException
+     */
+    public void release(IndexSearcher searcher) throws IOException {
+        searcher.getIndexReader().decRef();
+    }
+
+    /**
+     * Reopen the searcher now if the index was changed
+     *
+     * @throws IOException
+     */
+    public void refresh() throws IOException {
+        synchronized (refreshLock) {
+            // clear the flag first, so a change done while reopening is seen by the next refresh
+            changed = false;
+            IndexSearcher old = current;
+            IndexReader reader;
+            if (old == null) {
+                reader = IndexReader.open(writer, true);
+            } else {
+                reader = old.getIndexReader().reopen();
+            }
+            if (old == null || reader != old.getIndexReader()) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                try {
+                    if (warmer != null) {
+                        warmer.warm(searcher);
+                    }
+                } catch (IOException e) {
+                    reader.decRef();
+                    changed = true;
+                    throw e;
+                }
+                swap(searcher);
+            }
+            lastRefresh = System.currentTimeMillis();
+        }
+    }
+
+    private void swap(IndexSearcher searcher) throws IOException {
+        IndexSearcher old;
+        synchronized (this) {
+            if (closed) {
+                searcher.getIndexReader().decRef();
+                throw new AlreadyClosedException("this SearcherManager is closed");
+            }
+            old = current;
+            current = searcher;
+        }
+        if (old != null) {
+            release(old);
+        }
+    }
+
+    /**
+     * Close the manager. The current reader gets closed once the last search using it has released it.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        IndexSearcher old;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            old = current;
+            current = null;
+        }
+        if (old != null) {
+            release(old);
+        }
+    }
+}
@@ -0,0 +1,485 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.lucene.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Flags;
+
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.SearchQuery;
+import org.apache.james.mailbox.store.mail.MessageMapperFactory;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mailbox.store.search.IndexStateStore;
+import org.apache.james.mailbox.store.search.ListeningMessageSearchIndex;
+import org.apache.james.mailbox.store.search.MailboxIndexState;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * {@link ListeningMessageSearchIndex} which keeps the {@link Message}'s of each user in an own {@link LuceneMessageSearchIndex}, 
+ * so the size of the index which is searched only depends on the mails of the user. The user of a {@link Mailbox} is its owner,
+ * so searches in shared mailboxes use the index of the owner. Optional the users can get hashed into a fixed count of buckets.
+ * 
+ * The indexes are opened on demand and kept in a LRU cache. An index which was not used for the idle timeout, or which is the 
+ * least recently used one when more than the max count of indexes are open, gets closed. This bounds the count of open files.
+ * The indexes are opened and closed outside of the lock of the cache, so a slow index only delays the operations on its own
+ * shard, which wait until it is open, or closed before it gets opened again.
+ * 
+ * @param <Id>
+ */
+public class ShardedLuceneMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id> implements IndexStateStore<Id> {
+
+    /**
+     * Default max count of indexes which are kept open
+     */
+    public final static int DEFAULT_MAX_OPEN_SHARDS = 100;
+
+    /**
+     * Default time in milliseconds after which an unused index gets closed
+     */
+    public final static long DEFAULT_IDLE_TIMEOUT = 10 * 60 * 1000;
+
+    private final static String SHARED_SHARD = "shared";
+
+    private final File baseDirectory;
+    private final boolean lenient;
+    private final LinkedHashMap<String, Shard> shards = new LinkedHashMap<String, Shard>(16, 0.75f, true);
+    // the evicted shards which are getting closed, guarded by the lock of shards
+    private final Map<String, Shard> closing = new HashMap<String, Shard>();
+    private int maxOpenShards = DEFAULT_MAX_OPEN_SHARDS;
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private int buckets = 0;
+    private int maxQueryResults = LuceneMessageSearchIndex.DEFAULT_MAX_QUERY_RESULTS;
+    private int maxBodyLength = -1;
+    private boolean suffixMatch = false;
+    private int nGramLength = 0;
+    private volatile boolean closed;
+
+    public ShardedLuceneMessageSearchIndex(MessageMapperFactory<Id> factory, File baseDirectory) {
+        this(factory, baseDirectory, true);
+    }
+
+    public ShardedLuceneMessageSearchIndex(MessageMapperFactory<Id> factory, File baseDirectory, boolean lenient) {
+        super(factory);
+        this.baseDirectory = baseDirectory;
+        this.lenient = lenient;
+    }
+
+    /**
+     * Set the max count of indexes which are kept open. The default is {@link #DEFAULT_MAX_OPEN_SHARDS}
+     * 
+     * @param maxOpenShards
+     */
+    public void setMaxOpenShards(int maxOpenShards) {
+        this.maxOpenShards = maxOpenShards;
+    }
+
+    /**
+     * Set the time in milliseconds after which an unused index gets closed. The default is {@link #DEFAULT_IDLE_TIMEOUT}
+     * 
+     * @param idleTimeout
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Set the count of buckets into which the users get hashed. The default is 0, which gives each user an own index.
+     * Changing it requires to rebuild the indexes.
+     * 
+     * @param buckets
+     */
+    public void setBuckets(int buckets) {
+        this.buckets = buckets;
+    }
+
+    /**
+     * @see LuceneMessageSearchIndex#setMaxQueryResults(int)
+     */
+    public void setMaxQueryResults(int maxQueryResults) {
+        this.maxQueryResults = maxQueryResults;
+    }
+
+    /**
+     * @see LuceneMessageSearchIndex#setMaxBodyLength(int)
+     */
+    public void setMaxBodyLength(int maxBodyLength) {
+        this.maxBodyLength = maxBodyLength;
+    }
+
+    /**
+     * @see LuceneMessageSearchIndex#setEnableSuffixMatch(boolean)
+     */
+    public void setEnableSuffixMatch(boolean suffixMatch) {
+        this.suffixMatch = suffixMatch;
+    }
+
+    /**
+     * @see LuceneMessageSearchIndex#setNGramLength(int)
+     */
+    public void setNGramLength(int nGramLength) {
+        this.nGramLength = nGramLength;
+    }
+
+    /**
+     * Return the name of the shard which holds the given {@link Mailbox}
+     * 
+     * @param mailbox
+     * @return shard
+     */
+    protected String getShard(Mailbox<Id> mailbox) {
+        String user = mailbox.getUser();
+        if (user == null) {
+            return SHARED_SHARD;
+        }
+        if (buckets > 0) {
+            return "bucket-" + (user.hashCode() & Integer.MAX_VALUE) % buckets;
+        }
+        try {
+            return "user-" + URLEncoder.encode(user, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Return the {@link Directory} of the given shard
+     * 
+     * @param shard
+     * @return directory
+     * @throws IOException
+     */
+    protected Directory createDirectory(String shard) throws IOException {
+        return FSDirectory.open(new File(baseDirectory, shard));
+    }
+
+    /**
+     * Create the {@link LuceneMessageSearchIndex} which is stored in the given {@link Directory}
+     * 
+     * @param directory
+     * @return index
+     * @throws IOException
+     */
+    protected LuceneMessageSearchIndex<Id> createIndex(Directory directory) throws IOException {
+        LuceneMessageSearchIndex<Id> index = new LuceneMessageSearchIndex<Id>(getFactory(), directory, false, lenient);
+        index.setMaxQueryResults(maxQueryResults);
+        index.setMaxBodyLength(maxBodyLength);
+        index.setEnableSuffixMatch(suffixMatch);
+        index.setNGramLength(nGramLength);
+        return index;
+    }
+
+    /**
+     * Return the open {@link Shard} of the {@link Mailbox} and mark it as used. It needs to get released with {@link #release(Shard)}
+     */
+    private Shard acquire(Mailbox<Id> mailbox) throws MailboxException {
+        String name = getShard(mailbox);
+        Shard shard;
+        boolean open = false;
+        List<Shard> evicted;
+        synchronized (shards) {
+            while (true) {
+                if (closed) {
+                    throw new MailboxException("Index is closed");
+                }
+                shard = shards.get(name);
+                if (shard == null && !closing.containsKey(name)) {
+                    // the placeholder makes the other users of the shard wait until it is open
+                    shard = new Shard(name);
+                    shards.put(name, shard);
+                    open = true;
+                    break;
+                }
+                if (shard != null && shard.index != null) {
+                    break;
+                }
+                // the shard is getting opened or closed by another thread
+                try {
+                    shards.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MailboxException("Interrupted while waiting for index " + name, e);
+                }
+            }
+            shard.users++;
+            shard.lastUsed = System.currentTimeMillis();
+            evicted = evict();
+        }
+        close(evicted);
+        if (open) {
+            LuceneMessageSearchIndex<Id> index;
+            try {
+                index = createIndex(createDirectory(name));
+            } catch (IOException e) {
+                synchronized (shards) {
+                    shards.remove(name);
+                    shards.notifyAll();
+                }
+                throw new MailboxException("Unable to open index " + name, e);
+            } catch (RuntimeException e) {
+                synchronized (shards) {
+                    shards.remove(name);
+                    shards.notifyAll();
+                }
+                throw e;
+            }
+            synchronized (shards) {
+                shard.index = index;
+                shards.notifyAll();
+            }
+        }
+        return shard;
+    }
+
+    private void release(Shard shard) {
+        synchronized (shards) {
+            shard.users--;
+            shard.lastUsed = System.currentTimeMillis();
+            if (shard.users == 0) {
+                shards.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Remove the unused indexes which are idle or above the max count of open indexes from the cache. They need to get closed
+     * with {@link #close(List)} once the lock is released. Until then the shards are kept in {@link #closing}, so an index is
+     * never opened twice.
+     * 
+     * @return evicted
+     */
+    private List<Shard> evict() {
+        List<Shard> evicted = new ArrayList<Shard>();
+        long now = System.currentTimeMillis();
+        int open = shards.size();
+        // the iteration order is from the least to the most recently used shard
+        Iterator<Shard> it = shards.values().iterator();
+        while (it.hasNext()) {
+            Shard shard = it.next();
+            if (shard.users == 0 && (open > maxOpenShards || now - shard.lastUsed > idleTimeout)) {
+                it.remove();
+                open--;
+                closing.put(shard.name, shard);
+                evicted.add(shard);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Close the evicted indexes and let the shards get opened again
+     */
+    private void close(List<Shard> evicted) {
+        for (int i = 0; i < evicted.size(); i++) {
+            Shard shard = evicted.get(i);
+            try {
+                shard.index.close();
+            } catch (MailboxException e) {
+                // nothing we can do about it
+            } finally {
+                synchronized (shards) {
+                    closing.remove(shard.name);
+                    shards.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Close the indexes which were not used for the idle timeout. This only needs to get called if the indexes should also get
+     * closed when no search or change happens
+     */
+    public void closeIdle() {
+        List<Shard> evicted;
+        synchronized (shards) {
+            evicted = evict();
+        }
+        close(evicted);
+    }
+
+    /**
+     * Return the count of open indexes
+     * 
+     * @return open
+     */
+    public int getOpenShards() {
+        synchronized (shards) {
+            return shards.size();
+        }
+    }
+
+    /**
+     * Close all indexes. The running operations are finished first, new ones fail.
+     */
+    public void close() {
+        closed = true;
+        List<Shard> evicted = new ArrayList<Shard>();
+        boolean interrupted = false;
+        synchronized (shards) {
+            // wake up the operations waiting for a shard, they fail now
+            shards.notifyAll();
+            while (true) {
+                Iterator<Shard> it = shards.values().iterator();
+                while (it.hasNext()) {
+                    Shard shard = it.next();
+                    if (shard.users == 0) {
+                        it.remove();
+                        closing.put(shard.name, shard);
+                        evicted.add(shard);
+                    }
+                }
+                if (shards.isEmpty()) {
+                    break;
+                }
+                try {
+                    shards.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        close(evicted);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public Iterator<Long> search(MailboxSession session, Mailbox<Id> mailbox, SearchQuery searchQuery) throws MailboxException {
+        Shard shard = acquire(mailbox);
+        try {
+            return shard.index.search(session, mailbox, searchQuery);
+        } finally {
+            release(shard);
+        }
+    }
+
+    @Override
+    public void add(MailboxSession session, Mailbox<Id> mailbox, Message<Id> message) throws MailboxException {
+        Shard shard = acquire(mailbox);
+        try {
+            shard.index.add(session, mailbox, message);
+        } finally {
+            release(shard);
+        }
+    }
+
+    @Override
+    public void delete(MailboxSession session, Mailbox<Id> mailbox, MessageRange range) throws MailboxException {
+        Shard shard = acquire(mailbox);
+        try {
+            shard.index.delete(session, mailbox, range);
+        } finally {
+            release(shard);
+        }
+    }
+
+    @Override
+    public void update(MailboxSession session, Mailbox<Id> mailbox, MessageRange range, Flags flags) throws MailboxException {
+        Shard shard = acquire(mailbox);
+        try {
+            shard.index.update(session, mailbox, range, flags);
+        } finally {
+            release(shard);
+        }
+    }
+
+    /**
+     * Commit all open indexes
+     */
+    @Override
+    public void commit() throws MailboxException {
+        List<Shard> open = new ArrayList<Shard>();
+        synchronized (shards) {
+            for (Shard shard : shards.values()) {
+                // the shards which are getting opened have nothing to commit
+                if (shard.index != null) {
+                    // keep the shard from getting evicted while it is committed
+                    shard.users++;
+                    open.add(shard);
+                }
+            }
+        }
+        try {
+            for (int i = 0; i < open.size(); i++) {
+                open.get(i).index.commit();
+            }
+        } finally {
+            for (int i = 0; i < open.size(); i++) {
+                release(open.get(i));
+            }
+        }
+    }
+
+    public MailboxIndexState getIndexState(MailboxSession session, Mailbox<Id> mailbox) throws MailboxException {
+        Shard shard = acquire(mailbox);
+        try {
+            return shard.index.getIndexState(session, mailbox);
+        } finally {
+            release(shard);
+        }
+    }
+
+    public void setIndexState(MailboxSession session, Mailbox<Id> mailbox, MailboxIndexState state) throws MailboxException {
+        Shard shard = acquire(mailbox);
+        try {
+            shard.index.setIndexState(session, mailbox, state);
+        } finally {
+            release(shard);
+        }
+    }
+
+    /**
+     * Index of a shard with the count of the running operations on it. The fields are guarded by the lock of the cache, the
+     * index is null while it is getting opened
+     */
+    private final class Shard {
+        private final String name;
+        private LuceneMessageSearchIndex<Id> index;
+        private int users;
+        private long lastUsed;
+
+        public Shard(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.lucene.search;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+
+/**
+ * {@link Tokenizer} which emits every n-gram of the upper cased text, including the whitespaces. The position of an n-gram
+ * is the offset of its first char, so a substring can be matched by a phrase of the n-grams which cover it.
+ * 
+ * A text which is shorter than the n-gram length is emitted as one token. The first token is emitted with a position
+ * increment which is bigger than the n-gram length, so a phrase never matches across the values of a multi-valued field.
+ */
+public final class SubstringNGramTokenizer extends Tokenizer {
+
+    private final static int BUFFER_SIZE = 1024;
+
+    private final int length;
+    private final char[] buffer;
+    private final CharTermAttribute termAtt;
+    private final PositionIncrementAttribute posIncAtt;
+    private int pos;
+    private int end;
+    private boolean eof;
+    private boolean first;
+
+    public SubstringNGramTokenizer(Reader input, int length) {
+        super(input);
+        if (length < 1) {
+            throw new IllegalArgumentException("The n-gram length must be positive");
+        }
+        this.length = length;
+        this.buffer = new char[BUFFER_SIZE + length];
+        this.termAtt = addAttribute(CharTermAttribute.class);
+        this.posIncAtt = addAttribute(PositionIncrementAttribute.class);
+        this.first = true;
+    }
+
+    /**
+     * Return the normalized form of the text, which is the one the n-grams are emitted in
+     * 
+     * @param text
+     * @return normalized
+     */
+    public static String normalize(String text) {
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toUpperCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        clearAttributes();
+        if (end - pos < length && !eof) {
+            fill();
+        }
+        int available = end - pos;
+        if (available < length && !(first && available > 0)) {
+            return false;
+        }
+        int termLength = Math.min(length, available);
+        char[] term = termAtt.resizeBuffer(termLength);
+        for (int i = 0; i < termLength; i++) {
+            term[i] = Character.toUpperCase(buffer[pos + i]);
+        }
+        termAtt.setLength(termLength);
+        if (first) {
+            posIncAtt.setPositionIncrement(length + 1);
+            first = false;
+        }
+        pos++;
+        return true;
+    }
+
+    /**
+     * Move the remaining chars to the start of the buffer and read until it is full or the input is consumed
+     */
+    private void fill() throws IOException {
+        System.arraycopy(buffer, pos, buffer, 0, end - pos);
+        end -= pos;
+        pos = 0;
+        while (end < buffer.length) {
+            int read = input.read(buffer, end, buffer.length - end);
+            if (read == -1) {
+                eof = true;
+                return;
+            }
+            end += read;
+        }
+    }
+
+    @Override
+    public void reset(Reader input) throws IOException {
+        super.reset(input);
+        reset();
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        pos = 0;
+        end = 0;
+        eof = false;
+        first = true;
+    }
+}
@@ -0,0 +1,79 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.lucene.search;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+
+import org.junit.Test;
+
+public class BodyReaderTest {
+
+    private final static String MULTIPART = "From: user@domain.org\r\n"
+            + "Subject: Test\r\n"
+            + "MIME-Version: 1.0\r\n"
+            + "Content-Type: multipart/mixed; boundary=\"boundary\"\r\n"
+            + "\r\n"
+            + "--boundary\r\n"
+            + "Content-Type: text/plain; charset=UTF-8\r\n"
+            + "Content-Transfer-Encoding: base64\r\n"
+            + "\r\n"
+            // "Grüße"
+            + "R3LDvMOfZQ==\r\n"
+            + "--boundary\r\n"
+            + "Content-Type: application/octet-stream\r\n"
+            + "\r\n"
+            + "binary\r\n"
+            + "--boundary\r\n"
+            + "Content-Type: text/html; charset=unknown\r\n"
+            + "\r\n"
+            + "<b>bold</b>\r\n"
+            + "--boundary--\r\n";
+
+    private String read(String message, int maxLength) throws IOException {
+        Reader reader = new BodyReader(new ByteArrayInputStream(message.getBytes("US-ASCII")), maxLength);
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[3];
+        int read;
+        while ((read = reader.read(buf, 0, buf.length)) != -1) {
+            sb.append(buf, 0, read);
+        }
+        reader.close();
+        return sb.toString();
+    }
+
+    @Test
+    public void testReadTextParts() throws Exception {
+        assertEquals("Grüße\n<b>bold</b>\n", read(MULTIPART, -1));
+    }
+
+    @Test
+    public void testReadSimpleMessage() throws Exception {
+        assertEquals("line 1\r\nline 2\n", read("Subject: Test\r\n\r\nline 1\r\nline 2", -1));
+    }
+
+    @Test
+    public void testMaxLength() throws Exception {
+        assertEquals("Grüße\n<b>", read(MULTIPART, 9));
+        assertEquals("", read(MULTIPART, 0));
+    }
+}
@@ -20,6 +20,7 @@ package org.apache.james.mailbox.lucene.search;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.nio.charset.Charset;
@@ -30,11 +31,13 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
+import java.util.TimeZone;
 
 import javax.mail.Flags;
 import javax.mail.Flags.Flag;
 
 import org.apache.james.mailbox.model.MailboxACL;
+import org.apache.james.mailbox.model.MessageRange;
 import org.apache.james.mailbox.model.SearchQuery;
 import org.apache.james.mailbox.model.SimpleMailboxACL;
 import org.apache.james.mailbox.model.SearchQuery.AddressType;
@@ -44,6 +47,8 @@ import org.apache.james.mailbox.store.MessageBuilder;
 import org.apache.james.mailbox.store.SimpleMailboxMembership;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
 import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mailbox.store.search.MailboxIndexState;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.store.RAMDirectory;
 import org.junit.Before;
 import org.junit.Test;
@@ -262,7 +267,133 @@ public class LuceneMessageSearchIndexTest {
     }
     
     @Test
-    public void testSearchBody() throws Exception {    
+    public void testSearchFlagAfterUpdate() throws Exception {
+        index.update(null, mailbox, MessageRange.range(1, 2), new Flags(Flag.SEEN));
+
+        SearchQuery q = new SearchQuery();
+        q.andCriteria(SearchQuery.flagIsSet(Flag.SEEN));
+        Iterator<Long> it = index.search(null, mailbox, q);
+        assertEquals(1L, it.next().longValue());
+        assertEquals(2L, it.next().longValue());
+        assertFalse(it.hasNext());
+
+        q = new SearchQuery();
+        q.andCriteria(SearchQuery.flagIsSet(Flag.DELETED));
+        it = index.search(null, mailbox, q);
+        assertEquals(3L, it.next().longValue());
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testSearchFlagOnScatteredUids() throws Exception {
+        // every other message is flagged, which does not fit in a query on the uid ranges
+        for (long uid = 100; uid < 100 + 2 * BooleanQuery.getMaxClauseCount() + 2; uid++) {
+            Flags flags = uid % 2 == 0 ? new Flags(Flag.FLAGGED) : new Flags();
+            index.add(null, mailbox, new SimpleMailboxMembership(mailbox.getMailboxId(), uid, 0, new Date(), 20, flags, "Body".getBytes(), new HashMap<String, String>()));
+        }
+        SearchQuery q = new SearchQuery();
+        q.andCriteria(SearchQuery.flagIsSet(Flag.FLAGGED));
+        Iterator<Long> it = index.search(null, mailbox, q);
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(0, it.next() % 2);
+            count++;
+        }
+        assertEquals(BooleanQuery.getMaxClauseCount() + 1, count);
+    }
+
+    @Test
+    public void testAddSameMessageTwice() throws Exception {
+        index.add(null, mailbox, new SimpleMailboxMembership(mailbox.getMailboxId(), 2, 0, new Date(), 20, new Flags(Flag.DELETED), "My Otherbody".getBytes(), new HashMap<String, String>()));
+        Iterator<Long> it = index.search(null, mailbox, new SearchQuery());
+        assertEquals(1L, it.next().longValue());
+        assertEquals(2L, it.next().longValue());
+        assertEquals(3L, it.next().longValue());
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testIndexState() throws Exception {
+        assertNull(index.getIndexState(null, mailbox));
+        index.setIndexState(null, mailbox, new MailboxIndexState(1, 3, 4));
+        index.setIndexState(null, mailbox, new MailboxIndexState(1, 3, 5));
+        assertEquals(new MailboxIndexState(1, 3, 5), index.getIndexState(null, mailbox));
+        assertNull(index.getIndexState(null, mailbox2));
+
+        // the state document is no message
+        Iterator<Long> it = index.search(null, mailbox, new SearchQuery());
+        assertEquals(1L, it.next().longValue());
+        assertEquals(2L, it.next().longValue());
+        assertEquals(3L, it.next().longValue());
+        assertFalse(it.hasNext());
+
+        index.delete(null, mailbox, MessageRange.all());
+        assertNull(index.getIndexState(null, mailbox));
+    }
+
+    @Test
+    public void testMaxBodyLength() throws Exception {
+        index.setMaxBodyLength(10);
+        index.add(null, mailbox3, new SimpleMailboxMembership(mailbox3.getMailboxId(), 11, 0, new Date(), 20, new Flags(), "Indexed notindexed".getBytes(), new HashMap<String, String>()));
+
+        SearchQuery q = new SearchQuery();
+        q.andCriteria(SearchQuery.bodyContains("indexed"));
+        Iterator<Long> it = index.search(null, mailbox3, q);
+        assertEquals(11L, it.next().longValue());
+        assertFalse(it.hasNext());
+
+        q = new SearchQuery();
+        q.andCriteria(SearchQuery.bodyContains("notindexed"));
+        assertFalse(index.search(null, mailbox3, q).hasNext());
+    }
+
+    @Test
+    public void testNGramSubstringSearch() throws Exception {
+        LuceneMessageSearchIndex<Long> nGramIndex = new LuceneMessageSearchIndex<Long>(null, new RAMDirectory(), true, useLenient());
+        nGramIndex.setNGramLength(3);
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Subject", "Your voicemail");
+        headers.put("From", "Voice Box <voicebox@example.org>");
+        nGramIndex.add(null, mailbox, new SimpleMailboxMembership(mailbox.getMailboxId(), 1, 0, new Date(), 20, new Flags(), "You have 2 new invoices".getBytes(), headers));
+        nGramIndex.add(null, mailbox, new SimpleMailboxMembership(mailbox.getMailboxId(), 2, 0, new Date(), 20, new Flags(), "The voice of the ice".getBytes(), new HashMap<String, String>()));
+
+        assertNGramSearch(nGramIndex, SearchQuery.bodyContains("VOICE"), 1L, 2L);
+        assertNGramSearch(nGramIndex, SearchQuery.bodyContains("new inv"), 1L);
+        // the n-grams need to follow each other
+        assertNGramSearch(nGramIndex, SearchQuery.bodyContains("voice ice"));
+        assertNGramSearch(nGramIndex, SearchQuery.bodyContains("of the ice"), 2L);
+        assertNGramSearch(nGramIndex, SearchQuery.bodyContains("ic"), 1L, 2L);
+        assertNGramSearch(nGramIndex, SearchQuery.headerContains("Subject", "cemai"), 1L);
+        assertNGramSearch(nGramIndex, SearchQuery.address(AddressType.From, "box@exa"), 1L);
+        assertNGramSearch(nGramIndex, SearchQuery.mailContains("voicem"), 1L);
+    }
+
+    @Test
+    public void testNGramSearchWithCharsWhichChangeLengthWhenUpperCased() throws Exception {
+        LuceneMessageSearchIndex<Long> nGramIndex = new LuceneMessageSearchIndex<Long>(null, new RAMDirectory(), true, useLenient());
+        nGramIndex.setNGramLength(3);
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "text/plain; charset=UTF-8");
+        nGramIndex.add(null, mailbox, new SimpleMailboxMembership(mailbox.getMailboxId(), 1, 0, new Date(), 20, new Flags(), "Gro\u00dfe Stra\u00dfe".getBytes("UTF-8"), headers));
+
+        // "\u00df" is upper cased to "SS" by String.toUpperCase, so the query must be normalized in the same way as the body
+        assertNGramSearch(nGramIndex, SearchQuery.bodyContains("stra\u00dfe"), 1L);
+        assertNGramSearch(nGramIndex, SearchQuery.bodyContains("\u00dfe s"), 1L);
+        assertNGramSearch(nGramIndex, SearchQuery.mailContains("Gro\u00df"), 1L);
+    }
+
+    private void assertNGramSearch(LuceneMessageSearchIndex<Long> nGramIndex, SearchQuery.Criterion criterion, Long... uids) throws Exception {
+        SearchQuery q = new SearchQuery();
+        q.andCriteria(criterion);
+        Iterator<Long> it = nGramIndex.search(null, mailbox, q);
+        for (int i = 0; i < uids.length; i++) {
+            assertEquals(uids[i], it.next());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testSearchBody() throws Exception {
         SearchQuery q2 = new SearchQuery();
         q2.andCriteria(SearchQuery.bodyContains("body"));
         Iterator<Long> it4 = index.search(null, mailbox, q2);
@@ -357,6 +488,40 @@ public class LuceneMessageSearchIndexTest {
         assertFalse(it4.hasNext());
     }
     
+    @Test
+    public void testSearchHeaderDateResolutions() throws Exception {
+        // the Date header of the message with uid 3 is 14 Feb 1990 12:00:00 GMT
+        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"), Locale.ENGLISH);
+        cal.clear();
+        cal.set(1990, Calendar.FEBRUARY, 14, 12, 0, 0);
+        cal.set(Calendar.MILLISECOND, 500);
+        Date date = cal.getTime();
+
+        assertSearch(SearchQuery.headerDateOn("Date", date, DateResolution.Second), 3L);
+        assertSearch(SearchQuery.headerDateOn("Date", date, DateResolution.Month), 3L);
+        assertSearch(SearchQuery.headerDateBefore("Date", date, DateResolution.Second));
+        assertSearch(SearchQuery.headerDateAfter("Date", date, DateResolution.Second));
+
+        cal.add(Calendar.SECOND, -1);
+        assertSearch(SearchQuery.headerDateAfter("Date", cal.getTime(), DateResolution.Second), 3L);
+        assertSearch(SearchQuery.headerDateAfter("Date", cal.getTime(), DateResolution.Day));
+
+        cal.set(1990, Calendar.MARCH, 1, 0, 0, 0);
+        assertSearch(SearchQuery.headerDateBefore("Date", cal.getTime(), DateResolution.Day), 3L);
+        assertSearch(SearchQuery.headerDateBefore("Date", cal.getTime(), DateResolution.Month), 3L);
+        assertSearch(SearchQuery.headerDateBefore("Date", cal.getTime(), DateResolution.Year));
+    }
+
+    private void assertSearch(SearchQuery.Criterion criterion, Long... uids) throws Exception {
+        SearchQuery q = new SearchQuery();
+        q.andCriteria(criterion);
+        Iterator<Long> it = index.search(null, mailbox, q);
+        for (int i = 0; i < uids.length; i++) {
+            assertEquals(uids[i], it.next());
+        }
+        assertFalse(it.hasNext());
+    }
+    
     @Test
     public void testSearchUidMatch() throws Exception {
         SearchQuery q2 = new SearchQuery();
@@ -495,6 +660,39 @@ public class LuceneMessageSearchIndexTest {
         assertFalse(it4.hasNext());
     }
     
+    @Test
+    public void testSortKeysAreNormalized() throws Exception {
+        Map<String, String> encoded = new HashMap<String, String>();
+        encoded.put("Subject", "=?UTF-8?B?YmV0YQ==?=");
+        encoded.put("From", "zed <zed@localhost>");
+        Map<String, String> reply = new HashMap<String, String>();
+        reply.put("Subject", "Re: Alpha");
+        reply.put("From", "Bob <bob@localhost>");
+        Map<String, String> lowerCase = new HashMap<String, String>();
+        lowerCase.put("Subject", "gamma");
+        lowerCase.put("From", "alice <alice@localhost>");
+        SimpleMailbox mailbox4 = new SimpleMailbox(3);
+        index.add(null, mailbox4, new SimpleMailboxMembership(mailbox4.getMailboxId(), 11, 0, new Date(), 20, new Flags(), "Body".getBytes(), encoded));
+        index.add(null, mailbox4, new SimpleMailboxMembership(mailbox4.getMailboxId(), 12, 0, new Date(), 20, new Flags(), "Body".getBytes(), reply));
+        index.add(null, mailbox4, new SimpleMailboxMembership(mailbox4.getMailboxId(), 13, 0, new Date(), 20, new Flags(), "Body".getBytes(), lowerCase));
+
+        SearchQuery q = new SearchQuery();
+        q.andCriteria(SearchQuery.all());
+        q.setSorts(Arrays.asList(new SearchQuery.Sort(SortClause.BaseSubject, false)));
+        Iterator<Long> it = index.search(null, mailbox4, q);
+        assertEquals(12L, it.next().longValue());
+        assertEquals(11L, it.next().longValue());
+        assertEquals(13L, it.next().longValue());
+        assertFalse(it.hasNext());
+
+        q.setSorts(Arrays.asList(new SearchQuery.Sort(SortClause.DisplayFrom, false)));
+        it = index.search(null, mailbox4, q);
+        assertEquals(13L, it.next().longValue());
+        assertEquals(12L, it.next().longValue());
+        assertEquals(11L, it.next().longValue());
+        assertFalse(it.hasNext());
+    }
+
     @Test
     public void testSortMailboxFrom() throws Exception {
         SearchQuery q2 = new SearchQuery();
@@ -0,0 +1,114 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.lucene.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Field.Index;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SearcherManagerTest {
+
+    private IndexWriter writer;
+    private SearcherManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        writer = new IndexWriter(new RAMDirectory(), new IndexWriterConfig(Version.LUCENE_31, new WhitespaceAnalyzer(Version.LUCENE_31)));
+        manager = new SearcherManager(writer);
+    }
+
+    private void addDocument(String id) throws IOException {
+        Document doc = new Document();
+        doc.add(new Field("id", id, Store.YES, Index.NOT_ANALYZED));
+        writer.addDocument(doc);
+        manager.markChanged();
+    }
+
+    @Test
+    public void testSearcherIsSharedUntilChanged() throws Exception {
+        addDocument("1");
+        IndexSearcher first = manager.acquire();
+        IndexSearcher second = manager.acquire();
+        assertSame(first, second);
+        assertEquals(1, first.maxDoc());
+
+        addDocument("2");
+        IndexSearcher third = manager.acquire();
+        assertNotSame(first, third);
+        assertEquals(2, third.maxDoc());
+
+        // the replaced reader stays open until the searches using it are done
+        assertEquals(2, first.getIndexReader().getRefCount());
+        manager.release(first);
+        manager.release(second);
+        assertEquals(0, first.getIndexReader().getRefCount());
+        manager.release(third);
+    }
+
+    @Test
+    public void testRefreshInterval() throws Exception {
+        IndexSearcher first = manager.acquire();
+        manager.release(first);
+        manager.setRefreshInterval(Long.MAX_VALUE);
+        addDocument("1");
+        IndexSearcher second = manager.acquire();
+        assertSame(first, second);
+        assertEquals(0, second.maxDoc());
+        manager.release(second);
+
+        // an explicit refresh does not wait for the interval
+        manager.refresh();
+        IndexSearcher third = manager.acquire();
+        assertEquals(1, third.maxDoc());
+        manager.release(third);
+    }
+
+    @Test
+    public void testWarmer() throws Exception {
+        final List<IndexSearcher> warmed = new ArrayList<IndexSearcher>();
+        manager.setWarmer(new SearcherWarmer() {
+            public void warm(IndexSearcher searcher) throws IOException {
+                warmed.add(searcher);
+            }
+        });
+        IndexSearcher searcher = manager.acquire();
+        manager.release(searcher);
+        searcher = manager.acquire();
+        manager.release(searcher);
+        assertEquals(1, warmed.size());
+        assertSame(searcher, warmed.get(0));
+    }
+}
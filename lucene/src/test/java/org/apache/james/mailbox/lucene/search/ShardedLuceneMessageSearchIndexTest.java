@@ -0,0 +1,271 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.lucene.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.mail.Flags;
+
+import org.apache.james.mailbox.model.MailboxACL;
+import org.apache.james.mailbox.model.SearchQuery;
+import org.apache.james.mailbox.model.SimpleMailboxACL;
+import org.apache.james.mailbox.store.SimpleMailboxMembership;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardedLuceneMessageSearchIndexTest {
+
+    private final Map<String, Directory> directories = new HashMap<String, Directory>();
+    private final List<String> opened = new ArrayList<String>();
+    private ShardedLuceneMessageSearchIndex<Long> index;
+
+    private UserMailbox mailbox1 = new UserMailbox(1, "user1");
+    private UserMailbox mailbox2 = new UserMailbox(2, "user2");
+    private UserMailbox mailbox3 = new UserMailbox(3, "user1");
+
+    @Before
+    public void setUp() throws Exception {
+        index = new ShardedLuceneMessageSearchIndex<Long>(null, null) {
+            @Override
+            protected Directory createDirectory(String shard) throws IOException {
+                opened.add(shard);
+                Directory directory = directories.get(shard);
+                if (directory == null) {
+                    directory = new RAMDirectory();
+                    directories.put(shard, directory);
+                }
+                return directory;
+            }
+        };
+    }
+
+    private void add(UserMailbox mailbox, long uid) throws Exception {
+        index.add(null, mailbox, new SimpleMailboxMembership(mailbox.getMailboxId(), uid, 0, new Date(), 20, new Flags(), "Body".getBytes(), new HashMap<String, String>()));
+    }
+
+    private void assertUids(UserMailbox mailbox, long... uids) throws Exception {
+        Iterator<Long> it = index.search(null, mailbox, new SearchQuery());
+        for (int i = 0; i < uids.length; i++) {
+            assertEquals(uids[i], it.next().longValue());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testUsersHaveOwnIndexes() throws Exception {
+        add(mailbox1, 1);
+        add(mailbox2, 2);
+        add(mailbox3, 3);
+        assertEquals(2, index.getOpenShards());
+        assertEquals(2, directories.size());
+        assertNotSame(directories.get("user-user1"), directories.get("user-user2"));
+
+        assertUids(mailbox1, 1);
+        assertUids(mailbox2, 2);
+        assertUids(mailbox3, 3);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIndexIsClosed() throws Exception {
+        index.setMaxOpenShards(1);
+        add(mailbox1, 1);
+        add(mailbox2, 2);
+        assertEquals(1, index.getOpenShards());
+
+        // the closed index was committed, so it can be opened again
+        assertUids(mailbox1, 1);
+        assertUids(mailbox2, 2);
+        assertEquals(1, index.getOpenShards());
+        assertEquals(4, opened.size());
+    }
+
+    @Test
+    public void testIdleIndexIsClosed() throws Exception {
+        index.setIdleTimeout(0);
+        add(mailbox1, 1);
+        Thread.sleep(10);
+        index.closeIdle();
+        assertEquals(0, index.getOpenShards());
+        assertUids(mailbox1, 1);
+    }
+
+    @Test(timeout = 10000)
+    public void testOpeningIndexOnlyDelaysItsShard() throws Exception {
+        SlowIndex slowIndex = new SlowIndex("user-user1");
+        index = slowIndex;
+        Adder adder = new Adder(mailbox1, 1);
+        adder.start();
+        slowIndex.opening.await();
+
+        // the other users don't wait for the index which is getting opened
+        add(mailbox2, 2);
+        assertUids(mailbox2, 2);
+
+        slowIndex.gate.countDown();
+        adder.join();
+        assertNull(adder.failure);
+        assertUids(mailbox1, 1);
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseWaitsForRunningOperations() throws Exception {
+        SlowIndex slowIndex = new SlowIndex("user-user1");
+        index = slowIndex;
+        Adder adder = new Adder(mailbox1, 1);
+        adder.start();
+        slowIndex.opening.await();
+
+        Thread closer = new Thread() {
+            public void run() {
+                index.close();
+            }
+        };
+        closer.start();
+        closer.join(100);
+        assertTrue(closer.isAlive());
+
+        slowIndex.gate.countDown();
+        adder.join();
+        closer.join();
+        assertNull(adder.failure);
+        assertEquals(0, index.getOpenShards());
+    }
+
+    @Test
+    public void testBuckets() throws Exception {
+        index.setBuckets(3);
+        assertEquals("bucket-" + ("user1".hashCode() % 3), index.getShard(mailbox1));
+        assertEquals(index.getShard(mailbox1), index.getShard(mailbox3));
+        assertEquals("shared", index.getShard(new UserMailbox(4, null)));
+    }
+
+    /**
+     * Index which blocks while the directory of a shard is opened, until the gate is opened
+     */
+    private final static class SlowIndex extends ShardedLuceneMessageSearchIndex<Long> {
+
+        private final String slowShard;
+        private final CountDownLatch opening = new CountDownLatch(1);
+        private final CountDownLatch gate = new CountDownLatch(1);
+
+        public SlowIndex(String slowShard) {
+            super(null, null);
+            this.slowShard = slowShard;
+        }
+
+        @Override
+        protected Directory createDirectory(String shard) throws IOException {
+            if (shard.equals(slowShard)) {
+                opening.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            return new RAMDirectory();
+        }
+    }
+
+    /**
+     * Add a message on its own thread
+     */
+    private final class Adder extends Thread {
+
+        private final UserMailbox mailbox;
+        private final long uid;
+        private volatile Exception failure;
+
+        public Adder(UserMailbox mailbox, long uid) {
+            this.mailbox = mailbox;
+            this.uid = uid;
+        }
+
+        public void run() {
+            try {
+                add(mailbox, uid);
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+    }
+
+    private final static class UserMailbox implements Mailbox<Long> {
+
+        private final long id;
+        private final String user;
+
+        public UserMailbox(long id, String user) {
+            this.id = id;
+            this.user = user;
+        }
+
+        public Long getMailboxId() {
+            return id;
+        }
+
+        public String getNamespace() {
+            return null;
+        }
+
+        public void setNamespace(String namespace) {
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public void setUser(String user) {
+        }
+
+        public String getName() {
+            return "INBOX";
+        }
+
+        public void setName(String name) {
+        }
+
+        public long getUidValidity() {
+            return 0;
+        }
+
+        public MailboxACL getACL() {
+            return SimpleMailboxACL.EMPTY;
+        }
+
+        public void setACL(MailboxACL acl) {
+        }
+    }
+}
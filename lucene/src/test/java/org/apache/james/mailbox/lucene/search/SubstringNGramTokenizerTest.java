@@ -0,0 +1,72 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.lucene.search;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.junit.Test;
+
+public class SubstringNGramTokenizerTest {
+
+    private List<String> tokenize(String text, int length) throws IOException {
+        SubstringNGramTokenizer tokenizer = new SubstringNGramTokenizer(new StringReader(text), length);
+        CharTermAttribute termAtt = tokenizer.getAttribute(CharTermAttribute.class);
+        PositionIncrementAttribute posIncAtt = tokenizer.getAttribute(PositionIncrementAttribute.class);
+        List<String> tokens = new ArrayList<String>();
+        while (tokenizer.incrementToken()) {
+            tokens.add(termAtt.toString() + "/" + posIncAtt.getPositionIncrement());
+        }
+        tokenizer.close();
+        return tokens;
+    }
+
+    @Test
+    public void testNGrams() throws Exception {
+        List<String> tokens = tokenize("Hello Wo", 3);
+        assertEquals(6, tokens.size());
+        assertEquals("HEL/4", tokens.get(0));
+        assertEquals("LO /1", tokens.get(3));
+        assertEquals(" WO/1", tokens.get(5));
+    }
+
+    @Test
+    public void testShortText() throws Exception {
+        assertEquals("[AB/4]", tokenize("ab", 3).toString());
+        assertEquals("[]", tokenize("", 3).toString());
+    }
+
+    @Test
+    public void testTextLongerThanBuffer() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("abc");
+        }
+        List<String> tokens = tokenize(sb.toString(), 3);
+        assertEquals(2998, tokens.size());
+        assertEquals("BCA/1", tokens.get(2995));
+        assertEquals("ABC/1", tokens.get(2997));
+    }
+}
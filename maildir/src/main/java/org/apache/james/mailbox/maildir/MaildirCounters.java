@@ -0,0 +1,241 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.maildir;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The message counters of a {@link MaildirFolder}, persisted in a small sidecar file so
+ * that counting the messages of a folder doesn't require listing its cur and new folders.
+ * <br/>
+ * For cur and new, the time from which on a modification of the folder invalidates the counters is
+ * stored along with them. If a folder has been modified since, it has been changed by someone else
+ * (e.g. an external MDA) and the counters have to be rebuilt.
+ * <br/>
+ * The format of the file is a single line:
+ * <code>version exists unseen recent deleted size curModified newModified</code>
+ */
+public class MaildirCounters {
+
+    public static final int VERSION = 1;
+
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String FLAGS_SEPARATOR = ":2,";
+    private static final String SIZE_SEPARATOR = ",S=";
+
+    private long exists;
+    private long unseen;
+    private long recent;
+    private long deleted;
+    private long size;
+    private long curModified;
+    private long newModified;
+
+    /**
+     * Counts the messages in the given cur and new folders, including the ones in shards.
+     * The caller has to set the modification times the counters are valid for.
+     * @param curFolder The ./cur folder
+     * @param newFolder The ./new folder
+     * @return The counters
+     * @throws IOException If the folders cannot be listed
+     */
+    public static MaildirCounters rebuild(File curFolder, File newFolder) throws IOException {
+        MaildirCounters counters = new MaildirCounters();
+        List<File> curFiles = MaildirFolder.listMessageFiles(curFolder);
+        List<File> newFiles = MaildirFolder.listMessageFiles(newFolder);
+        if (curFiles == null || newFiles == null)
+            throw new IOException("Not a valid Maildir folder: " + curFolder.getParent());
+        for (File file : curFiles)
+            counters.add(file.getName(), sizeOf(file.getName(), file), false);
+        for (File file : newFiles)
+            counters.add(file.getName(), sizeOf(file.getName(), file), true);
+        return counters;
+    }
+
+    /**
+     * Reads the counters from a file
+     * @param file The counters file
+     * @return The counters
+     * @throws IOException If the file cannot be read or is corrupted
+     */
+    public static MaildirCounters read(File file) throws IOException {
+        InputStreamReader reader = new InputStreamReader(new FileInputStream(file), "US-ASCII");
+        try {
+            String[] values = IOUtils.toString(reader).trim().split(" ");
+            if (values.length != 8 || Integer.parseInt(values[0]) != VERSION)
+                throw new IOException("Corrupted counters file " + file);
+            MaildirCounters counters = new MaildirCounters();
+            counters.exists = Long.parseLong(values[1]);
+            counters.unseen = Long.parseLong(values[2]);
+            counters.recent = Long.parseLong(values[3]);
+            counters.deleted = Long.parseLong(values[4]);
+            counters.size = Long.parseLong(values[5]);
+            counters.curModified = Long.parseLong(values[6]);
+            counters.newModified = Long.parseLong(values[7]);
+            return counters;
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupted counters file " + file);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Writes the counters to a file. The file is replaced atomically.
+     * @param file The counters file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            out.write((VERSION + " " + exists + " " + unseen + " " + recent + " " + deleted + " " + size + " "
+                    + curModified + " " + newModified + "\n").getBytes("US-ASCII"));
+            out.close();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        if (!tmpFile.renameTo(file))
+            throw new IOException("Could not rename file " + tmpFile + " to " + file);
+    }
+
+    /**
+     * Tests whether the counters still match the folder
+     * @param curModified The current modification time of the ./cur folder
+     * @param newModified The current modification time of the ./new folder
+     * @return true if the folder hasn't been changed since the counters have been written
+     */
+    public boolean isValid(long curModified, long newModified) {
+        // like for the uid list, a modification time which is not before the stored one means a change
+        return curModified < this.curModified && newModified < this.newModified;
+    }
+
+    /**
+     * Sets the times from which on a modification of the folders invalidates the counters.
+     * A time of 0 makes the counters invalid.
+     * @param curModified
+     * @param newModified
+     */
+    public void setModified(long curModified, long newModified) {
+        this.curModified = curModified;
+        this.newModified = newModified;
+    }
+
+    /**
+     * Counts a message
+     * @param name The file name of the message
+     * @param messageSize The size of the message
+     * @param isRecent Whether the message resides in the ./new folder
+     */
+    public void add(String name, long messageSize, boolean isRecent) {
+        count(name, messageSize, isRecent, 1);
+    }
+
+    /**
+     * Uncounts a message
+     * @param name The file name of the message
+     * @param messageSize The size of the message
+     * @param isRecent Whether the message resided in the ./new folder
+     */
+    public void remove(String name, long messageSize, boolean isRecent) {
+        count(name, messageSize, isRecent, -1);
+    }
+
+    private void count(String name, long messageSize, boolean isRecent, int delta) {
+        exists += delta;
+        size += delta * messageSize;
+        if (isRecent)
+            recent += delta;
+        if (!hasFlag(name, MaildirMessageName.FLAG_SEEN))
+            unseen += delta;
+        if (hasFlag(name, MaildirMessageName.FLAG_DELETED))
+            deleted += delta;
+    }
+
+    /**
+     * Returns the size of a message, taken from its name if possible
+     * @param name The file name of the message
+     * @param file The message file which is only used if the name doesn't contain the size
+     * @return The size of the message
+     */
+    public static long sizeOf(String name, File file) {
+        int start = name.indexOf(SIZE_SEPARATOR);
+        if (start != -1) {
+            start += SIZE_SEPARATOR.length();
+            int end = start;
+            while (end < name.length() && Character.isDigit(name.charAt(end)))
+                end++;
+            if (end > start)
+                return Long.parseLong(name.substring(start, end));
+        }
+        return file.length();
+    }
+
+    private static boolean hasFlag(String name, String flag) {
+        int flags = name.indexOf(FLAGS_SEPARATOR);
+        return flags != -1 && name.indexOf(flag, flags + FLAGS_SEPARATOR.length()) != -1;
+    }
+
+    /**
+     * Returns the number of messages in the folder
+     * @return exists
+     */
+    public long getExists() {
+        return exists;
+    }
+
+    /**
+     * Returns the number of messages without \Seen flag
+     * @return unseen
+     */
+    public long getUnseen() {
+        return unseen;
+    }
+
+    /**
+     * Returns the number of messages in the ./new folder
+     * @return recent
+     */
+    public long getRecent() {
+        return recent;
+    }
+
+    /**
+     * Returns the number of messages with \Deleted flag
+     * @return deleted
+     */
+    public long getDeleted() {
+        return deleted;
+    }
+
+    /**
+     * Returns the total size of all messages
+     * @return size
+     */
+    public long getSize() {
+        return size;
+    }
+}
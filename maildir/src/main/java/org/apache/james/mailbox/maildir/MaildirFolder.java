@@ -18,25 +18,24 @@
  ****************************************************************/
 package org.apache.james.mailbox.maildir;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
@@ -56,20 +55,35 @@ public class MaildirFolder {
 
     public static final String VALIDITY_FILE = "james-uidvalidity";
     public static final String UIDLIST_FILE = "james-uidlist";
+    public static final String UIDLIST_SNAPSHOT_FILE = "james-uidlist.snapshot";
     public static final String ACL_FILE = "james-acl";
+    public static final String COUNTERS_FILE = "james-counters";
+    public static final String STRUCTURE_FILE = "james-structure";
+    public static final String SHARDED_FILE = "james-sharded";
+    public static final String MAILBOX_INDEX_FILE = "james-mailboxes";
     public static final String CUR = "cur";
     public static final String NEW = "new";
     public static final String TMP = "tmp";
+
+    /**
+     * Many file systems only store the modification time in seconds, so a modification
+     * within the same second as the last check is not noticed
+     */
+    static final long MODIFIED_RESOLUTION = 1000;
     
     private File rootFolder;
     private File curFolder;
     private File newFolder;
     private File tmpFolder;
     private File uidFile;
+    private final MaildirUidList uidList;
+    private final MaildirStructureCache structureCache;
     private File aclFile;
+    private File countersFile;
+    private File shardedFile;
+    private Boolean sharded;
     
     private long lastUid = -1;
-    private int messageCount = 0;
     private long uidValidity = -1;
     private MailboxACL acl;
 
@@ -83,16 +97,55 @@ public class MaildirFolder {
      * @param absPath The absolute path of the mailbox folder
      */
     public MaildirFolder(String absPath, MailboxPath path, MailboxPathLocker locker) {
+        this(absPath, path, locker, null, null);
+    }
+
+    /**
+     * Representation of a maildir folder containing the message folders
+     * and some special files
+     * @param absPath The absolute path of the mailbox folder
+     * @param uidList The uid list of the folder, shared with other instances for the same folder.
+     * If <code>null</code>, a new one is created
+     * @param structureCache The cached message structures of the folder, shared with other instances
+     * for the same folder. If <code>null</code>, a new one is created
+     */
+    public MaildirFolder(String absPath, MailboxPath path, MailboxPathLocker locker, MaildirUidList uidList,
+            MaildirStructureCache structureCache) {
         this.rootFolder = new File(absPath);
         this.curFolder = new File(rootFolder, CUR);
         this.newFolder = new File(rootFolder, NEW);
         this.tmpFolder = new File(rootFolder, TMP);
         this.uidFile = new File(rootFolder, UIDLIST_FILE);
+        if (uidList == null)
+            uidList = createUidList(rootFolder);
+        this.uidList = uidList;
+        if (structureCache == null)
+            structureCache = new MaildirStructureCache(new File(rootFolder, STRUCTURE_FILE));
+        this.structureCache = structureCache;
         this.aclFile = new File(rootFolder, ACL_FILE);
+        this.countersFile = new File(rootFolder, COUNTERS_FILE);
+        this.shardedFile = new File(rootFolder, SHARDED_FILE);
         this.locker = locker;
         this.path = path;
     }
+
+    /**
+     * Creates the {@link MaildirUidList} of the given maildir folder
+     * @param rootFolder The root of the maildir folder
+     * @return uidList
+     */
+    public static MaildirUidList createUidList(File rootFolder) {
+        return new MaildirUidList(new File(rootFolder, UIDLIST_FILE), new File(rootFolder, UIDLIST_SNAPSHOT_FILE));
+    }
     
+    /**
+     * Returns the cached structures of the messages of this folder
+     * @return structureCache
+     */
+    public MaildirStructureCache getStructureCache() {
+        return structureCache;
+    }
+
     /**
      * Returns the {@link File} of this Maildir folder.
      * @return the root folder
@@ -116,8 +169,8 @@ public class MaildirFolder {
      */
     private boolean isModified() {
         long uidListModified = uidFile.lastModified();
-        long curModified = curFolder.lastModified();
-        long newModified = newFolder.lastModified();
+        long curModified = lastModified(curFolder);
+        long newModified = lastModified(newFolder);
         // because of bad time resolution of file systems we also check "equals"
         if (curModified >= uidListModified || newModified >= uidListModified) {
             return true;
@@ -141,6 +194,117 @@ public class MaildirFolder {
         return newFolder;
     }
     
+    /**
+     * Returns the folder below ./cur in which the message with the given file name
+     * resides. This is the ./cur folder itself unless the folder is sharded.
+     * @param messageName The name of the message file
+     * @return the <code>./cur</code> folder or one of its shards
+     */
+    public File getCurFolder(String messageName) {
+        return isSharded() ? new File(curFolder, getShardName(messageName)) : curFolder;
+    }
+
+    /**
+     * Returns the folder below ./new in which the message with the given file name
+     * resides. This is the ./new folder itself unless the folder is sharded.
+     * @param messageName The name of the message file
+     * @return the <code>./new</code> folder or one of its shards
+     */
+    public File getNewFolder(String messageName) {
+        return isSharded() ? new File(newFolder, getShardName(messageName)) : newFolder;
+    }
+
+    /**
+     * Tests whether the messages of this folder are spread over sub-directories of
+     * ./cur and ./new, which keeps the directories small for very large folders.
+     * @return true if the folder is sharded
+     */
+    public boolean isSharded() {
+        if (sharded == null)
+            sharded = shardedFile.isFile();
+        return sharded;
+    }
+
+    /**
+     * Marks this folder as sharded or flat. Messages which are already in the folder
+     * have to be moved separately; they are found in either place in the meantime.
+     * @param sharded
+     * @throws IOException
+     */
+    public void setSharded(boolean sharded) throws IOException {
+        if (sharded) {
+            if (!shardedFile.isFile() && !shardedFile.createNewFile())
+                throw new IOException("Could not create file " + shardedFile);
+        } else if (shardedFile.exists() && !shardedFile.delete()) {
+            throw new IOException("Could not delete file " + shardedFile);
+        }
+        this.sharded = sharded;
+    }
+
+    /**
+     * Returns the name of the shard for a message. The shard only depends on the base name
+     * of the message, so a message stays in the same shard when its flags change.
+     * @param messageName The name of the message file
+     * @return Two hexadecimal digits
+     */
+    public static String getShardName(String messageName) {
+        int hash = stripMetaFromName(messageName).hashCode();
+        return Character.toString(Character.forDigit((hash >>> 4) & 0xf, 16)) + Character.forDigit(hash & 0xf, 16);
+    }
+
+    /**
+     * Lists the message files in a ./cur or ./new folder, including those in shards.
+     * @param folder The ./cur or ./new folder
+     * @return The message files, <code>null</code> if the folder cannot be read
+     */
+    public static List<File> listMessageFiles(File folder) {
+        String[] names = folder.list();
+        if (names == null)
+            return null;
+        List<File> files = new ArrayList<File>(names.length);
+        for (String name : names) {
+            File file = new File(folder, name);
+            String[] shardNames = isShardName(name) ? file.list() : null;
+            if (shardNames == null) {
+                files.add(file);
+            } else {
+                for (String shardName : shardNames)
+                    files.add(new File(file, shardName));
+            }
+        }
+        return files;
+    }
+
+    private static boolean isShardName(String name) {
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) != -1 && Character.digit(name.charAt(1), 16) != -1;
+    }
+
+    /**
+     * Returns the last modification of a ./cur or ./new folder by someone else. External MDAs
+     * only write to the top level of the folder, so the shards are not checked: the changes
+     * done to them by this process are recorded in the uid list and the counters right away.
+     * @param folder The ./cur or ./new folder
+     * @return The modification time
+     */
+    private long lastModified(File folder) {
+        return folder.lastModified();
+    }
+
+    /**
+     * Returns the names of the message files in a ./cur or ./new folder
+     */
+    private String[] listMessageNames(File folder) {
+        if (!isSharded())
+            return folder.list();
+        List<File> files = listMessageFiles(folder);
+        if (files == null)
+            return null;
+        String[] names = new String[files.size()];
+        for (int i = 0; i < names.length; i++)
+            names[i] = files.get(i).getName();
+        return names;
+    }
+    
     /**
      * Returns the ./tmp folder of this Maildir folder.
      * @return the <code>./tmp</code> folder
@@ -170,13 +334,51 @@ public class MaildirFolder {
         return lastUid;
     }
     
-    public long getHighestModSeq() throws IOException {
-        long newModified = getNewFolder().lastModified();
-        long curModified = getCurFolder().lastModified();
-        if (newModified  == 0L && curModified == 0L) {
-            throw new IOException("Unable to read highest modSeq");
-        }
-        return Math.max(newModified, curModified);
+    /**
+     * Returns the highest mod-sequence of this mailbox. If the folder has been changed by
+     * someone else, the uid list is updated first, which gives the changed messages a new
+     * mod-sequence.
+     * @param session
+     * @return highestModSeq
+     * @throws MailboxException
+     */
+    public long getHighestModSeq(MailboxSession session) throws MailboxException {
+        return locker.executeWithLock(session, path, new LockAwareExecution<Long>() {
+            
+            @Override
+            public Long execute() throws MailboxException {
+                if (!uidList.exists())
+                    createUidFile();
+                else if (isModified())
+                    updateUidFile();
+                try {
+                    return uidList.getHighestModSeq();
+                } catch (IOException e) {
+                    throw new MailboxException("Unable to read highest mod-sequence", e);
+                }
+            }
+        }, true);
+    }
+
+    /**
+     * Returns the mod-sequence of the last change of a message
+     * @param session
+     * @param uid The uid of the message
+     * @return The mod-sequence, <code>-1</code> if there is no message with this uid
+     * @throws MailboxException
+     */
+    public long getModSeq(MailboxSession session, final long uid) throws MailboxException {
+        return locker.executeWithLock(session, path, new LockAwareExecution<Long>() {
+            
+            @Override
+            public Long execute() throws MailboxException {
+                try {
+                    return uidList.getModSeq(uid);
+                } catch (IOException e) {
+                    throw new MailboxException("Unable to read mod-sequence of uid " + uid, e);
+                }
+            }
+        }, true);
     }
 
     /**
@@ -190,24 +392,15 @@ public class MaildirFolder {
             
             @Override
             public Void execute() throws MailboxException {
-                File uidList = uidFile;
-                FileReader fileReader = null;
-                BufferedReader reader = null;
                 try {
                     if (!uidList.exists())
                         createUidFile();
-                    fileReader = new FileReader(uidList);
-                    reader = new BufferedReader(fileReader);
-                    String line = reader.readLine();
-                    if (line != null)
-                        readUidListHeader(line);
+                    else
+                        lastUid = uidList.getLastUid();
                     return null;
                 } catch (IOException e) {
                     throw new MailboxException("Unable to read last uid", e);
-                } finally {
-                    IOUtils.closeQuietly(reader);
-                    IOUtils.closeQuietly(fileReader);
-                }                
+                }
             }
         }, true);
         
@@ -304,38 +497,17 @@ public class MaildirFolder {
             
             @Override
             public MaildirMessageName execute() throws MailboxException {
-                FileReader fileReader = null;
-                BufferedReader reader = null;
-                File uidList = uidFile;
                 try {
-                    fileReader = new FileReader(uidList);
-                    reader = new BufferedReader(fileReader);
-                    String uidString = String.valueOf(uid);
-                    String line = reader.readLine(); // the header
-                    int lineNumber = 1;
-                    while ((line = reader.readLine()) != null) {
-                        if (!line.equals("")) {
-                            int gap = line.indexOf(" ");
-                            if (gap == -1) {
-                                // there must be some issues in the file if no gap can be found
-                            	session.getLog().info("Corrupted entry in uid-file " + uidList + " line " + lineNumber++);
-                                continue;
-                            }
-                            
-                            if (line.substring(0, gap).equals(uidString)) {
-                                return new MaildirMessageName(MaildirFolder.this, line.substring(gap + 1));
-                            }
-                        }
-                    }
-                    
+                    String name = uidList.getName(uid);
                     // TODO: Is this right!?
-                    return null;
+                    if (name == null)
+                        return null;
+                    MaildirMessageName messageName = new MaildirMessageName(MaildirFolder.this, name);
+                    messageName.setModSeq(uidList.getModSeq(uid));
+                    return messageName;
                 } catch (IOException e) {
                     throw new MailboxException("Unable to read messagename for uid " + uid, e);
-                } finally {
-                    IOUtils.closeQuietly(reader);
-                    IOUtils.closeQuietly(fileReader);
-                }                
+                }
             }
         }, true);
     }
@@ -358,9 +530,7 @@ public class MaildirFolder {
             public SortedMap<Long, MaildirMessageName> execute() throws MailboxException {
                 final SortedMap<Long, MaildirMessageName> uidMap = new TreeMap<Long, MaildirMessageName>();
 
-                File uidList = uidFile;
-
-                if (uidList.isFile()) {
+                if (uidList.exists()) {
                     if (isModified()) {
                         try {
                             uidMap.putAll(truncateMap(updateUidFile(), from, to));
@@ -372,7 +542,7 @@ public class MaildirFolder {
                         }
                     } else {
                         // the uidList is up to date
-                        uidMap.putAll(readUidFile(session, from, to));
+                        uidMap.putAll(readUidFile(from, to));
                     }
                 } else {
                     // the uidList does not exist
@@ -432,83 +602,32 @@ public class MaildirFolder {
      * @throws MailboxException If there is a problem with the uid list file
      */
     public SortedMap<Long, MaildirMessageName> getRecentMessages(final MailboxSession session) throws MailboxException {
-        final String[] recentFiles = getNewFolder().list();
-        final LinkedList<String> lines = new LinkedList<String>();
+        final String[] recentFiles = listMessageNames(getNewFolder());
         final int theLimit = recentFiles.length;
         return locker.executeWithLock(session, path, new LockAwareExecution<SortedMap<Long, MaildirMessageName>>() {
             
             @Override
             public SortedMap<Long, MaildirMessageName> execute() throws MailboxException {
                 final SortedMap<Long, MaildirMessageName> recentMessages = new TreeMap<Long, MaildirMessageName>();
+                if (theLimit == 0)
+                    return recentMessages;
 
-                File uidList = uidFile;
-
-                try {
-                    if (!uidList.isFile()) {
-                        if (!uidList.createNewFile())
-                            throw new IOException("Could not create file " + uidList);
-                        String[] curFiles = curFolder.list();
-                        String[] newFiles = newFolder.list();
-                        messageCount = curFiles.length + newFiles.length;
-                        String[] allFiles = (String[]) ArrayUtils.addAll(curFiles, newFiles);
-                        for (String file : allFiles)
-                            lines.add(String.valueOf(getNextUid()) + " " + file);
-                        PrintWriter pw = new PrintWriter(uidList);
-                        try {
-                            pw.println(createUidListHeader());
-                            for (String line : lines)
-                            pw.println(line);
-                        } finally {
-                            IOUtils.closeQuietly(pw);
-                        }
+                TreeMap<Long, MaildirMessageName> uidMap;
+                if (!uidList.exists())
+                    uidMap = createUidFile();
+                else
+                    uidMap = readUidFile(0, -1);
+                Set<String> recentNames = new HashSet<String>(Arrays.asList(recentFiles));
+                int counter = 0;
+                // walk backwards as recent files are supposedly recent
+                for (Entry<Long, MaildirMessageName> entry : uidMap.descendingMap().entrySet()) {
+                    if (counter >= theLimit)
+                        break;
+                    if (recentNames.contains(entry.getValue().getFullName())) {
+                        recentMessages.put(entry.getKey(), entry.getValue());
+                        counter++;
                     }
-                    else {
-                        FileReader fileReader = null;
-                        BufferedReader reader = null;
-                    try {
-                            fileReader = new FileReader(uidList);
-                            reader = new BufferedReader(fileReader);
-                            String line = reader.readLine();
-                            // the first line in the file contains the next uid and message count
-                            while ((line = reader.readLine()) != null)
-                                lines.add(line);
-                        } finally {
-                            IOUtils.closeQuietly(reader);
-                            IOUtils.closeQuietly(fileReader);
-                        }
-                    }
-                    int counter = 0;
-                    String line;
-                    while (counter < theLimit) {
-                        // walk backwards as recent files are supposedly recent
-                        try {
-                            line = lines.removeLast();
-                        } catch (NoSuchElementException e) {
-                            break; // the list is empty
-                        }
-                        if (!line.equals("")) {
-                            int gap = line.indexOf(" ");
-                            if (gap == -1) {
-                                // there must be some issues in the file if no gap can be found
-                                // there must be some issues in the file if no gap can be found
-                            	session.getLog().info("Corrupted entry in uid-file " + uidList + " line " + lines.size());
-                                continue;
-                            }
-                            
-                            Long uid = Long.valueOf(line.substring(0, gap));
-                            String name = line.substring(gap + 1, line.length());
-                            for (String recentFile : recentFiles) {
-                                if (recentFile.equals(name)) {
-                                    recentMessages.put(uid, new MaildirMessageName(MaildirFolder.this, recentFile));
-                                    counter++;
-                                    break;
-                                }
-                            }
-                        }
-                    }
-                } catch (IOException e) {
-                    throw new MailboxException("Unable to read recent messages", e);
-                }   
+                }
                 return recentMessages;
             }
         }, true);
@@ -520,64 +639,32 @@ public class MaildirFolder {
      * @return The uid map
      * @throws MailboxException
      */
-    private Map<Long, MaildirMessageName> createUidFile() throws MailboxException {
-        final Map<Long, MaildirMessageName> uidMap = new TreeMap<Long, MaildirMessageName>();
-        File uidList = uidFile;
-        PrintWriter pw = null;
+    private TreeMap<Long, MaildirMessageName> createUidFile() throws MailboxException {
+        final TreeMap<Long, MaildirMessageName> uidMap = new TreeMap<Long, MaildirMessageName>();
         try {
-            if (!uidList.createNewFile())
-                throw new IOException("Could not create file " + uidList);
             lastUid = 0;
-            String[] curFiles = curFolder.list();
-            String[] newFiles = newFolder.list();
-            messageCount = curFiles.length + newFiles.length;
+            String[] curFiles = listMessageNames(curFolder);
+            String[] newFiles = listMessageNames(newFolder);
             String[] allFiles = (String[]) ArrayUtils.addAll(curFiles, newFiles);
             for (String file : allFiles)
                 uidMap.put(getNextUid(), new MaildirMessageName(MaildirFolder.this, file));
-            //uidMap = new TreeMap<Long, MaildirMessageName>(uidMap);
-            pw = new PrintWriter(uidList);
-            pw.println(createUidListHeader());
-            for (Entry<Long, MaildirMessageName> entry : uidMap.entrySet())
-                pw.println(String.valueOf(entry.getKey()) + " " + entry.getValue().getFullName());
+            writeUidFile(uidMap);
         } catch (IOException e) {
             throw new MailboxException("Unable to create uid file", e);
-        } finally {
-            IOUtils.closeQuietly(pw);
-        }     
+        }
 
         return uidMap;
     }
     
-    private Map<Long, MaildirMessageName> updateUidFile() throws MailboxException {
-        final Map<Long, MaildirMessageName> uidMap = new TreeMap<Long, MaildirMessageName>();
-        File uidList = uidFile;
-        String[] curFiles = curFolder.list();
-        String[] newFiles = newFolder.list();
-        messageCount = curFiles.length + newFiles.length;
-        HashMap<String, Long> reverseUidMap = new HashMap<String, Long>(messageCount);
-        FileReader fileReader = null;
-        BufferedReader reader = null;
-        PrintWriter pw = null;
+    private TreeMap<Long, MaildirMessageName> updateUidFile() throws MailboxException {
+        final TreeMap<Long, MaildirMessageName> uidMap = new TreeMap<Long, MaildirMessageName>();
+        String[] curFiles = listMessageNames(curFolder);
+        String[] newFiles = listMessageNames(newFolder);
+        HashMap<String, Long> reverseUidMap = new HashMap<String, Long>(curFiles.length + newFiles.length);
         try {
-            fileReader = new FileReader(uidList);
-            reader = new BufferedReader(fileReader);
-            String line = reader.readLine();
-            // the first line in the file contains the next uid and message count
-            if (line != null)
-                readUidListHeader(line);
-            int lineNumber = 1;
-            while ((line = reader.readLine()) != null) {
-                if (!line.equals("")) {
-                    int gap = line.indexOf(" ");
-                    if (gap == -1) {
-                        // there must be some issues in the file if no gap can be found
-                        throw new MailboxException("Corrupted entry in uid-file " + uidList + " line " + lineNumber++);
-                    }
-                    Long uid = Long.valueOf(line.substring(0, gap));
-                    String name = line.substring(gap + 1, line.length());
-                    reverseUidMap.put(stripMetaFromName(name), uid);
-                }
-            }
+            lastUid = uidList.getLastUid();
+            for (Entry<Long, String> entry : uidList.getEntries(0, -1).entrySet())
+                reverseUidMap.put(stripMetaFromName(entry.getValue()), entry.getKey());
             String[] allFiles = (String[]) ArrayUtils.addAll(curFiles, newFiles);
             for (String file : allFiles) {
                 MaildirMessageName messageName = new MaildirMessageName(MaildirFolder.this, file);
@@ -586,110 +673,64 @@ public class MaildirFolder {
                     uid = getNextUid();
                 uidMap.put(uid, messageName);
             }
-            pw = new PrintWriter(uidList);
-            pw.println(createUidListHeader());
-            for (Entry<Long, MaildirMessageName> entry : uidMap.entrySet())
-                pw.println(String.valueOf(entry.getKey()) + " " + entry.getValue().getFullName());
+            writeUidFile(uidMap);
         } catch (IOException e) {
             throw new MailboxException("Unable to update uid file", e);
-        } finally {
-            IOUtils.closeQuietly(pw);
-            IOUtils.closeQuietly(fileReader);
-            IOUtils.closeQuietly(reader);
-        }               
+        }
         return uidMap;
     }
 
-    private Map<Long, MaildirMessageName> readUidFile(MailboxSession session, final long from, final long to) throws MailboxException {
-        final Map<Long, MaildirMessageName> uidMap = new HashMap<Long, MaildirMessageName>();
-
-        File uidList = uidFile;
-        FileReader fileReader = null;
-        BufferedReader reader = null;
+    /**
+     * Reads the uids between the two boundaries from the uid list, which is only loaded
+     * from the disk if it has been changed since it has been read the last time.
+     * @param from The lower uid limit
+     * @param to The upper uid limit. <code>-1</code> disables the upper limit
+     * @return The uid map
+     * @throws MailboxException
+     */
+    private TreeMap<Long, MaildirMessageName> readUidFile(long from, long to) throws MailboxException {
+        final TreeMap<Long, MaildirMessageName> uidMap = new TreeMap<Long, MaildirMessageName>();
         try {
-            fileReader = new FileReader(uidList);
-            reader = new BufferedReader(fileReader);
-            String line = reader.readLine();
-            // the first line in the file contains the next uid and message
-            // count
-            if (line != null)
-                readUidListHeader(line);
-            int lineNumber = 1;
-            while ((line = reader.readLine()) != null) {
-                if (!line.equals("")) {
-                    int gap = line.indexOf(" ");
-
-                    if (gap == -1) {
-                        // there must be some issues in the file if no gap can be found
-                    	session.getLog().info("Corrupted entry in uid-file " + uidList + " line " + lineNumber++);
-                        continue;
-                    }
-
-                    Long uid = Long.valueOf(line.substring(0, gap));
-                    if (uid >= from) {
-                        if (to != -1 && uid > to)
-                            break;
-                        String name = line.substring(gap + 1, line.length());
-                        uidMap.put(uid, new MaildirMessageName(MaildirFolder.this, name));
-                    }
-                }
+            lastUid = uidList.getLastUid();
+            SortedMap<Long, Long> modSeqs = uidList.getModSeqs(from, to);
+            for (Entry<Long, String> entry : uidList.getEntries(from, to).entrySet()) {
+                MaildirMessageName messageName = new MaildirMessageName(MaildirFolder.this, entry.getValue());
+                messageName.setModSeq(modSeqs.get(entry.getKey()));
+                uidMap.put(entry.getKey(), messageName);
             }
         } catch (IOException e) {
             throw new MailboxException("Unable to read uid file", e);
-        } finally {
-            IOUtils.closeQuietly(reader);
-            IOUtils.closeQuietly(fileReader);
         }
-        messageCount = uidMap.size();
-
         return uidMap;
     }
+
+    /**
+     * Replaces the uid list on the disk with the given uid map and sets the
+     * mod-sequences the messages got in the uid list
+     * @param uidMap The uid map
+     * @throws IOException
+     */
+    private void writeUidFile(SortedMap<Long, MaildirMessageName> uidMap) throws IOException {
+        SortedMap<Long, String> entries = new TreeMap<Long, String>();
+        for (Entry<Long, MaildirMessageName> entry : uidMap.entrySet())
+            entries.put(entry.getKey(), entry.getValue().getFullName());
+        uidList.write(lastUid, entries);
+        SortedMap<Long, Long> modSeqs = uidList.getModSeqs(0, -1);
+        for (Entry<Long, MaildirMessageName> entry : uidMap.entrySet())
+            entry.getValue().setModSeq(modSeqs.get(entry.getKey()));
+    }
     
     /**
-     * Sorts the given map and returns a subset which is constricted by a lower and an upper limit.
+     * Returns a subset of the given map which is constricted by a lower and an upper limit.
      * @param source The source map
      * @param from The lower limit
      * @param to The upper limit; <code>-1</code> disables the upper limit.
      * @return The sorted subset
      */
-    private SortedMap<Long, MaildirMessageName> truncateMap(Map<Long, MaildirMessageName> source, long from, long to) {
-        TreeMap<Long, MaildirMessageName> sortedMap;
-        if (source instanceof TreeMap<?, ?>) sortedMap = (TreeMap<Long, MaildirMessageName>) source;
-        else sortedMap = new TreeMap<Long, MaildirMessageName>(source);
+    private SortedMap<Long, MaildirMessageName> truncateMap(TreeMap<Long, MaildirMessageName> source, long from, long to) {
         if (to != -1)
-            return sortedMap.subMap(from, to + 1);
-        return sortedMap.tailMap(from);
-    }
-    
-    /**
-     * Parses the header line in uid list files.
-     * The format is: version lastUid messageCount (e.g. 1 615 273)
-     * @param line The raw header line
-     * @throws IOException
-     */
-    private void readUidListHeader(String line) throws IOException {
-        if (line == null)
-            throw new IOException("Header entry in uid-file is null");
-        int gap1 = line.indexOf(" ");
-        if (gap1 == -1) {
-            // there must be some issues in the file if no gap can be found
-            throw new IOException("Corrupted header entry in uid-file");
-            
-        }
-        int version = Integer.valueOf(line.substring(0, gap1));
-        if (version != 1)
-            throw new IOException("Cannot read uidlists with versions other than 1.");
-        int gap2 = line.indexOf(" ", gap1 + 1);
-        lastUid = Long.valueOf(line.substring(gap1 + 1, gap2));
-        messageCount = Integer.valueOf(line.substring(gap2 + 1, line.length()));
-    }
-    
-    /**
-     * Creates a line to put as a header in the uid list file.
-     * @return the line which ought to be the header
-     */
-    private String createUidListHeader() {
-        return "1 " + String.valueOf(lastUid) + " " + String.valueOf(messageCount);
+            return source.subMap(from, to + 1);
+        return source.tailMap(from);
     }
     
     /**
@@ -718,66 +759,66 @@ public class MaildirFolder {
             
             @Override
             public Long execute() throws MailboxException {
-                File uidList = uidFile;
-                long uid = -1;
-                FileReader fileReader = null;
-                BufferedReader reader = null;
-                PrintWriter pw = null;
+                return appendToUidList(name);
+            }
+        }, true);
+
+    }
+
+    /**
+     * Moves a message from the ./tmp folder to its final place, appends it to the
+     * uidlist and returns its uid. The message counters are updated accordingly.
+     * @param session
+     * @param tmpFile The message file in the ./tmp folder
+     * @param messageFile The file of the message in the ./cur or ./new folder
+     * @return The uid of the message
+     * @throws MailboxException
+     */
+    public long appendMessage(final MailboxSession session, final File tmpFile, final File messageFile) throws MailboxException {
+        return locker.executeWithLock(session, path, new LockAwareExecution<Long>() {
+            
+            @Override
+            public Long execute() throws MailboxException {
+                MaildirCounters counters = readCountersQuietly(session);
                 try {
-                    if (uidList.isFile()) {
-                        fileReader = new FileReader(uidList);
-                        reader = new BufferedReader(fileReader);
-                        String line = reader.readLine();
-                        // the first line in the file contains the next uid and message count
-                        if (line != null)
-                            readUidListHeader(line);
-                        ArrayList<String> lines = new ArrayList<String>();
-                        while ((line = reader.readLine()) != null)
-                            lines.add(line);
-                        uid = getNextUid();
-                        lines.add(String.valueOf(uid) + " " + name);
-                        messageCount++;
-                        pw = new PrintWriter(uidList);
-                        pw.println(createUidListHeader());
-                        for (String entry : lines)
-                            pw.println(entry);
-                    }
-                    else {
-                        // create the file
-                        if (!uidList.createNewFile())
-                            throw new IOException("Could not create file " + uidList);
-                        String[] curFiles = curFolder.list();
-                        String[] newFiles = newFolder.list();
-                        messageCount = curFiles.length + newFiles.length;
-                        ArrayList<String> lines = new ArrayList<String>();
-                        String[] allFiles = (String[]) ArrayUtils.addAll(curFiles, newFiles);
-                        for (String file : allFiles) {
-                            long theUid = getNextUid();
-                            lines.add(String.valueOf(theUid) + " " + file);
-                            // the listed names already include the message to append
-                            if (file.equals(name))
-                                uid = theUid;
-                        }
-                        pw = new PrintWriter(uidList);
-                        pw.println(createUidListHeader());
-                        for (String line : lines)
-                            pw.println(line);
-                    }
+                    moveFile(tmpFile, messageFile);
                 } catch (IOException e) {
-                    throw new MailboxException("Unable to append msg", e);
-                } finally {
-                    IOUtils.closeQuietly(pw);
-                    IOUtils.closeQuietly(reader);
-                    IOUtils.closeQuietly(fileReader);
+                    throw new MailboxException("Unable to move msg " + tmpFile + " to " + messageFile, e);
                 }
-                if (uid == -1) {
-                    throw new MailboxException("Unable to append msg");
-                } else {
-                   return uid;
+                String name = messageFile.getName();
+                long uid = appendToUidList(name);
+                if (counters != null) {
+                    counters.add(name, MaildirCounters.sizeOf(name, messageFile), isRecent(messageFile));
+                    saveCountersQuietly(session, counters);
                 }
+                return uid;
             }
         }, true);
+    }
 
+    private long appendToUidList(String name) throws MailboxException {
+        long uid = -1;
+        try {
+            if (uidList.exists()) {
+                lastUid = uidList.getLastUid();
+                uid = getNextUid();
+                uidList.add(uid, name);
+            }
+            else {
+                // the listed names already include the message to append
+                for (Entry<Long, MaildirMessageName> entry : createUidFile().entrySet()) {
+                    if (entry.getValue().getFullName().equals(name))
+                        uid = entry.getKey();
+                }
+            }
+        } catch (IOException e) {
+            throw new MailboxException("Unable to append msg", e);
+        }
+        if (uid == -1) {
+            throw new MailboxException("Unable to append msg");
+        } else {
+           return uid;
+        }
     }
 
     /**
@@ -792,37 +833,51 @@ public class MaildirFolder {
             
             @Override
             public Void execute() throws MailboxException {
-                File uidList = uidFile;
-                FileReader fileReader = null;
-                BufferedReader reader = null;
-                PrintWriter writer = null;
                 try {
-                    fileReader = new FileReader(uidList);
-                    reader = new BufferedReader(fileReader);
-                    String line = reader.readLine();
-                    readUidListHeader(line);
-                    ArrayList<String> lines = new ArrayList<String>();
-                    while ((line = reader.readLine()) != null) {
-                        if (uid == Long.valueOf(line.substring(0, line.indexOf(" "))))
-                            line = String.valueOf(uid) + " " + messageName;
-                        lines.add(line);
-                    }
-                    writer = new PrintWriter(uidList);
-                    writer.println(createUidListHeader());
-                    for (String entry : lines)
-                        writer.println(entry);
+                    uidList.rename(uid, messageName);
                 } catch (IOException e) {
                     throw new MailboxException("Unable to update msg with uid " + uid, e);
-                } finally {
-                    IOUtils.closeQuietly(writer);
-                    IOUtils.closeQuietly(reader);
-                    IOUtils.closeQuietly(fileReader);
-                }    
+                }
                 return null;
             }
         }, true);
 
     }
+
+    /**
+     * Renames the file of a message, e.g. because its flags have changed, and updates
+     * its entry in the uid list and the message counters.
+     * @param session
+     * @param uid The uid of the message
+     * @param messageFile The current file of the message
+     * @param newMessageFile The new file of the message in the ./cur or ./new folder
+     * @return The new mod-sequence of the message
+     * @throws MailboxException
+     */
+    public long update(final MailboxSession session, final long uid, final File messageFile, final File newMessageFile) throws MailboxException {
+        return locker.executeWithLock(session, path, new LockAwareExecution<Long>() {
+            
+            @Override
+            public Long execute() throws MailboxException {
+                MaildirCounters counters = readCountersQuietly(session);
+                long modSeq;
+                try {
+                    moveFile(messageFile, newMessageFile);
+                    modSeq = uidList.rename(uid, newMessageFile.getName());
+                } catch (IOException e) {
+                    throw new MailboxException("Unable to update msg with uid " + uid, e);
+                }
+                if (counters != null) {
+                    long size = MaildirCounters.sizeOf(newMessageFile.getName(), newMessageFile);
+                    counters.remove(messageFile.getName(), size, isRecent(messageFile));
+                    counters.add(newMessageFile.getName(), size, isRecent(newMessageFile));
+                    saveCountersQuietly(session, counters);
+                }
+                return modSeq;
+            }
+        }, true);
+
+    }
     
     /**
      * Retrieves the file belonging to the given uid, deletes it and updates
@@ -836,58 +891,148 @@ public class MaildirFolder {
             
             @Override
             public MaildirMessageName execute() throws MailboxException {
-                File uidList = uidFile;
-                FileReader fileReader = null;
-                BufferedReader reader = null;
-                PrintWriter writer = null;
                 MaildirMessageName deletedMessage = null;
                 try {
-                    fileReader = new FileReader(uidList);
-                    reader = new BufferedReader(fileReader);
-                    readUidListHeader(reader.readLine());
-                    
-                    // It may be possible that message count is 0 so we should better not try to calculate the size of the ArrayList
-                    ArrayList<String> lines = new ArrayList<String>();
-                    String line;
-                    int lineNumber = 1;
-                    while ((line = reader.readLine()) != null) {
-                        int gap = line.indexOf(" ");
-                        if (gap == -1) {
-                            // there must be some issues in the file if no gap can be found
-                        	session.getLog().info("Corrupted entry in uid-file " + uidList + " line " + lineNumber++);
-                            continue;
-                        }
-                        
-                        if (uid == Long.valueOf(line.substring(0, line.indexOf(" ")))) {
-                            deletedMessage = new MaildirMessageName(MaildirFolder.this, line.substring(gap + 1, line.length()));
-                            messageCount--;
+                    String name = uidList.getName(uid);
+                    if (name != null) {
+                        MaildirCounters counters = readCountersQuietly(session);
+                        deletedMessage = new MaildirMessageName(MaildirFolder.this, name);
+                        File messageFile = deletedMessage.getFile();
+                        long size = MaildirCounters.sizeOf(messageFile.getName(), messageFile);
+                        if (!messageFile.delete())
+                            throw new IOException("Cannot delete file " + messageFile.getAbsolutePath());
+                        uidList.remove(uid);
+                        try {
+                            structureCache.remove(deletedMessage.getBaseName());
+                        } catch (IOException e) {
+                            session.getLog().warn("Unable to update message structure cache of " + MaildirFolder.this, e);
                         }
-                        else {
-                            lines.add(line);
+                        if (counters != null) {
+                            counters.remove(messageFile.getName(), size, isRecent(messageFile));
+                            saveCountersQuietly(session, counters);
                         }
                     }
-                    if (deletedMessage != null) {
-                        if (!deletedMessage.getFile().delete())
-                            throw new IOException("Cannot delete file " + deletedMessage.getFile().getAbsolutePath());
-                        writer = new PrintWriter(uidList);
-                        writer.println(createUidListHeader());
-                        for (String entry : lines)
-                            writer.println(entry);
-                    }
                     return deletedMessage;
 
                 } catch (IOException e) {
                     throw new MailboxException("Unable to delete msg with uid " + uid, e);
-                } finally {
-                    IOUtils.closeQuietly(writer);
-                    IOUtils.closeQuietly(reader);
-                    IOUtils.closeQuietly(fileReader);
-                }   
+                }
             }
         }, true);
         
 
     }
+
+    /**
+     * Returns the message counters of this folder. They are rebuilt from the
+     * ./cur and ./new folders if these have been modified by someone else.
+     * @param session
+     * @return The counters
+     * @throws MailboxException If the folder cannot be read
+     */
+    public MaildirCounters getCounters(final MailboxSession session) throws MailboxException {
+        return locker.executeWithLock(session, path, new LockAwareExecution<MaildirCounters>() {
+            
+            @Override
+            public MaildirCounters execute() throws MailboxException {
+                try {
+                    return readCounters(session);
+                } catch (IOException e) {
+                    throw new MailboxException("Unable to read message counters", e);
+                }
+            }
+        }, true);
+    }
+
+    private MaildirCounters readCounters(MailboxSession session) throws IOException {
+        MaildirCounters counters = null;
+        if (countersFile.isFile()) {
+            try {
+                counters = MaildirCounters.read(countersFile);
+            } catch (IOException e) {
+                session.getLog().info("Rebuilding corrupted counters file " + countersFile);
+            }
+        }
+        // read the modification times first so changes done while listing are noticed next time
+        long now = System.currentTimeMillis();
+        long curModified = lastModified(curFolder);
+        long newModified = lastModified(newFolder);
+        if (counters == null || !counters.isValid(curModified, newModified)) {
+            counters = MaildirCounters.rebuild(curFolder, newFolder);
+            counters.setModified(modifiedStamp(curModified, now), modifiedStamp(newModified, now));
+            counters.write(countersFile);
+        }
+        return counters;
+    }
+
+    /**
+     * Returns the time from which on a modification of a folder invalidates what was read from it.
+     * A modification time which is less than a second old is not trusted, as a later modification
+     * within the same second would not change it, so 0 is returned then.
+     * @param modified The modification time of the folder, read before the folder itself
+     * @param now The time at which the modification time was read
+     * @return The stamp
+     */
+    private static long modifiedStamp(long modified, long now) {
+        return now - modified < MODIFIED_RESOLUTION ? 0 : modified + 1;
+    }
+
+    /**
+     * Reads the counters before they get updated. Counters are not essential
+     * for changing the folder, so failures are only logged.
+     * @return The counters, <code>null</code> if they cannot be read
+     */
+    private MaildirCounters readCountersQuietly(MailboxSession session) {
+        try {
+            return readCounters(session);
+        } catch (IOException e) {
+            session.getLog().warn("Unable to read message counters of " + this, e);
+            return null;
+        }
+    }
+
+    /**
+     * Saves the updated counters together with the stamps of the ./cur and ./new folders. The lock
+     * doesn't keep other processes from changing the folders, so the modification times after the
+     * own change are only trusted when they are old enough, see {@link #modifiedStamp(long, long)}.
+     * If this fails, the counters are removed in order to get them rebuilt.
+     */
+    private void saveCountersQuietly(MailboxSession session, MaildirCounters counters) {
+        long now = System.currentTimeMillis();
+        counters.setModified(modifiedStamp(lastModified(curFolder), now), modifiedStamp(lastModified(newFolder), now));
+        try {
+            counters.write(countersFile);
+        } catch (IOException e) {
+            session.getLog().warn("Unable to write message counters of " + this, e);
+            countersFile.delete();
+        }
+    }
+
+    /**
+     * Moves a message file within this folder. As all files reside on the same file system,
+     * this is a single atomic rename which never falls back to copying.
+     * @param file The file to move
+     * @param newFile The new location
+     * @throws IOException If the file cannot be renamed
+     */
+    private void moveFile(File file, File newFile) throws IOException {
+        if (file.renameTo(newFile))
+            return;
+        // shards are created when the first message is put into them
+        File parent = newFile.getParentFile();
+        if (parent.exists() || !parent.mkdir() || !file.renameTo(newFile))
+            throw new IOException("Could not rename file " + file + " to " + newFile);
+    }
+
+    /**
+     * Tests whether a message file resides in the ./new folder or one of its shards
+     * @param messageFile The message file
+     * @return true if the message is recent
+     */
+    public boolean isRecent(File messageFile) {
+        File parent = messageFile.getParentFile();
+        return parent.equals(newFolder) || newFolder.equals(parent.getParentFile());
+    }
     
     /** 
      * The absolute path of this folder.
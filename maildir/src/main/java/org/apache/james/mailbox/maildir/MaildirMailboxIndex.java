@@ -0,0 +1,354 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.maildir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mailbox.model.MailboxConstants;
+
+/**
+ * An index of the mailboxes of one user, so that listing them doesn't require to load
+ * every folder of the user. The names are kept in a prefix tree, which allows to find the
+ * mailboxes matching a pattern and the children of a mailbox without looking at the others.
+ * <br/>
+ * The index is persisted in a file in the root folder of the user, one line per mailbox:
+ * <code>uidValidity name</code>, preceded by a line with the version.
+ * <br/>
+ * Folders which are created or deleted by someone else change the modification time of the
+ * root folder. The index is then reconciled with the folders on the disk, which only requires
+ * to read the uidValidity of the new folders.
+ */
+public class MaildirMailboxIndex {
+
+    public static final int VERSION = 1;
+
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String ENCODING = "UTF-8";
+    private static final String FOLDER_PREFIX = MaildirStore.maildirDelimiter;
+    private static final char WILDCARD = MaildirStore.WILDCARD.charAt(0);
+
+    private final File root;
+    private final File file;
+
+    private Node names;
+    private long stamp = -1;
+
+    /**
+     * @param root The root folder of the user
+     */
+    public MaildirMailboxIndex(File root) {
+        this.root = root;
+        this.file = new File(root, MaildirFolder.MAILBOX_INDEX_FILE);
+    }
+
+    /**
+     * Returns the uidValidity of a mailbox
+     * @param name The name of the mailbox
+     * @return The uidValidity, <code>null</code> if the mailbox doesn't exist
+     * @throws IOException
+     */
+    public synchronized Long getUidValidity(String name) throws IOException {
+        Node node = sync().find(name);
+        return node == null ? null : node.uidValidity;
+    }
+
+    /**
+     * Returns the names of the mailboxes which match a pattern, in their natural order.
+     * The wildcard <code>%</code> matches any sequence of characters.
+     * @param pattern The pattern
+     * @return The names of the matching mailboxes
+     * @throws IOException
+     */
+    public synchronized List<String> find(String pattern) throws IOException {
+        List<String> result = new ArrayList<String>();
+        int wildcard = pattern.indexOf(WILDCARD);
+        Node node = sync().find(wildcard == -1 ? pattern : pattern.substring(0, wildcard));
+        if (node == null)
+            return result;
+        if (wildcard == -1) {
+            if (node.uidValidity != null)
+                result.add(pattern);
+            return result;
+        }
+        List<String> candidates = new ArrayList<String>();
+        node.collect(pattern.substring(0, wildcard), candidates);
+        for (String name : candidates) {
+            if (matches(pattern, name))
+                result.add(name);
+        }
+        return result;
+    }
+
+    /**
+     * Tests whether a mailbox has children
+     * @param name The name of the mailbox
+     * @param delimiter The hierarchy delimiter
+     * @return true if there is a mailbox below the given one
+     * @throws IOException
+     */
+    public synchronized boolean hasChildren(String name, char delimiter) throws IOException {
+        Node node = sync().find(name + delimiter);
+        return node != null && node.count > 0;
+    }
+
+    /**
+     * Adds a mailbox which has been created
+     * @param name The name of the mailbox
+     * @param uidValidity Its uidValidity
+     * @throws IOException
+     */
+    public synchronized void add(String name, long uidValidity) throws IOException {
+        sync().put(name, uidValidity);
+        write();
+    }
+
+    /**
+     * Removes a mailbox which has been deleted
+     * @param name The name of the mailbox
+     * @throws IOException
+     */
+    public synchronized void remove(String name) throws IOException {
+        if (sync().remove(name) != null)
+            write();
+    }
+
+    /**
+     * Renames a mailbox, which keeps its uidValidity
+     * @param name The former name of the mailbox
+     * @param newName The new name of the mailbox
+     * @throws IOException
+     */
+    public synchronized void rename(String name, String newName) throws IOException {
+        Long uidValidity = sync().remove(name);
+        if (uidValidity != null)
+            names.put(newName, uidValidity);
+        write();
+    }
+
+    /**
+     * Returns the names, reading them from the disk if necessary and reconciling
+     * them with the folders if they have been changed by someone else.
+     */
+    private Node sync() throws IOException {
+        if (names != null && stamp != -1 && root.lastModified() == stamp)
+            return names;
+        if (names == null)
+            names = read();
+        // read the modification time first so changes done while listing are noticed next time
+        long modified = root.lastModified();
+        long now = System.currentTimeMillis();
+        String[] folderNames = root.list();
+        if (folderNames == null)
+            throw new IOException("Could not list folder " + root);
+
+        Set<String> found = new HashSet<String>();
+        // the INBOX is in the root folder, which also exists for users without INBOX
+        if (names.contains(MailboxConstants.INBOX) || new File(root, MaildirFolder.CUR).isDirectory())
+            found.add(MailboxConstants.INBOX);
+        for (String folderName : folderNames) {
+            if (folderName.startsWith(FOLDER_PREFIX)) {
+                String name = folderName.substring(FOLDER_PREFIX.length());
+                // only new folders have to be checked
+                if (names.contains(name) || new File(root, folderName).isDirectory())
+                    found.add(name);
+            }
+        }
+        boolean changed = false;
+        List<String> indexed = new ArrayList<String>();
+        names.collect("", indexed);
+        for (String name : indexed) {
+            if (!found.remove(name)) {
+                names.remove(name);
+                changed = true;
+            }
+        }
+        for (String name : found) {
+            names.put(name, readUidValidity(name));
+            changed = true;
+        }
+        if (changed || !file.exists())
+            write();
+        stamp = now - modified < MaildirFolder.MODIFIED_RESOLUTION ? -1 : modified;
+        return names;
+    }
+
+    private long readUidValidity(String name) throws IOException {
+        File folder = name.equals(MailboxConstants.INBOX) ? root : new File(root, FOLDER_PREFIX + name);
+        return new MaildirFolder(folder.getAbsolutePath(), null, null).getUidValidity();
+    }
+
+    private Node read() throws IOException {
+        Node read = new Node();
+        if (!file.isFile())
+            return read;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+        try {
+            String line = reader.readLine();
+            if (line == null || !line.trim().equals(String.valueOf(VERSION)))
+                return read;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(' ');
+                if (separator == -1)
+                    break;
+                read.put(line.substring(separator + 1), Long.parseLong(line.substring(0, separator)));
+            }
+        } catch (NumberFormatException e) {
+            // the index is rebuilt from the folders
+            return new Node();
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        return read;
+    }
+
+    /**
+     * Writes the index. The file is replaced atomically.
+     */
+    private void write() throws IOException {
+        File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), ENCODING);
+        try {
+            writer.write(VERSION + "\n");
+            List<String> all = new ArrayList<String>();
+            names.collect("", all);
+            for (String name : all)
+                writer.write(names.find(name).uidValidity + " " + name + "\n");
+            writer.close();
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+        if (!tmpFile.renameTo(file))
+            throw new IOException("Could not rename file " + tmpFile + " to " + file);
+    }
+
+    /**
+     * Tests whether a name matches a pattern with wildcards
+     */
+    static boolean matches(String pattern, String name) {
+        int p = 0;
+        int n = 0;
+        int star = -1;
+        int backtrack = 0;
+        while (n < name.length()) {
+            if (p < pattern.length() && pattern.charAt(p) == WILDCARD) {
+                star = p++;
+                backtrack = n;
+            } else if (p < pattern.length() && pattern.charAt(p) == name.charAt(n)) {
+                p++;
+                n++;
+            } else if (star != -1) {
+                p = star + 1;
+                n = ++backtrack;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == WILDCARD)
+            p++;
+        return p == pattern.length();
+    }
+
+    /**
+     * A node of the prefix tree. A node which ends the name of a mailbox holds its uidValidity.
+     */
+    private static final class Node {
+        private Map<Character, Node> children;
+        private Long uidValidity;
+        /**
+         * The number of mailboxes in this subtree
+         */
+        private int count;
+
+        private Node find(String name) {
+            Node node = this;
+            for (int i = 0; i < name.length() && node != null; i++)
+                node = node.children == null ? null : node.children.get(name.charAt(i));
+            return node;
+        }
+
+        private boolean contains(String name) {
+            Node node = find(name);
+            return node != null && node.uidValidity != null;
+        }
+
+        private void put(String name, long uidValidity) {
+            boolean added = !contains(name);
+            Node node = this;
+            for (int i = 0; i < name.length(); i++) {
+                if (added)
+                    node.count++;
+                if (node.children == null)
+                    node.children = new TreeMap<Character, Node>();
+                Node child = node.children.get(name.charAt(i));
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(name.charAt(i), child);
+                }
+                node = child;
+            }
+            if (added)
+                node.count++;
+            node.uidValidity = uidValidity;
+        }
+
+        private Long remove(String name) {
+            if (!contains(name))
+                return null;
+            Node found = find(name);
+            Long uidValidity = found.uidValidity;
+            found.uidValidity = null;
+            Node node = this;
+            for (int i = 0; i < name.length(); i++) {
+                node.count--;
+                Node child = node.children.get(name.charAt(i));
+                if (child.count == 1) {
+                    // the rest of the path only leads to the removed mailbox
+                    node.children.remove(name.charAt(i));
+                    return uidValidity;
+                }
+                node = child;
+            }
+            node.count--;
+            return uidValidity;
+        }
+
+        private void collect(String prefix, List<String> result) {
+            if (uidValidity != null)
+                result.add(prefix);
+            if (children != null) {
+                for (Map.Entry<Character, Node> child : children.entrySet())
+                    child.getValue().collect(prefix + child.getKey(), result);
+            }
+        }
+    }
+}
@@ -103,12 +103,21 @@ public class MaildirMessageName {
     private Date internalDate;
     private Long size;
     private Flags flags;
+    private long modSeq = -1;
     
     public MaildirMessageName(MaildirFolder parentFolder, String fullName) {
         this.parentFolder = parentFolder;
         setFullName(fullName);
     }
 
+    /**
+     * Returns the folder this message belongs to
+     * @return parentFolder
+     */
+    public MaildirFolder getParentFolder() {
+        return parentFolder;
+    }
+
     /**
      * Tests whether the file or directory belonging to this {@link MaildirFolder} exists.
      * If the file exists, its absolute path is written to absPath.
@@ -118,30 +127,31 @@ public class MaildirMessageName {
     public boolean exists() {
         if (file != null && file.isFile())
             return true;
-        File assumedFile1 = new File(parentFolder.getCurFolder(), fullName);
-        if (assumedFile1.isFile()) {
-            file = assumedFile1;
-            return true;
+        File[] folders;
+        if (parentFolder.isSharded()) {
+            // messages may still be in the flat folders while a folder is being converted
+            folders = new File[] { parentFolder.getCurFolder(fullName), parentFolder.getNewFolder(fullName),
+                    parentFolder.getCurFolder(), parentFolder.getNewFolder() };
+        } else {
+            folders = new File[] { parentFolder.getCurFolder(), parentFolder.getNewFolder() };
         }
-        File assumedFile2 = new File(parentFolder.getNewFolder(), fullName);
-        if (assumedFile2.isFile()) {
-            file = assumedFile2;
-            return true;
+        for (File folder : folders) {
+            File assumedFile = new File(folder, fullName);
+            if (assumedFile.isFile()) {
+                file = assumedFile;
+                return true;
+            }
         }
         // check if maybe the flags have changed which means
         // list the files in the cur and new folder and check if the message is there
         FilenameFilter filter = getFilenameFilter();
-        File[] matchingFiles1 = parentFolder.getCurFolder().listFiles(filter);
-        if (matchingFiles1.length == 1) {
-            setFullName(matchingFiles1[0].getName());
-            file = matchingFiles1[0];
-            return true;
-        }
-        File[] matchingFiles2 = parentFolder.getNewFolder().listFiles(filter);
-        if (matchingFiles2.length == 1) {
-            setFullName(matchingFiles2[0].getName());
-            file = matchingFiles2[0];
-            return true;
+        for (File folder : folders) {
+            File[] matchingFiles = folder.listFiles(filter);
+            if (matchingFiles != null && matchingFiles.length == 1) {
+                setFullName(matchingFiles[0].getName());
+                file = matchingFiles[0];
+                return true;
+            }
         }
         return false;
     }
@@ -267,6 +277,17 @@ public class MaildirMessageName {
         }
     }
     
+    /**
+     * Sets the size of the message which is part of this message name.
+     * @param size
+     */
+    public void setSize(long size) {
+        split(); // save all parts
+        this.size = size;
+        this.sizeString = ",S=" + String.valueOf(size);
+        this.fullName = null; // invalidate the fullName
+    }
+    
     /**
      * Decodes the flags part of the file name if necessary and returns the appropriate Flags object.
      * @return The {@link Flags} of this message
@@ -281,6 +302,22 @@ public class MaildirMessageName {
         return flags;
     }
     
+    /**
+     * Returns the mod-sequence of the last change of this message as recorded in the uid list.
+     * @return The mod-sequence, <code>-1</code> if it is not known
+     */
+    public long getModSeq() {
+        return modSeq;
+    }
+
+    /**
+     * Sets the mod-sequence of the last change of this message
+     * @param modSeq
+     */
+    public void setModSeq(long modSeq) {
+        this.modSeq = modSeq;
+    }
+    
     /**
      * Decodes the size part of the file name if necessary and returns the appropriate Long.
      * @return The size of this message as a {@link Long}
@@ -20,7 +20,10 @@ package org.apache.james.mailbox.maildir;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 import org.apache.james.mailbox.MailboxPathLocker;
 import org.apache.james.mailbox.MailboxSession;
@@ -43,11 +46,50 @@ public class MaildirStore implements UidProvider<Integer>, ModSeqProvider<Intege
     public static final String WILDCARD = "%";
     
     public static final String maildirDelimiter = ".";
+
+    /**
+     * The default number of folders whose uid lists and message structures are kept in memory
+     */
+    public static final int DEFAULT_UID_LIST_CACHE_SIZE = 1000;
+
+    /**
+     * Whether delivered messages are forced to the disk before they are moved out of ./tmp
+     */
+    public static enum SyncPolicy {
+        /**
+         * Leave it to the operating system when the message is written
+         */
+        NONE,
+        /**
+         * Sync the message file, so that a message is never visible before its content is durable
+         */
+        FILE
+    }
     
     private String maildirLocation;
     
     private File maildirRootFile;
     private final MailboxPathLocker locker;
+
+    private int uidListCacheSize = DEFAULT_UID_LIST_CACHE_SIZE;
+    private SyncPolicy syncPolicy = SyncPolicy.NONE;
+    private boolean sharded = false;
+
+    /**
+     * The uid lists of the most recently used folders, shared by all {@link MaildirFolder}s
+     * of a folder so that the lists are only read from the disk once
+     */
+    private final Map<String, MaildirUidList> uidLists = createFolderCache();
+
+    /**
+     * The cached message structures of the most recently used folders
+     */
+    private final Map<String, MaildirStructureCache> structureCaches = createFolderCache();
+
+    /**
+     * The mailbox indexes of the most recently used users
+     */
+    private final Map<String, MaildirMailboxIndex> mailboxIndexes = createFolderCache();
     
     /**
      * Construct a MaildirStore with a location. The location String
@@ -72,13 +114,137 @@ public class MaildirStore implements UidProvider<Integer>, ModSeqProvider<Intege
     public String getMaildirLocation() {
         return maildirLocation;
     }
+
+    /**
+     * Sets the number of folders whose uid lists and message structures are kept in memory,
+     * which is also the number of users whose mailbox indexes are kept.
+     * Defaults to {@link #DEFAULT_UID_LIST_CACHE_SIZE}
+     * @param uidListCacheSize
+     */
+    public void setUidListCacheSize(int uidListCacheSize) {
+        this.uidListCacheSize = uidListCacheSize;
+    }
+
+    /**
+     * Sets whether the messages of new folders are spread over sub-directories of
+     * ./cur and ./new. Existing folders keep their layout. Defaults to false.
+     * @param sharded
+     */
+    public void setSharded(boolean sharded) {
+        this.sharded = sharded;
+    }
+
+    /**
+     * Returns whether new folders are sharded
+     * @return sharded
+     */
+    public boolean isSharded() {
+        return sharded;
+    }
+
+    /**
+     * Sets whether delivered messages are synced to the disk.
+     * Defaults to {@link SyncPolicy#NONE}
+     * @param syncPolicy
+     */
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * Returns whether delivered messages are synced to the disk
+     * @return syncPolicy
+     */
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
     /**
      * Create a {@link MaildirFolder} for a mailbox
      * @param mailbox
      * @return The MaildirFolder
      */
     public MaildirFolder createMaildirFolder(Mailbox<Integer> mailbox) {
-        return new MaildirFolder(getFolderName(mailbox), new MailboxPath(mailbox.getNamespace(), mailbox.getUser(), mailbox.getName()), locker);
+        return createMaildirFolder(getFolderName(mailbox), new MailboxPath(mailbox.getNamespace(), mailbox.getUser(), mailbox.getName()));
+    }
+
+    /**
+     * Create a {@link MaildirFolder} which shares its uid list with all other
+     * folders created for the same location
+     * @param absPath The absolute path of the mailbox folder
+     * @param mailboxPath The path of the mailbox
+     * @return The MaildirFolder
+     */
+    private MaildirFolder createMaildirFolder(String absPath, MailboxPath mailboxPath) {
+        File folder = new File(absPath);
+        return new MaildirFolder(absPath, mailboxPath, locker, getUidList(folder), getStructureCache(folder));
+    }
+
+    /**
+     * Returns the cached {@link MaildirUidList} of a folder
+     * @param folder The root of the maildir folder
+     * @return uidList
+     */
+    private MaildirUidList getUidList(File folder) {
+        String key = folder.getAbsolutePath();
+        synchronized (uidLists) {
+            MaildirUidList uidList = uidLists.get(key);
+            if (uidList == null) {
+                uidList = MaildirFolder.createUidList(folder);
+                uidLists.put(key, uidList);
+            }
+            return uidList;
+        }
+    }
+
+    /**
+     * Returns the cached {@link MaildirStructureCache} of a folder
+     * @param folder The root of the maildir folder
+     * @return structureCache
+     */
+    private MaildirStructureCache getStructureCache(File folder) {
+        String key = folder.getAbsolutePath();
+        synchronized (structureCaches) {
+            MaildirStructureCache structureCache = structureCaches.get(key);
+            if (structureCache == null) {
+                structureCache = new MaildirStructureCache(new File(folder, MaildirFolder.STRUCTURE_FILE));
+                structureCaches.put(key, structureCache);
+            }
+            return structureCache;
+        }
+    }
+
+    /**
+     * Returns the {@link MaildirMailboxIndex} of a user
+     * @param user The user name of a mailbox
+     * @return mailboxIndex
+     * @throws MailboxException If the main maildir folder of the user doesn't exist
+     */
+    public MaildirMailboxIndex getMailboxIndex(String user) throws MailboxException {
+        File root = getMailboxRootForUser(user);
+        String key = root.getAbsolutePath();
+        synchronized (mailboxIndexes) {
+            MaildirMailboxIndex mailboxIndex = mailboxIndexes.get(key);
+            if (mailboxIndex == null) {
+                mailboxIndex = new MaildirMailboxIndex(root);
+                mailboxIndexes.put(key, mailboxIndex);
+            }
+            return mailboxIndex;
+        }
+    }
+
+    /**
+     * Creates a map which keeps the objects of the most recently used folders
+     */
+    private <T> Map<String, T> createFolderCache() {
+        return Collections.synchronizedMap(new LinkedHashMap<String, T>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
+                return size() > uidListCacheSize;
+            }
+        });
     }
 
     /**
@@ -104,13 +270,26 @@ public class MaildirStore implements UidProvider<Integer>, ModSeqProvider<Intege
      */
     public Mailbox<Integer> loadMailbox(MailboxSession session, MailboxPath mailboxPath)
     throws MailboxNotFoundException, MailboxException {
-        MaildirFolder folder = new MaildirFolder(getFolderName(mailboxPath), mailboxPath, locker);
+        MaildirFolder folder = createMaildirFolder(getFolderName(mailboxPath), mailboxPath);
 
         if (!folder.exists())
             throw new MailboxNotFoundException(mailboxPath);
         return loadMailbox(session, folder.getRootFile(), mailboxPath);
     }
 
+    /**
+     * Creates a Mailbox object with an uidValidity taken from the {@link MaildirMailboxIndex},
+     * so that the folder doesn't have to be read. The folder doesn't share the cached uid list
+     * and message structures, as the mailbox is only listed.
+     * @param mailboxPath The path of the mailbox
+     * @param uidValidity The uidValidity of the mailbox
+     * @return The Mailbox object
+     */
+    public Mailbox<Integer> loadMailbox(MailboxSession session, MailboxPath mailboxPath, long uidValidity) {
+        MaildirFolder folder = new MaildirFolder(getFolderName(mailboxPath), mailboxPath, locker);
+        return new MaildirMailbox<Integer>(session, mailboxPath, folder, uidValidity);
+    }
+
     /**
      * Creates a Mailbox object with data loaded from the file system
      * @param mailboxFile File object referencing the folder for the mailbox
@@ -119,7 +298,7 @@ public class MaildirStore implements UidProvider<Integer>, ModSeqProvider<Intege
      * @throws MailboxException If the mailbox folder doesn't exist or can't be read
      */
     private Mailbox<Integer> loadMailbox(MailboxSession session, File mailboxFile, MailboxPath mailboxPath) throws MailboxException {
-        MaildirFolder folder = new MaildirFolder(mailboxFile.getAbsolutePath(), mailboxPath, locker);
+        MaildirFolder folder = createMaildirFolder(mailboxFile.getAbsolutePath(), mailboxPath);
         try {
             return new MaildirMailbox<Integer>(session, mailboxPath, folder);
         } catch (IOException e) {
@@ -245,14 +424,15 @@ public class MaildirStore implements UidProvider<Integer>, ModSeqProvider<Intege
 
     @Override
     public long nextModSeq(MailboxSession session, Mailbox<Integer> mailbox) throws MailboxException {
-        return System.currentTimeMillis();
+        // the mod-sequence is only taken when the change is written to the uid list
+        return highestModSeq(session, mailbox) + 1;
     }
 
     @Override
     public long highestModSeq(MailboxSession session, Mailbox<Integer> mailbox) throws MailboxException {
         try {
-            return createMaildirFolder(mailbox).getHighestModSeq();
-        } catch (IOException e) {
+            return createMaildirFolder(mailbox).getHighestModSeq(session);
+        } catch (MailboxException e) {
             throw new MailboxException("Unable to get highest mod-sequence for mailbox", e);
         }
     }
@@ -0,0 +1,361 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.maildir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mailbox.store.mail.model.Property;
+import org.apache.james.mailbox.store.mail.model.impl.SimpleProperty;
+
+/**
+ * Caches what has been found out about the structure of the messages of a
+ * {@link MaildirFolder}, so that fetching a message again doesn't require to parse it again.
+ * The messages are identified by the base name of their files, which doesn't change with
+ * their flags.
+ * <br/>
+ * The cache is a binary file starting with a magic number and the version, followed by
+ * records which are only ever appended:
+ * <ul>
+ * <li><code>'+' baseName bodyStartOctet linesCounted textualLineCount propertyCount (namespace localName value)*</code>
+ * the structure of a message</li>
+ * <li><code>'-' baseName</code> a message has been deleted</li>
+ * </ul>
+ * The last record of a message wins. A record which has not been written completely is
+ * dropped, and the file is compacted once most of its records have been superseded.
+ * As the cache can always be rebuilt from the messages, a corrupted file is simply replaced.
+ */
+public class MaildirStructureCache {
+
+    public static final int VERSION = 1;
+
+    private static final int MAGIC = 0x4a535452;
+    private static final int HEADER_LENGTH = 8;
+    private static final byte RECORD_PUT = '+';
+    private static final byte RECORD_REMOVE = '-';
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * Caches with fewer records than this are never compacted
+     */
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+    private static final int BUF_SIZE = 8192;
+
+    private final File file;
+
+    private Map<String, Structure> cachedEntries;
+    private int cachedRecords;
+    private long validLength;
+    private long[] cachedStamp;
+
+    public MaildirStructureCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the file of this cache
+     * @return file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the cached structure of a message
+     * @param baseName The base name of the message file
+     * @return The structure, <code>null</code> if it is not cached
+     * @throws IOException
+     */
+    public synchronized Structure get(String baseName) throws IOException {
+        return load().get(baseName);
+    }
+
+    /**
+     * Stores the structure of a message
+     * @param baseName The base name of the message file
+     * @param structure The structure of the message
+     * @throws IOException
+     */
+    public synchronized void put(String baseName, Structure structure) throws IOException {
+        load();
+        DataOutputStream out = openForAppend();
+        try {
+            out.writeByte(RECORD_PUT);
+            writeStructure(out, baseName, structure);
+            out.close();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        appended(baseName, structure);
+    }
+
+    /**
+     * Removes the structure of a deleted message from the cache
+     * @param baseName The base name of the message file
+     * @throws IOException
+     */
+    public synchronized void remove(String baseName) throws IOException {
+        if (!load().containsKey(baseName))
+            return;
+        DataOutputStream out = openForAppend();
+        try {
+            out.writeByte(RECORD_REMOVE);
+            out.writeUTF(baseName);
+            out.close();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        appended(baseName, null);
+    }
+
+    private void appended(String baseName, Structure structure) throws IOException {
+        if (structure == null)
+            cachedEntries.remove(baseName);
+        else
+            cachedEntries.put(baseName, structure);
+        cachedRecords++;
+        validLength = file.length();
+        cachedStamp = stamp();
+        if (cachedRecords > Math.max(MIN_COMPACTION_RECORDS, 2 * cachedEntries.size()))
+            compact();
+    }
+
+    /**
+     * Rewrites the file with one record per cached message
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        Map<String, Structure> entries = load();
+        File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), BUF_SIZE));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Entry<String, Structure> entry : entries.entrySet()) {
+                out.writeByte(RECORD_PUT);
+                writeStructure(out, entry.getKey(), entry.getValue());
+            }
+            out.close();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        if (!tmpFile.renameTo(file))
+            throw new IOException("Could not rename file " + tmpFile + " to " + file);
+        cachedRecords = entries.size();
+        validLength = file.length();
+        cachedStamp = stamp();
+    }
+
+    /**
+     * Opens the file for appending a record after the last complete one. A missing or
+     * corrupted file is started over.
+     */
+    private DataOutputStream openForAppend() throws IOException {
+        if (validLength < HEADER_LENGTH) {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.close();
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+            validLength = HEADER_LENGTH;
+        } else if (file.length() != validLength) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), BUF_SIZE));
+    }
+
+    private void writeStructure(DataOutputStream out, String baseName, Structure structure) throws IOException {
+        out.writeUTF(baseName);
+        out.writeLong(structure.getBodyStartOctet());
+        out.writeBoolean(structure.isLinesCounted());
+        Long lines = structure.getTextualLineCount();
+        out.writeLong(lines == null ? -1 : lines);
+        out.writeInt(structure.getProperties().size());
+        for (Property property : structure.getProperties()) {
+            out.writeUTF(property.getNamespace());
+            out.writeUTF(property.getLocalName());
+            out.writeUTF(property.getValue());
+        }
+    }
+
+    /**
+     * Returns the cached entries, reading them from the disk if they have not been loaded
+     * yet or the file has been changed by someone else.
+     */
+    private Map<String, Structure> load() throws IOException {
+        if (cachedEntries != null && Arrays.equals(cachedStamp, stamp()))
+            return cachedEntries;
+        cachedEntries = new HashMap<String, Structure>();
+        cachedRecords = 0;
+        validLength = 0;
+        if (file.isFile()) {
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file), BUF_SIZE));
+            DataInputStream in = new DataInputStream(counter);
+            try {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                    validLength = HEADER_LENGTH;
+                    readRecords(in, counter);
+                }
+            } catch (EOFException e) {
+                // the header has not been written completely
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        cachedStamp = stamp();
+        return cachedEntries;
+    }
+
+    private void readRecords(DataInputStream in, CountingInputStream counter) throws IOException {
+        try {
+            while (true) {
+                int type = in.read();
+                if (type == -1)
+                    return;
+                String baseName = in.readUTF();
+                if (type == RECORD_PUT) {
+                    long bodyStartOctet = in.readLong();
+                    boolean linesCounted = in.readBoolean();
+                    long lines = in.readLong();
+                    int count = in.readInt();
+                    List<Property> properties = new ArrayList<Property>(count);
+                    for (int i = 0; i < count; i++)
+                        properties.add(new SimpleProperty(in.readUTF(), in.readUTF(), in.readUTF()));
+                    cachedEntries.put(baseName, new Structure(bodyStartOctet, properties, linesCounted, lines == -1 ? null : lines));
+                } else if (type == RECORD_REMOVE) {
+                    cachedEntries.remove(baseName);
+                } else {
+                    // corrupted, the following records are dropped
+                    return;
+                }
+                cachedRecords++;
+                validLength = counter.getCount();
+            }
+        } catch (EOFException e) {
+            // the last record has not been written completely
+        }
+    }
+
+    private long[] stamp() {
+        return new long[] { file.lastModified(), file.length() };
+    }
+
+    /**
+     * Keeps track of the number of bytes read from a stream
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0)
+                count += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        private long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * The structure of a message as far as it has been parsed
+     */
+    public static final class Structure {
+        private final long bodyStartOctet;
+        private final List<Property> properties;
+        private final boolean linesCounted;
+        private final Long textualLineCount;
+
+        /**
+         * @param bodyStartOctet The position at which the body of the message starts
+         * @param properties The properties taken from the headers of the message
+         * @param linesCounted Whether the body has been read to count its lines
+         * @param textualLineCount The number of lines of a textual body
+         */
+        public Structure(long bodyStartOctet, List<Property> properties, boolean linesCounted, Long textualLineCount) {
+            this.bodyStartOctet = bodyStartOctet;
+            this.properties = Collections.unmodifiableList(new ArrayList<Property>(properties));
+            this.linesCounted = linesCounted;
+            this.textualLineCount = textualLineCount;
+        }
+
+        public long getBodyStartOctet() {
+            return bodyStartOctet;
+        }
+
+        public List<Property> getProperties() {
+            return properties;
+        }
+
+        public boolean isLinesCounted() {
+            return linesCounted;
+        }
+
+        public Long getTextualLineCount() {
+            return textualLineCount;
+        }
+    }
+}
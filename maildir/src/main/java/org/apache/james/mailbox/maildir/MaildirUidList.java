@@ -0,0 +1,771 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.maildir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The uid list of a {@link MaildirFolder}, stored as an append-only journal on top
+ * of a binary snapshot of the sorted uid -> file name table.
+ * <br/>
+ * Every change of the folder gets a mod-sequence which is one higher than the highest one
+ * of the folder, so mod-sequences never go backwards and never collide. The mod-sequence of
+ * the last change of each message is kept along with its file name.
+ * <br/>
+ * The journal is a text file. Its first line is the header <code>3 generation</code>,
+ * followed by one record per line:
+ * <ul>
+ * <li><code>+ uid modseq name</code> a message has been appended</li>
+ * <li><code>- uid modseq</code> a message has been deleted</li>
+ * <li><code>= uid modseq name</code> the file of a message has been renamed</li>
+ * </ul>
+ * The snapshot holds the table as it was when the journal was started. As soon as the
+ * journal outgrows the snapshot both are compacted into a new snapshot, which keeps
+ * appends O(1) amortised. Both files are only ever replaced by renaming a temporary
+ * file. A journal with another generation than the snapshot has been left behind by
+ * an interrupted compaction and is already contained in the snapshot, and a record
+ * which has not been written completely is dropped.
+ * <br/>
+ * Uid lists in the former formats (a <code>1 lastUid messageCount</code> header followed
+ * by <code>uid name</code> lines, or a journal of version 2 whose records have no
+ * mod-sequences) can still be read and are converted as soon as they are loaded. Their
+ * messages get the current time as mod-sequence, which is what mod-sequences were derived
+ * from before, so they don't go backwards for clients which already know the folder. The
+ * conversion stores them, so they don't change again on the next load.
+ * <br/>
+ * Once loaded, the table is kept in memory and updated by the writes done through this
+ * instance. It is reloaded when the modification time or the length of the files show
+ * that they have been changed by someone else.
+ */
+public class MaildirUidList {
+
+    public static final int LEGACY_VERSION = 1;
+    public static final int UNSEQUENCED_VERSION = 2;
+    public static final int JOURNAL_VERSION = 3;
+
+    private static final int SNAPSHOT_MAGIC = 0x4a554944;
+    private static final String CHARSET = "UTF-8";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final char RECORD_ADD = '+';
+    private static final char RECORD_REMOVE = '-';
+    private static final char RECORD_RENAME = '=';
+
+    /**
+     * Journals smaller than this are never compacted
+     */
+    private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+    private static final int BUF_SIZE = 4096;
+
+    private final File journalFile;
+    private final File snapshotFile;
+
+    private TreeMap<Long, String> cachedEntries;
+    private TreeMap<Long, Long> cachedModSeqs;
+    private long cachedLastUid;
+    private long cachedHighestModSeq;
+    private long[] cachedStamp;
+
+    public MaildirUidList(File journalFile, File snapshotFile) {
+        this.journalFile = journalFile;
+        this.snapshotFile = snapshotFile;
+    }
+
+    /**
+     * Returns the journal file of this uid list
+     * @return journalFile
+     */
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * Returns the snapshot file of this uid list
+     * @return snapshotFile
+     */
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * Tests whether this uid list has been created
+     * @return true if the journal exists
+     */
+    public boolean exists() {
+        return journalFile.isFile();
+    }
+
+    /**
+     * Returns the name of the message file with the given uid
+     * @param uid The uid of the message
+     * @return The name, <code>null</code> if there is no message with this uid
+     * @throws IOException If the uid list cannot be read or is corrupted
+     */
+    public synchronized String getName(long uid) throws IOException {
+        return load().get(uid);
+    }
+
+    /**
+     * Returns the entries with uids between the two boundaries
+     * @param from The lower uid limit
+     * @param to The upper uid limit. <code>-1</code> disables the upper limit
+     * @return A copy of the uid -> file name table within the limits
+     * @throws IOException If the uid list cannot be read or is corrupted
+     */
+    public synchronized SortedMap<Long, String> getEntries(long from, long to) throws IOException {
+        TreeMap<Long, String> entries = load();
+        if (to == -1)
+            return new TreeMap<Long, String>(entries.tailMap(from));
+        if (to < from)
+            return new TreeMap<Long, String>();
+        return new TreeMap<Long, String>(entries.subMap(from, true, to, true));
+    }
+
+    /**
+     * Returns the mod-sequences of the messages with uids between the two boundaries
+     * @param from The lower uid limit
+     * @param to The upper uid limit. <code>-1</code> disables the upper limit
+     * @return A copy of the uid -> mod-sequence table within the limits
+     * @throws IOException If the uid list cannot be read or is corrupted
+     */
+    public synchronized SortedMap<Long, Long> getModSeqs(long from, long to) throws IOException {
+        load();
+        if (to == -1)
+            return new TreeMap<Long, Long>(cachedModSeqs.tailMap(from));
+        if (to < from)
+            return new TreeMap<Long, Long>();
+        return new TreeMap<Long, Long>(cachedModSeqs.subMap(from, true, to, true));
+    }
+
+    /**
+     * Returns the mod-sequence of the last change of the message with the given uid
+     * @param uid The uid of the message
+     * @return The mod-sequence, <code>-1</code> if there is no message with this uid
+     * @throws IOException If the uid list cannot be read or is corrupted
+     */
+    public synchronized long getModSeq(long uid) throws IOException {
+        load();
+        Long modSeq = cachedModSeqs.get(uid);
+        return modSeq == null ? -1 : modSeq;
+    }
+
+    /**
+     * Returns the highest mod-sequence of the folder, which is the one of its last change
+     * @return highestModSeq
+     * @throws IOException If the uid list cannot be read or is corrupted
+     */
+    public synchronized long getHighestModSeq() throws IOException {
+        load();
+        return cachedHighestModSeq;
+    }
+
+    /**
+     * Returns the last uid which has been used in the folder. If the uid list is not
+     * in memory, only the headers and the tail of the journal are read.
+     * @return lastUid
+     * @throws IOException If the uid list cannot be read or is corrupted
+     */
+    public synchronized long getLastUid() throws IOException {
+        if (isCached())
+            return cachedLastUid;
+        return readLastUid();
+    }
+
+    /**
+     * Reads all entries of this uid list from the disk into the given map.
+     * @param entries The map to fill with uid -> file name
+     * @return The last uid which has been used in the folder
+     * @throws IOException If the uid list cannot be read or is corrupted
+     */
+    public long read(SortedMap<Long, String> entries) throws IOException {
+        return read(entries, new TreeMap<Long, Long>())[0];
+    }
+
+    /**
+     * Reads all entries of this uid list from the disk into the given maps.
+     * @param entries The map to fill with uid -> file name
+     * @param modSeqs The map to fill with uid -> mod-sequence
+     * @return The last uid which has been used in the folder, the highest mod-sequence and
+     * the version of the journal
+     * @throws IOException If the uid list cannot be read or is corrupted
+     */
+    private long[] read(SortedMap<Long, String> entries, SortedMap<Long, Long> modSeqs) throws IOException {
+        RecordReader reader = new RecordReader(new FileInputStream(journalFile));
+        try {
+            long[] header = parseHeader(reader.readLine());
+            // mod-sequences were derived from the current time before they have been stored
+            long initialModSeq = System.currentTimeMillis();
+            if (header[0] == LEGACY_VERSION) {
+                long lastUid = readLegacy(reader, header[1], entries);
+                for (Long uid : entries.keySet())
+                    modSeqs.put(uid, initialModSeq);
+                return new long[] { lastUid, initialModSeq, header[0] };
+            }
+
+            long lastUid;
+            long highestModSeq;
+            SnapshotHeader snapshot;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+            try {
+                snapshot = readSnapshotHeader(in);
+                for (int i = 0; i < snapshot.count; i++) {
+                    long uid = in.readLong();
+                    modSeqs.put(uid, snapshot.version == UNSEQUENCED_VERSION ? initialModSeq : in.readLong());
+                    entries.put(uid, in.readUTF());
+                }
+                lastUid = snapshot.lastUid;
+                highestModSeq = snapshot.version == UNSEQUENCED_VERSION ? initialModSeq : snapshot.highestModSeq;
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            if (snapshot.generation > header[1]) {
+                // the journal has already been compacted into the snapshot
+                return new long[] { lastUid, highestModSeq, Math.min(header[0], snapshot.version) };
+            }
+            if (snapshot.generation < header[1])
+                throw new IOException("Uid list snapshot " + snapshotFile + " is older than its journal");
+
+            boolean sequenced = header[0] != UNSEQUENCED_VERSION;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0)
+                    continue;
+                if (line.length() < 3 || line.charAt(1) != ' ')
+                    throw new IOException("Corrupted entry in uid-file " + journalFile + " line " + reader.getLineNumber());
+                char type = line.charAt(0);
+                String[] fields = splitRecord(line, type != RECORD_REMOVE, sequenced);
+                if (fields == null)
+                    throw new IOException("Corrupted entry in uid-file " + journalFile + " line " + reader.getLineNumber());
+                long uid = Long.parseLong(fields[0]);
+                long modSeq = sequenced ? Long.parseLong(fields[1]) : initialModSeq;
+                switch (type) {
+                case RECORD_ADD:
+                    entries.put(uid, fields[2]);
+                    modSeqs.put(uid, modSeq);
+                    lastUid = Math.max(lastUid, uid);
+                    break;
+                case RECORD_REMOVE:
+                    entries.remove(uid);
+                    modSeqs.remove(uid);
+                    break;
+                case RECORD_RENAME:
+                    if (entries.containsKey(uid)) {
+                        entries.put(uid, fields[2]);
+                        modSeqs.put(uid, modSeq);
+                    }
+                    break;
+                default:
+                    throw new IOException("Corrupted entry in uid-file " + journalFile + " line " + reader.getLineNumber());
+                }
+                highestModSeq = Math.max(highestModSeq, modSeq);
+            }
+            return new long[] { lastUid, highestModSeq, Math.min(header[0], snapshot.version) };
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Splits a journal record into its uid, mod-sequence and name.
+     * @param line The record
+     * @param named Whether the record has to contain a name
+     * @param sequenced Whether the record contains a mod-sequence
+     * @return The fields, <code>null</code> if the record is malformed
+     */
+    private String[] splitRecord(String line, boolean named, boolean sequenced) {
+        String[] fields = new String[3];
+        int count = sequenced ? 2 : 1;
+        int start = 2;
+        for (int i = 0; i < count; i++) {
+            int end = line.indexOf(' ', start);
+            if (end == -1) {
+                if (named || i < count - 1)
+                    return null;
+                end = line.length();
+            }
+            fields[i] = line.substring(start, end);
+            start = end + 1;
+        }
+        if (named)
+            fields[2] = line.substring(start);
+        return fields;
+    }
+
+    private long readLastUid() throws IOException {
+        long[] header = readJournalHeader();
+        if (header[0] == LEGACY_VERSION)
+            return header[1];
+        SnapshotHeader snapshot = readSnapshotHeader();
+        if (snapshot.generation > header[1])
+            return snapshot.lastUid;
+        if (snapshot.generation < header[1])
+            throw new IOException("Uid list snapshot " + snapshotFile + " is older than its journal");
+        return Math.max(snapshot.lastUid, findLastAddedUid());
+    }
+
+    /**
+     * Replaces the whole uid list by a snapshot of the given entries and an empty journal.
+     * Entries which differ from the current ones get a new mod-sequence.
+     * @param lastUid The last uid which has been used in the folder
+     * @param entries The uid -> file name table
+     * @throws IOException
+     */
+    public synchronized void write(long lastUid, SortedMap<Long, String> entries) throws IOException {
+        TreeMap<Long, Long> modSeqs = new TreeMap<Long, Long>();
+        long highestModSeq = assignModSeqs(entries, modSeqs);
+        long generation = 1;
+        if (snapshotFile.isFile()) {
+            try {
+                generation = readSnapshotHeader().generation + 1;
+            } catch (IOException e) {
+                // the snapshot is corrupted, start over
+            }
+        }
+
+        File tmpSnapshot = new File(snapshotFile.getPath() + TMP_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpSnapshot), BUF_SIZE));
+        try {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(JOURNAL_VERSION);
+            out.writeLong(generation);
+            out.writeLong(lastUid);
+            out.writeLong(highestModSeq);
+            out.writeInt(entries.size());
+            for (Entry<Long, String> entry : entries.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeLong(modSeqs.get(entry.getKey()));
+                out.writeUTF(entry.getValue());
+            }
+            out.close();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        rename(tmpSnapshot, snapshotFile);
+        startJournal(generation);
+        cache(lastUid, highestModSeq, new TreeMap<Long, String>(entries), modSeqs);
+    }
+
+    /**
+     * Keeps the mod-sequences of the entries which are unchanged compared to the current
+     * table and gives all other entries a new one.
+     * @param entries The new uid -> file name table
+     * @param modSeqs The map to fill with uid -> mod-sequence
+     * @return The highest mod-sequence of the new table
+     */
+    private long assignModSeqs(SortedMap<Long, String> entries, SortedMap<Long, Long> modSeqs) {
+        TreeMap<Long, String> current = null;
+        if (exists()) {
+            try {
+                current = load();
+            } catch (IOException e) {
+                // the uid list is corrupted, start over
+            }
+        }
+        long highestModSeq = current == null ? System.currentTimeMillis() : cachedHighestModSeq;
+        long nextModSeq = highestModSeq + 1;
+        boolean changed = current == null || current.size() != entries.size();
+        for (Entry<Long, String> entry : entries.entrySet()) {
+            if (current != null && entry.getValue().equals(current.get(entry.getKey()))) {
+                modSeqs.put(entry.getKey(), cachedModSeqs.get(entry.getKey()));
+            } else {
+                modSeqs.put(entry.getKey(), nextModSeq);
+                changed = true;
+            }
+        }
+        return changed ? nextModSeq : highestModSeq;
+    }
+
+    /**
+     * Records a newly appended message
+     * @param uid The uid of the message
+     * @param name The name of the message's file
+     * @return The mod-sequence of the message
+     * @throws IOException
+     */
+    public synchronized long add(long uid, String name) throws IOException {
+        long modSeq = nextModSeq();
+        append(RECORD_ADD + " " + uid + " " + modSeq + " " + name);
+        cachedEntries.put(uid, name);
+        cachedModSeqs.put(uid, modSeq);
+        cachedLastUid = Math.max(cachedLastUid, uid);
+        appended(modSeq);
+        return modSeq;
+    }
+
+    /**
+     * Records the deletion of a message
+     * @param uid The uid of the message
+     * @return The mod-sequence of the deletion
+     * @throws IOException
+     */
+    public synchronized long remove(long uid) throws IOException {
+        long modSeq = nextModSeq();
+        append(RECORD_REMOVE + " " + uid + " " + modSeq);
+        cachedEntries.remove(uid);
+        cachedModSeqs.remove(uid);
+        appended(modSeq);
+        return modSeq;
+    }
+
+    /**
+     * Records a new file name for a message
+     * @param uid The uid of the message
+     * @param name The new name of the message's file
+     * @return The new mod-sequence of the message
+     * @throws IOException
+     */
+    public synchronized long rename(long uid, String name) throws IOException {
+        long modSeq = nextModSeq();
+        append(RECORD_RENAME + " " + uid + " " + modSeq + " " + name);
+        if (cachedEntries.containsKey(uid)) {
+            cachedEntries.put(uid, name);
+            cachedModSeqs.put(uid, modSeq);
+        }
+        appended(modSeq);
+        return modSeq;
+    }
+
+    /**
+     * Loads the table, so that it can be updated along with the journal, and returns
+     * the mod-sequence for the next change.
+     */
+    private long nextModSeq() throws IOException {
+        load();
+        return cachedHighestModSeq + 1;
+    }
+
+    private void appended(long modSeq) throws IOException {
+        cachedHighestModSeq = modSeq;
+        cachedStamp = stamp();
+        compactIfNeeded();
+    }
+
+    /**
+     * Appends a record to the journal
+     * @param record The record without line separator
+     * @throws IOException
+     */
+    private void append(String record) throws IOException {
+        prepareJournal();
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        try {
+            out.write((record + "\n").getBytes(CHARSET));
+            out.close();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (journalFile.length() > Math.max(MIN_COMPACTION_SIZE, snapshotFile.length()))
+            compact();
+    }
+
+    /**
+     * Compacts the snapshot and the journal into a new snapshot
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        TreeMap<Long, String> entries = load();
+        write(cachedLastUid, entries);
+    }
+
+    /**
+     * Returns the in-memory table, reading it from the disk if it has not been loaded
+     * yet or the files have been changed by someone else. A uid list in a former format
+     * is converted right away, so the mod-sequences given to its messages are kept.
+     * @return The uid -> file name table
+     * @throws IOException
+     */
+    private TreeMap<Long, String> load() throws IOException {
+        if (!isCached()) {
+            TreeMap<Long, String> entries = new TreeMap<Long, String>();
+            TreeMap<Long, Long> modSeqs = new TreeMap<Long, Long>();
+            long[] result = read(entries, modSeqs);
+            cache(result[0], result[1], entries, modSeqs);
+            if (result[2] != JOURNAL_VERSION)
+                compact();
+        }
+        return cachedEntries;
+    }
+
+    private void cache(long lastUid, long highestModSeq, TreeMap<Long, String> entries, TreeMap<Long, Long> modSeqs) {
+        cachedEntries = entries;
+        cachedModSeqs = modSeqs;
+        cachedLastUid = lastUid;
+        cachedHighestModSeq = highestModSeq;
+        cachedStamp = stamp();
+    }
+
+    private boolean isCached() {
+        return cachedEntries != null && Arrays.equals(cachedStamp, stamp());
+    }
+
+    /**
+     * Returns what is known about the state of the files on the disk without reading them
+     */
+    private long[] stamp() {
+        return new long[] { journalFile.lastModified(), journalFile.length(), snapshotFile.lastModified(), snapshotFile.length() };
+    }
+
+    /**
+     * Makes sure records can be appended to the journal: a uid list in a former format
+     * is converted, a journal left behind by an interrupted compaction is restarted and
+     * an incompletely written last record is cut off.
+     * @throws IOException
+     */
+    private void prepareJournal() throws IOException {
+        long[] header = readJournalHeader();
+        if (header[0] != JOURNAL_VERSION) {
+            compact();
+            return;
+        }
+        long generation = readSnapshotHeader().generation;
+        if (generation != header[1]) {
+            startJournal(generation);
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        try {
+            long length = raf.length();
+            long end = length;
+            while (end > 0) {
+                raf.seek(end - 1);
+                if (raf.read() == '\n')
+                    break;
+                end--;
+            }
+            if (end != length)
+                raf.setLength(end);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Replaces the journal by an empty one for the given snapshot generation
+     * @param generation
+     * @throws IOException
+     */
+    private void startJournal(long generation) throws IOException {
+        File tmpJournal = new File(journalFile.getPath() + TMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(tmpJournal);
+        try {
+            out.write((JOURNAL_VERSION + " " + generation + "\n").getBytes(CHARSET));
+            out.close();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        rename(tmpJournal, journalFile);
+    }
+
+    /**
+     * Walks the journal backwards and returns the uid of the last appended message.
+     * @return The last uid added by the journal, <code>-1</code> if there is none
+     * @throws IOException
+     */
+    private long findLastAddedUid() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "r");
+        try {
+            ReverseReader reader = new ReverseReader(raf);
+            long pos = raf.length();
+            // skip an incompletely written record
+            while (pos > 0 && reader.byteAt(pos - 1) != '\n')
+                pos--;
+            while (pos > 0) {
+                long start = pos - 1;
+                while (start > 0 && reader.byteAt(start - 1) != '\n')
+                    start--;
+                if (reader.byteAt(start) == RECORD_ADD) {
+                    long uid = 0;
+                    for (long i = start + 2; i < pos - 1; i++) {
+                        int b = reader.byteAt(i);
+                        if (b == ' ')
+                            break;
+                        if (b < '0' || b > '9')
+                            throw new IOException("Corrupted entry in uid-file " + journalFile);
+                        uid = uid * 10 + (b - '0');
+                    }
+                    return uid;
+                }
+                pos = start;
+            }
+            return -1;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private long[] readJournalHeader() throws IOException {
+        RecordReader reader = new RecordReader(new FileInputStream(journalFile));
+        try {
+            return parseHeader(reader.readLine());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parses the header line of the journal.
+     * @param line The raw header line
+     * @return The version and the generation (or the lastUid for the former format)
+     * @throws IOException
+     */
+    private long[] parseHeader(String line) throws IOException {
+        if (line == null)
+            throw new IOException("Header entry in uid-file is null");
+        int gap1 = line.indexOf(" ");
+        if (gap1 == -1) {
+            // there must be some issues in the file if no gap can be found
+            throw new IOException("Corrupted header entry in uid-file");
+        }
+        int version = Integer.valueOf(line.substring(0, gap1));
+        if (version != LEGACY_VERSION && version != UNSEQUENCED_VERSION && version != JOURNAL_VERSION)
+            throw new IOException("Cannot read uidlists with versions other than " + LEGACY_VERSION + ", "
+                    + UNSEQUENCED_VERSION + " or " + JOURNAL_VERSION + ".");
+        int gap2 = line.indexOf(" ", gap1 + 1);
+        long value = Long.valueOf(gap2 == -1 ? line.substring(gap1 + 1) : line.substring(gap1 + 1, gap2));
+        return new long[] { version, value };
+    }
+
+    /**
+     * Reads the lines of a uid list in the former format
+     */
+    private long readLegacy(RecordReader reader, long lastUid, SortedMap<Long, String> entries) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int gap = line.indexOf(" ");
+            // skip empty lines and corrupted entries
+            if (gap != -1)
+                entries.put(Long.valueOf(line.substring(0, gap)), line.substring(gap + 1));
+        }
+        return lastUid;
+    }
+
+    private SnapshotHeader readSnapshotHeader() throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(snapshotFile));
+        try {
+            return readSnapshotHeader(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private SnapshotHeader readSnapshotHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != SNAPSHOT_MAGIC)
+            throw new IOException("Corrupted uid list snapshot " + snapshotFile);
+        SnapshotHeader header = new SnapshotHeader();
+        header.version = in.readInt();
+        if (header.version != UNSEQUENCED_VERSION && header.version != JOURNAL_VERSION)
+            throw new IOException("Corrupted uid list snapshot " + snapshotFile);
+        header.generation = in.readLong();
+        header.lastUid = in.readLong();
+        if (header.version == JOURNAL_VERSION)
+            header.highestModSeq = in.readLong();
+        header.count = in.readInt();
+        return header;
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to))
+            throw new IOException("Could not rename file " + from + " to " + to);
+    }
+
+    private static final class SnapshotHeader {
+        private int version;
+        private long generation;
+        private long lastUid;
+        private long highestModSeq;
+        private int count;
+    }
+
+    /**
+     * Reads newline terminated records. A last line without terminating newline
+     * has not been written completely and is skipped.
+     */
+    private static final class RecordReader {
+        private final InputStream in;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        private int lineNumber = 0;
+
+        private RecordReader(InputStream in) {
+            this.in = new BufferedInputStream(in, BUF_SIZE);
+        }
+
+        private String readLine() throws IOException {
+            line.reset();
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b == '\n') {
+                    lineNumber++;
+                    return line.toString(CHARSET);
+                }
+                line.write(b);
+            }
+            return null;
+        }
+
+        private int getLineNumber() {
+            return lineNumber;
+        }
+
+        private void close() {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Random access to the bytes of a file which is read backwards in blocks
+     */
+    private static final class ReverseReader {
+        private final RandomAccessFile raf;
+        private final byte[] buf = new byte[BUF_SIZE];
+        private long bufStart = -1;
+        private int bufLength = 0;
+
+        private ReverseReader(RandomAccessFile raf) {
+            this.raf = raf;
+        }
+
+        private int byteAt(long pos) throws IOException {
+            if (bufStart == -1 || pos < bufStart || pos >= bufStart + bufLength) {
+                bufStart = Math.max(0, pos - BUF_SIZE + 1);
+                raf.seek(bufStart);
+                bufLength = raf.read(buf, 0, (int) Math.min(BUF_SIZE, raf.length() - bufStart));
+            }
+            return buf[(int) (pos - bufStart)] & 0xff;
+        }
+    }
+}
@@ -19,12 +19,9 @@
 package org.apache.james.mailbox.maildir.mail;
 
 import java.io.File;
-import java.io.FileFilter;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Pattern;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.james.mailbox.MailboxSession;
@@ -32,7 +29,7 @@ import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.exception.MailboxExistsException;
 import org.apache.james.mailbox.exception.MailboxNotFoundException;
 import org.apache.james.mailbox.maildir.MaildirFolder;
-import org.apache.james.mailbox.maildir.MaildirMessageName;
+import org.apache.james.mailbox.maildir.MaildirMailboxIndex;
 import org.apache.james.mailbox.maildir.MaildirStore;
 import org.apache.james.mailbox.model.MailboxConstants;
 import org.apache.james.mailbox.model.MailboxPath;
@@ -77,6 +74,14 @@ public class MaildirMailboxMapper extends NonTransactionalMapper implements Mail
                     FileUtils.deleteDirectory(new File(folder, MaildirFolder.TMP));
                     File uidListFile = new File(folder, MaildirFolder.UIDLIST_FILE);
                     uidListFile.delete();
+                    File uidListSnapshotFile = new File(folder, MaildirFolder.UIDLIST_SNAPSHOT_FILE);
+                    uidListSnapshotFile.delete();
+                    File countersFile = new File(folder, MaildirFolder.COUNTERS_FILE);
+                    countersFile.delete();
+                    File structureFile = new File(folder, MaildirFolder.STRUCTURE_FILE);
+                    structureFile.delete();
+                    File shardedFile = new File(folder, MaildirFolder.SHARDED_FILE);
+                    shardedFile.delete();
                     File validityFile = new File(folder, MaildirFolder.VALIDITY_FILE);
                     validityFile.delete();
                 }
@@ -84,6 +89,7 @@ public class MaildirMailboxMapper extends NonTransactionalMapper implements Mail
                     // We simply delete all the folder for non INBOX mailboxes.
                     FileUtils.deleteDirectory(folder);
                 }
+                maildirStore.getMailboxIndex(mailbox.getUser()).remove(mailbox.getName());
             } catch (IOException e) {
                 e.printStackTrace();
                 throw new MailboxException("Unable to delete Mailbox " + mailbox, e);
@@ -110,21 +116,21 @@ public class MaildirMailboxMapper extends NonTransactionalMapper implements Mail
     @Override
     public List<Mailbox<Integer>> findMailboxWithPathLike(MailboxPath mailboxPath)
             throws MailboxException {
-        final Pattern searchPattern = Pattern.compile("[" + MaildirStore.maildirDelimiter + "]"
-                + mailboxPath.getName().replace(".", "\\.").replace(MaildirStore.WILDCARD, ".*"));
-        FilenameFilter filter = MaildirMessageName.createRegexFilter(searchPattern);
-        File root = maildirStore.getMailboxRootForUser(mailboxPath.getUser());
-        File[] folders = root.listFiles(filter);
+        MaildirMailboxIndex index = maildirStore.getMailboxIndex(mailboxPath.getUser());
         ArrayList<Mailbox<Integer>> mailboxList = new ArrayList<Mailbox<Integer>>();
-        for (File folder : folders)
-            if (folder.isDirectory()) {
-                Mailbox<Integer> mailbox = maildirStore.loadMailbox(session, root, mailboxPath.getNamespace(), mailboxPath.getUser(), folder.getName());
-                mailboxList.add(cacheMailbox(mailbox));
+        try {
+            for (String name : index.find(mailboxPath.getName())) {
+                Mailbox<Integer> mailbox = loadMailbox(index, new MailboxPath(mailboxPath.getNamespace(), mailboxPath.getUser(), name));
+                if (mailbox == null)
+                    continue;
+                // INBOX is in the root of the folder and listed first
+                if (name.equals(MailboxConstants.INBOX))
+                    mailboxList.add(0, cacheMailbox(mailbox));
+                else
+                    mailboxList.add(cacheMailbox(mailbox));
             }
-        // INBOX is in the root of the folder
-        if (Pattern.matches(mailboxPath.getName().replace(MaildirStore.WILDCARD, ".*"), MailboxConstants.INBOX)) {
-            Mailbox<Integer> mailbox = maildirStore.loadMailbox(session, root, mailboxPath.getNamespace(), mailboxPath.getUser(), "");
-            mailboxList.add(0, cacheMailbox(mailbox));
+        } catch (IOException e) {
+            throw new MailboxException("Unable to list mailboxes of " + mailboxPath.getUser(), e);
         }
         return mailboxList;
     }
@@ -134,10 +140,12 @@ public class MaildirMailboxMapper extends NonTransactionalMapper implements Mail
      */
     @Override
     public boolean hasChildren(Mailbox<Integer> mailbox, char delimiter) throws MailboxException, MailboxNotFoundException {
-        String searchString = mailbox.getName() + MaildirStore.maildirDelimiter + MaildirStore.WILDCARD;
-        List<Mailbox<Integer>> mailboxes = findMailboxWithPathLike(
-                new MailboxPath(mailbox.getNamespace(), mailbox.getUser(), searchString));
-        return (mailboxes.size() > 0);
+        try {
+            return maildirStore.getMailboxIndex(mailbox.getUser()).hasChildren(mailbox.getName(),
+                    MaildirStore.maildirDelimiter.charAt(0));
+        } catch (IOException e) {
+            throw new MailboxException("Unable to list mailboxes of " + mailbox.getUser(), e);
+        }
     }
 
     /**
@@ -171,10 +179,22 @@ public class MaildirMailboxMapper extends NonTransactionalMapper implements Mail
                         File newUidListFile = new File(newFolder, MaildirFolder.UIDLIST_FILE);
                         if (!oldUidListFile.renameTo(newUidListFile))
                             throw new IOException("Could not rename file " + oldUidListFile + " to " + newUidListFile);
+                        File oldUidListSnapshotFile = new File(inboxFolder, MaildirFolder.UIDLIST_SNAPSHOT_FILE);
+                        File newUidListSnapshotFile = new File(newFolder, MaildirFolder.UIDLIST_SNAPSHOT_FILE);
+                        // uid lists in the former format come without snapshot
+                        if (oldUidListSnapshotFile.exists() && !oldUidListSnapshotFile.renameTo(newUidListSnapshotFile))
+                            throw new IOException("Could not rename file " + oldUidListSnapshotFile + " to " + newUidListSnapshotFile);
                         File oldValidityFile = new File(inboxFolder, MaildirFolder.VALIDITY_FILE);
                         File newValidityFile = new File(newFolder, MaildirFolder.VALIDITY_FILE);
                         if (!oldValidityFile.renameTo(newValidityFile))
                             throw new IOException("Could not rename file " + oldValidityFile + " to " + newValidityFile);
+                        // the counters will be rebuilt for both folders
+                        new File(inboxFolder, MaildirFolder.COUNTERS_FILE).delete();
+                        // the cached structures are only an optimization
+                        new File(inboxFolder, MaildirFolder.STRUCTURE_FILE).renameTo(new File(newFolder, MaildirFolder.STRUCTURE_FILE));
+                        // the moved messages keep their layout
+                        if (originalFolder.isSharded())
+                            folder.setSharded(true);
                         // recreate the INBOX folders, uidvalidity and uidlist will
                         // automatically be recreated later
                         if (!originalFolder.getCurFolder().mkdir())
@@ -183,6 +203,7 @@ public class MaildirMailboxMapper extends NonTransactionalMapper implements Mail
                             throw new IOException("Could not create folder " + originalFolder.getNewFolder());
                         if (!originalFolder.getTmpFolder().mkdir())
                             throw new IOException("Could not create folder " + originalFolder.getTmpFolder());
+                        maildirStore.getMailboxIndex(mailbox.getUser()).rename(originalMailbox.getName(), mailbox.getName());
                     } catch (IOException e) {
                         throw new MailboxException("Failed to save Mailbox " + mailbox, e);
                     }
@@ -191,12 +212,18 @@ public class MaildirMailboxMapper extends NonTransactionalMapper implements Mail
                     if (!originalFolder.getRootFile().renameTo(folder.getRootFile()))
                         throw new MailboxException("Failed to save Mailbox " + mailbox, 
                                 new IOException("Could not rename folder " + originalFolder));
+                    try {
+                        maildirStore.getMailboxIndex(mailbox.getUser()).rename(originalMailbox.getName(), mailbox.getName());
+                    } catch (IOException e) {
+                        throw new MailboxException("Failed to save Mailbox " + mailbox, e);
+                    }
                 }
             }
         } catch (MailboxNotFoundException e) {
             // it cannot be found and is thus new
             MaildirFolder folder = maildirStore.createMaildirFolder(mailbox);
-            if (!folder.exists()) {
+            boolean created = !folder.exists();
+            if (created) {
                 boolean success = folder.getRootFile().exists();
                 if (!success) success = folder.getRootFile().mkdirs();
                 if (!success)
@@ -209,7 +236,11 @@ public class MaildirMailboxMapper extends NonTransactionalMapper implements Mail
 
             }
             try {
+                // existing folders keep their layout
+                if (created && maildirStore.isSharded())
+                    folder.setSharded(true);
                 folder.setUidValidity(mailbox.getUidValidity());
+                maildirStore.getMailboxIndex(mailbox.getUser()).add(mailbox.getName(), mailbox.getUidValidity());
             } catch (IOException ioe) {
                 throw new MailboxException("Failed to save Mailbox " + mailbox, ioe);
 
@@ -263,6 +294,17 @@ public class MaildirMailboxMapper extends NonTransactionalMapper implements Mail
         return mailbox;
     }
     
+    /**
+     * Creates a mailbox with the uidValidity from the index
+     * @return The mailbox, <code>null</code> if it has been deleted in the meantime
+     */
+    private Mailbox<Integer> loadMailbox(MaildirMailboxIndex index, MailboxPath mailboxPath) throws IOException {
+        Long uidValidity = index.getUidValidity(mailboxPath.getName());
+        if (uidValidity == null)
+            return null;
+        return maildirStore.loadMailbox(session, mailboxPath, uidValidity);
+    }
+
     /**
      * Retrieves a mailbox from the cache
      * @param mailboxId The id of the mailbox to retrieve
@@ -293,27 +335,21 @@ public class MaildirMailboxMapper extends NonTransactionalMapper implements Mail
                 userName = user.getName() + "@" + domain.getName();
             }
             
-            // Special case for INBOX: Let's use the user's folder.
-            MailboxPath inboxMailboxPath = new MailboxPath(session.getPersonalSpace(), userName, MailboxConstants.INBOX);
-            mailboxList.add(maildirStore.loadMailbox(session, inboxMailboxPath));
-            
-            // List all INBOX sub folders.
-            
-            File[] mailboxes = user.listFiles(new FileFilter() {
-                @Override
-                public boolean accept(File pathname) {
-                    return pathname.getName().startsWith(".");
+            MaildirMailboxIndex index = maildirStore.getMailboxIndex(userName);
+            try {
+                for (String name : index.find(MaildirStore.WILDCARD)) {
+                    // Special case for INBOX: Let's use the user's folder.
+                    MailboxPath mailboxPath;
+                    if (name.equals(MailboxConstants.INBOX))
+                        mailboxPath = new MailboxPath(session.getPersonalSpace(), userName, name);
+                    else
+                        mailboxPath = new MailboxPath(MailboxConstants.USER_NAMESPACE, userName, name);
+                    Mailbox<Integer> mailbox = loadMailbox(index, mailboxPath);
+                    if (mailbox != null)
+                        mailboxList.add(mailbox);
                 }
-            });
-            
-            for (File mailbox: mailboxes) {
-               
-                
-                MailboxPath mailboxPath = new MailboxPath(MailboxConstants.USER_NAMESPACE, 
-                        userName, 
-                        mailbox.getName().substring(1));
-                mailboxList.add(maildirStore.loadMailbox(session, mailboxPath));
-
+            } catch (IOException e) {
+                throw new MailboxException("Unable to list mailboxes of " + userName, e);
             }
 
         }
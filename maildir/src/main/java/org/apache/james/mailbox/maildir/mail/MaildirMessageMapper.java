@@ -19,10 +19,14 @@
 package org.apache.james.mailbox.maildir.mail;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -34,12 +38,13 @@ import java.util.Map.Entry;
 import javax.mail.Flags;
 import javax.mail.Flags.Flag;
 
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.maildir.MaildirFolder;
 import org.apache.james.mailbox.maildir.MaildirMessageName;
 import org.apache.james.mailbox.maildir.MaildirStore;
+import org.apache.james.mailbox.maildir.MaildirStore.SyncPolicy;
 import org.apache.james.mailbox.maildir.mail.model.MaildirMessage;
 import org.apache.james.mailbox.model.MessageMetaData;
 import org.apache.james.mailbox.model.MessageRange;
@@ -54,7 +59,10 @@ import org.apache.james.mailbox.store.mail.model.impl.SimpleMessage;
 public class MaildirMessageMapper extends AbstractMessageMapper<Integer> {
 
     private final MaildirStore maildirStore;
-    private final static int BUF_SIZE = 2048;
+    /**
+     * The maximal number of bytes handed to a single channel transfer
+     */
+    private final static long TRANSFER_SIZE = 1024 * 1024;
 
     public MaildirMessageMapper(MailboxSession session, MaildirStore  maildirStore) {
         super(session, maildirStore, maildirStore);
@@ -68,15 +76,11 @@ public class MaildirMessageMapper extends AbstractMessageMapper<Integer> {
     @Override
     public long countMessagesInMailbox(Mailbox<Integer> mailbox) throws MailboxException {
         MaildirFolder folder = maildirStore.createMaildirFolder(mailbox);
-        File newFolder = folder.getNewFolder();
-        File curFolder = folder.getCurFolder();
-        File[] newFiles = newFolder.listFiles();
-        File[] curFiles = curFolder.listFiles();
-        if (newFiles == null || curFiles == null)
-            throw new MailboxException("Unable to count messages in Mailbox " + mailbox,
-                    new IOException("Not a valid Maildir folder: " + maildirStore.getFolderName(mailbox)));
-        int count = newFiles.length + curFiles.length;
-        return count;
+        try {
+            return folder.getCounters(mailboxSession).getExists();
+        } catch (MailboxException e) {
+            throw new MailboxException("Unable to count messages in Mailbox " + mailbox, e);
+        }
     }
 
     /**
@@ -85,15 +89,11 @@ public class MaildirMessageMapper extends AbstractMessageMapper<Integer> {
     @Override
     public long countUnseenMessagesInMailbox(Mailbox<Integer> mailbox) throws MailboxException {
         MaildirFolder folder = maildirStore.createMaildirFolder(mailbox);
-        File newFolder = folder.getNewFolder();
-        File curFolder = folder.getCurFolder();
-        String[] unseenMessages = curFolder.list(MaildirMessageName.FILTER_UNSEEN_MESSAGES);
-        String[] newUnseenMessages = newFolder.list(MaildirMessageName.FILTER_UNSEEN_MESSAGES);
-        if (newUnseenMessages == null || unseenMessages == null)
-            throw new MailboxException("Unable to count unseen messages in Mailbox " + mailbox,
-                    new IOException("Not a valid Maildir folder: " + maildirStore.getFolderName(mailbox)));
-        int count = newUnseenMessages.length + unseenMessages.length;
-        return count;
+        try {
+            return folder.getCounters(mailboxSession).getUnseen();
+        } catch (MailboxException e) {
+            throw new MailboxException("Unable to count unseen messages in Mailbox " + mailbox, e);
+        }
     }
 
     /**
@@ -288,38 +288,31 @@ public class MaildirMessageMapper extends AbstractMessageMapper<Integer> {
         // all folders and compare
         // them to this message name. We rather let this happen once in a
         // billion years...
+        // For the same reason the file is not created exclusively before it gets written.
         MaildirMessageName messageName = MaildirMessageName.createUniqueName(folder, message.getFullContentOctets());
         File messageFile = new File(tmpFolder, messageName.getFullName());
         FileOutputStream fos = null;
         InputStream input = null;
         try {
-            if (!messageFile.createNewFile())
-                throw new IOException("Could not create file " + messageFile);
             fos = new FileOutputStream(messageFile);
             input = message.getFullContent();
-            byte[] b = new byte[BUF_SIZE];
-            int len = 0;
-            while ((len = input.read(b)) != -1)
-                fos.write(b, 0, len);
+            long size = transfer(input, fos.getChannel());
+            if (maildirStore.getSyncPolicy() == SyncPolicy.FILE)
+                fos.getChannel().force(true);
+            // the name carries the number of bytes which have actually been written
+            if (size != message.getFullContentOctets())
+                messageName.setSize(size);
         } catch (IOException ioe) {
             throw new MailboxException("Failure while save Message " + message + " in Mailbox " + mailbox, ioe);
         } finally {
-            try {
-                if (fos != null)
-                    fos.close();
-            } catch (IOException e) {
-            }
-            try {
-                if (input != null)
-                    input.close();
-            } catch (IOException e) {
-            }
+            IOUtils.closeQuietly(fos);
+            IOUtils.closeQuietly(input);
         }
         File newMessageFile = null;
         // delivered via SMTP, goes to ./new without flags
         if (message.isRecent()) {
             messageName.setFlags(message.createFlags());
-            newMessageFile = new File(folder.getNewFolder(), messageName.getFullName());
+            newMessageFile = new File(folder.getNewFolder(messageName.getFullName()), messageName.getFullName());
             // System.out.println("save new recent " + message + " as " +
             // newMessageFile.getName());
         }
@@ -327,20 +320,14 @@ public class MaildirMessageMapper extends AbstractMessageMapper<Integer> {
         // directly)
         else {
             messageName.setFlags(message.createFlags());
-            newMessageFile = new File(folder.getCurFolder(), messageName.getFullName());
+            newMessageFile = new File(folder.getCurFolder(messageName.getFullName()), messageName.getFullName());
             // System.out.println("save new not recent " + message + " as "
             // + newMessageFile.getName());
         }
         try {
-            FileUtils.moveFile(messageFile, newMessageFile);
-        } catch (IOException e) {
-            // TODO: Try copy and delete
-            throw new MailboxException("Failure while save Message " + message + " in Mailbox " + mailbox, e);
-        }
-        try {
-            uid = folder.appendMessage(mailboxSession, newMessageFile.getName());
+            uid = folder.appendMessage(mailboxSession, messageFile, newMessageFile);
             message.setUid(uid);
-            message.setModSeq(newMessageFile.lastModified());
+            message.setModSeq(folder.getModSeq(mailboxSession, uid));
             return new SimpleMessageMetaData(message);
         } catch (MailboxException e) {
             throw new MailboxException("Failure while save Message " + message + " in Mailbox " + mailbox, e);
@@ -349,6 +336,32 @@ public class MaildirMessageMapper extends AbstractMessageMapper<Integer> {
     }
 
 
+    /**
+     * Writes the content of a message to a file channel, letting the channel pull the
+     * data from the source. Content which comes from a file is copied by the operating
+     * system without passing through the heap.
+     * @param input The content of the message
+     * @param channel The channel of the message file
+     * @return The number of bytes written
+     * @throws IOException
+     */
+    private long transfer(InputStream input, FileChannel channel) throws IOException {
+        long position = 0;
+        long transferred;
+        if (input instanceof FileInputStream) {
+            FileChannel source = ((FileInputStream) input).getChannel();
+            while ((transferred = source.transferTo(source.position(), TRANSFER_SIZE, channel)) > 0) {
+                source.position(source.position() + transferred);
+                position += transferred;
+            }
+        } else {
+            ReadableByteChannel source = Channels.newChannel(input);
+            while ((transferred = channel.transferFrom(source, position, TRANSFER_SIZE)) > 0)
+                position += transferred;
+        }
+        return position;
+    }
+
     /**
      * @see org.apache.james.mailbox.store.transaction.TransactionalMapper#begin()
      */
@@ -416,25 +429,20 @@ public class MaildirMessageMapper extends AbstractMessageMapper<Integer> {
                     // See MAILBOX-57
                     if (newFlags.contains(Flag.RECENT)) {
                         // message is recent so save it in the new folder
-                        newMessageFile = new File(folder.getNewFolder(), newMessageName);
+                        newMessageFile = new File(folder.getNewFolder(newMessageName), newMessageName);
                     } else {
-                        newMessageFile = new File(folder.getCurFolder(), newMessageName);
+                        newMessageFile = new File(folder.getCurFolder(newMessageName), newMessageName);
                     }
                     long modSeq;
                     // if the flags don't have change we should not try to move the file
                     if (newMessageFile.equals(messageFile) == false) {
-                        FileUtils.moveFile(messageFile, newMessageFile );
-                        modSeq = newMessageFile.lastModified();
-
+                        modSeq = folder.update(mailboxSession, member.getUid(), messageFile, newMessageFile);
                     } else {
-                        modSeq = messageFile.lastModified();
+                        modSeq = member.getModSeq();
                     } 
                     member.setModSeq(modSeq);
                     
                     updatedFlags.add(new UpdatedFlags(member.getUid(), modSeq, originalFlags, newFlags));
-
-                    long uid = member.getUid();
-                    folder.update(mailboxSession, uid, newMessageName);
                 }
             } catch (IOException e) {
                 throw new MailboxException("Failure while save Message " + member + " in Mailbox " + mailbox, e);
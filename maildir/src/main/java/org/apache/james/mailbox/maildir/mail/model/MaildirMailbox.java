@@ -15,7 +15,11 @@ public class MaildirMailbox<Id> extends SimpleMailbox<Id> {
     private MailboxSession session;
 
     public MaildirMailbox(MailboxSession session, MailboxPath path, MaildirFolder folder) throws IOException {
-        super(path, folder.getUidValidity());
+        this(session, path, folder, folder.getUidValidity());
+    }
+
+    public MaildirMailbox(MailboxSession session, MailboxPath path, MaildirFolder folder, long uidValidity) {
+        super(path, uidValidity);
         this.folder = folder;
         this.session = session;
     }
@@ -31,8 +31,9 @@ import javax.mail.Flags;
 import javax.mail.util.SharedFileInputStream;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.james.mailbox.maildir.MaildirFolder;
 import org.apache.james.mailbox.maildir.MaildirMessageName;
+import org.apache.james.mailbox.maildir.MaildirStructureCache;
+import org.apache.james.mailbox.maildir.MaildirStructureCache.Structure;
 import org.apache.james.mailbox.store.mail.model.AbstractMessage;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
 import org.apache.james.mailbox.store.mail.model.Property;
@@ -51,8 +52,9 @@ public class MaildirMessage extends AbstractMessage<Integer> {
 
     private MaildirMessageName messageName;
     private int bodyStartOctet;
-    private final PropertyBuilder propertyBuilder = new PropertyBuilder();
-    private boolean parsed;
+    private PropertyBuilder propertyBuilder = new PropertyBuilder();
+    private boolean headerParsed;
+    private boolean bodyParsed;
     private boolean answered;
     private boolean deleted;
     private boolean draft;
@@ -67,7 +69,10 @@ public class MaildirMessage extends AbstractMessage<Integer> {
     public MaildirMessage(Mailbox<Integer> mailbox, long uid, MaildirMessageName messageName) throws IOException {
         this.mailbox = mailbox;
         setUid(uid);
-        setModSeq(messageName.getFile().lastModified());
+        if (messageName.getModSeq() != -1)
+            setModSeq(messageName.getModSeq());
+        else
+            setModSeq(messageName.getFile().lastModified());
         Flags flags = messageName.getFlags();
         
         // Set the flags for the message and respect if its RECENT
@@ -77,7 +82,7 @@ public class MaildirMessage extends AbstractMessage<Integer> {
             throw new FileNotFoundException("Unable to read file " + file.getAbsolutePath() + " for the message");
         } else {
             // if the message resist in the new folder its RECENT
-            if (file.getParentFile().getName().equals(MaildirFolder.NEW)) {
+            if (messageName.getParentFolder().isRecent(file)) {
                 flags.add(Flags.Flag.RECENT);
             }
         }
@@ -217,11 +222,29 @@ public class MaildirMessage extends AbstractMessage<Integer> {
         this.modSeq = modSeq;
     }
     /**
-     * Parse message if needed
+     * Parses the headers of the message if needed. The body is not read, unless it is
+     * cached that it has been read before. The results are taken from and put into the
+     * structure cache of the folder.
      */
-    private synchronized void parseMessage() {
-        if (parsed)
+    private synchronized void parseHeader() {
+        if (headerParsed)
             return;
+        MaildirStructureCache cache = messageName.getParentFolder().getStructureCache();
+        try {
+            Structure structure = cache.get(messageName.getBaseName());
+            if (structure != null) {
+                bodyStartOctet = (int) structure.getBodyStartOctet();
+                propertyBuilder = new PropertyBuilder(structure.getProperties());
+                if (structure.isLinesCounted()) {
+                    propertyBuilder.setTextualLineCount(structure.getTextualLineCount());
+                    bodyParsed = true;
+                }
+                headerParsed = true;
+                return;
+            }
+        } catch (IOException e) {
+            // the cache is only an optimization, parse the message
+        }
         SharedFileInputStream tmpMsgIn = null;
         try {
             tmpMsgIn = new SharedFileInputStream(messageName.getFile());
@@ -277,28 +300,9 @@ public class MaildirMessage extends AbstractMessage<Integer> {
             if (boundary != null) {
                 propertyBuilder.setBoundary(boundary);
             }
-            if ("text".equalsIgnoreCase(mediaType)) {
-                long lines = -1;
-                final CountingInputStream bodyStream = new CountingInputStream(parser.getInputStream());
-                try {
-                    bodyStream.readAll();
-                    lines = bodyStream.getLineCount();
-                } finally {
-                    IOUtils.closeQuietly(bodyStream);
-                }
-
-                next = parser.next();
-                if (next == EntityState.T_EPILOGUE) {
-                    final CountingInputStream epilogueStream = new CountingInputStream(parser.getInputStream());
-                    try {
-                        epilogueStream.readAll();
-                        lines += epilogueStream.getLineCount();
-                    } finally {
-                        IOUtils.closeQuietly(epilogueStream);
-                    }
-                }
-                propertyBuilder.setTextualLineCount(lines);
-            }
+            // only textual bodies have to be read to count their lines
+            bodyParsed = !"text".equalsIgnoreCase(mediaType);
+            cacheStructure();
         } catch (IOException e) {
             // has successfully been parsen when appending, shouldn't give any
             // problems
@@ -313,7 +317,38 @@ public class MaildirMessage extends AbstractMessage<Integer> {
                     // ignore on close
                 }
             }
-            parsed = true;
+            headerParsed = true;
+        }
+    }
+
+    /**
+     * Reads the body of the message if needed to count the lines of a textual body
+     */
+    private synchronized void parseBody() {
+        parseHeader();
+        if (bodyParsed)
+            return;
+        CountingInputStream bodyStream = null;
+        try {
+            bodyStream = new CountingInputStream(getBodyContent());
+            bodyStream.readAll();
+            propertyBuilder.setTextualLineCount((long) bodyStream.getLineCount());
+            cacheStructure();
+        } catch (IOException e) {
+            // has successfully been parsen when appending, shouldn't give any
+            // problems
+        } finally {
+            IOUtils.closeQuietly(bodyStream);
+            bodyParsed = true;
+        }
+    }
+
+    private void cacheStructure() {
+        try {
+            messageName.getParentFolder().getStructureCache().put(messageName.getBaseName(),
+                    new Structure(bodyStartOctet, propertyBuilder.toProperties(), bodyParsed, propertyBuilder.getTextualLineCount()));
+        } catch (IOException e) {
+            // the cache is only an optimization
         }
     }
 
@@ -360,7 +395,7 @@ public class MaildirMessage extends AbstractMessage<Integer> {
      */
     @Override
     public String getMediaType() {
-        parseMessage();
+        parseHeader();
         return propertyBuilder.getMediaType();
     }
 
@@ -369,7 +404,7 @@ public class MaildirMessage extends AbstractMessage<Integer> {
      */
     @Override
     public String getSubType() {
-        parseMessage();
+        parseHeader();
         return propertyBuilder.getSubType();
     }
 
@@ -378,7 +413,16 @@ public class MaildirMessage extends AbstractMessage<Integer> {
      */
     @Override
     public long getFullContentOctets() {
-        return messageName.getSize();
+        Long size = messageName.getSize();
+        if (size == null) {
+            // the name carries no size, so ask the file system
+            try {
+                size = messageName.getFile().length();
+            } catch (FileNotFoundException e) {
+                size = 0L;
+            }
+        }
+        return size;
     }
 
     /**
@@ -386,7 +430,7 @@ public class MaildirMessage extends AbstractMessage<Integer> {
      */
     @Override
     public Long getTextualLineCount() {
-        parseMessage();
+        parseBody();
         return propertyBuilder.getTextualLineCount();
     }
 
@@ -395,7 +439,7 @@ public class MaildirMessage extends AbstractMessage<Integer> {
      */
     @Override
     public List<Property> getProperties() {
-        parseMessage();
+        parseHeader();
         return propertyBuilder.toProperties();
     }
 
@@ -420,7 +464,7 @@ public class MaildirMessage extends AbstractMessage<Integer> {
      */
     @Override
     public InputStream getBodyContent() throws IOException {
-        parseMessage();
+        parseHeader();
         FileInputStream body = new FileInputStream(messageName.getFile());
         IOUtils.skipFully(body, bodyStartOctet);
         return body;
@@ -432,13 +476,13 @@ public class MaildirMessage extends AbstractMessage<Integer> {
      */
     @Override
     protected int getBodyStartOctet() {
-        parseMessage();
+        parseHeader();
         return bodyStartOctet;
     }
 
     @Override
     public InputStream getHeaderContent() throws IOException {
-        parseMessage();
+        parseHeader();
         long limit = getBodyStartOctet();
         if (limit < 0) {
             limit = 0;
@@ -0,0 +1,96 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.maildir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MaildirCountersTest {
+
+    private static final File FOLDER = new File("target/MaildirCounters");
+
+    private File curFolder;
+    private File newFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        FileUtils.deleteDirectory(FOLDER);
+        curFolder = new File(FOLDER, "cur");
+        newFolder = new File(FOLDER, "new");
+        curFolder.mkdirs();
+        newFolder.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(FOLDER);
+    }
+
+    @Test
+    public void testRebuildCountsMessages() throws IOException {
+        FileUtils.touch(new File(curFolder, "1.a.host,S=10:2,S"));
+        FileUtils.touch(new File(curFolder, "2.b.host,S=20:2,ST"));
+        FileUtils.touch(new File(curFolder, "3.c.host,S=30:2,"));
+        FileUtils.touch(new File(newFolder, "4.d.host,S=40"));
+
+        MaildirCounters counters = MaildirCounters.rebuild(curFolder, newFolder);
+        assertEquals(4, counters.getExists());
+        assertEquals(2, counters.getUnseen());
+        assertEquals(1, counters.getRecent());
+        assertEquals(1, counters.getDeleted());
+        assertEquals(100, counters.getSize());
+    }
+
+    @Test
+    public void testCountersAreWrittenAndRead() throws IOException {
+        MaildirCounters counters = MaildirCounters.rebuild(curFolder, newFolder);
+        counters.add("1.a.host,S=10", 10, true);
+        counters.add("2.b.host,S=20:2,S", 20, false);
+        counters.remove("1.a.host,S=10", 10, true);
+        counters.setModified(1000, 2000);
+
+        File file = new File(FOLDER, MaildirFolder.COUNTERS_FILE);
+        counters.write(file);
+        MaildirCounters read = MaildirCounters.read(file);
+        assertEquals(1, read.getExists());
+        assertEquals(0, read.getUnseen());
+        assertEquals(0, read.getRecent());
+        assertEquals(20, read.getSize());
+        assertTrue(read.isValid(999, 1999));
+        // as for the uid list, a modification at the stored time is a change
+        assertFalse(read.isValid(1000, 1999));
+        assertFalse(read.isValid(999, 3000));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptedFileIsRejected() throws IOException {
+        File file = new File(FOLDER, MaildirFolder.COUNTERS_FILE);
+        FileUtils.writeStringToFile(file, "1 2 3\n");
+        MaildirCounters.read(file);
+    }
+}
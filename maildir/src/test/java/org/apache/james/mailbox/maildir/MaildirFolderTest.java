@@ -0,0 +1,109 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.maildir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.SortedMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.mock.MockMailboxSession;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.store.JVMMailboxPathLocker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MaildirFolderTest {
+
+    private static final File FOLDER = new File("target/MaildirFolder");
+
+    private final MailboxSession session = new MockMailboxSession("user");
+    private final JVMMailboxPathLocker locker = new JVMMailboxPathLocker();
+    private File curFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        FileUtils.deleteDirectory(FOLDER);
+        curFolder = new File(FOLDER, "cur");
+        curFolder.mkdirs();
+        new File(FOLDER, "new").mkdirs();
+        new File(FOLDER, "tmp").mkdirs();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(FOLDER);
+    }
+
+    private MaildirFolder openFolder() {
+        return new MaildirFolder(FOLDER.getAbsolutePath(), new MailboxPath("#private", "user", "INBOX"), locker);
+    }
+
+    @Test
+    public void testModSeqsAreKeptInTheUidList() throws Exception {
+        FileUtils.touch(new File(curFolder, "1.a.host,S=10:2,S"));
+        FileUtils.touch(new File(curFolder, "2.b.host,S=20:2,"));
+        MaildirFolder folder = openFolder();
+        SortedMap<Long, MaildirMessageName> uids = folder.getUidMap(session, 0, -1);
+        assertEquals(2, uids.size());
+        long initial = folder.getHighestModSeq(session);
+        assertEquals(initial, uids.get(1L).getModSeq());
+        assertEquals(initial, uids.get(2L).getModSeq());
+
+        // a flag change gives the message the next mod-sequence of the folder
+        long modSeq = folder.update(session, 2, new File(curFolder, "2.b.host,S=20:2,"), new File(curFolder, "2.b.host,S=20:2,S"));
+        assertTrue(modSeq > initial);
+        assertEquals(modSeq, folder.getHighestModSeq(session));
+        assertEquals(modSeq, folder.getModSeq(session, 2));
+        assertEquals(initial, folder.getModSeq(session, 1));
+
+        // the mod-sequences are read back by another instance, and carried by the loaded messages
+        MaildirFolder reopened = openFolder();
+        assertEquals(modSeq, reopened.getHighestModSeq(session));
+        assertEquals(modSeq, reopened.getUidMap(session, 2, 2).get(2L).getModSeq());
+        assertEquals(initial, reopened.getMessageNameByUid(session, 1L).getModSeq());
+
+        // an expunge moves the highest mod-sequence on
+        reopened.delete(session, 1);
+        assertTrue(reopened.getHighestModSeq(session) > modSeq);
+        assertEquals(-1, reopened.getModSeq(session, 1));
+    }
+
+    @Test
+    public void testCountersNoticeDeliveriesRightAfterOwnChanges() throws Exception {
+        File newFolder = new File(FOLDER, "new");
+        MaildirFolder folder = openFolder();
+        assertEquals(0, folder.getCounters(session).getExists());
+        File tmpFile = new File(FOLDER, "tmp/1.a.host,S=10");
+        FileUtils.touch(tmpFile);
+        folder.appendMessage(session, tmpFile, new File(newFolder, tmpFile.getName()));
+        assertEquals(1, folder.getCounters(session).getExists());
+
+        // an external delivery within the same second doesn't change a coarse modification time
+        long modified = newFolder.lastModified();
+        FileUtils.touch(new File(newFolder, "2.b.host,S=20"));
+        newFolder.setLastModified(modified);
+        assertEquals(2, folder.getCounters(session).getExists());
+    }
+}
@@ -0,0 +1,125 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.maildir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MaildirMailboxIndexTest {
+
+    private static final File ROOT = new File("target/MaildirMailboxIndex");
+
+    private MaildirMailboxIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        FileUtils.deleteDirectory(ROOT);
+        createFolder(ROOT, 1);
+        createFolder(new File(ROOT, ".INBOX.Drafts"), 2);
+        createFolder(new File(ROOT, ".INBOX.Sent"), 3);
+        createFolder(new File(ROOT, ".INBOX.Sent.2012"), 4);
+        createFolder(new File(ROOT, ".Trash"), 5);
+        index = new MaildirMailboxIndex(ROOT);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(ROOT);
+    }
+
+    @Test
+    public void testFoldersAreFoundByPattern() throws IOException {
+        assertEquals(Arrays.asList("INBOX", "INBOX.Drafts", "INBOX.Sent", "INBOX.Sent.2012", "Trash"), index.find("%"));
+        assertEquals(Arrays.asList("INBOX.Drafts", "INBOX.Sent", "INBOX.Sent.2012"), index.find("INBOX.%"));
+        assertEquals(Arrays.asList("INBOX.Sent.2012"), index.find("%.2012"));
+        assertEquals(Arrays.asList("INBOX.Sent", "INBOX.Sent.2012"), index.find("INBOX.S%t%"));
+        assertEquals(Arrays.asList("Trash"), index.find("Trash"));
+        assertTrue(index.find("Tras").isEmpty());
+        assertTrue(index.find("Junk%").isEmpty());
+        assertEquals(Long.valueOf(4), index.getUidValidity("INBOX.Sent.2012"));
+        assertNull(index.getUidValidity("INBOX.Junk"));
+    }
+
+    @Test
+    public void testChildrenAreFound() throws IOException {
+        assertTrue(index.hasChildren("INBOX", '.'));
+        assertTrue(index.hasChildren("INBOX.Sent", '.'));
+        assertFalse(index.hasChildren("INBOX.Sent.2012", '.'));
+        assertFalse(index.hasChildren("INBOX.Drafts", '.'));
+        assertFalse(index.hasChildren("Trash", '.'));
+    }
+
+    @Test
+    public void testChangesArePersisted() throws IOException {
+        index.find("%");
+        FileUtils.deleteDirectory(new File(ROOT, ".Trash"));
+        index.remove("Trash");
+        FileUtils.moveDirectory(new File(ROOT, ".INBOX.Drafts"), new File(ROOT, ".Drafts"));
+        index.rename("INBOX.Drafts", "Drafts");
+        createFolder(new File(ROOT, ".Junk"), 6);
+        index.add("Junk", 6);
+        assertFalse(index.hasChildren("Trash", '.'));
+
+        MaildirMailboxIndex read = new MaildirMailboxIndex(ROOT);
+        assertEquals(Arrays.asList("Drafts", "INBOX", "INBOX.Sent", "INBOX.Sent.2012", "Junk"), read.find("%"));
+        assertEquals(Long.valueOf(2), read.getUidValidity("Drafts"));
+        assertTrue(read.hasChildren("INBOX", '.'));
+    }
+
+    @Test
+    public void testFoldersChangedBySomeoneElseAreNoticed() throws IOException {
+        assertEquals(5, index.find("%").size());
+        createFolder(new File(ROOT, ".INBOX.Junk"), 6);
+        FileUtils.deleteDirectory(new File(ROOT, ".INBOX.Sent.2012"));
+        // make sure the change is noticed even if it is done within the same second
+        ROOT.setLastModified(ROOT.lastModified() + 2000);
+
+        assertEquals(Arrays.asList("INBOX", "INBOX.Drafts", "INBOX.Junk", "INBOX.Sent", "Trash"), index.find("%"));
+        assertEquals(Long.valueOf(6), index.getUidValidity("INBOX.Junk"));
+        assertFalse(index.hasChildren("INBOX.Sent", '.'));
+    }
+
+    @Test
+    public void testWildcardMatching() {
+        assertTrue(MaildirMailboxIndex.matches("%", ""));
+        assertTrue(MaildirMailboxIndex.matches("a%b%c", "aXbYc"));
+        assertTrue(MaildirMailboxIndex.matches("a%%c", "ac"));
+        assertTrue(MaildirMailboxIndex.matches("a.b", "a.b"));
+        assertFalse(MaildirMailboxIndex.matches("a.b", "aXb"));
+        assertFalse(MaildirMailboxIndex.matches("a%b", "aXbc"));
+    }
+
+    private void createFolder(File folder, long uidValidity) throws IOException {
+        new File(folder, MaildirFolder.CUR).mkdirs();
+        new File(folder, MaildirFolder.NEW).mkdirs();
+        new File(folder, MaildirFolder.TMP).mkdirs();
+        FileUtils.writeStringToFile(new File(folder, MaildirFolder.VALIDITY_FILE), String.valueOf(uidValidity));
+    }
+}
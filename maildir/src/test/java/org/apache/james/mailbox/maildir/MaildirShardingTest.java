@@ -0,0 +1,148 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.maildir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.mail.Flags;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.MessageManager.MetaData;
+import org.apache.james.mailbox.acl.SimpleGroupMembershipResolver;
+import org.apache.james.mailbox.acl.UnionMailboxACLResolver;
+import org.apache.james.mailbox.model.MailboxConstants;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.store.JVMMailboxPathLocker;
+import org.apache.james.mailbox.store.StoreMailboxManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class MaildirShardingTest {
+
+    private static final String MAILDIR_HOME = "target/MaildirSharding";
+    private static final int MESSAGES = 50;
+
+    private StoreMailboxManager<Integer> mailboxManager;
+    private MailboxSession session;
+    private MailboxPath path;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteDirectory(new File(MAILDIR_HOME));
+        MaildirStore store = new MaildirStore(MAILDIR_HOME + "/%user", new JVMMailboxPathLocker());
+        store.setSharded(true);
+        mailboxManager = new StoreMailboxManager<Integer>(new MaildirMailboxSessionMapperFactory(store), null,
+                new JVMMailboxPathLocker(), new UnionMailboxACLResolver(), new SimpleGroupMembershipResolver());
+        mailboxManager.init();
+        session = mailboxManager.createSystemSession("user", LoggerFactory.getLogger("Test"));
+        path = new MailboxPath(MailboxConstants.USER_NAMESPACE, "user", "INBOX");
+        mailboxManager.createMailbox(path, session);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(new File(MAILDIR_HOME));
+    }
+
+    @Test
+    public void testMessagesAreStoredInShards() throws Exception {
+        MessageManager mailbox = mailboxManager.getMailbox(path, session);
+        for (int i = 0; i < MESSAGES; i++)
+            mailbox.appendMessage(message(i), new Date(), session, i % 2 == 0, new Flags());
+
+        File root = new File(MAILDIR_HOME + "/user");
+        assertTrue(new File(root, MaildirFolder.SHARDED_FILE).isFile());
+        assertShardsOnly(new File(root, MaildirFolder.CUR));
+        assertShardsOnly(new File(root, MaildirFolder.NEW));
+        List<File> recent = MaildirFolder.listMessageFiles(new File(root, MaildirFolder.NEW));
+        assertEquals(MESSAGES / 2, recent.size());
+        assertEquals(MESSAGES, recent.size() + MaildirFolder.listMessageFiles(new File(root, MaildirFolder.CUR)).size());
+
+        MetaData metaData = mailbox.getMetaData(false, session, MetaData.FetchGroup.UNSEEN_COUNT);
+        assertEquals(MESSAGES, metaData.getMessageCount());
+        assertEquals(MESSAGES, metaData.getUnseenCount());
+        assertEquals(MESSAGES / 2, metaData.countRecent());
+    }
+
+    @Test
+    public void testMessagesStayFoundWhenTheirFlagsChange() throws Exception {
+        MessageManager mailbox = mailboxManager.getMailbox(path, session);
+        for (int i = 0; i < MESSAGES; i++)
+            mailbox.appendMessage(message(i), new Date(), session, true, new Flags());
+        mailbox.getMetaData(true, session, MetaData.FetchGroup.NO_COUNT);
+        mailbox.setFlags(new Flags(Flags.Flag.SEEN), true, false, MessageRange.all(), session);
+        assertEquals(0, MaildirFolder.listMessageFiles(new File(MAILDIR_HOME + "/user/" + MaildirFolder.NEW)).size());
+
+        mailbox.setFlags(new Flags(Flags.Flag.DELETED), true, false, MessageRange.range(1, MESSAGES / 2), session);
+        Iterator<Long> expunged = mailbox.expunge(MessageRange.all(), session);
+        int count = 0;
+        while (expunged.hasNext()) {
+            expunged.next();
+            count++;
+        }
+        assertEquals(MESSAGES / 2, count);
+
+        MetaData metaData = mailbox.getMetaData(false, session, MetaData.FetchGroup.UNSEEN_COUNT);
+        assertEquals(MESSAGES - MESSAGES / 2, metaData.getMessageCount());
+        assertEquals(0, metaData.getUnseenCount());
+        assertEquals(MESSAGES - MESSAGES / 2,
+                MaildirFolder.listMessageFiles(new File(MAILDIR_HOME + "/user/" + MaildirFolder.CUR)).size());
+    }
+
+    @Test
+    public void testExternalDeliveriesAreNoticed() throws Exception {
+        MessageManager mailbox = mailboxManager.getMailbox(path, session);
+        for (int i = 0; i < MESSAGES; i++)
+            mailbox.appendMessage(message(i), new Date(), session, true, new Flags());
+        assertEquals(MESSAGES, mailbox.getMetaData(false, session, MetaData.FetchGroup.UNSEEN_COUNT).getMessageCount());
+
+        // external MDAs deliver to the top level of ./new, not to the shards
+        File newFolder = new File(MAILDIR_HOME + "/user/" + MaildirFolder.NEW);
+        FileUtils.writeStringToFile(new File(newFolder, "1.external.host,S=20"), "Subject: external\r\n\r\ntestmail");
+        newFolder.setLastModified(System.currentTimeMillis() + 2000);
+        MetaData metaData = mailbox.getMetaData(false, session, MetaData.FetchGroup.UNSEEN_COUNT);
+        assertEquals(MESSAGES + 1, metaData.getMessageCount());
+        assertEquals(MESSAGES + 1, metaData.getUnseenCount());
+        assertEquals(MESSAGES + 1, metaData.countRecent());
+    }
+
+    private void assertShardsOnly(File folder) {
+        for (File file : folder.listFiles()) {
+            assertTrue(file.getName(), file.isDirectory());
+            assertEquals(2, file.getName().length());
+        }
+    }
+
+    private ByteArrayInputStream message(int i) {
+        return new ByteArrayInputStream(("Subject: test " + i + "\r\n\r\ntestmail " + i).getBytes());
+    }
+}
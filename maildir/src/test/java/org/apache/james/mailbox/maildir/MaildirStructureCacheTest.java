@@ -0,0 +1,122 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.maildir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.james.mailbox.maildir.MaildirStructureCache.Structure;
+import org.apache.james.mailbox.store.mail.model.Property;
+import org.apache.james.mailbox.store.mail.model.impl.SimpleProperty;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MaildirStructureCacheTest {
+
+    private static final File FOLDER = new File("target/MaildirStructureCache");
+
+    private File file;
+    private MaildirStructureCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        FileUtils.deleteDirectory(FOLDER);
+        FOLDER.mkdirs();
+        file = new File(FOLDER, MaildirFolder.STRUCTURE_FILE);
+        cache = new MaildirStructureCache(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(FOLDER);
+    }
+
+    @Test
+    public void testStructuresAreReadByOtherInstances() throws IOException {
+        cache.put("1.a.host", createStructure(false, null));
+        cache.put("2.b.host", createStructure(true, null));
+        cache.put("1.a.host", createStructure(true, 42L));
+        cache.remove("2.b.host");
+
+        MaildirStructureCache other = new MaildirStructureCache(file);
+        Structure structure = other.get("1.a.host");
+        assertEquals(120, structure.getBodyStartOctet());
+        assertTrue(structure.isLinesCounted());
+        assertEquals(Long.valueOf(42), structure.getTextualLineCount());
+        assertEquals(2, structure.getProperties().size());
+        assertEquals("text", structure.getProperties().get(0).getValue());
+        assertNull(other.get("2.b.host"));
+    }
+
+    @Test
+    public void testIncompleteRecordIsDropped() throws IOException {
+        cache.put("1.a.host", createStructure(false, null));
+        long length = file.length();
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(new byte[] { '+', 0, 8, 'x' });
+        } finally {
+            out.close();
+        }
+
+        MaildirStructureCache other = new MaildirStructureCache(file);
+        assertFalse(other.get("1.a.host").isLinesCounted());
+        other.put("2.b.host", createStructure(true, 7L));
+        assertTrue(file.length() > length);
+        assertEquals(Long.valueOf(7), new MaildirStructureCache(file).get("2.b.host").getTextualLineCount());
+    }
+
+    @Test
+    public void testCorruptedFileIsReplaced() throws IOException {
+        FileUtils.writeStringToFile(file, "garbage");
+        assertNull(cache.get("1.a.host"));
+        cache.put("1.a.host", createStructure(true, 3L));
+        assertEquals(Long.valueOf(3), new MaildirStructureCache(file).get("1.a.host").getTextualLineCount());
+    }
+
+    @Test
+    public void testCacheIsCompacted() throws IOException {
+        cache.put("1.a.host", createStructure(false, null));
+        long singleRecord = file.length();
+        for (int i = 0; i < 3000; i++) {
+            cache.put("1.a.host", createStructure(false, null));
+        }
+        assertTrue(file.length() < 1100 * singleRecord);
+        cache.compact();
+        assertEquals(singleRecord, file.length());
+        assertFalse(new MaildirStructureCache(file).get("1.a.host").isLinesCounted());
+    }
+
+    private Structure createStructure(boolean linesCounted, Long lines) {
+        List<Property> properties = new ArrayList<Property>();
+        properties.add(new SimpleProperty("http://james.apache.org/rfc2045", "Media-Type", "text"));
+        properties.add(new SimpleProperty("http://james.apache.org/rfc2045", "Sub-Type", "plain"));
+        return new Structure(120, properties, linesCounted, lines);
+    }
+}
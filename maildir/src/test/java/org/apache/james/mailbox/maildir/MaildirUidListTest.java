@@ -0,0 +1,281 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.maildir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MaildirUidListTest {
+
+    private static final File FOLDER = new File("target/MaildirUidList");
+
+    private File journal;
+    private File snapshot;
+    private MaildirUidList uidList;
+
+    @Before
+    public void setUp() throws IOException {
+        FileUtils.deleteDirectory(FOLDER);
+        FOLDER.mkdirs();
+        journal = new File(FOLDER, MaildirFolder.UIDLIST_FILE);
+        snapshot = new File(FOLDER, MaildirFolder.UIDLIST_SNAPSHOT_FILE);
+        uidList = new MaildirUidList(journal, snapshot);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(FOLDER);
+    }
+
+    @Test
+    public void testJournalIsReplayedOnSnapshot() throws IOException {
+        SortedMap<Long, String> entries = new TreeMap<Long, String>();
+        entries.put(1L, "1.a.host,S=10");
+        entries.put(2L, "2.b.host,S=20");
+        uidList.write(2, entries);
+
+        uidList.add(3, "3.c.host,S=30");
+        uidList.rename(1, "1.a.host,S=10:2,S");
+        uidList.remove(2);
+
+        SortedMap<Long, String> read = new TreeMap<Long, String>();
+        assertEquals(3, uidList.read(read));
+        assertEquals(2, read.size());
+        assertEquals("1.a.host,S=10:2,S", read.get(1L));
+        assertEquals("3.c.host,S=30", read.get(3L));
+        assertEquals(3, uidList.getLastUid());
+    }
+
+    @Test
+    public void testLastUidIsKeptAfterDeletingLastMessage() throws IOException {
+        uidList.write(0, new TreeMap<Long, String>());
+        uidList.add(1, "1.a.host,S=10");
+        uidList.remove(1);
+        assertEquals(1, uidList.getLastUid());
+        uidList.compact();
+        assertEquals(1, uidList.getLastUid());
+        SortedMap<Long, String> read = new TreeMap<Long, String>();
+        assertEquals(1, uidList.read(read));
+        assertTrue(read.isEmpty());
+    }
+
+    @Test
+    public void testIncompleteRecordIsDropped() throws IOException {
+        uidList.write(0, new TreeMap<Long, String>());
+        uidList.add(1, "1.a.host,S=10");
+        write(journal, "+ 2 2.b.ho", true);
+
+        SortedMap<Long, String> read = new TreeMap<Long, String>();
+        assertEquals(1, uidList.read(read));
+        assertEquals(1, read.size());
+        assertEquals(1, uidList.getLastUid());
+
+        uidList.add(2, "2.c.host,S=20");
+        read.clear();
+        assertEquals(2, uidList.read(read));
+        assertEquals("2.c.host,S=20", read.get(2L));
+    }
+
+    @Test
+    public void testStaleJournalIsIgnored() throws IOException {
+        SortedMap<Long, String> entries = new TreeMap<Long, String>();
+        entries.put(1L, "1.a.host,S=10");
+        uidList.write(1, entries);
+        String staleJournal = FileUtils.readFileToString(journal) + "+ 2 2.b.host,S=20\n";
+        uidList.add(2, "2.b.host,S=20");
+        uidList.compact();
+        // simulate a crash after the snapshot has been replaced but before the journal
+        write(journal, staleJournal, false);
+
+        SortedMap<Long, String> read = new TreeMap<Long, String>();
+        assertEquals(2, uidList.read(read));
+        assertEquals(2, read.size());
+
+        uidList.add(3, "3.c.host,S=30");
+        read.clear();
+        assertEquals(3, uidList.read(read));
+        assertEquals(3, read.size());
+    }
+
+    @Test
+    public void testLegacyFormatIsReadAndConverted() throws IOException {
+        write(journal, "1 5 2\n3 3.a.host,S=10\n5 5.b.host,S=20:2,S\n", false);
+        assertFalse(snapshot.exists());
+
+        SortedMap<Long, String> read = new TreeMap<Long, String>();
+        assertEquals(5, uidList.read(read));
+        assertEquals("3.a.host,S=10", read.get(3L));
+        assertEquals("5.b.host,S=20:2,S", read.get(5L));
+        assertEquals(5, uidList.getLastUid());
+
+        uidList.add(6, "6.c.host,S=30");
+        assertTrue(snapshot.exists());
+        assertTrue(FileUtils.readFileToString(journal).startsWith(MaildirUidList.JOURNAL_VERSION + " "));
+        read.clear();
+        assertEquals(6, uidList.read(read));
+        assertEquals(3, read.size());
+    }
+
+    @Test
+    public void testModSeqsOfLegacyFormatAreKeptOnReload() throws IOException {
+        write(journal, "1 5 2\n3 3.a.host,S=10\n5 5.b.host,S=20:2,S\n", false);
+        long modSeq = uidList.getModSeq(3);
+        // the list is converted when it is loaded, so the assigned mod-sequences are stored
+        assertTrue(FileUtils.readFileToString(journal).startsWith(MaildirUidList.JOURNAL_VERSION + " "));
+        MaildirUidList other = new MaildirUidList(journal, snapshot);
+        assertEquals(modSeq, other.getModSeq(3));
+        assertEquals(modSeq, other.getModSeq(5));
+        assertEquals(uidList.getHighestModSeq(), other.getHighestModSeq());
+    }
+
+    @Test
+    public void testJournalIsCompacted() throws IOException {
+        uidList.write(0, new TreeMap<Long, String>());
+        for (long uid = 1; uid <= 5000; uid++) {
+            uidList.add(uid, uid + ".unique.host,S=1000");
+        }
+        assertTrue(journal.length() <= snapshot.length());
+        SortedMap<Long, String> read = new TreeMap<Long, String>();
+        assertEquals(5000, uidList.read(read));
+        assertEquals(5000, read.size());
+        assertEquals(5000, uidList.getLastUid());
+    }
+
+    @Test
+    public void testChangesByOtherInstancesAreSeen() throws IOException {
+        SortedMap<Long, String> entries = new TreeMap<Long, String>();
+        entries.put(1L, "1.a.host,S=10");
+        uidList.write(1, entries);
+        assertEquals("1.a.host,S=10", uidList.getName(1));
+
+        MaildirUidList other = new MaildirUidList(journal, snapshot);
+        other.add(2, "2.b.host,S=20");
+        other.rename(1, "1.a.host,S=10:2,S");
+
+        assertEquals(2, uidList.getLastUid());
+        assertEquals("1.a.host,S=10:2,S", uidList.getName(1));
+        assertEquals(2, uidList.getEntries(0, -1).size());
+        assertEquals(1, uidList.getEntries(2, 5).size());
+        assertTrue(uidList.getEntries(3, 5).isEmpty());
+
+        uidList.remove(2);
+        assertEquals(null, other.getName(2));
+        assertEquals(2, other.getLastUid());
+    }
+
+    @Test
+    public void testModSeqsAreIncreasedByEveryChange() throws IOException {
+        SortedMap<Long, String> entries = new TreeMap<Long, String>();
+        entries.put(1L, "1.a.host,S=10");
+        uidList.write(1, entries);
+        long initial = uidList.getHighestModSeq();
+        assertEquals(initial, uidList.getModSeq(1));
+
+        long added = uidList.add(2, "2.b.host,S=20");
+        long renamed = uidList.rename(1, "1.a.host,S=10:2,S");
+        long removed = uidList.remove(2);
+        assertEquals(initial + 1, added);
+        assertEquals(initial + 2, renamed);
+        assertEquals(initial + 3, removed);
+        assertEquals(-1, uidList.getModSeq(2));
+        assertEquals(renamed, uidList.getModSeq(1));
+
+        MaildirUidList other = new MaildirUidList(journal, snapshot);
+        assertEquals(removed, other.getHighestModSeq());
+        assertEquals(renamed, other.getModSeq(1));
+        other.compact();
+        assertEquals(removed, other.getHighestModSeq());
+        assertEquals(renamed, other.getModSeq(1));
+    }
+
+    @Test
+    public void testRewriteOnlyChangesModSeqsOfChangedEntries() throws IOException {
+        SortedMap<Long, String> entries = new TreeMap<Long, String>();
+        entries.put(1L, "1.a.host,S=10");
+        entries.put(2L, "2.b.host,S=20");
+        uidList.write(2, entries);
+        long initial = uidList.getHighestModSeq();
+
+        uidList.write(2, entries);
+        assertEquals(initial, uidList.getHighestModSeq());
+
+        entries.put(2L, "2.b.host,S=20:2,S");
+        uidList.write(2, entries);
+        assertEquals(initial + 1, uidList.getHighestModSeq());
+        assertEquals(initial, uidList.getModSeq(1));
+        assertEquals(initial + 1, uidList.getModSeq(2));
+    }
+
+    @Test
+    public void testUnsequencedJournalIsReadAndConverted() throws IOException {
+        SortedMap<Long, String> entries = new TreeMap<Long, String>();
+        entries.put(1L, "1.a.host,S=10");
+        uidList.write(1, entries);
+        long generation = Long.parseLong(FileUtils.readFileToString(journal).trim().split(" ")[1]);
+        // a snapshot and journal as written before mod-sequences were stored
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(snapshot));
+        try {
+            out.writeInt(0x4a554944);
+            out.writeInt(MaildirUidList.UNSEQUENCED_VERSION);
+            out.writeLong(generation);
+            out.writeLong(1);
+            out.writeInt(1);
+            out.writeLong(1);
+            out.writeUTF("1.a.host,S=10");
+        } finally {
+            out.close();
+        }
+        write(journal, MaildirUidList.UNSEQUENCED_VERSION + " " + generation + "\n+ 2 2.b.host,S=20\n- 1\n", false);
+
+        long before = System.currentTimeMillis();
+        MaildirUidList other = new MaildirUidList(journal, snapshot);
+        assertEquals(2, other.getLastUid());
+        assertEquals("2.b.host,S=20", other.getName(2));
+        assertEquals(null, other.getName(1));
+        long initial = other.getHighestModSeq();
+        assertTrue(initial >= before);
+
+        long added = other.add(3, "3.c.host,S=30");
+        assertEquals(initial + 1, added);
+        assertTrue(FileUtils.readFileToString(journal).startsWith(MaildirUidList.JOURNAL_VERSION + " "));
+        assertEquals(initial, new MaildirUidList(journal, snapshot).getModSeq(2));
+    }
+
+    private void write(File file, String content, boolean append) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, append);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
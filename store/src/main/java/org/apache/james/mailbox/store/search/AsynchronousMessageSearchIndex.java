@@ -0,0 +1,384 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.store.search;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.mail.Flags;
+
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MailboxSession.SessionType;
+import org.apache.james.mailbox.RequestAware;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.SearchQuery;
+import org.apache.james.mailbox.model.UpdatedFlags;
+import org.apache.james.mailbox.store.MailboxEventDispatcher.AddedImpl;
+import org.apache.james.mailbox.store.MailboxEventDispatcher.ExpungedImpl;
+import org.apache.james.mailbox.store.MailboxEventDispatcher.FlagsUpdatedImpl;
+import org.apache.james.mailbox.store.MailboxEventDispatcher.MailboxDeletionImpl;
+import org.apache.james.mailbox.store.SimpleMailboxSession;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.james.mailbox.store.mail.model.Message;
+
+/**
+ * {@link ListeningMessageSearchIndex} implementation which wraps another {@link ListeningMessageSearchIndex} and updates it
+ * on dedicated worker threads, so the delivering threads don't wait for the index.
+ *
+ * The events are queued per worker, and all the events of a {@link Mailbox} go to the same worker, so they are applied in order.
+ * Each worker takes the queued events by batches: consecutive additions to the same {@link Mailbox} are merged, so their
+ * {@link Message}'s get fetched by ranges of uids, and the wrapped index is committed once per batch.
+ *
+ * A search on a {@link Mailbox} waits until the events of that {@link Mailbox} which were queued before it are indexed.
+ *
+ * The {@link MailboxSession} which caused an event belongs to another thread, and its request may already be processed, so
+ * each batch is indexed with system sessions of the same users, which get their own mappers. The processing of a request
+ * is started and ended around the batch when the {@link org.apache.james.mailbox.store.mail.MessageMapperFactory} is
+ * {@link RequestAware}.
+ *
+ * @param <Id>
+ */
+public class AsynchronousMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id> {
+
+    /**
+     * Default number of worker threads
+     */
+    public final static int DEFAULT_WORKERS = 1;
+
+    /**
+     * Default max count of events which are indexed in one batch
+     */
+    public final static int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * Queued to wake up a worker which waits for events, so it notices that it has to stop
+     */
+    @SuppressWarnings("serial")
+    private final static Event STOP = new Event(null, null) {
+    };
+
+    private final ListeningMessageSearchIndex<Id> index;
+    private final List<BlockingQueue<Event>> queues = new ArrayList<BlockingQueue<Event>>();
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private final ConcurrentHashMap<Id, Progress> progresses = new ConcurrentHashMap<Id, Progress>();
+    private final int batchSize;
+    private volatile boolean closed;
+
+    public AsynchronousMessageSearchIndex(ListeningMessageSearchIndex<Id> index) {
+        this(index, DEFAULT_WORKERS, DEFAULT_BATCH_SIZE);
+    }
+
+    public AsynchronousMessageSearchIndex(ListeningMessageSearchIndex<Id> index, int workers, int batchSize) {
+        super(index.getFactory());
+        if (workers < 1) {
+            throw new IllegalArgumentException("At least one worker is needed");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size must be positive");
+        }
+        this.index = index;
+        this.batchSize = batchSize;
+        for (int i = 0; i < workers; i++) {
+            BlockingQueue<Event> queue = new LinkedBlockingQueue<Event>();
+            Thread worker = new Thread(new Worker(queue), "search-index-" + i);
+            worker.setDaemon(true);
+            queues.add(queue);
+            this.workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queue the {@link org.apache.james.mailbox.MailboxListener.Event} if it changes the index
+     */
+    @Override
+    public void event(Event event) {
+        Mailbox<Id> mailbox = getMailbox(event);
+        if (mailbox == null || closed) {
+            return;
+        }
+        Id id = mailbox.getMailboxId();
+        boolean counted = false;
+        while (!counted) {
+            Progress progress = getProgress(id);
+            synchronized (progress) {
+                // the progress may just have been removed after the deletion of the mailbox was indexed
+                if (!progress.removed) {
+                    progress.queued++;
+                    counted = true;
+                }
+            }
+        }
+        queues.get((id.hashCode() & Integer.MAX_VALUE) % queues.size()).add(event);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Mailbox<Id> getMailbox(Event event) {
+        if (event instanceof AddedImpl) {
+            return ((AddedImpl) event).getMailbox();
+        } else if (event instanceof ExpungedImpl) {
+            return ((ExpungedImpl) event).getMailbox();
+        } else if (event instanceof FlagsUpdatedImpl) {
+            return ((FlagsUpdatedImpl) event).getMailbox();
+        } else if (event instanceof MailboxDeletionImpl) {
+            return ((MailboxDeletionImpl) event).getMailbox();
+        }
+        return null;
+    }
+
+    private Progress getProgress(Id id) {
+        Progress progress = progresses.get(id);
+        if (progress == null) {
+            progress = new Progress();
+            Progress oldProgress = progresses.putIfAbsent(id, progress);
+            if (oldProgress != null) {
+                progress = oldProgress;
+            }
+        }
+        return progress;
+    }
+
+    /**
+     * Wait until the events queued for the {@link Mailbox} are indexed and then delegate the search request
+     * to the wrapped {@link MessageSearchIndex}
+     */
+    @Override
+    public Iterator<Long> search(MailboxSession session, Mailbox<Id> mailbox, SearchQuery searchQuery) throws MailboxException {
+        Progress progress = progresses.get(mailbox.getMailboxId());
+        if (progress != null) {
+            try {
+                synchronized (progress) {
+                    long queued = progress.queued;
+                    while (progress.indexed < queued && !closed) {
+                        progress.wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MailboxException("Interrupted while waiting for the index of mailbox " + mailbox.getName(), e);
+            }
+        }
+        return index.search(session, mailbox, searchQuery);
+    }
+
+    @Override
+    public void add(MailboxSession session, Mailbox<Id> mailbox, Message<Id> message) throws MailboxException {
+        index.add(session, mailbox, message);
+    }
+
+    @Override
+    public void delete(MailboxSession session, Mailbox<Id> mailbox, MessageRange range) throws MailboxException {
+        index.delete(session, mailbox, range);
+    }
+
+    @Override
+    public void update(MailboxSession session, Mailbox<Id> mailbox, MessageRange range, Flags flags) throws MailboxException {
+        index.update(session, mailbox, range, flags);
+    }
+
+    @Override
+    protected void update(MailboxSession session, Mailbox<Id> mailbox, UpdatedFlags updatedFlags) throws MailboxException {
+        index.update(session, mailbox, updatedFlags);
+    }
+
+    @Override
+    public void commit() throws MailboxException {
+        index.commit();
+    }
+
+    /**
+     * Stop the workers and wait until they are done with their current batch. The events which are still queued are not indexed.
+     * 
+     * The workers are not interrupted, as an interrupt during the I/O of the wrapped index may close its files
+     */
+    public void close() {
+        closed = true;
+        for (int i = 0; i < queues.size(); i++) {
+            queues.get(i).add(STOP);
+        }
+        try {
+            for (int i = 0; i < workers.size(); i++) {
+                workers.get(i).join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // wake up the waiting searches
+        for (Progress progress : progresses.values()) {
+            synchronized (progress) {
+                progress.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Index a batch of queued events. The searches waiting for them are released once the batch is committed
+     *
+     * @param batch
+     */
+    @SuppressWarnings("unchecked")
+    private void index(List<Event> batch) {
+        Map<Long, MailboxSession> sessions = new HashMap<Long, MailboxSession>();
+        try {
+            index(batch, sessions);
+        } finally {
+            for (MailboxSession session : sessions.values()) {
+                if (getFactory() instanceof RequestAware) {
+                    ((RequestAware) getFactory()).endProcessingRequest(session);
+                }
+                session.close();
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                Event event = batch.get(i);
+                indexed(getMailbox(event).getMailboxId(), event instanceof MailboxDeletionImpl);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void index(List<Event> batch, Map<Long, MailboxSession> sessions) {
+        MailboxSession session = null;
+        int i = 0;
+        while (i < batch.size()) {
+            Event event = batch.get(i);
+            session = getSession(sessions, event.getSession());
+            Mailbox<Id> mailbox = getMailbox(event);
+            int next = i + 1;
+            if (event instanceof AddedImpl) {
+                // merge the following additions to the same mailbox
+                List<Long> uids = new ArrayList<Long>(((AddedImpl) event).getUids());
+                while (next < batch.size() && batch.get(next) instanceof AddedImpl
+                        && mailbox.getMailboxId().equals(getMailbox(batch.get(next)).getMailboxId())) {
+                    uids.addAll(((AddedImpl) batch.get(next)).getUids());
+                    next++;
+                }
+                try {
+                    add(session, mailbox, uids);
+                } catch (MailboxException e) {
+                    session.getLog().debug("Unable to index messages for mailbox " + mailbox, e);
+                } catch (RuntimeException e) {
+                    session.getLog().info("Unable to index messages for mailbox " + mailbox, e);
+                }
+            } else {
+                try {
+                    super.event(session, event);
+                } catch (RuntimeException e) {
+                    session.getLog().info("Unable to update index for mailbox " + mailbox, e);
+                }
+            }
+            i = next;
+        }
+        try {
+            commit();
+        } catch (MailboxException e) {
+            session.getLog().info("Unable to commit index", e);
+        }
+    }
+
+    /**
+     * Return the session of the batch which acts for the given session, creating it if needed
+     *
+     * @param sessions the sessions of the batch by the id of the session they act for
+     * @param origin the session which caused an event
+     * @return session
+     */
+    private MailboxSession getSession(Map<Long, MailboxSession> sessions, MailboxSession origin) {
+        MailboxSession session = sessions.get(origin.getSessionId());
+        if (session == null) {
+            session = new SimpleMailboxSession(origin.getSessionId(), origin.getUser().getUserName(), null, origin.getLog(),
+                    origin.getUser().getLocalePreferences(), new ArrayList<String>(origin.getSharedSpaces()),
+                    origin.getOtherUsersSpace(), origin.getPathDelimiter(), SessionType.System);
+            if (getFactory() instanceof RequestAware) {
+                ((RequestAware) getFactory()).startProcessingRequest(session);
+            }
+            sessions.put(origin.getSessionId(), session);
+        }
+        return session;
+    }
+
+    /**
+     * Count an indexed event of the {@link Mailbox} and release the searches waiting for it. The progress of a deleted
+     * {@link Mailbox} is dropped once no more events of it are queued
+     * 
+     * @param id
+     * @param deleted true if the event was the deletion of the {@link Mailbox}
+     */
+    private void indexed(Id id, boolean deleted) {
+        Progress progress = getProgress(id);
+        synchronized (progress) {
+            progress.indexed++;
+            progress.notifyAll();
+            if (deleted && progress.indexed == progress.queued) {
+                progress.removed = true;
+                progresses.remove(id, progress);
+            }
+        }
+    }
+
+    /**
+     * Count of the events of a {@link Mailbox} which were queued and indexed
+     */
+    private final static class Progress {
+        private long queued;
+        private long indexed;
+        private boolean removed;
+    }
+
+    private final class Worker implements Runnable {
+
+        private final BlockingQueue<Event> queue;
+
+        public Worker(BlockingQueue<Event> queue) {
+            this.queue = queue;
+        }
+
+        public void run() {
+            List<Event> batch = new ArrayList<Event>();
+            while (!closed) {
+                Event event;
+                try {
+                    event = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (event == STOP) {
+                    return;
+                }
+                batch.add(event);
+                queue.drainTo(batch, batchSize - 1);
+                // the stop event is only queued on close, after which the rest of the queue is dropped anyway
+                batch.remove(STOP);
+                index(batch);
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.store.search;
+
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.james.mailbox.store.mail.model.Message;
+
+/**
+ * A {@link ListeningMessageSearchIndex} which persists its index can implement this to remember how far each
+ * {@link Mailbox} was indexed. {@link LazyMessageSearchIndex} uses it to only index the missing {@link Message}'s
+ * after a restart.
+ *
+ * @param <Id>
+ */
+public interface IndexStateStore<Id> {
+
+    /**
+     * Return the stored {@link MailboxIndexState} of the {@link Mailbox} or <code>null</code> if the {@link Mailbox} was never indexed
+     * 
+     * @param session
+     * @param mailbox
+     * @return state
+     * @throws MailboxException
+     */
+    MailboxIndexState getIndexState(MailboxSession session, Mailbox<Id> mailbox) throws MailboxException;
+
+    /**
+     * Store the {@link MailboxIndexState} of the {@link Mailbox}. It has to be durable after the next commit of the index.
+     * 
+     * @param session
+     * @param mailbox
+     * @param state
+     * @throws MailboxException
+     */
+    void setIndexState(MailboxSession session, Mailbox<Id> mailbox, MailboxIndexState state) throws MailboxException;
+}
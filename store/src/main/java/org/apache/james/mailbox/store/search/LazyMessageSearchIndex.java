@@ -18,7 +18,10 @@
  ****************************************************************/
 package org.apache.james.mailbox.store.search;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.mail.Flags;
@@ -27,6 +30,8 @@ import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.model.MessageRange;
 import org.apache.james.mailbox.model.SearchQuery;
+import org.apache.james.mailbox.model.UpdatedFlags;
+import org.apache.james.mailbox.store.mail.MessageMapper;
 import org.apache.james.mailbox.store.mail.MessageMapper.FetchType;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
 import org.apache.james.mailbox.store.mail.model.Message;
@@ -34,68 +39,205 @@ import org.apache.james.mailbox.store.mail.model.Message;
 /**
  * {@link ListeningMessageSearchIndex} implementation which wraps another {@link ListeningMessageSearchIndex} and will forward all calls to it.
  * 
- * The only special thing about this is that it will index all the mails in the mailbox on the first call of {@link #search(MailboxSession, Mailbox, SearchQuery)}
+ * The only special thing about this is that it will index the mails of the mailbox which are missing in the index on the first call of 
+ * {@link #search(MailboxSession, Mailbox, SearchQuery)}. 
  * 
- * This class is mostly useful for in-memory indexes or for indexed that should be recreated on every server restart.
+ * If the wrapped index implements {@link IndexStateStore} the {@link MailboxIndexState} of each mailbox is stored in it, so after a restart only
+ * the new messages get indexed and only the messages whose flags changed get updated. Otherwise all the mails of the mailbox get indexed, which
+ * is mostly useful for in-memory indexes or for indexes that should be recreated on every server restart.
  * 
+ * Be aware that messages which were expunged while the server was down stay in a persisted index.
  *
  * @param <Id>
  */
 public class LazyMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id> {
 
     private ListeningMessageSearchIndex<Id> index;
-    private final ConcurrentHashMap<Id, Object> indexed = new ConcurrentHashMap<Id, Object>();
+    private final IndexStateStore<Id> stateStore;
+    private final ConcurrentHashMap<Id, Object> locks = new ConcurrentHashMap<Id, Object>();
+    private final ConcurrentHashMap<Id, MailboxIndexState> indexed = new ConcurrentHashMap<Id, MailboxIndexState>();
+    private final ConcurrentHashMap<Id, Pending> pending = new ConcurrentHashMap<Id, Pending>();
     
     
+    @SuppressWarnings("unchecked")
     public LazyMessageSearchIndex(ListeningMessageSearchIndex<Id> index) {
         super(index.getFactory());
         this.index = index;
+        if (index instanceof IndexStateStore) {
+            this.stateStore = (IndexStateStore<Id>) index;
+        } else {
+            this.stateStore = null;
+        }
     }
     
     
     
     @Override
     public void add(MailboxSession session, Mailbox<Id> mailbox, Message<Id> message) throws MailboxException {    
-        index.add(session, mailbox, message);
+        Id id = mailbox.getMailboxId();
+        try {
+            index.add(session, mailbox, message);
+        } catch (MailboxException e) {
+            // the uids after the failed one must not be stored as indexed, so catch up again on the next search
+            synchronized (getLock(id)) {
+                indexed.remove(id);
+                pending.remove(id);
+            }
+            throw e;
+        }
+
+        // remember the new uid of an indexed mailbox so it gets stored on the next commit
+        MailboxIndexState state = indexed.get(id);
+        if (state != null && message.getUid() > state.getLastUid()) {
+            synchronized (getLock(id)) {
+                state = indexed.get(id);
+                if (state != null) {
+                    setState(session, mailbox, state.withLastUid(message.getUid()).withHighestModSeq(message.getModSeq()));
+                }
+            }
+        }
     }
 
     @Override
     public void delete(MailboxSession session, Mailbox<Id> mailbox, MessageRange range) throws MailboxException {
         index.delete(session, mailbox, range);
+        if (range.getType() == MessageRange.Type.ALL) {
+            Id id = mailbox.getMailboxId();
+            synchronized (getLock(id)) {
+                indexed.remove(id);
+                pending.remove(id);
+            }
+        }
     }
 
     /**
-     * Lazy index the mailbox on first search request if it was not indexed before. After indexing is done it delegate the search request to the wrapped
+     * Lazy index the missing messages of the mailbox on first search request. After indexing is done it delegate the search request to the wrapped
      * {@link MessageSearchIndex}. Be aware that concurrent search requests are blocked on the same "not-yet-indexed" mailbox till it the index process was 
      * complete
      * 
      */
     @Override
     public Iterator<Long> search(final MailboxSession session, final Mailbox<Id> mailbox, SearchQuery searchQuery) throws MailboxException {
-        Id id = mailbox.getMailboxId();
-        
-        Object done = indexed.get(id);
-        if (done == null) {
-            done = new Object();
-            Object oldDone = indexed.putIfAbsent(id, done);
-            if (oldDone != null) {
-                done = oldDone;
-            }
-            synchronized (done) {
-                Iterator<Message<Id>> messages = getFactory().getMessageMapper(session).findInMailbox(mailbox, MessageRange.all(), FetchType.Full, -1);
-                while(messages.hasNext()) {
-                    final Message<Id> message = messages.next();
+        if (!indexed.containsKey(mailbox.getMailboxId())) {
+            catchUp(session, mailbox);
+        }
+        return index.search(session, mailbox, searchQuery);
+    }
+
+    /**
+     * Index the missing messages of the given {@link Mailbox}'s on a background thread, so the first searches on them after
+     * a restart don't have to wait. This is typically called at startup with the mailboxes which are searched most often.
+     * 
+     * @param session
+     * @param mailboxes
+     * @return thread which does the indexing
+     */
+    public Thread warmUp(final MailboxSession session, Collection<Mailbox<Id>> mailboxes) {
+        final List<Mailbox<Id>> toIndex = new ArrayList<Mailbox<Id>>(mailboxes);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < toIndex.size(); i++) {
+                    Mailbox<Id> mailbox = toIndex.get(i);
                     try {
-                        add(session, mailbox, message);
+                        catchUp(session, mailbox);
                     } catch (MailboxException e) {
-                        session.getLog().debug("Unable to index message " + message.getUid() + " in mailbox " + mailbox.getName(), e);
+                        session.getLog().info("Unable to warm up the index of mailbox " + mailbox.getName(), e);
                     }
+                }
+            }
+        }, "search-index-warmup");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Bring the index of the {@link Mailbox} up to date if it was not done since the start
+     * 
+     * @param session
+     * @param mailbox
+     * @throws MailboxException
+     */
+    private void catchUp(MailboxSession session, Mailbox<Id> mailbox) throws MailboxException {
+        Id id = mailbox.getMailboxId();
+        synchronized (getLock(id)) {
+            if (indexed.containsKey(id)) {
+                return;
+            }
+            MessageMapper<Id> mapper = getFactory().getMessageMapper(session);
+            long highestModSeq = mapper.getHighestModSeq(mailbox);
 
+            MailboxIndexState state = null;
+            if (stateStore != null) {
+                state = stateStore.getIndexState(session, mailbox);
+                if (state != null && state.getUidValidity() != mailbox.getUidValidity()) {
+                    // the uids were reassigned, so nothing of the old index can be used
+                    index.delete(session, mailbox, MessageRange.all());
+                    state = null;
                 }
             }
+
+            long lastUid = 0;
+            if (state != null) {
+                lastUid = state.getLastUid();
+                if (lastUid > 0 && highestModSeq > state.getHighestModSeq()) {
+                    updateFlags(session, mapper, mailbox, lastUid, state.getHighestModSeq());
+                }
+                highestModSeq = Math.max(highestModSeq, state.getHighestModSeq());
+            }
+
+            Iterator<Message<Id>> messages = mapper.findInMailbox(mailbox, MessageRange.from(lastUid + 1), FetchType.Full, -1);
+            boolean failed = false;
+            while(messages.hasNext()) {
+                final Message<Id> message = messages.next();
+                try {
+                    index.add(session, mailbox, message);
+                    // stop before the first failed message, so it gets retried by the next catch up
+                    if (!failed) {
+                        lastUid = Math.max(lastUid, message.getUid());
+                    }
+                } catch (MailboxException e) {
+                    failed = true;
+                    session.getLog().debug("Unable to index message " + message.getUid() + " in mailbox " + mailbox.getName(), e);
+                }
+            }
+
+            state = new MailboxIndexState(mailbox.getUidValidity(), lastUid, highestModSeq);
+            if (stateStore != null) {
+                stateStore.setIndexState(session, mailbox, state);
+                index.commit();
+            }
+            indexed.put(id, state);
         }
-       
-        return index.search(session, mailbox, searchQuery);
+    }
+
+    /**
+     * Update the flags of the indexed messages which were changed after the given mod-sequence
+     */
+    private void updateFlags(MailboxSession session, MessageMapper<Id> mapper, Mailbox<Id> mailbox, long lastUid, long modSeq) throws MailboxException {
+        Iterator<Message<Id>> messages = mapper.findInMailbox(mailbox, MessageRange.range(1, lastUid), FetchType.Metadata, -1);
+        while(messages.hasNext()) {
+            final Message<Id> message = messages.next();
+            if (message.getModSeq() > modSeq) {
+                try {
+                    index.update(session, mailbox, MessageRange.one(message.getUid()), message.createFlags());
+                } catch (MailboxException e) {
+                    session.getLog().debug("Unable to update flags of message " + message.getUid() + " in mailbox " + mailbox.getName(), e);
+                }
+            }
+        }
+    }
+
+    private Object getLock(Id id) {
+        Object lock = locks.get(id);
+        if (lock == null) {
+            lock = new Object();
+            Object oldLock = locks.putIfAbsent(id, lock);
+            if (oldLock != null) {
+                lock = oldLock;
+            }
+        }
+        return lock;
     }
 
 
@@ -104,4 +246,68 @@ public class LazyMessageSearchIndex<Id> extends ListeningMessageSearchIndex<Id>
         index.update(session, mailbox, range, flags);
     }
 
+    /**
+     * Update the flags in the wrapped index and remember the mod-sequence of the change, so the flag changes
+     * up to it are not applied again by the catch up after a restart
+     */
+    @Override
+    protected void update(MailboxSession session, Mailbox<Id> mailbox, UpdatedFlags updatedFlags) throws MailboxException {
+        index.update(session, mailbox, updatedFlags);
+
+        Id id = mailbox.getMailboxId();
+        MailboxIndexState state = indexed.get(id);
+        if (state != null && updatedFlags.getModSeq() > state.getHighestModSeq()) {
+            synchronized (getLock(id)) {
+                state = indexed.get(id);
+                if (state != null) {
+                    setState(session, mailbox, state.withHighestModSeq(updatedFlags.getModSeq()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the new {@link MailboxIndexState} of an indexed {@link Mailbox}, so it gets stored on the next commit. Must be called
+     * with the lock of the {@link Mailbox} held
+     */
+    private void setState(MailboxSession session, Mailbox<Id> mailbox, MailboxIndexState state) {
+        indexed.put(mailbox.getMailboxId(), state);
+        if (stateStore != null) {
+            pending.put(mailbox.getMailboxId(), new Pending(session, mailbox));
+        }
+    }
+
+    /**
+     * Store the {@link MailboxIndexState}'s which changed since the last commit and commit the wrapped index
+     */
+    @Override
+    public void commit() throws MailboxException {
+        if (stateStore != null) {
+            Iterator<Id> ids = pending.keySet().iterator();
+            while (ids.hasNext()) {
+                Id id = ids.next();
+                synchronized (getLock(id)) {
+                    Pending p = pending.remove(id);
+                    MailboxIndexState state = indexed.get(id);
+                    if (p != null && state != null) {
+                        stateStore.setIndexState(p.session, p.mailbox, state);
+                    }
+                }
+            }
+        }
+        index.commit();
+    }
+
+    /**
+     * {@link Mailbox} whose {@link MailboxIndexState} needs to get stored
+     */
+    private final class Pending {
+        private final MailboxSession session;
+        private final Mailbox<Id> mailbox;
+
+        public Pending(MailboxSession session, Mailbox<Id> mailbox) {
+            this.session = session;
+            this.mailbox = mailbox;
+        }
+    }
 }
@@ -32,6 +32,7 @@ import org.apache.james.mailbox.store.MailboxEventDispatcher.AddedImpl;
 import org.apache.james.mailbox.store.MailboxEventDispatcher.ExpungedImpl;
 import org.apache.james.mailbox.store.MailboxEventDispatcher.FlagsUpdatedImpl;
 import org.apache.james.mailbox.store.MailboxEventDispatcher.MailboxDeletionImpl;
+import org.apache.james.mailbox.store.mail.MessageMapper;
 import org.apache.james.mailbox.store.mail.MessageMapper.FetchType;
 import org.apache.james.mailbox.store.mail.MessageMapperFactory;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
@@ -67,31 +68,25 @@ public abstract class ListeningMessageSearchIndex<Id> implements MessageSearchIn
      * Process the {@link org.apache.james.mailbox.MailboxListener.Event} and update the index if
      * something relevant is received
      */
-    @SuppressWarnings({ "rawtypes", "unchecked" })
     @Override
     public void event(Event event) {
-        final MailboxSession session = event.getSession();
+        event(event.getSession(), event);
+    }
 
+    /**
+     * Update the index for the {@link org.apache.james.mailbox.MailboxListener.Event}, using the given
+     * {@link MailboxSession} to access the mailbox
+     * 
+     * @param session
+     * @param event
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    protected void event(MailboxSession session, Event event) {
         try {
             if (event instanceof MessageEvent) {
                 if (event instanceof AddedImpl) {
                     AddedImpl added = (AddedImpl) event;
-                    final Mailbox<Id> mailbox = added.getMailbox();
-                    Iterator<Long> uids = added.getUids().iterator();
-
-                    while (uids.hasNext()) {
-                        long next = uids.next();
-                        Iterator<Message<Id>> messages = factory.getMessageMapper(session).findInMailbox(mailbox, MessageRange.one(next), FetchType.Full, -1);
-                        while(messages.hasNext()) {
-                            Message<Id> message = messages.next();
-                            try {
-                                add(session, mailbox, message);
-                            } catch (MailboxException e) {
-                                session.getLog().debug("Unable to index message " + message.getUid() + " for mailbox " + mailbox, e);
-                            }
-                        }
-
-                    }
+                    add(session, added.getMailbox(), added.getUids());
                 } else if (event instanceof ExpungedImpl) {
                     ExpungedImpl expunged = (ExpungedImpl) event;
                     final Mailbox<Id> mailbox = expunged.getMailbox();
@@ -113,7 +108,7 @@ public abstract class ListeningMessageSearchIndex<Id> implements MessageSearchIn
                     while(flags.hasNext()) {
                         UpdatedFlags uFlags = flags.next();
                         try {
-                            update(session, mailbox, MessageRange.one(uFlags.getUid()), uFlags.getNewFlags());
+                            update(session, mailbox, uFlags);
                         } catch (MailboxException e) {
                             session.getLog().debug("Unable to update flags for message " + uFlags.getUid() + " in index for mailbox " + mailbox, e);
                         }
@@ -129,6 +124,56 @@ public abstract class ListeningMessageSearchIndex<Id> implements MessageSearchIn
         }
     }
 
+    /**
+     * Fetch the {@link Message}'s with the given uids and add them to the index. The uids are fetched by
+     * ranges of consecutive uids, so a batch of new messages only needs a few round-trips to the mapper
+     * 
+     * @param session
+     * @param mailbox
+     * @param uids
+     * @throws MailboxException
+     */
+    protected void add(MailboxSession session, Mailbox<Id> mailbox, List<Long> uids) throws MailboxException {
+        MessageMapper<Id> mapper = factory.getMessageMapper(session);
+        List<MessageRange> ranges = MessageRange.toRanges(uids);
+        for (int i = 0; i < ranges.size(); i++) {
+            Iterator<Message<Id>> messages = mapper.findInMailbox(mailbox, ranges.get(i), FetchType.Full, -1);
+            while(messages.hasNext()) {
+                Message<Id> message = messages.next();
+                try {
+                    add(session, mailbox, message);
+                } catch (MailboxException e) {
+                    session.getLog().debug("Unable to index message " + message.getUid() + " for mailbox " + mailbox, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Update the flags of the message which was changed by the given {@link UpdatedFlags} in the index. The
+     * default implementation calls {@link #update(MailboxSession, Mailbox, MessageRange, Flags)} with its uid
+     * and new {@link Flags}
+     * 
+     * @param session
+     * @param mailbox
+     * @param updatedFlags
+     * @throws MailboxException
+     */
+    protected void update(MailboxSession session, Mailbox<Id> mailbox, UpdatedFlags updatedFlags) throws MailboxException {
+        update(session, mailbox, MessageRange.one(updatedFlags.getUid()), updatedFlags.getNewFlags());
+    }
+
+    /**
+     * Make the changes done to the index durable. This is called once per batch of changes by
+     * {@link AsynchronousMessageSearchIndex}, so an implementation can group its commits.
+     * 
+     * The default implementation does nothing
+     * 
+     * @throws MailboxException
+     */
+    public void commit() throws MailboxException {
+    }
+
     /**
      * Never closed
      */
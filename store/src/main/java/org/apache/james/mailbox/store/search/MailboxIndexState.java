@@ -0,0 +1,115 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.store.search;
+
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.james.mailbox.store.mail.model.Message;
+
+/**
+ * Describe how far the {@link Message}'s of a {@link Mailbox} were indexed: all uids up to {@link #getLastUid()} and
+ * all flag changes up to {@link #getHighestModSeq()} are in the index, as long as the uid validity of the
+ * {@link Mailbox} is still {@link #getUidValidity()}
+ */
+public class MailboxIndexState {
+
+    private final long uidValidity;
+    private final long lastUid;
+    private final long highestModSeq;
+
+    public MailboxIndexState(long uidValidity, long lastUid, long highestModSeq) {
+        this.uidValidity = uidValidity;
+        this.lastUid = lastUid;
+        this.highestModSeq = highestModSeq;
+    }
+
+    /**
+     * Return the uid validity of the {@link Mailbox} when it was indexed
+     * 
+     * @return uidValidity
+     */
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    /**
+     * Return the highest uid which was indexed
+     * 
+     * @return lastUid
+     */
+    public long getLastUid() {
+        return lastUid;
+    }
+
+    /**
+     * Return the highest mod-sequence up to which the flag changes were indexed
+     * 
+     * @return highestModSeq
+     */
+    public long getHighestModSeq() {
+        return highestModSeq;
+    }
+
+    /**
+     * Return a copy of this state with the given last uid if it is higher than the current one
+     * 
+     * @param uid
+     * @return state
+     */
+    public MailboxIndexState withLastUid(long uid) {
+        if (uid <= lastUid) {
+            return this;
+        }
+        return new MailboxIndexState(uidValidity, uid, highestModSeq);
+    }
+
+    /**
+     * Return a copy of this state with the given highest mod-sequence if it is higher than the current one
+     * 
+     * @param modSeq
+     * @return state
+     */
+    public MailboxIndexState withHighestModSeq(long modSeq) {
+        if (modSeq <= highestModSeq) {
+            return this;
+        }
+        return new MailboxIndexState(uidValidity, lastUid, modSeq);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof MailboxIndexState) {
+            MailboxIndexState that = (MailboxIndexState) obj;
+            return uidValidity == that.uidValidity && lastUid == that.lastUid && highestModSeq == that.highestModSeq;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (uidValidity ^ (uidValidity >>> 32)) * 31 * 31 + (int) (lastUid ^ (lastUid >>> 32)) * 31 + (int) (highestModSeq ^ (highestModSeq >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "MailboxIndexState[uidValidity=" + uidValidity + ", lastUid=" + lastUid + ", highestModSeq=" + highestModSeq + "]";
+    }
+}
@@ -0,0 +1,245 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.store.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+import javax.mail.Flags;
+
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.RequestAware;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.mock.MockMailboxSession;
+import org.apache.james.mailbox.model.MailboxACL;
+import org.apache.james.mailbox.model.MessageMetaData;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.SearchQuery;
+import org.apache.james.mailbox.model.SimpleMailboxACL;
+import org.apache.james.mailbox.model.UpdatedFlags;
+import org.apache.james.mailbox.store.MailboxEventDispatcher;
+import org.apache.james.mailbox.store.SimpleMailboxMembership;
+import org.apache.james.mailbox.store.mail.MessageMapper;
+import org.apache.james.mailbox.store.mail.MessageMapper.FetchType;
+import org.apache.james.mailbox.store.mail.MessageMapperFactory;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.jmock.lib.action.CustomAction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsynchronousMessageSearchIndexTest {
+
+    private Mockery mockery = new JUnit4Mockery();
+    private MailboxSession session = new MockMailboxSession("test");
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    private final List<MailboxSession> mapperSessions = Collections.synchronizedList(new ArrayList<MailboxSession>());
+    private final CountDownLatch updating = new CountDownLatch(1);
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private AsynchronousMessageSearchIndex<Long> index;
+    private MailboxEventDispatcher<Long> dispatcher;
+
+    private Mailbox<Long> mailbox = new Mailbox<Long>() {
+
+        public Long getMailboxId() {
+            return 1L;
+        }
+
+        public String getNamespace() {
+            return null;
+        }
+
+        public void setNamespace(String namespace) {
+        }
+
+        public String getUser() {
+            return null;
+        }
+
+        public void setUser(String user) {
+        }
+
+        public String getName() {
+            return "test";
+        }
+
+        public void setName(String name) {
+        }
+
+        public long getUidValidity() {
+            return 0;
+        }
+
+        public MailboxACL getACL() {
+            return SimpleMailboxACL.EMPTY;
+        }
+
+        public void setACL(MailboxACL acl) {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        final MessageMapper<Long> mapper = mockery.mock(MessageMapper.class);
+        mockery.checking(new Expectations() {{
+            allowing(mapper).findInMailbox(with(same(mailbox)), with(any(MessageRange.class)), with(equal(FetchType.Full)), with(equal(-1)));
+            will(new CustomAction("find messages") {
+                public Object invoke(Invocation invocation) throws Throwable {
+                    MessageRange range = (MessageRange) invocation.getParameter(1);
+                    calls.add("find " + range.getUidFrom() + ":" + range.getUidTo());
+                    List<Message<Long>> messages = new ArrayList<Message<Long>>();
+                    for (long uid = range.getUidFrom(); uid <= range.getUidTo(); uid++) {
+                        messages.add(new SimpleMailboxMembership(1L, uid, 0, new Date(), 0, new Flags(), new byte[0], new HashMap<String, String>()));
+                    }
+                    return messages.iterator();
+                }
+            });
+        }});
+        index = new AsynchronousMessageSearchIndex<Long>(new RecordingIndex(new RequestAwareFactory(mapper)));
+        dispatcher = new MailboxEventDispatcher<Long>(index);
+    }
+
+    @After
+    public void tearDown() {
+        index.close();
+    }
+
+    private SortedMap<Long, MessageMetaData> uids(long... uids) {
+        SortedMap<Long, MessageMetaData> map = new TreeMap<Long, MessageMetaData>();
+        for (int i = 0; i < uids.length; i++) {
+            map.put(uids[i], null);
+        }
+        return map;
+    }
+
+    @Test
+    public void testEventsAreBatchedAndSearchWaitsForThem() throws Exception {
+        // the worker is blocked on the update, so the additions get queued behind it
+        dispatcher.flagsUpdated(session, Arrays.asList(1L), mailbox, Arrays.asList(new UpdatedFlags(1L, -1, new Flags(), new Flags(Flags.Flag.SEEN))));
+        updating.await();
+        dispatcher.added(session, uids(2, 3), mailbox);
+        dispatcher.added(session, uids(4), mailbox);
+        dispatcher.added(session, uids(6), mailbox);
+        gate.countDown();
+
+        index.search(session, mailbox, new SearchQuery());
+        assertEquals(Arrays.asList("start", "update 1", "commit", "end", "start", "find 2:4", "add 2", "add 3", "add 4",
+                "find 6:6", "add 6", "commit", "end", "search"), calls);
+        // the worker doesn't share the mapper of the session which caused the events
+        assertEquals(1, mapperSessions.size());
+        assertNotSame(session, mapperSessions.get(0));
+        assertEquals(MailboxSession.SessionType.System, mapperSessions.get(0).getType());
+        assertEquals(session.getUser().getUserName(), mapperSessions.get(0).getUser().getUserName());
+    }
+
+    @Test
+    public void testCloseLetsTheRunningBatchFinish() throws Exception {
+        dispatcher.flagsUpdated(session, Arrays.asList(1L), mailbox, Arrays.asList(new UpdatedFlags(1L, -1, new Flags(), new Flags(Flags.Flag.SEEN))));
+        updating.await();
+        Thread closer = new Thread() {
+            public void run() {
+                index.close();
+            }
+        };
+        closer.start();
+        while (!index.isClosed()) {
+            Thread.sleep(10);
+        }
+        // the worker is not interrupted, and close waits for its batch
+        gate.countDown();
+        closer.join();
+        assertEquals(Arrays.asList("start", "update 1", "commit", "end"), calls);
+    }
+
+    private final class RequestAwareFactory implements MessageMapperFactory<Long>, RequestAware {
+
+        private final MessageMapper<Long> mapper;
+
+        public RequestAwareFactory(MessageMapper<Long> mapper) {
+            this.mapper = mapper;
+        }
+
+        public MessageMapper<Long> getMessageMapper(MailboxSession session) throws MailboxException {
+            mapperSessions.add(session);
+            return mapper;
+        }
+
+        public void startProcessingRequest(MailboxSession session) {
+            calls.add("start");
+        }
+
+        public void endProcessingRequest(MailboxSession session) {
+            calls.add("end");
+        }
+    }
+
+    private final class RecordingIndex extends ListeningMessageSearchIndex<Long> {
+
+        public RecordingIndex(MessageMapperFactory<Long> factory) {
+            super(factory);
+        }
+
+        public Iterator<Long> search(MailboxSession session, Mailbox<Long> mailbox, SearchQuery searchQuery) throws MailboxException {
+            calls.add("search");
+            return new ArrayList<Long>().iterator();
+        }
+
+        @Override
+        public void add(MailboxSession session, Mailbox<Long> mailbox, Message<Long> message) throws MailboxException {
+            calls.add("add " + message.getUid());
+        }
+
+        @Override
+        public void delete(MailboxSession session, Mailbox<Long> mailbox, MessageRange range) throws MailboxException {
+            calls.add("delete " + range.getUidFrom() + ":" + range.getUidTo());
+        }
+
+        @Override
+        public void update(MailboxSession session, Mailbox<Long> mailbox, MessageRange range, Flags flags) throws MailboxException {
+            updating.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new MailboxException("Interrupted", e);
+            }
+            calls.add("update " + range.getUidFrom());
+        }
+
+        @Override
+        public void commit() throws MailboxException {
+            calls.add("commit");
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.store.search;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+import javax.mail.Flags;
+
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.mock.MockMailboxSession;
+import org.apache.james.mailbox.model.MailboxACL;
+import org.apache.james.mailbox.model.MessageMetaData;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.SearchQuery;
+import org.apache.james.mailbox.model.SimpleMailboxACL;
+import org.apache.james.mailbox.model.UpdatedFlags;
+import org.apache.james.mailbox.store.MailboxEventDispatcher;
+import org.apache.james.mailbox.store.SimpleMailboxMembership;
+import org.apache.james.mailbox.store.mail.MessageMapper;
+import org.apache.james.mailbox.store.mail.MessageMapper.FetchType;
+import org.apache.james.mailbox.store.mail.MessageMapperFactory;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.jmock.lib.action.CustomAction;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LazyMessageSearchIndexTest {
+
+    private final static long LAST_UID = 5;
+    private final static long HIGHEST_MODSEQ = 10;
+
+    private Mockery mockery = new JUnit4Mockery();
+    private MailboxSession session = new MockMailboxSession("test");
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    private StateRecordingIndex recording;
+    private LazyMessageSearchIndex<Long> index;
+
+    private Mailbox<Long> mailbox = new Mailbox<Long>() {
+
+        public Long getMailboxId() {
+            return 1L;
+        }
+
+        public String getNamespace() {
+            return null;
+        }
+
+        public void setNamespace(String namespace) {
+        }
+
+        public String getUser() {
+            return null;
+        }
+
+        public void setUser(String user) {
+        }
+
+        public String getName() {
+            return "test";
+        }
+
+        public void setName(String name) {
+        }
+
+        public long getUidValidity() {
+            return 7;
+        }
+
+        public MailboxACL getACL() {
+            return SimpleMailboxACL.EMPTY;
+        }
+
+        public void setACL(MailboxACL acl) {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        final MessageMapper<Long> mapper = mockery.mock(MessageMapper.class);
+        mockery.checking(new Expectations() {{
+            allowing(mapper).getHighestModSeq(with(same(mailbox)));
+            will(returnValue(HIGHEST_MODSEQ));
+            allowing(mapper).findInMailbox(with(same(mailbox)), with(any(MessageRange.class)), with(any(FetchType.class)), with(equal(-1)));
+            will(new CustomAction("find messages") {
+                public Object invoke(Invocation invocation) throws Throwable {
+                    MessageRange range = (MessageRange) invocation.getParameter(1);
+                    FetchType type = (FetchType) invocation.getParameter(2);
+                    long to = range.getType() == MessageRange.Type.FROM ? LAST_UID : range.getUidTo();
+                    calls.add("find " + type + " " + range.getUidFrom() + ":" + to);
+                    List<Message<Long>> messages = new ArrayList<Message<Long>>();
+                    for (long uid = range.getUidFrom(); uid <= to; uid++) {
+                        // the message with uid n was last changed with mod-sequence 2n
+                        SimpleMailboxMembership message = new SimpleMailboxMembership(1L, uid, uid * 2, new Date(), 0, new Flags(), new byte[0], new HashMap<String, String>());
+                        message.setModSeq(uid * 2);
+                        messages.add(message);
+                    }
+                    return messages.iterator();
+                }
+            });
+        }});
+        MessageMapperFactory<Long> factory = new MessageMapperFactory<Long>() {
+            public MessageMapper<Long> getMessageMapper(MailboxSession session) throws MailboxException {
+                return mapper;
+            }
+        };
+        recording = new StateRecordingIndex(factory);
+        index = new LazyMessageSearchIndex<Long>(recording);
+    }
+
+    @Test
+    public void testFirstSearchIndexesWholeMailbox() throws Exception {
+        index.search(session, mailbox, new SearchQuery());
+        index.search(session, mailbox, new SearchQuery());
+        assertEquals(Arrays.asList("find Full 1:5", "add 1", "add 2", "add 3", "add 4", "add 5", "state 7/5/10", "commit", "search", "search"), calls);
+    }
+
+    @Test
+    public void testFirstSearchOnlyIndexesMissingMessages() throws Exception {
+        recording.state = new MailboxIndexState(7, 3, 4);
+        index.search(session, mailbox, new SearchQuery());
+        assertEquals(Arrays.asList("find Metadata 1:3", "update 3", "find Full 4:5", "add 4", "add 5", "state 7/5/10", "commit", "search"), calls);
+    }
+
+    @Test
+    public void testChangedUidValidityReindexesMailbox() throws Exception {
+        recording.state = new MailboxIndexState(6, 3, 4);
+        index.search(session, mailbox, new SearchQuery());
+        assertEquals(Arrays.asList("delete all", "find Full 1:5", "add 1", "add 2", "add 3", "add 4", "add 5", "state 7/5/10", "commit", "search"), calls);
+    }
+
+    @Test
+    public void testAddedMessagesAreStoredOnCommit() throws Exception {
+        index.search(session, mailbox, new SearchQuery());
+        calls.clear();
+
+        TreeMap<Long, MessageMetaData> uids = new TreeMap<Long, MessageMetaData>();
+        uids.put(5L, null);
+        new MailboxEventDispatcher<Long>(index).added(session, uids, mailbox);
+        index.commit();
+        assertEquals(new MailboxIndexState(7, 5, 10), recording.state);
+
+        recording.state = new MailboxIndexState(7, 3, 10);
+        index.commit();
+        assertEquals(Arrays.asList("find Full 5:5", "add 5", "commit", "commit"), calls);
+        // nothing changed since the last commit
+        assertEquals(new MailboxIndexState(7, 3, 10), recording.state);
+    }
+
+    @Test
+    public void testFlagUpdatesAreStoredOnCommit() throws Exception {
+        index.search(session, mailbox, new SearchQuery());
+        calls.clear();
+
+        new MailboxEventDispatcher<Long>(index).flagsUpdated(session, Arrays.asList(2L), mailbox,
+                Arrays.asList(new UpdatedFlags(2, 12, new Flags(), new Flags(Flags.Flag.SEEN))));
+        index.commit();
+        assertEquals(Arrays.asList("update 2", "state 7/5/12", "commit"), calls);
+
+        // the flag change is not applied again after a restart
+        calls.clear();
+        index = new LazyMessageSearchIndex<Long>(recording);
+        index.search(session, mailbox, new SearchQuery());
+        assertEquals(Arrays.asList("find Full 6:5", "state 7/5/12", "commit", "search"), calls);
+    }
+
+    @Test
+    public void testFailedMessageIsIndexedAgain() throws Exception {
+        recording.failingUid = 3;
+        index.search(session, mailbox, new SearchQuery());
+        assertEquals(Arrays.asList("find Full 1:5", "add 1", "add 2", "add 3", "add 4", "add 5", "state 7/2/10", "commit", "search"), calls);
+
+        calls.clear();
+        recording.failingUid = 0;
+        index = new LazyMessageSearchIndex<Long>(recording);
+        index.search(session, mailbox, new SearchQuery());
+        assertEquals(Arrays.asList("find Full 3:5", "add 3", "add 4", "add 5", "state 7/5/10", "commit", "search"), calls);
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        index.warmUp(session, Arrays.asList(mailbox)).join();
+        index.search(session, mailbox, new SearchQuery());
+        assertEquals(Arrays.asList("find Full 1:5", "add 1", "add 2", "add 3", "add 4", "add 5", "state 7/5/10", "commit", "search"), calls);
+    }
+
+    private final class StateRecordingIndex extends ListeningMessageSearchIndex<Long> implements IndexStateStore<Long> {
+
+        private MailboxIndexState state;
+        private long failingUid;
+
+        public StateRecordingIndex(MessageMapperFactory<Long> factory) {
+            super(factory);
+        }
+
+        public Iterator<Long> search(MailboxSession session, Mailbox<Long> mailbox, SearchQuery searchQuery) throws MailboxException {
+            calls.add("search");
+            return new ArrayList<Long>().iterator();
+        }
+
+        @Override
+        public void add(MailboxSession session, Mailbox<Long> mailbox, Message<Long> message) throws MailboxException {
+            calls.add("add " + message.getUid());
+            if (message.getUid() == failingUid) {
+                throw new MailboxException("Unable to index message " + failingUid);
+            }
+        }
+
+        @Override
+        public void delete(MailboxSession session, Mailbox<Long> mailbox, MessageRange range) throws MailboxException {
+            calls.add("delete " + range.getType().toString().toLowerCase());
+        }
+
+        @Override
+        public void update(MailboxSession session, Mailbox<Long> mailbox, MessageRange range, Flags flags) throws MailboxException {
+            calls.add("update " + range.getUidFrom());
+        }
+
+        @Override
+        public void commit() throws MailboxException {
+            calls.add("commit");
+        }
+
+        public MailboxIndexState getIndexState(MailboxSession session, Mailbox<Long> mailbox) throws MailboxException {
+            return state;
+        }
+
+        public void setIndexState(MailboxSession session, Mailbox<Long> mailbox, MailboxIndexState state) throws MailboxException {
+            calls.add("state " + state.getUidValidity() + "/" + state.getLastUid() + "/" + state.getHighestModSeq());
+            this.state = state;
+        }
+    }
+}
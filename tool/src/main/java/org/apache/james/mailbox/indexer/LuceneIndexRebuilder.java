@@ -0,0 +1,430 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.indexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.acl.SimpleGroupMembershipResolver;
+import org.apache.james.mailbox.acl.UnionMailboxACLResolver;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.lucene.search.LuceneMessageSearchIndex;
+import org.apache.james.mailbox.maildir.MaildirMailboxSessionMapperFactory;
+import org.apache.james.mailbox.maildir.MaildirStore;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.store.Authenticator;
+import org.apache.james.mailbox.store.StoreMailboxManager;
+import org.apache.james.mailbox.store.mail.MessageMapper;
+import org.apache.james.mailbox.store.mail.MessageMapper.FetchType;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mailbox.store.search.MailboxIndexState;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rebuilds the {@link LuceneMessageSearchIndex} of all the {@link Mailbox}'s of a store from scratch, instead of letting
+ * them get indexed one by one on their first search.
+ * <br/>
+ * The {@link Mailbox}'s are spread over several threads, which each fetch the {@link Message}'s by batches and index them
+ * into their own part of the new index. The parts are then merged into one index, which replaces the old one. The
+ * {@link MailboxIndexState} of each {@link Mailbox} is stored too, so only the changes after the rebuild get indexed later.
+ * <br/>
+ * The old index is only replaced after the new one is complete, but the replacement is not synchronized with a running
+ * server, so it needs to get stopped first.
+ *
+ * @param <Id>
+ */
+public class LuceneIndexRebuilder<Id> {
+
+    /**
+     * Default count of {@link Message}'s which are fetched at once
+     */
+    public final static int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * Default size of the RAM buffer of each thread, in MB
+     */
+    public final static double DEFAULT_RAM_BUFFER_SIZE = 128;
+
+    /**
+     * Default merge factor of the parts, which is higher than the Lucene default to merge less often while indexing
+     */
+    public final static int DEFAULT_MERGE_FACTOR = 30;
+
+    private final static String REBUILD_SUFFIX = ".rebuild";
+    private final static String OLD_SUFFIX = ".old";
+
+    private final StoreMailboxManager<Id> mailboxManager;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private double ramBufferSize = DEFAULT_RAM_BUFFER_SIZE;
+    private int mergeFactor = DEFAULT_MERGE_FACTOR;
+    private boolean lenient = true;
+    private int maxBodyLength = -1;
+    private int nGramLength = 0;
+
+    /**
+     * The logger.
+     */
+    private Logger log = LoggerFactory.getLogger(LuceneIndexRebuilder.class.getName());
+
+    public LuceneIndexRebuilder(StoreMailboxManager<Id> mailboxManager) {
+        this.mailboxManager = mailboxManager;
+    }
+
+    /**
+     * Rebuilds the index of a Maildir store. For example, invoke with
+     * <code>/var/mail/%domain/%user /var/store/lucene 4</code> to rebuild it with 4 threads.
+     *
+     * @param args the Maildir location, the index directory and optionally the count of threads
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: " + LuceneIndexRebuilder.class.getName() + " maildirLocation indexDirectory [threads]");
+            System.exit(1);
+        }
+        StoreMailboxManager<Integer> manager = new StoreMailboxManager<Integer>(new MaildirMailboxSessionMapperFactory(new MaildirStore(args[0])),
+                new Authenticator() {
+                    public boolean isAuthentic(String userid, CharSequence passwd) {
+                        return true;
+                    }
+                }, new UnionMailboxACLResolver(), new SimpleGroupMembershipResolver());
+        manager.init();
+        LuceneIndexRebuilder<Integer> rebuilder = new LuceneIndexRebuilder<Integer>(manager);
+        if (args.length == 3) {
+            rebuilder.setThreads(Integer.parseInt(args[2]));
+        }
+        long start = System.currentTimeMillis();
+        long count = rebuilder.rebuild(new File(args[1]));
+        System.out.println(count + " messages are indexed in " + (System.currentTimeMillis() - start) / 1000 + " seconds.");
+    }
+
+    /**
+     * Set the count of threads which index the {@link Mailbox}'s
+     *
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Set the count of {@link Message}'s which are fetched at once
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set the size of the RAM buffer of each thread, in MB
+     *
+     * @param ramBufferSize
+     */
+    public void setRAMBufferSize(double ramBufferSize) {
+        this.ramBufferSize = ramBufferSize;
+    }
+
+    /**
+     * Set the merge factor of the parts of the index
+     *
+     * @param mergeFactor
+     */
+    public void setMergeFactor(int mergeFactor) {
+        this.mergeFactor = mergeFactor;
+    }
+
+    /**
+     * Set if the index is built with the lenient analyzer, which needs to match the one the server uses
+     *
+     * @param lenient
+     */
+    public void setLenient(boolean lenient) {
+        this.lenient = lenient;
+    }
+
+    /**
+     * @see LuceneMessageSearchIndex#setMaxBodyLength(int)
+     */
+    public void setMaxBodyLength(int maxBodyLength) {
+        this.maxBodyLength = maxBodyLength;
+    }
+
+    /**
+     * @see LuceneMessageSearchIndex#setNGramLength(int)
+     */
+    public void setNGramLength(int nGramLength) {
+        this.nGramLength = nGramLength;
+    }
+
+    public void setLog(Logger log) {
+        this.log = log;
+    }
+
+    /**
+     * Build a new index of all the {@link Mailbox}'s and replace the index in the given directory with it
+     *
+     * @param indexDirectory
+     * @return count of the indexed {@link Message}'s
+     * @throws MailboxException
+     * @throws IOException
+     */
+    public long rebuild(File indexDirectory) throws MailboxException, IOException {
+        File parent = indexDirectory.getAbsoluteFile().getParentFile();
+        File rebuildDirectory = new File(parent, indexDirectory.getName() + REBUILD_SUFFIX);
+        File oldDirectory = new File(parent, indexDirectory.getName() + OLD_SUFFIX);
+        // leftovers of an interrupted rebuild, the old index is put back if it was not replaced
+        delete(rebuildDirectory);
+        if (!indexDirectory.exists() && oldDirectory.exists() && !oldDirectory.renameTo(indexDirectory)) {
+            throw new IOException("Could not rename " + oldDirectory + " to " + indexDirectory);
+        }
+        delete(oldDirectory);
+
+        ConcurrentLinkedQueue<Mailbox<Id>> mailboxes = new ConcurrentLinkedQueue<Mailbox<Id>>(listMailboxes());
+        log.info("Rebuilding the index of " + mailboxes.size() + " mailboxes");
+        try {
+            List<Worker> workers = new ArrayList<Worker>();
+            List<Thread> workerThreads = new ArrayList<Thread>();
+            for (int i = 0; i < threads; i++) {
+                Worker worker = new Worker(mailboxes, new File(rebuildDirectory, "part-" + i));
+                Thread thread = new Thread(worker, "index-rebuilder-" + i);
+                workers.add(worker);
+                workerThreads.add(thread);
+                thread.start();
+            }
+            long count = 0;
+            Directory[] parts = new Directory[threads];
+            for (int i = 0; i < threads; i++) {
+                try {
+                    workerThreads.get(i).join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MailboxException("Interrupted while rebuilding the index", e);
+                }
+                Worker worker = workers.get(i);
+                if (worker.failure != null || !worker.finished) {
+                    MailboxException e = new MailboxException("Unable to rebuild the index");
+                    e.initCause(worker.failure);
+                    throw e;
+                }
+                count += worker.count.get();
+                parts[i] = FSDirectory.open(worker.directory);
+            }
+
+            File newDirectory = new File(rebuildDirectory, "index");
+            merge(parts, newDirectory);
+
+            // swap the new index in
+            boolean replace = indexDirectory.exists();
+            if (replace && !indexDirectory.renameTo(oldDirectory)) {
+                throw new IOException("Could not rename " + indexDirectory + " to " + oldDirectory);
+            }
+            if (!newDirectory.renameTo(indexDirectory)) {
+                // put the old index back
+                if (replace && !oldDirectory.renameTo(indexDirectory)) {
+                    throw new IOException("Could not rename " + newDirectory + " to " + indexDirectory
+                            + ", the old index was left in " + oldDirectory);
+                }
+                throw new IOException("Could not rename " + newDirectory + " to " + indexDirectory);
+            }
+            delete(oldDirectory);
+            log.info("Rebuilt the index with " + count + " messages");
+            return count;
+        } finally {
+            delete(rebuildDirectory);
+        }
+    }
+
+    private List<Mailbox<Id>> listMailboxes() throws MailboxException {
+        MailboxSession session = mailboxManager.createSystemSession("indexer", log);
+        mailboxManager.startProcessingRequest(session);
+        try {
+            return mailboxManager.getMapperFactory().getMailboxMapper(session).list();
+        } finally {
+            mailboxManager.endProcessingRequest(session);
+        }
+    }
+
+    /**
+     * Merge the parts of the index into a new index in the given directory
+     */
+    private void merge(Directory[] parts, File directory) throws IOException {
+        // the parts are already analyzed, so the analyzer is never used
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_31, new WhitespaceAnalyzer(Version.LUCENE_31));
+        config.setOpenMode(OpenMode.CREATE);
+        Directory target = FSDirectory.open(directory);
+        try {
+            IndexWriter writer = new IndexWriter(target, config);
+            try {
+                writer.addIndexes(parts);
+                writer.commit();
+            } finally {
+                writer.close();
+            }
+        } finally {
+            target.close();
+            for (int i = 0; i < parts.length; i++) {
+                parts[i].close();
+            }
+        }
+    }
+
+    private void delete(File file) throws IOException {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                delete(files[i]);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+
+    /**
+     * Index the {@link Mailbox}'s it takes from the queue into its own part of the new index
+     */
+    private final class Worker implements Runnable {
+
+        private final ConcurrentLinkedQueue<Mailbox<Id>> mailboxes;
+        private final File directory;
+        private final AtomicLong count = new AtomicLong();
+        private volatile Throwable failure;
+        // only set once the part is committed, so a worker which died in any way fails the rebuild
+        private volatile boolean finished;
+
+        public Worker(ConcurrentLinkedQueue<Mailbox<Id>> mailboxes, File directory) {
+            this.mailboxes = mailboxes;
+            this.directory = directory;
+        }
+
+        public void run() {
+            MailboxSession session = mailboxManager.createSystemSession("indexer", log);
+            mailboxManager.startProcessingRequest(session);
+            Directory partDirectory = null;
+            LuceneMessageSearchIndex<Id> index = null;
+            try {
+                partDirectory = FSDirectory.open(directory);
+                index = createIndex(partDirectory);
+                MessageMapper<Id> mapper = mailboxManager.getMapperFactory().getMessageMapper(session);
+                Mailbox<Id> mailbox;
+                while ((mailbox = mailboxes.poll()) != null) {
+                    index(session, mapper, index, mailbox);
+                }
+                index.commit();
+                finished = true;
+            } catch (Throwable e) {
+                // errors too, as running out of memory, must not let the partial part replace the index
+                failure = e;
+                // let the other workers stop too
+                mailboxes.clear();
+            } finally {
+                if (index != null) {
+                    try {
+                        index.close();
+                    } catch (MailboxException e) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+                if (partDirectory != null) {
+                    try {
+                        partDirectory.close();
+                    } catch (IOException e) {
+                        // ignore on close
+                    }
+                }
+                mailboxManager.endProcessingRequest(session);
+            }
+        }
+
+        private void index(MailboxSession session, MessageMapper<Id> mapper, LuceneMessageSearchIndex<Id> index, Mailbox<Id> mailbox) throws MailboxException {
+            long highestModSeq = mapper.getHighestModSeq(mailbox);
+            long lastUid = 0;
+            while (true) {
+                Iterator<Message<Id>> messages = mapper.findInMailbox(mailbox, MessageRange.from(lastUid + 1), FetchType.Full, batchSize);
+                long batchLastUid = lastUid;
+                while (messages.hasNext()) {
+                    Message<Id> message = messages.next();
+                    try {
+                        index.add(session, mailbox, message);
+                        count.incrementAndGet();
+                    } catch (MailboxException e) {
+                        log.debug("Unable to index message " + message.getUid() + " in mailbox " + mailbox.getName(), e);
+                    }
+                    batchLastUid = Math.max(batchLastUid, message.getUid());
+                }
+                if (batchLastUid == lastUid) {
+                    break;
+                }
+                lastUid = batchLastUid;
+            }
+            index.setIndexState(session, mailbox, new MailboxIndexState(mailbox.getUidValidity(), lastUid, highestModSeq));
+        }
+    }
+
+    /**
+     * Create the {@link LuceneMessageSearchIndex} of a part, which buffers more in RAM and merges less often than the default
+     *
+     * @param directory
+     * @return index
+     * @throws IOException
+     */
+    protected LuceneMessageSearchIndex<Id> createIndex(Directory directory) throws IOException {
+        LuceneMessageSearchIndex<Id> index = new LuceneMessageSearchIndex<Id>(mailboxManager.getMapperFactory(), directory, true, lenient) {
+            @Override
+            protected IndexWriterConfig createConfig(Analyzer analyzer, boolean dropIndexOnStart) {
+                IndexWriterConfig config = super.createConfig(analyzer, dropIndexOnStart);
+                config.setRAMBufferSizeMB(ramBufferSize);
+                LogByteSizeMergePolicy mergePolicy = new LogByteSizeMergePolicy();
+                mergePolicy.setMergeFactor(mergeFactor);
+                config.setMergePolicy(mergePolicy);
+                return config;
+            }
+        };
+        index.setMaxBodyLength(maxBodyLength);
+        index.setNGramLength(nGramLength);
+        return index;
+    }
+}
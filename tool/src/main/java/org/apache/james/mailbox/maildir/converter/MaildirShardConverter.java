@@ -0,0 +1,172 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.maildir.converter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.james.mailbox.maildir.MaildirFolder;
+
+/**
+ * Converts existing Maildir folders between the flat layout and the sharded layout,
+ * in which the messages are spread over sub-directories of ./cur and ./new.
+ * <br/>
+ * A folder is marked as sharded before its messages are moved into the shards and is only
+ * marked as flat after they have all been moved back, so that the messages can always be
+ * found, even if a conversion is interrupted. Running the conversion again completes it.
+ */
+public class MaildirShardConverter {
+
+    private static final String SHARD = "shard";
+    private static final String UNSHARD = "unshard";
+    private static final String SUBFOLDER_PREFIX = ".";
+
+    /**
+     * Converts the given Maildirs. For example, invoke with
+     * <code>shard /var/mail/user1 /var/mail/user2</code> to shard the folders of two users
+     * or with <code>unshard /var/mail/user1</code> to convert them back.
+     *
+     * @param args the operation followed by the Maildir directories
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !(SHARD.equals(args[0]) || UNSHARD.equals(args[0]))) {
+            System.err.println("Usage: " + MaildirShardConverter.class.getName() + " shard|unshard maildir...");
+            System.exit(1);
+        }
+        MaildirShardConverter converter = new MaildirShardConverter();
+        boolean shard = SHARD.equals(args[0]);
+        for (int i = 1; i < args.length; i++) {
+            System.out.println("Now converting " + args[i] + ".");
+            int count = shard ? converter.shardMaildir(new File(args[i])) : converter.unshardMaildir(new File(args[i]));
+            System.out.println(count + " folders of " + args[i] + " are successfully converted.");
+        }
+    }
+
+    /**
+     * Shards a Maildir, i.e. the INBOX and all its sub-folders
+     * @param maildir The directory of the Maildir
+     * @return The number of converted folders
+     * @throws IOException
+     */
+    public int shardMaildir(File maildir) throws IOException {
+        int count = 0;
+        for (File folder : listFolders(maildir)) {
+            shardFolder(folder);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Converts a sharded Maildir, i.e. the INBOX and all its sub-folders, back to the flat layout
+     * @param maildir The directory of the Maildir
+     * @return The number of converted folders
+     * @throws IOException
+     */
+    public int unshardMaildir(File maildir) throws IOException {
+        int count = 0;
+        for (File folder : listFolders(maildir)) {
+            unshardFolder(folder);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Moves the messages of a single folder into the shards of its ./cur and ./new folders
+     * @param root The directory of the folder
+     * @throws IOException
+     */
+    public void shardFolder(File root) throws IOException {
+        MaildirFolder folder = createMaildirFolder(root);
+        folder.setSharded(true);
+        for (File file : listFiles(folder.getCurFolder()))
+            moveFile(file, new File(folder.getCurFolder(file.getName()), file.getName()));
+        for (File file : listFiles(folder.getNewFolder()))
+            moveFile(file, new File(folder.getNewFolder(file.getName()), file.getName()));
+    }
+
+    /**
+     * Moves the messages of a single folder out of the shards and removes them
+     * @param root The directory of the folder
+     * @throws IOException
+     */
+    public void unshardFolder(File root) throws IOException {
+        MaildirFolder folder = createMaildirFolder(root);
+        unshard(folder.getCurFolder());
+        unshard(folder.getNewFolder());
+        folder.setSharded(false);
+    }
+
+    private void unshard(File messageFolder) throws IOException {
+        List<File> files = MaildirFolder.listMessageFiles(messageFolder);
+        if (files == null)
+            throw new IOException("Could not list folder " + messageFolder);
+        for (File file : files) {
+            if (!file.getParentFile().equals(messageFolder))
+                moveFile(file, new File(messageFolder, file.getName()));
+        }
+        for (File shard : listFiles(messageFolder)) {
+            if (shard.isDirectory() && !shard.delete())
+                throw new IOException("Could not delete folder " + shard);
+        }
+    }
+
+    private MaildirFolder createMaildirFolder(File root) throws IOException {
+        MaildirFolder folder = new MaildirFolder(root.getAbsolutePath(), null, null);
+        if (!folder.exists())
+            throw new IOException("Not a valid Maildir folder: " + root);
+        return folder;
+    }
+
+    /**
+     * Lists the INBOX and the sub-folders of a Maildir
+     */
+    private List<File> listFolders(File maildir) throws IOException {
+        List<File> folders = new ArrayList<File>();
+        if (new File(maildir, MaildirFolder.CUR).isDirectory())
+            folders.add(maildir);
+        for (File file : listFiles(maildir)) {
+            if (file.getName().startsWith(SUBFOLDER_PREFIX) && new File(file, MaildirFolder.CUR).isDirectory())
+                folders.add(file);
+        }
+        return folders;
+    }
+
+    private File[] listFiles(File folder) throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null)
+            throw new IOException("Could not list folder " + folder);
+        return files;
+    }
+
+    private void moveFile(File file, File newFile) throws IOException {
+        // skip the shards
+        if (file.isDirectory())
+            return;
+        File parent = newFile.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdir())
+            throw new IOException("Could not create folder " + parent);
+        if (!file.renameTo(newFile))
+            throw new IOException("Could not rename file " + file + " to " + newFile);
+    }
+}
@@ -0,0 +1,160 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.indexer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.acl.SimpleGroupMembershipResolver;
+import org.apache.james.mailbox.acl.UnionMailboxACLResolver;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.inmemory.InMemoryMailboxSessionMapperFactory;
+import org.apache.james.mailbox.lucene.search.LuceneMessageSearchIndex;
+import org.apache.james.mailbox.mock.MockMailboxManager;
+import org.apache.james.mailbox.model.SearchQuery;
+import org.apache.james.mailbox.store.Authenticator;
+import org.apache.james.mailbox.store.StoreMailboxManager;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LuceneIndexRebuilderTest {
+
+    private StoreMailboxManager<Long> mailboxManager;
+    private File indexDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mailboxManager = new StoreMailboxManager<Long>(new InMemoryMailboxSessionMapperFactory(), new Authenticator() {
+            public boolean isAuthentic(String userid, CharSequence passwd) {
+                return true;
+            }
+        }, new UnionMailboxACLResolver(), new SimpleGroupMembershipResolver());
+        mailboxManager.init();
+        new MockMailboxManager(mailboxManager);
+
+        indexDirectory = File.createTempFile("index", "");
+        indexDirectory.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        delete(indexDirectory);
+    }
+
+    private void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                delete(files[i]);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        // the old index gets replaced
+        indexDirectory.mkdir();
+        new File(indexDirectory, "old").createNewFile();
+
+        LuceneIndexRebuilder<Long> rebuilder = new LuceneIndexRebuilder<Long>(mailboxManager);
+        rebuilder.setThreads(3);
+        rebuilder.setBatchSize(2);
+        long count = rebuilder.rebuild(indexDirectory);
+        assertEquals(MockMailboxManager.EXPECTED_MAILBOXES_COUNT * MockMailboxManager.MESSAGE_PER_MAILBOX_COUNT, count);
+        assertFalse(new File(indexDirectory, "old").exists());
+        assertFalse(new File(indexDirectory.getPath() + ".rebuild").exists());
+
+        assertIndexed(MockMailboxManager.MESSAGE_PER_MAILBOX_COUNT);
+    }
+
+    @Test
+    public void testRebuildTwice() throws Exception {
+        LuceneIndexRebuilder<Long> rebuilder = new LuceneIndexRebuilder<Long>(mailboxManager);
+        rebuilder.rebuild(indexDirectory);
+        rebuilder.rebuild(indexDirectory);
+        assertIndexed(MockMailboxManager.MESSAGE_PER_MAILBOX_COUNT);
+    }
+
+    @Test
+    public void testFailedRebuildKeepsOldIndex() throws Exception {
+        indexDirectory.mkdir();
+        new File(indexDirectory, "old").createNewFile();
+
+        // an error is not an exception, but still fails the rebuild
+        LuceneIndexRebuilder<Long> rebuilder = new LuceneIndexRebuilder<Long>(mailboxManager) {
+            @Override
+            protected LuceneMessageSearchIndex<Long> createIndex(Directory directory) throws IOException {
+                return new LuceneMessageSearchIndex<Long>(mailboxManager.getMapperFactory(), directory) {
+                    @Override
+                    public void add(MailboxSession session, Mailbox<Long> mailbox, Message<Long> message) {
+                        throw new OutOfMemoryError("Simulated");
+                    }
+                };
+            }
+        };
+        rebuilder.setThreads(2);
+        try {
+            rebuilder.rebuild(indexDirectory);
+            fail("The rebuild should fail");
+        } catch (MailboxException e) {
+            assertTrue(e.getCause() instanceof OutOfMemoryError);
+        }
+        assertTrue(new File(indexDirectory, "old").exists());
+        assertFalse(new File(indexDirectory.getPath() + ".rebuild").exists());
+        assertFalse(new File(indexDirectory.getPath() + ".old").exists());
+    }
+
+    private void assertIndexed(int messages) throws Exception {
+        MailboxSession session = mailboxManager.createSystemSession("test", null);
+        List<Mailbox<Long>> mailboxes = mailboxManager.getMapperFactory().getMailboxMapper(session).list();
+        LuceneMessageSearchIndex<Long> index = new LuceneMessageSearchIndex<Long>(mailboxManager.getMapperFactory(), FSDirectory.open(indexDirectory));
+        try {
+            for (Mailbox<Long> mailbox : mailboxes) {
+                assertNotNull(index.getIndexState(session, mailbox));
+                assertEquals(messages, count(index.search(session, mailbox, new SearchQuery())));
+            }
+        } finally {
+            index.close();
+        }
+    }
+
+    private int count(Iterator<Long> uids) {
+        int count = 0;
+        while (uids.hasNext()) {
+            uids.next();
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,158 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.maildir.converter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import javax.mail.Flags;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.MessageManager.MetaData;
+import org.apache.james.mailbox.acl.SimpleGroupMembershipResolver;
+import org.apache.james.mailbox.acl.UnionMailboxACLResolver;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.maildir.MaildirFolder;
+import org.apache.james.mailbox.maildir.MaildirMailboxSessionMapperFactory;
+import org.apache.james.mailbox.maildir.MaildirStore;
+import org.apache.james.mailbox.model.FetchGroupImpl;
+import org.apache.james.mailbox.model.MailboxConstants;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.MessageResultIterator;
+import org.apache.james.mailbox.store.JVMMailboxPathLocker;
+import org.apache.james.mailbox.store.StoreMailboxManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test class for the {@link MaildirShardConverter}.
+ */
+public class MaildirShardConverterTest {
+
+    private static final String MAILDIR_HOME = "target/MaildirShardConverter";
+    private static final int MESSAGES = 20;
+
+    private File maildir;
+    private MailboxPath inbox;
+    private MailboxPath subFolder;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteDirectory(new File(MAILDIR_HOME));
+        maildir = new File(MAILDIR_HOME + "/user");
+        inbox = new MailboxPath(MailboxConstants.USER_NAMESPACE, "user", "INBOX");
+        subFolder = new MailboxPath(MailboxConstants.USER_NAMESPACE, "user", "INBOX.sub");
+
+        StoreMailboxManager<Integer> manager = createMailboxManager();
+        MailboxSession session = manager.createSystemSession("user", LoggerFactory.getLogger("Test"));
+        manager.createMailbox(inbox, session);
+        manager.createMailbox(subFolder, session);
+        for (int i = 0; i < MESSAGES; i++) {
+            manager.getMailbox(inbox, session).appendMessage(message(i), new Date(), session, i % 2 == 0, new Flags());
+            manager.getMailbox(subFolder, session).appendMessage(message(i), new Date(), session, false, new Flags());
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(new File(MAILDIR_HOME));
+    }
+
+    @Test
+    public void testMaildirIsShardedAndUnsharded() throws Exception {
+        MaildirShardConverter converter = new MaildirShardConverter();
+        assertEquals(2, converter.shardMaildir(maildir));
+        assertTrue(new File(maildir, MaildirFolder.SHARDED_FILE).isFile());
+        assertTrue(new File(maildir, ".INBOX.sub/" + MaildirFolder.SHARDED_FILE).isFile());
+        assertNoMessages(new File(maildir, MaildirFolder.CUR));
+        assertNoMessages(new File(maildir, MaildirFolder.NEW));
+        assertMessages();
+
+        assertEquals(2, converter.unshardMaildir(maildir));
+        assertFalse(new File(maildir, MaildirFolder.SHARDED_FILE).exists());
+        assertEquals(MESSAGES, new File(maildir, ".INBOX.sub/" + MaildirFolder.CUR).list().length);
+        assertMessages();
+    }
+
+    @Test
+    public void testInterruptedConversionIsCompleted() throws Exception {
+        // moving a single message and marking the folder simulates an interrupted conversion
+        File newFolder = new File(maildir, MaildirFolder.NEW);
+        File message = newFolder.listFiles()[0];
+        File shard = new File(newFolder, MaildirFolder.getShardName(message.getName()));
+        assertTrue(shard.mkdir());
+        assertTrue(message.renameTo(new File(shard, message.getName())));
+        assertTrue(new File(maildir, MaildirFolder.SHARDED_FILE).createNewFile());
+        assertMessages();
+
+        new MaildirShardConverter().shardFolder(maildir);
+        assertNoMessages(newFolder);
+        assertMessages();
+    }
+
+    private void assertNoMessages(File messageFolder) {
+        for (File file : messageFolder.listFiles())
+            assertTrue(file.getName(), file.isDirectory());
+    }
+
+    /**
+     * Checks the messages with a newly created store, so that nothing is cached
+     */
+    private void assertMessages() throws MailboxException, IOException {
+        StoreMailboxManager<Integer> manager = createMailboxManager();
+        MailboxSession session = manager.createSystemSession("user", LoggerFactory.getLogger("Test"));
+        MessageManager mailbox = manager.getMailbox(inbox, session);
+        MetaData metaData = mailbox.getMetaData(false, session, MetaData.FetchGroup.UNSEEN_COUNT);
+        assertEquals(MESSAGES, metaData.getMessageCount());
+        assertEquals(MESSAGES, metaData.getUnseenCount());
+        assertEquals(MESSAGES / 2, metaData.countRecent());
+
+        int count = 0;
+        MessageResultIterator messages = mailbox.getMessages(MessageRange.all(), FetchGroupImpl.FULL_CONTENT, session);
+        while (messages.hasNext()) {
+            assertTrue(messages.next().getFullContent().size() > 0);
+            count++;
+        }
+        assertEquals(MESSAGES, count);
+        assertEquals(MESSAGES, manager.getMailbox(subFolder, session).getMessageCount(session));
+    }
+
+    private StoreMailboxManager<Integer> createMailboxManager() throws MailboxException {
+        MaildirStore store = new MaildirStore(MAILDIR_HOME + "/%user", new JVMMailboxPathLocker());
+        StoreMailboxManager<Integer> manager = new StoreMailboxManager<Integer>(new MaildirMailboxSessionMapperFactory(store), null,
+                new JVMMailboxPathLocker(), new UnionMailboxACLResolver(), new SimpleGroupMembershipResolver());
+        manager.init();
+        return manager;
+    }
+
+    private ByteArrayInputStream message(int i) {
+        return new ByteArrayInputStream(("Subject: test " + i + "\r\n\r\ntestmail " + i).getBytes());
+    }
+}